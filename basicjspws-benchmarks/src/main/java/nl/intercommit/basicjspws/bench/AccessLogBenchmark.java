@@ -0,0 +1,144 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import nl.intercommit.basicjspws.AccessLog;
+import nl.intercommit.basicjspws.AccessLogResponse;
+import nl.intercommit.basicjspws.AppFilter;
+import nl.intercommit.basicjspws.AppServlet;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the {@link AccessLog}:
+ * <br> - records: sustained log records per second via {@link AccessLog#log(javax.servlet.http.HttpServletRequest, int, long, long)}
+ * (a record that is dropped because the queue is full is logged again, so the writer thread determines the rate).
+ * <br> - request: the time for a request through {@link AppFilter} and {@link AppServlet} (the "ready" controller) 
+ * with and without the access log (the response is wrapped in an {@link AccessLogResponse} and a record is logged).
+ * <br>Log files are written in the temp-directory.
+ * @author FWiers
+ *
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessLogBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Records {
+		
+		@Param({ AccessLog.FORMAT_NCSA, AccessLog.FORMAT_JSON })
+		public String format;
+		
+		AccessLog accessLog;
+		final MockRequest request = new MockRequest("/bench/pages/stats");
+		
+		@Setup
+		public void setup() throws IOException {
+			
+			File dir = new File(System.getProperty("java.io.tmpdir"), "basicjspws-bench-accesslog");
+			if (dir.isDirectory()) {
+				for (File f : dir.listFiles()) f.delete();
+			}
+			request.queryString = "a=1&b=2";
+			accessLog = new AccessLog();
+			accessLog.setDir(dir.getPath());
+			accessLog.setPrefix("bench-access");
+			accessLog.setFormat(format);
+			accessLog.setMaxFileSizeMb(16);
+			accessLog.setMaxFiles(2);
+			accessLog.start();
+		}
+		
+		@TearDown
+		public void tearDown() {
+			accessLog.stop();
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Requests {
+		
+		@Param({ "false", "true" })
+		public boolean accessLog;
+		
+		AppFilter filter;
+		final MockRequest request = new MockRequest("/bench/pages/ready");
+		final MockResponse response = new MockResponse();
+		FilterChain chain;
+		
+		@Setup
+		public void setup() throws Exception {
+			
+			Properties props = new Properties();
+			props.setProperty(BenchApp.BASE_NAME + ".accesslog", Boolean.toString(accessLog));
+			props.setProperty(BenchApp.BASE_NAME + ".accesslog.dir", 
+					new File(System.getProperty("java.io.tmpdir"), "basicjspws-bench-accesslog").getPath());
+			props.setProperty(BenchApp.BASE_NAME + ".accesslog.maxfiles", "2");
+			final BenchApp app = BenchApp.start(props);
+			if ((app.accessLog != null) != accessLog) throw new IllegalStateException("Access log is not " + (accessLog ? "enabled" : "disabled"));
+			filter = app.filter;
+			chain = new FilterChain() {
+				@Override public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException, ServletException {
+					app.servlet.service(request, response);
+				}
+			};
+		}
+		
+		@TearDown
+		public void tearDown() {
+			BenchApp.stop();
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void records(final Records r) {
+		
+		final AccessLog accessLog = r.accessLog;
+		long dropped = accessLog.getDroppedCount();
+		accessLog.log(r.request, 200, 1234L, 567000L);
+		// Queue is full: wait for the writer instead of measuring dropped records.
+		while (accessLog.getDroppedCount() != dropped) {
+			Thread.yield();
+			dropped = accessLog.getDroppedCount();
+			accessLog.log(r.request, 200, 1234L, 567000L);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public int request(final Requests r) throws Exception {
+		
+		r.filter.doFilter(r.request.recycle(), r.response.recycle(), r.chain);
+		return r.response.status;
+	}
+}
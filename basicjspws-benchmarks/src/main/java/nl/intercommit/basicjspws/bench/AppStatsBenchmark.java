@@ -0,0 +1,78 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.intercommit.basicjspws.AppStats;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures {@link AppStats#incRequest(String)} under contention: 
+ * all threads counting the same URL and all threads counting different URLs. 
+ * Run with "-t" to change the amount of threads (default 4).
+ * @author FWiers
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class AppStatsBenchmark {
+
+	public static final int URL_COUNT = 64;
+	
+	@State(Scope.Benchmark)
+	public static class Stats {
+		
+		final AppStats stats = new AppStats();
+		final String[] urls = new String[URL_COUNT];
+		final AtomicInteger threadIndex = new AtomicInteger();
+		
+		@Setup
+		public void setup() {
+			for (int i = 0; i < URL_COUNT; i++) urls[i] = "/bench/pages/url" + i;
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Cursor {
+		
+		int index;
+		
+		@Setup
+		public void setup(final Stats stats) {
+			index = stats.threadIndex.getAndIncrement() * (URL_COUNT / 4);
+		}
+	}
+	
+	@Benchmark
+	public long sameUrl(final Stats s) {
+		return s.stats.incRequest(s.urls[0]);
+	}
+
+	@Benchmark
+	public long differentUrls(final Stats s, final Cursor c) {
+		return s.stats.incRequest(s.urls[(c.index++) & (URL_COUNT - 1)]);
+	}
+}
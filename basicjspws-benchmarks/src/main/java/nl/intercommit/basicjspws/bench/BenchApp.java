@@ -0,0 +1,144 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletException;
+
+import nl.intercommit.basicjspws.AppFilter;
+import nl.intercommit.basicjspws.AppInit;
+import nl.intercommit.basicjspws.AppServlet;
+import nl.intercommit.basicjspws.LogbackUtil;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+
+/**
+ * Starts the framework in-process (without a servlet container) for benchmarks: 
+ * initializes {@link AppInit}, {@link AppFilter} and {@link AppServlet} with mock servlet context and configuration.
+ * Logging is configured programmatically without console output 
+ * (log events are stored in the "CYCLIC" and "CYCLICERROR" log buffers).
+ * <br>Base name is "bench", so controllers are available at "/bench/pages/...".
+ * @author FWiers
+ *
+ */
+public class BenchApp extends AppInit {
+
+	public static final String BASE_NAME = "bench";
+	
+	private static BenchApp instance;
+	
+	private final Properties props;
+	public AppFilter filter;
+	public AppServlet servlet;
+
+	/** Public for servlet containers (see {@link LoadTest#startServer(Properties)}). */
+	public BenchApp(final Properties props) {
+		this.props = props;
+	}
+	
+	/** Calls {@link #start(Properties)} with no properties. */
+	public static BenchApp start() throws ServletException {
+		return start(new Properties());
+	}
+
+	/** 
+	 * Starts the framework once per JVM (JMH runs each benchmark in a separate JVM by default). 
+	 * @param props The application properties (keys start with "bench.").
+	 */
+	public static synchronized BenchApp start(final Properties props) throws ServletException {
+		
+		if (instance != null) return instance;
+		initProperties();
+		final BenchApp app = new BenchApp(props);
+		final ServletContext sc = proxy(ServletContext.class, null);
+		app.contextInitialized(new ServletContextEvent(sc));
+		removeConsoleOutput();
+		app.filter = new AppFilter();
+		app.filter.init(null);
+		app.servlet = new AppServlet();
+		app.servlet.init(proxy(ServletConfig.class, sc));
+		instance = app;
+		return app;
+	}
+	
+	/** Sets the system properties for programmatic logging and the home directory (in the temp-directory). */
+	static void initProperties() {
+		
+		System.setProperty("logback.configurationFile", "programmatic");
+		if (System.getProperty(BASE_NAME + ".home") == null) {
+			System.setProperty(BASE_NAME + ".home", new File(System.getProperty("java.io.tmpdir"), "basicjspws-bench").getPath());
+		}
+	}
+	
+	/** Stops the framework (e.g. flushes the access log). */
+	public static synchronized void stop() {
+		
+		if (instance == null) return;
+		instance.contextDestroyed(null);
+		instance = null;
+	}
+	
+	/** A mock that returns null for all methods, except getServletContext. */
+	private static <T> T proxy(final Class<T> type, final ServletContext sc) {
+		
+		return type.cast(Proxy.newProxyInstance(BenchApp.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if ("getServletContext".equals(method.getName())) return sc;
+				if (method.getReturnType() == boolean.class) return Boolean.FALSE;
+				if (method.getReturnType() == int.class) return Integer.valueOf(0);
+				return null;
+			}
+		}));
+	}
+	
+	/** Console output would measure the console. */
+	static void removeConsoleOutput() {
+		
+		Logger root = LogbackUtil.getRootLogger();
+		List<Appender<ILoggingEvent>> remove = new ArrayList<Appender<ILoggingEvent>>();
+		for (Iterator<Appender<ILoggingEvent>> it = root.iteratorForAppenders(); it.hasNext();) {
+			Appender<ILoggingEvent> appender = it.next();
+			if (appender.getName() == null || !appender.getName().startsWith("CYCLIC")) remove.add(appender);
+		}
+		for (Appender<ILoggingEvent> appender : remove) {
+			root.detachAppender(appender);
+			appender.stop();
+		}
+	}
+
+	@Override protected String getAppName() { return "Benchmark"; }
+	@Override protected String getBaseName() { return BASE_NAME; }
+	@Override protected String getAppVersion() { return "bench"; }
+	@Override protected String getAppEnv() { return "benchmark"; }
+	@Override protected Properties getAppProps(final ServletContextEvent sce) { return props; }
+	@Override protected void initApp(final ServletContextEvent sce) {}
+}
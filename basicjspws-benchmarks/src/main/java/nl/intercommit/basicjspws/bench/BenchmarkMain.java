@@ -0,0 +1,47 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that allocation per operation ("gc.alloc.rate.norm")
+ * is reported for every benchmark.
+ * Accepts the same command line options as org.openjdk.jmh.Main, e.g.
+ * <br><code>java -jar target/benchmarks.jar StringUtils -p size=256</code>
+ * @author FWiers
+ *
+ */
+public class BenchmarkMain {
+
+	public static void main(final String[] args) throws Exception {
+		
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		Options options = new OptionsBuilder().parent(cmdOptions).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
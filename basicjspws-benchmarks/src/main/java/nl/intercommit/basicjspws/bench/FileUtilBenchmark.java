@@ -0,0 +1,77 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import nl.intercommit.basicjspws.FileUtil;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures {@link FileUtil#copyStreams(InputStream, OutputStream)} (a new buffer per copy)
+ * and {@link FileUtil#copyStreams(InputStream, OutputStream, byte[])} (a re-used buffer) for different sizes.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileUtilBenchmark {
+
+	@Param({ "1024", "65536", "1048576" })
+	public int size;
+	
+	private ByteArrayInputStream in;
+	private final byte[] buf = new byte[16384];
+	private long copied;
+	private final OutputStream out = new OutputStream() {
+		@Override public void write(final int b) { copied++; }
+		@Override public void write(final byte[] b, final int off, final int len) { copied += len; }
+	};
+
+	@Setup
+	public void setup() {
+		in = new ByteArrayInputStream(new byte[size]);
+	}
+	
+	@Benchmark
+	public long copyNewBuffer() throws Exception {
+		
+		in.reset();
+		copied = 0L;
+		FileUtil.copyStreams(in, out);
+		return copied;
+	}
+
+	@Benchmark
+	public long copyReusedBuffer() throws Exception {
+		
+		in.reset();
+		copied = 0L;
+		FileUtil.copyStreams(in, out, buf);
+		return copied;
+	}
+}
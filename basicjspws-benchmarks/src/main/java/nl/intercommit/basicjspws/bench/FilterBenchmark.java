@@ -0,0 +1,105 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import nl.intercommit.basicjspws.AppFilter;
+import nl.intercommit.basicjspws.ControllerUtil;
+import nl.intercommit.basicjspws.LogbackUtil;
+import nl.intercommit.basicjspws.RequestDebugFilter;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link AppFilter#doFilter(ServletRequest, ServletResponse, FilterChain)} with a filter chain 
+ * that only reads the requested URL (like a controller would), with and without the access log
+ * and with and without the {@link RequestDebugFilter} (no request is flagged for debug logging).
+ * Without the debug filter, the turbo filter is removed from the logger context 
+ * and the {@link AppFilter} uses a debug filter that is not started.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean accessLog;
+	
+	@Param({ "false", "true" })
+	public boolean debugFilter;
+	
+	private AppFilter filter;
+	private MockRequest request;
+	private MockResponse response;
+	private BlackholeChain chain;
+	
+	static class BlackholeChain implements FilterChain {
+		
+		Blackhole bh;
+		
+		@Override 
+		public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException, ServletException {
+			bh.consume(ControllerUtil.getRequestedUrl((HttpServletRequest) request));
+		}
+	}
+	
+	@Setup
+	public void setup(final Blackhole bh) throws Exception {
+		
+		Properties props = new Properties();
+		props.setProperty(BenchApp.BASE_NAME + ".accesslog", Boolean.toString(accessLog));
+		filter = BenchApp.start(props).filter;
+		if (!debugFilter) {
+			LogbackUtil.getLoggerContext().getTurboFilterList().remove(LogbackUtil.getRequestDebugFilter());
+			final RequestDebugFilter notStarted = new RequestDebugFilter();
+			filter = new AppFilter() {
+				@Override protected RequestDebugFilter getDebugFilter() { return notStarted; }
+			};
+		}
+		request = new MockRequest("/bench/pages/stats");
+		response = new MockResponse();
+		chain = new BlackholeChain();
+		chain.bh = bh;
+	}
+	
+	@TearDown
+	public void tearDown() {
+		BenchApp.stop();
+	}
+	
+	@Benchmark
+	public void doFilter() throws Exception {
+		filter.doFilter(request.recycle(), response.recycle(), chain);
+	}
+}
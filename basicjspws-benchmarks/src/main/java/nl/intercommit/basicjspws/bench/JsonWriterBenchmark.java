@@ -0,0 +1,115 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.intercommit.basicjspws.ControllerUtil;
+import nl.intercommit.basicjspws.JsonWriter;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures writing a JSON response with a {@link JsonWriter} against building the JSON as a String 
+ * (like a JSON mapper does) and writing it with {@link ControllerUtil#writeResponse(javax.servlet.http.HttpServletResponse, String, String)}.
+ * The JSON is an array of "items" objects (about 130 bytes each).
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonWriterBenchmark {
+
+	@Param({ "10", "1000" })
+	public int items;
+	
+	private MockResponse response;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		BenchApp.start();
+		response = new MockResponse();
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchApp.stop();
+	}
+	
+	@Benchmark
+	public long jsonWriter() {
+		
+		JsonWriter json = ControllerUtil.getJsonWriter(response.recycle());
+		json.beginObject().name("items").beginArray();
+		for (int i = 0; i < items; i++) {
+			json.beginObject()
+				.name("id").value(1000000L + i)
+				.name("name").value("Item \"" + (i % 10) + "\"")
+				.name("price").value(i * 0.25)
+				.name("active").value(i % 2 == 0)
+				.name("description").value("A description of the item with\tsome text and a line break\n.")
+				.endObject();
+		}
+		json.endArray().name("count").value(items).endObject().send();
+		return response.getBytesWritten();
+	}
+
+	@Benchmark
+	public long stringBuilder() {
+		
+		ControllerUtil.writeResponse(response.recycle(), "application/json", "UTF-8", toJson(items));
+		return response.getBytesWritten();
+	}
+	
+	/** Builds the same JSON as {@link #jsonWriter()} as a String. */
+	static String toJson(final int items) {
+		
+		StringBuilder sb = new StringBuilder("{\"items\":[");
+		for (int i = 0; i < items; i++) {
+			if (i > 0) sb.append(',');
+			sb.append("{\"id\":").append(1000000L + i).append(",\"name\":");
+			quote(sb, "Item \"" + (i % 10) + "\"");
+			sb.append(",\"price\":").append(i * 0.25).append(",\"active\":").append(i % 2 == 0).append(",\"description\":");
+			quote(sb, "A description of the item with\tsome text and a line break\n.");
+			sb.append('}');
+		}
+		return sb.append("],\"count\":").append(items).append('}').toString();
+	}
+	
+	private static void quote(final StringBuilder sb, final String s) {
+		
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\t': sb.append("\\t"); break;
+			default: sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+}
@@ -0,0 +1,183 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Open-model load generator: requests are started at a fixed arrival rate, independent of how fast the server responds.
+ * <br>Each request has an intended start time (start + sequence number / rate). 
+ * Latency is measured from the intended start time, so that time spent waiting for a client thread 
+ * (because the server is slow) is included: the measurements are corrected for coordinated omission. 
+ * The service time (from actual start to response) is also recorded.
+ * <br>Requests are spread round-robin over the routes. Client threads use {@link HttpURLConnection} with keep-alive.
+ * @author FWiers
+ *
+ */
+public class LoadGenerator {
+
+	/** Latencies are recorded in microseconds, up to one hour. */
+	public static final long MAX_LATENCY_US = TimeUnit.HOURS.toMicros(1L);
+	
+	/** Latency statistics for one route. */
+	public static class RouteStats {
+		
+		public final String route;
+		/** Time from intended start until the response was read (corrected for coordinated omission). */
+		public final Histogram latency = new ConcurrentHistogram(MAX_LATENCY_US, 3);
+		/** Time from actual start until the response was read. */
+		public final Histogram serviceTime = new ConcurrentHistogram(MAX_LATENCY_US, 3);
+		public final AtomicLong errors = new AtomicLong();
+		
+		RouteStats(final String route) {
+			this.route = route;
+		}
+		
+		void reset() {
+			
+			latency.reset();
+			serviceTime.reset();
+			errors.set(0L);
+		}
+	}
+
+	private final String baseUrl;
+	private final String[] routes;
+	private final RouteStats[] stats;
+	private final int threads;
+	/** Maximum time a request started after its intended start time, indicates that there are not enough client threads. */
+	private final AtomicLong maxStartDelayNs = new AtomicLong();
+	
+	/**
+	 * @param baseUrl e.g. http://127.0.0.1:8080/bench/
+	 * @param routes URLs relative to baseUrl
+	 * @param threads The maximum amount of concurrent requests.
+	 */
+	public LoadGenerator(final String baseUrl, final String[] routes, final int threads) {
+		
+		this.baseUrl = baseUrl;
+		this.routes = routes.clone();
+		this.threads = threads;
+		// Keep a connection per client thread alive (default is 5 per destination).
+		if (Integer.getInteger("http.maxConnections", 5) < threads) {
+			System.setProperty("http.maxConnections", Integer.toString(threads));
+		}
+		stats = new RouteStats[routes.length];
+		for (int i = 0; i < routes.length; i++) {
+			stats[i] = new RouteStats(routes[i]);
+		}
+	}
+	
+	/**
+	 * Sends requests at the given rate for the given duration and waits for all responses. 
+	 * Statistics are reset first (a warmup run can be followed by a measured run).
+	 * @param rate Requests per second (over all routes).
+	 * @return The actual duration in nanoseconds.
+	 */
+	public long run(final double rate, final long durationMs) throws InterruptedException {
+		
+		for (RouteStats s : stats) s.reset();
+		maxStartDelayNs.set(0L);
+		final double intervalNs = TimeUnit.SECONDS.toNanos(1L) / rate;
+		final long count = (long) (rate * durationMs / 1000.0);
+		final AtomicLong sequence = new AtomicLong();
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10L);
+		Thread[] clients = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			clients[t] = new Thread("load-client-" + t) {
+				@Override public void run() {
+					long i;
+					while ((i = sequence.getAndIncrement()) < count) {
+						final long intended = start + (long) (i * intervalNs);
+						long wait;
+						while ((wait = intended - System.nanoTime()) > 0L) {
+							LockSupport.parkNanos(wait);
+						}
+						final int r = (int) (i % routes.length);
+						final long actual = System.nanoTime();
+						updateMax(maxStartDelayNs, actual - intended);
+						boolean ok = request(routes[r]);
+						final long done = System.nanoTime();
+						stats[r].latency.recordValue(Math.min(MAX_LATENCY_US, (done - intended) / 1000L));
+						stats[r].serviceTime.recordValue(Math.min(MAX_LATENCY_US, (done - actual) / 1000L));
+						if (!ok) stats[r].errors.incrementAndGet();
+					}
+				}
+			};
+			clients[t].setDaemon(true);
+			clients[t].start();
+		}
+		for (Thread t : clients) t.join();
+		return System.nanoTime() - start;
+	}
+	
+	private static void updateMax(final AtomicLong max, final long value) {
+		
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) break;
+		}
+	}
+	
+	private final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+		@Override protected byte[] initialValue() { return new byte[8192]; }
+	};
+	
+	/** Executes a GET request, reads the full response (so that the connection is re-used). @return True for status 2xx/3xx. */
+	protected boolean request(final String route) {
+		
+		HttpURLConnection conn = null;
+		try {
+			conn = (HttpURLConnection) new URL(baseUrl + route).openConnection();
+			conn.setUseCaches(false);
+			int status = conn.getResponseCode();
+			InputStream in = (status < 400 ? conn.getInputStream() : conn.getErrorStream());
+			if (in != null) {
+				byte[] buf = readBuffer.get();
+				while (in.read(buf) > -1) { /* discard */ }
+				in.close();
+			}
+			return (status < 400);
+		} catch (Exception e) {
+			if (conn != null) conn.disconnect();
+			return false;
+		}
+	}
+	
+	/** Statistics per route, in order of the routes. */
+	public Map<String, RouteStats> getStats() {
+		
+		Map<String, RouteStats> m = new LinkedHashMap<String, RouteStats>();
+		for (RouteStats s : stats) m.put(s.route, s);
+		return m;
+	}
+	
+	/** Maximum time a request started later than intended (milliseconds) during the last run. */
+	public long getMaxStartDelayMs() { return TimeUnit.NANOSECONDS.toMillis(maxStartDelayNs.get()); }
+}
@@ -0,0 +1,155 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import nl.intercommit.basicjspws.AppConfig;
+import nl.intercommit.basicjspws.EmbeddedServer;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Load test: starts the framework ({@link BenchApp}, {@link AppFilter} and {@link AppServlet}) in an embedded Jetty server
+ * on localhost, sends requests at a fixed rate using the {@link LoadGenerator} and reports throughput 
+ * and latency percentiles per route (corrected for coordinated omission).
+ * <br>Options are given as key=value arguments:
+ * <br> - rate: requests per second over all routes (default 200)
+ * <br> - duration: duration of the measured run (default 20s)
+ * <br> - warmup: duration of the (not measured) warmup run at the same rate (default 5s)
+ * <br> - threads: maximum amount of concurrent requests (default 32)
+ * <br> - routes: comma-separated URLs relative to the base URL (default {@link #DEFAULT_ROUTES}), 
+ * controllers that show a jsp-page are shown as plain text (see {@link EmbeddedServer.ViewServlet})
+ * <br> - p50, p90, p99, p999, max: latency budgets (e.g. p99=20ms), a route exceeding a budget fails the load test
+ * <br> - errors: budget for the percentage of failed requests per route (e.g. errors=0.1)
+ * <br> - keys starting with "bench." are application properties (e.g. bench.accesslog=true)
+ * <br>The program exits with status 1 if a budget is exceeded, so that a build can fail on a regression
+ * (see the "loadtest" profile in the pom).
+ * @author FWiers
+ *
+ */
+public class LoadTest {
+
+	public static final String DEFAULT_ROUTES = "pages/ready,pages/stats,pages/sysenv?format=text,pages/log?limit=10";
+	
+	private static final String[] PERCENTILE_KEYS = { "p50", "p90", "p99", "p999", "max" };
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9, 100.0 };
+	
+	public static void main(final String[] args) throws Exception {
+		
+		Properties options = new Properties();
+		Properties appProps = new Properties();
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if (i < 1) throw new IllegalArgumentException("Expected key=value, got " + arg);
+			String key = arg.substring(0, i).trim();
+			(key.startsWith(BenchApp.BASE_NAME + ".") ? appProps : options).setProperty(key, arg.substring(i + 1).trim());
+		}
+		AppConfig config = new AppConfig(options, 0L);
+		double rate = Double.parseDouble(config.get("rate", "200"));
+		long durationMs = config.getDurationMs("duration", 20000L);
+		long warmupMs = config.getDurationMs("warmup", 5000L);
+		int threads = config.getInt("threads", 32);
+		List<String> routes = new ArrayList<String>();
+		for (String route : config.get("routes", DEFAULT_ROUTES).split(",")) {
+			route = route.trim();
+			if (route.startsWith("/")) route = route.substring(1);
+			if (!route.isEmpty()) routes.add(route);
+		}
+		
+		EmbeddedServer server = startServer(appProps);
+		int port = server.getPort();
+		boolean failed;
+		try {
+			LoadGenerator generator = new LoadGenerator("http://127.0.0.1:" + port + "/" + BenchApp.BASE_NAME + "/", 
+					routes.toArray(new String[routes.size()]), threads);
+			if (warmupMs > 0L) {
+				System.out.println("Warmup: " + rate + " requests/second for " + warmupMs + " ms");
+				generator.run(rate, warmupMs);
+			}
+			System.out.println("Measuring: " + rate + " requests/second for " + durationMs + " ms with at most " + threads + " concurrent requests");
+			long durationNs = generator.run(rate, durationMs);
+			failed = report(generator, durationNs, config);
+		} finally {
+			server.stop();
+		}
+		System.exit(failed ? 1 : 0);
+	}
+	
+	/** Starts an embedded server on a free port on localhost with the framework in context "/bench". */
+	public static EmbeddedServer startServer(final Properties appProps) throws Exception {
+		
+		BenchApp.initProperties();
+		appProps.setProperty(BenchApp.BASE_NAME + ".server.host", "127.0.0.1");
+		appProps.setProperty(BenchApp.BASE_NAME + ".server.port", "0");
+		EmbeddedServer server = new EmbeddedServer(new BenchApp(appProps));
+		server.start();
+		BenchApp.removeConsoleOutput();
+		return server;
+	}
+	
+	/** Prints the report, @return True if a budget was exceeded. */
+	static boolean report(final LoadGenerator generator, final long durationNs, final AppConfig config) {
+		
+		final double seconds = durationNs / (double) TimeUnit.SECONDS.toNanos(1L);
+		System.out.println();
+		System.out.println("Latency in ms from intended start (corrected for coordinated omission), service time in ms from actual start:");
+		System.out.println(String.format("%-32s %8s %7s %8s %8s %8s %8s %8s %8s %12s", 
+				"route", "requests", "errors", "req/s", "p50", "p90", "p99", "p99.9", "max", "service p99"));
+		boolean failed = false;
+		List<String> violations = new ArrayList<String>();
+		for (Map.Entry<String, LoadGenerator.RouteStats> e : generator.getStats().entrySet()) {
+			LoadGenerator.RouteStats s = e.getValue();
+			Histogram h = s.latency;
+			long count = h.getTotalCount();
+			double[] ms = new double[PERCENTILES.length];
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				ms[i] = (PERCENTILES[i] == 100.0 ? h.getMaxValue() : h.getValueAtPercentile(PERCENTILES[i])) / 1000.0;
+			}
+			System.out.println(String.format("%-32s %8d %7d %8.1f %8.2f %8.2f %8.2f %8.2f %8.2f %12.2f", 
+					e.getKey(), count, s.errors.get(), count / seconds, ms[0], ms[1], ms[2], ms[3], ms[4], 
+					s.serviceTime.getValueAtPercentile(99.0) / 1000.0));
+			for (int i = 0; i < PERCENTILE_KEYS.length; i++) {
+				long budgetMs = config.getDurationMs(PERCENTILE_KEYS[i], -1L);
+				if (budgetMs >= 0L && ms[i] > budgetMs) {
+					violations.add(e.getKey() + ": " + PERCENTILE_KEYS[i] + " " + ms[i] + " ms exceeds budget of " + budgetMs + " ms");
+				}
+			}
+			String errorBudget = config.get("errors");
+			if (errorBudget != null && count > 0L) {
+				double errorPct = s.errors.get() * 100.0 / count;
+				if (errorPct > Double.parseDouble(errorBudget)) {
+					violations.add(e.getKey() + ": " + String.format("%.3f", errorPct) + "% errors exceeds budget of " + errorBudget + "%");
+				}
+			}
+		}
+		System.out.println();
+		System.out.println("Maximum delay before a request could be started: " + generator.getMaxStartDelayMs() 
+				+ " ms (a high delay can mean that more threads are needed or the server is saturated).");
+		for (String v : violations) {
+			System.out.println("BUDGET EXCEEDED " + v);
+			failed = true;
+		}
+		return failed;
+	}
+}
@@ -0,0 +1,142 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import nl.intercommit.basicjspws.LogArchiveAppender;
+
+import org.openjdk.jmh.annotations.*;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.FileAppender;
+
+/**
+ * Measures events per second appended to the binary log archive ({@link LogArchiveAppender})
+ * and to a logback {@link FileAppender} with a text pattern, for the same log events.
+ * The file appender is measured with immediate flush (the logback default) and without.
+ * Files are written in the temp-directory, the text file is truncated and the archive is re-created for each iteration.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogArchiveBenchmark {
+
+	/** Amount of different log events appended in turn. */
+	public static final int EVENT_COUNT = 1024;
+	/** The text pattern for the file appender. */
+	public static final String PATTERN = "%d [%thread] %-5level %logger - %msg%n";
+	
+	private final LoggerContext context = new LoggerContext();
+	private final ILoggingEvent[] events = new ILoggingEvent[EVENT_COUNT];
+	private File dir;
+	private LogArchiveAppender archive;
+	private FileAppender<ILoggingEvent> textFile;
+	private FileAppender<ILoggingEvent> textFileBuffered;
+	private int index;
+	
+	@Setup
+	public void setup() {
+		
+		dir = new File(System.getProperty("java.io.tmpdir"), "basicjspws-bench-logarchive");
+		dir.mkdirs();
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < EVENT_COUNT; i++) {
+			LoggingEvent le = new LoggingEvent();
+			le.setTimeStamp(time + i);
+			le.setLevel(i % 10 == 0 ? ch.qos.logback.classic.Level.WARN : ch.qos.logback.classic.Level.INFO);
+			le.setLoggerName("nl.intercommit.basicjspws.bench.LogArchiveBenchmark");
+			le.setThreadName("bench-" + (i % 8));
+			le.setMessage("Log event " + i + " with some text to render as a typical log statement");
+			events[i] = le;
+		}
+	}
+	
+	@Setup(Level.Iteration)
+	public void startAppenders() {
+		
+		File archiveDir = new File(dir, "archive");
+		if (archiveDir.isDirectory()) {
+			for (File f : archiveDir.listFiles()) f.delete();
+		}
+		archive = new LogArchiveAppender();
+		archive.setContext(context);
+		archive.setName("ARCHIVE");
+		archive.setDir(archiveDir.getPath());
+		archive.setMaxSegments(4);
+		archive.start();
+		if (!archive.isStarted()) throw new IllegalStateException("Log archive did not start in " + archiveDir);
+		textFile = fileAppender("log.txt", true);
+		textFileBuffered = fileAppender("log-buffered.txt", false);
+	}
+	
+	private FileAppender<ILoggingEvent> fileAppender(final String fileName, final boolean immediateFlush) {
+		
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern(PATTERN);
+		encoder.setImmediateFlush(immediateFlush);
+		encoder.start();
+		FileAppender<ILoggingEvent> appender = new FileAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.setName(fileName);
+		appender.setFile(new File(dir, fileName).getPath());
+		appender.setAppend(false);
+		appender.setEncoder(encoder);
+		appender.start();
+		if (!appender.isStarted()) throw new IllegalStateException("File appender did not start for " + fileName);
+		return appender;
+	}
+	
+	@TearDown(Level.Iteration)
+	public void stopAppenders() {
+		
+		archive.stop();
+		textFile.stop();
+		textFileBuffered.stop();
+	}
+	
+	private ILoggingEvent next() {
+		return events[(index++) & (EVENT_COUNT - 1)];
+	}
+	
+	@Benchmark
+	public void archive() {
+		archive.doAppend(next());
+	}
+
+	@Benchmark
+	public void textFile() {
+		textFile.doAppend(next());
+	}
+
+	@Benchmark
+	public void textFileBuffered() {
+		textFileBuffered.doAppend(next());
+	}
+}
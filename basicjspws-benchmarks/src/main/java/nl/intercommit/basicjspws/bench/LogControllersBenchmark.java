@@ -0,0 +1,102 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.intercommit.basicjspws.controllers.Log;
+import nl.intercommit.basicjspws.controllers.LogError;
+import nl.intercommit.basicjspws.controllers.LogQuery;
+
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the rendering of log events by the {@link Log}, {@link LogError} and {@link LogQuery} controllers
+ * for a page of "limit" log events from filled log buffers.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogControllersBenchmark {
+
+	/** Amount of log events in the log buffers. */
+	public static final int LOG_EVENTS = 10000;
+	
+	@Param({ "10", "512" })
+	public int limit;
+	
+	private final Log logController = new Log();
+	private final LogError logErrorController = new LogError();
+	private final LogQuery logQueryController = new LogQuery();
+	private MockRequest logRequest;
+	private MockRequest logQueryRequest;
+	private MockResponse response;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		BenchApp.start();
+		Logger log = LoggerFactory.getLogger(LogControllersBenchmark.class);
+		Exception e = new IllegalStateException("Benchmark error");
+		for (int i = 0; i < LOG_EVENTS; i++) {
+			if (i % 10 == 0) {
+				log.error("Log event {} with an exception", i, e);
+			} else {
+				log.info("Log event {} with some text to render as a typical log statement", i);
+			}
+		}
+		logRequest = new MockRequest("/bench/pages/log").setParameter("limit", Integer.toString(limit));
+		logQueryRequest = new MockRequest("/bench/pages/logquery").setParameter("limit", Integer.toString(limit))
+				.setParameter("level", "INFO").setParameter("regex", "event \\d+5 ");
+		response = new MockResponse();
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchApp.stop();
+	}
+
+	@Benchmark
+	public long log() {
+		
+		logController.handleRequest(logRequest.recycle(), response.recycle());
+		return response.getBytesWritten();
+	}
+
+	@Benchmark
+	public long logError() {
+		
+		logErrorController.handleRequest(logRequest.recycle(), response.recycle());
+		return response.getBytesWritten();
+	}
+
+	@Benchmark
+	public long logQuery() {
+		
+		logQueryController.handleRequest(logQueryRequest.recycle(), response.recycle());
+		return response.getBytesWritten();
+	}
+}
@@ -0,0 +1,120 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import nl.intercommit.basicjspws.LogBufferAppender;
+import nl.intercommit.basicjspws.LogEventFilter;
+import nl.intercommit.basicjspws.LogbackUtil;
+import nl.intercommit.basicjspws.controllers.Log;
+import nl.intercommit.basicjspws.controllers.LogQuery;
+
+import org.openjdk.jmh.annotations.*;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * Measures queries as done by the {@link LogQuery} controller on a log buffer of {@link #LOG_EVENTS} events
+ * (one event per millisecond): a query for a time range of one second in the middle of the buffer 
+ * (the starting point is found with a binary search), a full scan with a message pattern that does not match 
+ * and a page of matching events after skipping 1000 matching events.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogQueryBenchmark {
+
+	/** Amount of log events in the log buffer. */
+	public static final int LOG_EVENTS = 100000;
+	/** Timestamp of the first log event. */
+	public static final long START_TIME = 1000000L;
+	
+	private LogBufferAppender logBuffer;
+	private final MockRequest request = new MockRequest("/bench/pages/logquery");
+	private final MockRequest offsetRequest = new MockRequest("/bench/pages/logquery").setParameter("offset", "1000");
+	private MockResponse response;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		BenchApp.start();
+		logBuffer = new LogBufferAppender();
+		logBuffer.setContext(LogbackUtil.getLoggerContext());
+		logBuffer.setName("QUERY");
+		logBuffer.setMaxSize(LOG_EVENTS);
+		logBuffer.start();
+		for (int i = 0; i < LOG_EVENTS; i++) {
+			LoggingEvent le = new LoggingEvent();
+			le.setTimeStamp(START_TIME + i);
+			le.setLevel(i % 10 == 0 ? Level.WARN : Level.INFO);
+			le.setLoggerName(i % 2 == 0 ? "nl.intercommit.bench.Even" : "nl.intercommit.bench.Odd");
+			le.setThreadName("bench-" + (i % 8));
+			le.setMessage("Log event " + i + " with some text to render as a typical log statement");
+			logBuffer.doAppend(le);
+		}
+		response = new MockResponse();
+	}
+
+	@TearDown
+	public void tearDown() {
+		
+		logBuffer.stop();
+		BenchApp.stop();
+	}
+	
+	private long query(final MockRequest request, final LogEventFilter filter) {
+		
+		Log.writeLogEvents(request.recycle(), response.recycle(), logBuffer, "%d [%thread] %-5level %logger - %msg%n", "log", filter);
+		return response.getBytesWritten();
+	}
+
+	@Benchmark
+	public long timeRange() {
+		
+		LogEventFilter filter = new LogEventFilter();
+		filter.level = Level.WARN;
+		filter.fromTime = START_TIME + LOG_EVENTS / 2;
+		filter.toTime = filter.fromTime + 1000L;
+		return query(request, filter);
+	}
+
+	@Benchmark
+	public long fullScan() {
+		
+		LogEventFilter filter = new LogEventFilter();
+		filter.messagePattern = Pattern.compile("no such event");
+		return query(request, filter);
+	}
+
+	@Benchmark
+	public long offset() {
+		
+		LogEventFilter filter = new LogEventFilter();
+		filter.loggerPrefix = "nl.intercommit.bench.Even";
+		return query(offsetRequest, filter);
+	}
+}
@@ -0,0 +1,157 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * A lightweight GET request for benchmarks. Re-use an instance via {@link #recycle()} so that the benchmarks 
+ * measure the framework and not the mock. 
+ * @author FWiers
+ *
+ */
+public class MockRequest implements HttpServletRequest {
+	
+	public String requestUri;
+	public String method = "GET";
+	public String queryString;
+	public String remoteAddr = "127.0.0.1";
+	public int remotePort = 50000;
+	public String characterEncoding = "UTF-8";
+	public byte[] content = new byte[0];
+	public final Map<String, String[]> parameters = new HashMap<String, String[]>();
+	public final Map<String, String> headers = new HashMap<String, String>();
+	public final Map<String, Object> attributes = new HashMap<String, Object>();
+	
+	private static final RequestDispatcher NO_VIEW = new RequestDispatcher() {
+		@Override public void forward(final ServletRequest request, final ServletResponse response) {}
+		@Override public void include(final ServletRequest request, final ServletResponse response) {}
+	};
+	
+	public MockRequest(final String requestUri) {
+		this.requestUri = requestUri;
+	}
+	
+	/** Removes the attributes set while handling a request. */
+	public MockRequest recycle() {
+		
+		if (!attributes.isEmpty()) attributes.clear();
+		return this;
+	}
+	
+	public MockRequest setParameter(final String name, final String value) {
+		
+		parameters.put(name, new String[] { value });
+		return this;
+	}
+
+	// HttpServletRequest
+	
+	@Override public String getAuthType() { return null; }
+	@Override public Cookie[] getCookies() { return null; }
+	@Override public long getDateHeader(final String name) { return -1L; }
+	@Override public String getHeader(final String name) { return headers.get(name); }
+	@Override public Enumeration<String> getHeaders(final String name) { 
+		return (headers.containsKey(name) ? Collections.enumeration(Collections.singletonList(headers.get(name))) 
+				: Collections.enumeration(Collections.<String>emptyList())); 
+	}
+	@Override public Enumeration<String> getHeaderNames() { return Collections.enumeration(headers.keySet()); }
+	@Override public int getIntHeader(final String name) { return (headers.containsKey(name) ? Integer.parseInt(headers.get(name)) : -1); }
+	@Override public String getMethod() { return method; }
+	@Override public String getPathInfo() { return null; }
+	@Override public String getPathTranslated() { return null; }
+	@Override public String getContextPath() { return requestUri.substring(0, requestUri.indexOf('/', 1)); }
+	@Override public String getQueryString() { return queryString; }
+	@Override public String getRemoteUser() { return null; }
+	@Override public boolean isUserInRole(final String role) { return false; }
+	@Override public Principal getUserPrincipal() { return null; }
+	@Override public String getRequestedSessionId() { return null; }
+	@Override public String getRequestURI() { return requestUri; }
+	@Override public StringBuffer getRequestURL() { return new StringBuffer("http://localhost:8080").append(requestUri); }
+	@Override public String getServletPath() { return requestUri.substring(requestUri.indexOf('/', 1)); }
+	@Override public HttpSession getSession(final boolean create) { return null; }
+	@Override public HttpSession getSession() { return null; }
+	@Override public boolean isRequestedSessionIdValid() { return false; }
+	@Override public boolean isRequestedSessionIdFromCookie() { return false; }
+	@Override public boolean isRequestedSessionIdFromURL() { return false; }
+	@Override @Deprecated public boolean isRequestedSessionIdFromUrl() { return false; }
+
+	// ServletRequest
+	
+	@Override public Object getAttribute(final String name) { return attributes.get(name); }
+	@Override public Enumeration<String> getAttributeNames() { return Collections.enumeration(attributes.keySet()); }
+	@Override public String getCharacterEncoding() { return characterEncoding; }
+	@Override public void setCharacterEncoding(final String env) throws UnsupportedEncodingException { characterEncoding = env; }
+	@Override public int getContentLength() { return content.length; }
+	@Override public String getContentType() { return headers.get("Content-Type"); }
+	@Override public ServletInputStream getInputStream() { 
+		
+		final ByteArrayInputStream in = new ByteArrayInputStream(content);
+		return new ServletInputStream() {
+			@Override public int read() { return in.read(); }
+			@Override public int read(final byte[] b, final int off, final int len) { return in.read(b, off, len); }
+		};
+	}
+	@Override public String getParameter(final String name) { 
+		
+		String[] values = parameters.get(name);
+		return (values == null ? null : values[0]); 
+	}
+	@Override public Enumeration<String> getParameterNames() { return Collections.enumeration(parameters.keySet()); }
+	@Override public String[] getParameterValues(final String name) { return parameters.get(name); }
+	@Override public Map<String, String[]> getParameterMap() { return parameters; }
+	@Override public String getProtocol() { return "HTTP/1.1"; }
+	@Override public String getScheme() { return "http"; }
+	@Override public String getServerName() { return "localhost"; }
+	@Override public int getServerPort() { return 8080; }
+	@Override public BufferedReader getReader() throws UnsupportedEncodingException { 
+		return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), characterEncoding)); 
+	}
+	@Override public String getRemoteAddr() { return remoteAddr; }
+	@Override public String getRemoteHost() { return remoteAddr; }
+	@Override public void setAttribute(final String name, final Object o) { attributes.put(name, o); }
+	@Override public void removeAttribute(final String name) { attributes.remove(name); }
+	@Override public Locale getLocale() { return Locale.ENGLISH; }
+	@Override public Enumeration<Locale> getLocales() { return Collections.enumeration(Collections.singletonList(Locale.ENGLISH)); }
+	@Override public boolean isSecure() { return false; }
+	/** Returns a dispatcher that does nothing: benchmarks do not render jsp-pages. */
+	@Override public RequestDispatcher getRequestDispatcher(final String path) { return NO_VIEW; }
+	@Override @Deprecated public String getRealPath(final String path) { return null; }
+	@Override public int getRemotePort() { return remotePort; }
+	@Override public String getLocalName() { return "localhost"; }
+	@Override public String getLocalAddr() { return "127.0.0.1"; }
+	@Override public int getLocalPort() { return 8080; }
+}
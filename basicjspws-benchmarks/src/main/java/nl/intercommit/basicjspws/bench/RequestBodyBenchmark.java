@@ -0,0 +1,74 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import nl.intercommit.basicjspws.ControllerUtil;
+import nl.intercommit.basicjspws.RequestBody;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures reading a request body via {@link ControllerUtil#getRequestContent(HttpServletRequest)} (as text)
+ * and {@link RequestBody#get(HttpServletRequest)} (bytes in a re-used buffer) for different body sizes.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBodyBenchmark {
+
+	@Param({ "128", "4096", "65536" })
+	public int size;
+	
+	private MockRequest request;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		BenchApp.start();
+		request = new MockRequest("/bench/pages/upload");
+		request.method = "POST";
+		request.content = new byte[size];
+		Arrays.fill(request.content, (byte) 'x');
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchApp.stop();
+	}
+	
+	@Benchmark
+	public int requestContent() {
+		return ControllerUtil.getRequestContent(request.recycle()).length();
+	}
+
+	@Benchmark
+	public int requestBody() {
+		return RequestBody.get(request.recycle()).getLength();
+	}
+}
@@ -0,0 +1,86 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.intercommit.basicjspws.ControllerUtil;
+import nl.intercommit.basicjspws.ResponseEncoder;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures encoding the value of {@link JsonWriterBenchmark} as JSON, CBOR and MessagePack 
+ * via {@link ControllerUtil#getResponseEncoder(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)}
+ * (format chosen by the Accept header). The amount of bytes on the wire per format is printed at the end of a trial.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseEncoderBenchmark {
+
+	@Param({ "application/json", "application/cbor", "application/msgpack" })
+	public String accept;
+
+	@Param({ "10", "1000" })
+	public int items;
+	
+	private MockRequest request;
+	private MockResponse response;
+	private long bytes;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		BenchApp.start();
+		request = new MockRequest("/bench/pages/items");
+		request.headers.put("Accept", accept);
+		response = new MockResponse();
+	}
+
+	@TearDown
+	public void tearDown() {
+		
+		System.out.println(accept + ", " + items + " items: " + bytes + " bytes");
+		BenchApp.stop();
+	}
+	
+	@Benchmark
+	public long encode() {
+		
+		ResponseEncoder encoder = ControllerUtil.getResponseEncoder(request.recycle(), response.recycle());
+		encoder.beginObject(2).name("items").beginArray(items);
+		for (int i = 0; i < items; i++) {
+			encoder.beginObject(5)
+				.name("id").value(1000000L + i)
+				.name("name").value("Item \"" + (i % 10) + "\"")
+				.name("price").value(i * 0.25)
+				.name("active").value(i % 2 == 0)
+				.name("description").value("A description of the item with\tsome text and a line break\n.")
+				.endObject();
+		}
+		encoder.endArray().name("count").value(items).endObject().send();
+		return (bytes = response.getBytesWritten());
+	}
+}
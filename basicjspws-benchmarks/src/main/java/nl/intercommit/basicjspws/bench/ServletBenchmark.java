@@ -0,0 +1,97 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nl.intercommit.basicjspws.AppServlet;
+import nl.intercommit.basicjspws.RequestContext;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures {@link AppServlet#service(javax.servlet.ServletRequest, javax.servlet.ServletResponse)}: 
+ * the controller lookup and dispatch (see {@link AppServlet#doPost(HttpServletRequest, HttpServletResponse)})
+ * for a small text response (the "ready" controller), a page (the "stats" controller, the jsp-page is not rendered, see {@link MockRequest#getRequestDispatcher(String)}) 
+ * and a URL without controller (404, the log statement is deduplicated).
+ * The {@link RequestContext} is created as the {@link nl.intercommit.basicjspws.AppFilter} does.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServletBenchmark {
+
+	private AppServlet servlet;
+	private MockRequest ready;
+	private MockRequest stats;
+	private MockRequest notFound;
+	private MockResponse response;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		servlet = BenchApp.start().servlet;
+		ready = new MockRequest("/bench/pages/ready");
+		stats = new MockRequest("/bench/pages/stats");
+		notFound = new MockRequest("/bench/pages/none");
+		response = new MockResponse();
+		if (dispatchText() != 200 || dispatchPage() != 200 || dispatchNotFound() != 404) {
+			throw new IllegalStateException("Unexpected response status " + response.status);
+		}
+	}
+	
+	private int dispatch(final MockRequest request) throws Exception {
+		
+		final RequestContext ctx = RequestContext.acquire(request.recycle(), response.recycle(), System.nanoTime());
+		try {
+			servlet.service(request, response);
+		} finally {
+			ctx.release();
+		}
+		return response.status;
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchApp.stop();
+	}
+	
+	@Benchmark
+	public int dispatchText() throws Exception {
+		return dispatch(ready);
+	}
+
+	@Benchmark
+	public int dispatchPage() throws Exception {
+		return dispatch(stats);
+	}
+
+	@Benchmark
+	public int dispatchNotFound() throws Exception {
+		return dispatch(notFound);
+	}
+}
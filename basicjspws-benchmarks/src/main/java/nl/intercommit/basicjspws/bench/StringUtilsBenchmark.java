@@ -0,0 +1,116 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import nl.intercommit.basicjspws.StringUtils;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the {@link StringUtils} charset methods with {@link String#getBytes(Charset)}, {@link String#String(byte[], Charset)}
+ * and {@link Charset#encode(String)} / {@link Charset#decode(ByteBuffer)} (what StringUtils used before) 
+ * for different payload sizes, charsets and content (only ASCII characters or mixed with non-ASCII characters).
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringUtilsBenchmark {
+
+	@Param({ "16", "256", "4096", "65536" })
+	public int size;
+
+	@Param({ "UTF-8", "ISO-8859-1" })
+	public String charset;
+
+	@Param({ "ascii", "mixed" })
+	public String content;
+	
+	private Charset cs;
+	private String text;
+	private byte[] bytes;
+	private byte[] byteBuffer;
+	private char[] charBuffer;
+	
+	@Setup
+	public void setup() {
+		
+		cs = Charset.forName(charset);
+		String pattern = ("ascii".equals(content) ? "The quick brown fox jumps over the lazy dog. " 
+				: "Le café coûte 3 €, über grün. ");
+		StringBuilder sb = new StringBuilder(size + pattern.length());
+		while (sb.length() < size) sb.append(pattern);
+		text = sb.substring(0, size);
+		bytes = text.getBytes(cs);
+		byteBuffer = new byte[StringUtils.maxEncodedLength(text, cs)];
+		charBuffer = new char[bytes.length];
+	}
+	
+	@Benchmark
+	public byte[] stringGetBytes() {
+		return text.getBytes(cs);
+	}
+
+	@Benchmark
+	public byte[] charsetEncode() {
+		
+		ByteBuffer buf = cs.encode(text);
+		byte[] b = new byte[buf.limit()];
+		buf.get(b);
+		return b;
+	}
+
+	@Benchmark
+	public byte[] getBytes() {
+		return StringUtils.getBytes(text, cs);
+	}
+
+	@Benchmark
+	public int encodeIntoBuffer() {
+		return StringUtils.encode(text, cs, byteBuffer, 0);
+	}
+	
+	@Benchmark
+	public String newString() {
+		return new String(bytes, cs);
+	}
+
+	@Benchmark
+	public String charsetDecode() {
+		return cs.decode(ByteBuffer.wrap(bytes)).toString();
+	}
+
+	@Benchmark
+	public String decodeToString() {
+		return StringUtils.toString(bytes, 0, bytes.length, cs);
+	}
+
+	@Benchmark
+	public int decodeIntoBuffer() {
+		return StringUtils.decode(bytes, 0, bytes.length, cs, charBuffer, 0);
+	}
+}
@@ -0,0 +1,109 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import nl.intercommit.basicjspws.ControllerUtil;
+import nl.intercommit.basicjspws.EncodedBody;
+import nl.intercommit.basicjspws.StringUtils;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the {@link ControllerUtil#writeResponse(HttpServletResponse, String, String, String)} variants 
+ * (text, pre-encoded bytes, a reader and an {@link EncodedBody}) and {@link ControllerUtil#writeConstant(HttpServletResponse, String, String, String)}
+ * for different response sizes.
+ * @author FWiers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteResponseBenchmark {
+
+	@Param({ "16", "1024", "65536" })
+	public int size;
+	
+	private String text;
+	private byte[] bytes;
+	private EncodedBody body;
+	private MockResponse response;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		BenchApp.start();
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'x');
+		text = new String(chars);
+		bytes = StringUtils.getBytes(text, StringUtils.UTF_8);
+		body = new EncodedBody("text/plain", "UTF-8", text);
+		response = new MockResponse();
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchApp.stop();
+	}
+	
+	@Benchmark
+	public long writeText() {
+		
+		ControllerUtil.writeResponse(response.recycle(), "text/plain", "UTF-8", text);
+		return response.getBytesWritten();
+	}
+
+	@Benchmark
+	public long writeBytes() {
+		
+		ControllerUtil.writeResponse(response.recycle(), "text/plain", "UTF-8", bytes);
+		return response.getBytesWritten();
+	}
+
+	@Benchmark
+	public long writeReader() throws Exception {
+		
+		ControllerUtil.writeResponse(response.recycle(), "text/plain", "UTF-8", 
+				new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"), true);
+		return response.getBytesWritten();
+	}
+
+	@Benchmark
+	public long writeEncodedBody() {
+		
+		ControllerUtil.writeResponse(response.recycle(), body);
+		return response.getBytesWritten();
+	}
+
+	@Benchmark
+	public long writeConstant() {
+		
+		ControllerUtil.writeConstant(response.recycle(), "text/plain", "UTF-8", text);
+		return response.getBytesWritten();
+	}
+}
@@ -0,0 +1,501 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes an access log line for every request (see {@link AppFilter}) in NCSA (common log format 
+ * with the latency in microseconds appended) or JSON format.
+ * <br>A log line is encoded on the request thread into a pooled byte-buffer, 
+ * the buffer is handed to a single writer thread via a lock-free queue. 
+ * The writer thread copies the log lines into one direct byte-buffer and writes the batch to a {@link FileChannel}.
+ * When the queue is full, log lines are dropped (and counted) instead of blocking the request.
+ * <br>The log file is rotated when it reaches the maximum file size or when the rotation interval has passed.
+ * Rotated files are renamed to prefix-yyyyMMdd-HHmmss.log, only the last maxFiles rotated files are kept. 
+ * @author FWiers
+ *
+ */
+public class AccessLog {
+
+	private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+
+	public static final String FORMAT_NCSA = "ncsa";
+	public static final String FORMAT_JSON = "json";
+	public static final int DEFAULT_QUEUE_SIZE = 8192;
+	public static final int DEFAULT_MAX_FILE_SIZE_MB = 64;
+	public static final long DEFAULT_ROTATE_INTERVAL_MS = 24L * 3600L * 1000L;
+	public static final int DEFAULT_MAX_FILES = 30;
+	/** Maximum size of one log line, long URLs are truncated. */
+	public static final int RECORD_SIZE = 1024;
+	/** Size of the buffer for writing a batch of log lines (at least 256 log lines). */
+	public static final int BATCH_BYTES = 256 * RECORD_SIZE;
+	/** Maximum time a log line waits in the queue when there are few requests. */
+	public static final long WRITE_INTERVAL_MS = 10L;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	/** A pooled buffer for one log line. */
+	private static class Record {
+		
+		final byte[] bytes = new byte[RECORD_SIZE];
+		int length;
+	}
+
+	/** Formatted time for one second, shared by all request threads. */
+	private static class TimeStamp {
+		
+		final long second;
+		final byte[] formatted;
+		
+		TimeStamp(final long second, final byte[] formatted) {
+			this.second = second;
+			this.formatted = formatted;
+		}
+	}
+
+	private String dir;
+	private String prefix = "access";
+	private boolean json;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private long maxFileSize = DEFAULT_MAX_FILE_SIZE_MB * 1024L * 1024L;
+	private long rotateIntervalMs = DEFAULT_ROTATE_INTERVAL_MS;
+	private int maxFiles = DEFAULT_MAX_FILES;
+
+	private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+	private final ConcurrentLinkedQueue<Record> pool = new ConcurrentLinkedQueue<Record>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicReference<TimeStamp> timeStamp = new AtomicReference<TimeStamp>(new TimeStamp(-1L, new byte[0]));
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong truncatedCount = new AtomicLong();
+
+	private volatile boolean started;
+	private volatile boolean stopping;
+	private Thread writer;
+	// Only used by the writer thread (or by stop() after the writer thread stopped).
+	private File file;
+	private FileChannel channel;
+	private long fileSize;
+	private long rotateTime;
+	private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+	// Updated by the writer thread.
+	private volatile long recordCount;
+	private volatile long batchCount;
+	private volatile long bytesWritten;
+	private volatile long writeTimeTotalNs;
+	private volatile long writeTimeMaxNs;
+	private volatile long rotations;
+	private volatile int queueSizeMax;
+
+	/** The directory for the log files (mandatory). */
+	public void setDir(final String dir) { this.dir = dir; }
+	public String getDir() { return dir; }
+
+	/** The prefix of log file names (default "access"), the current log file is named prefix.log. */
+	public void setPrefix(final String prefix) { this.prefix = prefix; }
+	public String getPrefix() { return prefix; }
+
+	/** Either {@link #FORMAT_NCSA} (the default) or {@link #FORMAT_JSON}. */
+	public void setFormat(final String format) { json = FORMAT_JSON.equalsIgnoreCase(format); }
+	public String getFormat() { return (json ? FORMAT_JSON : FORMAT_NCSA); }
+
+	/** Maximum amount of log lines waiting to be written (default {@link #DEFAULT_QUEUE_SIZE}). */
+	public void setQueueSize(final int queueSize) { this.queueSize = Math.max(1, queueSize); }
+	public int getQueueSize() { return queueSize; }
+
+	/** Size in megabytes at which the log file is rotated (default {@link #DEFAULT_MAX_FILE_SIZE_MB}). */
+	public void setMaxFileSizeMb(final int maxFileSizeMb) { this.maxFileSize = Math.max(1, maxFileSizeMb) * 1024L * 1024L; }
+	public int getMaxFileSizeMb() { return (int) (maxFileSize / (1024L * 1024L)); }
+
+	/** Time after which the log file is rotated (default {@link #DEFAULT_ROTATE_INTERVAL_MS}, 0 to only rotate on size). */
+	public void setRotateIntervalMs(final long rotateIntervalMs) { this.rotateIntervalMs = Math.max(0L, rotateIntervalMs); }
+	public long getRotateIntervalMs() { return rotateIntervalMs; }
+
+	/** Maximum amount of rotated log files to keep (default {@link #DEFAULT_MAX_FILES}). */
+	public void setMaxFiles(final int maxFiles) { this.maxFiles = Math.max(0, maxFiles); }
+	public int getMaxFiles() { return maxFiles; }
+
+	public boolean isStarted() { return started; }
+
+	/** Opens the log file and starts the writer thread. */
+	public void start() throws IOException {
+		
+		if (started) return;
+		if (dir == null) throw new IOException("No directory set for access log.");
+		File d = new File(dir);
+		if (!d.isDirectory() && !d.mkdirs()) {
+			throw new IOException("Cannot create access log directory " + d);
+		}
+		file = new File(d, prefix + ".log");
+		open();
+		stopping = false;
+		writer = new Thread(new Writer(), "AccessLog-" + prefix);
+		writer.setDaemon(true);
+		started = true;
+		writer.start();
+		log.info("Writing access log to " + file);
+	}
+
+	/** Stops the writer thread, writes the remaining log lines and closes the log file. */
+	public void stop() {
+		
+		if (!started) return;
+		started = false;
+		stopping = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(2000L);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		if (writer.isAlive()) {
+			log.warn("Access log writer did not stop in time, " + queued.get() + " log lines not written.");
+			return;
+		}
+		try {
+			while (writeBatch() > 0) {}
+		} catch (IOException ioe) {
+			log.warn("Could not write access log to " + file + ": " + ioe);
+		}
+		close();
+	}
+
+	/**
+	 * Queues a log line for the request.
+	 * @param status The response status.
+	 * @param bytes The amount of bytes in the response body.
+	 * @param latencyNs The time it took to handle the request in nanoseconds.
+	 */
+	public void log(final HttpServletRequest request, final int status, final long bytes, final long latencyNs) {
+		
+		if (!started) return;
+		if (queued.incrementAndGet() > queueSize) {
+			queued.decrementAndGet();
+			droppedCount.incrementAndGet();
+			return;
+		}
+		Record r = pool.poll();
+		if (r == null) r = new Record();
+		r.length = (json ? encodeJson(r.bytes, request, status, bytes, latencyNs / 1000L) 
+				: encodeNcsa(r.bytes, request, status, bytes, latencyNs / 1000L));
+		queue.offer(r);
+	}
+
+	/* *** Encoding *** */
+
+	private int encodeNcsa(final byte[] b, final HttpServletRequest request, final int status, final long bytes, final long latencyUs) {
+		
+		// host - - [dd/MMM/yyyy:HH:mm:ss Z] "METHOD uri?query PROTOCOL" status bytes latencyUs
+		int i = putEscaped(request.getRemoteAddr(), b, 0, 64, false);
+		i = putAscii(" - - [", b, i);
+		i = put(getTimeStamp(), b, i);
+		i = putAscii("] \"", b, i);
+		i = putEscaped(request.getMethod(), b, i, 16, false);
+		b[i++] = ' ';
+		// Reserve room for the remainder of the line.
+		final int max = RECORD_SIZE - 96;
+		i = putEscaped(request.getRequestURI(), b, i, max - i, false);
+		String query = request.getQueryString();
+		if (query != null && i < max) {
+			b[i++] = '?';
+			i = putEscaped(query, b, i, max - i, false);
+		}
+		b[i++] = ' ';
+		i = putEscaped(request.getProtocol(), b, i, 16, false);
+		b[i++] = '"';
+		b[i++] = ' ';
+		i = putLong(status, b, i);
+		b[i++] = ' ';
+		if (bytes < 0L) {
+			b[i++] = '-';
+		} else {
+			i = putLong(bytes, b, i);
+		}
+		b[i++] = ' ';
+		i = putLong(latencyUs, b, i);
+		b[i++] = '\n';
+		return i;
+	}
+
+	private int encodeJson(final byte[] b, final HttpServletRequest request, final int status, final long bytes, final long latencyUs) {
+		
+		int i = putAscii("{\"time\":\"", b, 0);
+		i = put(getTimeStamp(), b, i);
+		i = putAscii("\",\"remote\":\"", b, i);
+		i = putEscaped(request.getRemoteAddr(), b, i, 64, true);
+		i = putAscii("\",\"port\":", b, i);
+		i = putLong(request.getRemotePort(), b, i);
+		i = putAscii(",\"method\":\"", b, i);
+		i = putEscaped(request.getMethod(), b, i, 16, true);
+		i = putAscii("\",\"url\":\"", b, i);
+		final int max = RECORD_SIZE - 128;
+		i = putEscaped(request.getRequestURI(), b, i, max - i, true);
+		String query = request.getQueryString();
+		if (query != null && i < max) {
+			b[i++] = '?';
+			i = putEscaped(query, b, i, max - i, true);
+		}
+		i = putAscii("\",\"status\":", b, i);
+		i = putLong(status, b, i);
+		i = putAscii(",\"bytes\":", b, i);
+		i = putLong(bytes, b, i);
+		i = putAscii(",\"latencyUs\":", b, i);
+		i = putLong(latencyUs, b, i);
+		b[i++] = '}';
+		b[i++] = '\n';
+		return i;
+	}
+
+	/** Returns the current time formatted (once per second) for the log format. */
+	private byte[] getTimeStamp() {
+		
+		long now = System.currentTimeMillis();
+		long second = now / 1000L;
+		TimeStamp ts = timeStamp.get();
+		if (ts.second != second) {
+			// SimpleDateFormat is not thread-safe, create a new one once per second.
+			SimpleDateFormat df = (json ? new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US) 
+					: new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US));
+			ts = new TimeStamp(second, df.format(new Date(second * 1000L)).getBytes());
+			timeStamp.set(ts);
+		}
+		return ts.formatted;
+	}
+
+	private static int put(final byte[] s, final byte[] b, final int offset) {
+		
+		System.arraycopy(s, 0, b, offset, s.length);
+		return offset + s.length;
+	}
+
+	private static int putAscii(final String s, final byte[] b, int offset) {
+		
+		for (int i = 0; i < s.length(); i++) {
+			b[offset++] = (byte) s.charAt(i);
+		}
+		return offset;
+	}
+
+	private static int putLong(long v, final byte[] b, int offset) {
+		
+		if (v < 0L) {
+			b[offset++] = '-';
+			if (v == Long.MIN_VALUE) return putAscii("9223372036854775808", b, offset);
+			v = -v;
+		}
+		int start = offset;
+		do {
+			b[offset++] = (byte) ('0' + (v % 10L));
+			v /= 10L;
+		} while (v != 0L);
+		// Digits are written in reverse order.
+		for (int i = start, j = offset - 1; i < j; i++, j--) {
+			byte t = b[i]; b[i] = b[j]; b[j] = t;
+		}
+		return offset;
+	}
+
+	/**
+	 * Writes s as UTF-8 into b (see {@link StringUtils#putUtf8Char(String, int, byte[], int)}), escaping quotes, 
+	 * backslashes and control characters (JSON escapes from {@link JsonWriter#putEscape(char, byte[], int)} 
+	 * or \xhh as used in NCSA logs). 
+	 * Stops (counted as truncated) when the next character does not fit in maxLength bytes.
+	 * @return The new offset.
+	 */
+	private int putEscaped(final String s, final byte[] b, int offset, final int maxLength, final boolean jsonEscape) {
+		
+		if (s == null) {
+			if (maxLength > 0) b[offset++] = '-';
+			return offset;
+		}
+		final int end = offset + maxLength;
+		final int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\') {
+				if (offset >= end) { truncatedCount.incrementAndGet(); break; }
+				b[offset++] = (byte) c;
+			} else if (jsonEscape ? JsonWriter.needsEscape(c) : c < 0x80) {
+				if (offset + JsonWriter.MAX_ESCAPE_LENGTH > end) { truncatedCount.incrementAndGet(); break; }
+				if (jsonEscape) {
+					offset = JsonWriter.putEscape(c, b, offset);
+				} else {
+					b[offset++] = '\\';
+					if (c == '"' || c == '\\') {
+						b[offset++] = (byte) c;
+					} else {
+						b[offset++] = 'x';
+						b[offset++] = HEX[c >> 4]; b[offset++] = HEX[c & 0xf];
+					}
+				}
+			} else {
+				int size = StringUtils.utf8CharLength(s, i);
+				if (offset + size > end) { truncatedCount.incrementAndGet(); break; }
+				offset = StringUtils.putUtf8Char(s, i, b, offset);
+				if (size == 4) i++;
+			}
+		}
+		return offset;
+	}
+
+	/* *** Writing *** */
+
+	private void open() throws IOException {
+		
+		channel = new FileOutputStream(file, true).getChannel();
+		fileSize = channel.size();
+		long now = System.currentTimeMillis();
+		rotateTime = (rotateIntervalMs > 0L ? now + rotateIntervalMs : Long.MAX_VALUE);
+	}
+
+	private void close() {
+		
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			log.warn("Could not close access log " + file + ": " + ioe);
+		}
+		channel = null;
+	}
+
+	/** Renames the current log file, opens a new log file and deletes the oldest rotated log files. */
+	private void rotate() throws IOException {
+		
+		close();
+		String ts = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+		File rotated = new File(file.getParentFile(), prefix + "-" + ts + ".log");
+		for (int i = 1; rotated.exists(); i++) {
+			rotated = new File(file.getParentFile(), prefix + "-" + ts + "-" + i + ".log");
+		}
+		if (!file.renameTo(rotated)) {
+			log.warn("Could not rename access log " + file + " to " + rotated);
+		}
+		open();
+		rotations++;
+		final String rotatedPrefix = prefix + "-";
+		File[] files = file.getParentFile().listFiles();
+		if (files == null) return;
+		int count = 0;
+		for (File f : files) {
+			if (f.getName().startsWith(rotatedPrefix) && f.getName().endsWith(".log")) files[count++] = f;
+		}
+		if (count <= maxFiles) return;
+		// Names contain the rotation time, oldest first when sorted.
+		Arrays.sort(files, 0, count);
+		for (int i = 0; i < count - maxFiles; i++) {
+			if (!files[i].delete()) log.warn("Could not delete rotated access log " + files[i]);
+		}
+	}
+
+	/** Writes one batch of queued log lines, returns the amount of log lines written. */
+	private int writeBatch() throws IOException {
+		
+		int depth = queued.get();
+		if (depth > queueSizeMax) queueSizeMax = depth;
+		batch.clear();
+		int count = 0;
+		Record r;
+		while (batch.remaining() >= RECORD_SIZE && (r = queue.poll()) != null) {
+			batch.put(r.bytes, 0, r.length);
+			pool.offer(r);
+			count++;
+		}
+		if (count == 0) {
+			if (System.currentTimeMillis() >= rotateTime && fileSize > 0L) rotate();
+			return 0;
+		}
+		queued.addAndGet(-count);
+		batch.flip();
+		final int size = batch.remaining();
+		long start = System.nanoTime();
+		if (fileSize > 0L && (fileSize + size > maxFileSize || System.currentTimeMillis() >= rotateTime)) {
+			rotate();
+		}
+		while (batch.hasRemaining()) {
+			channel.write(batch);
+		}
+		fileSize += size;
+		bytesWritten += size;
+		long time = System.nanoTime() - start;
+		writeTimeTotalNs += time;
+		if (time > writeTimeMaxNs) writeTimeMaxNs = time;
+		recordCount += count;
+		batchCount++;
+		return count;
+	}
+
+	private class Writer implements Runnable {
+		
+		@Override
+		public void run() {
+
+			final long parkNs = WRITE_INTERVAL_MS * 1000000L;
+			while (!stopping) {
+				try {
+					if (writeBatch() == 0) LockSupport.parkNanos(parkNs);
+				} catch (Exception e) {
+					log.error("Failed to write access log to " + file, e);
+					LockSupport.parkNanos(1000L * 1000000L);
+				}
+			}
+		}
+	}
+
+	/** Statistics shown on the statistics page. */
+	public String getStatsDescription() {
+		
+		long batches = batchCount;
+		StringBuilder sb = new StringBuilder();
+		sb.append("Access log ").append(file).append(" (").append(getFormat()).append("):")
+		.append("\nLines written: ").append(recordCount)
+		.append("\nBytes written: ").append(bytesWritten)
+		.append("\nDropped: ").append(droppedCount.get())
+		.append("\nTruncated: ").append(truncatedCount.get())
+		.append("\nQueue size: ").append(queued.get()).append(" (max. ").append(queueSizeMax).append(")")
+		.append("\nBatches: ").append(batches)
+		.append("\nRotations: ").append(rotations);
+		if (batches > 0) {
+			sb.append("\nWrite time (microseconds): avg ").append(writeTimeTotalNs / batches / 1000L)
+			.append(", max ").append(writeTimeMaxNs / 1000L);
+		}
+		return sb.append('\n').toString();
+	}
+
+	public long getRecordCount() { return recordCount; }
+	public long getDroppedCount() { return droppedCount.get(); }
+}
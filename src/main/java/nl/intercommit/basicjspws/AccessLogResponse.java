@@ -0,0 +1,290 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper used by {@link AppFilter} to record the status and the amount of bytes 
+ * sent in the response body for the {@link AccessLog}.
+ * <br>Text written via {@link #getWriter()} is encoded and passed to the response's output stream immediately 
+ * (the wrapper does not buffer text): the container's buffer remains the only buffer, so that 
+ * {@link #resetBuffer()}, {@link #reset()}, {@link #isCommitted()} and {@link #getBufferSize()} work as without the wrapper.
+ * @author FWiers
+ *
+ */
+public class AccessLogResponse extends HttpServletResponseWrapper {
+
+	private int status = SC_OK;
+	private CountingOutputStream out;
+	private PrintWriter writer;
+	private EncodingWriter encodingWriter;
+
+	public AccessLogResponse(final HttpServletResponse response) {
+		super(response);
+	}
+
+	/** The status set for the response (default 200). */
+	public int getStatus() { return status; }
+
+	/** The amount of bytes written to the response body. */
+	public long getBytesWritten() { return (out == null ? 0L : out.count); }
+
+	/** 
+	 * Encodes a pending (unpaired) high surrogate written via {@link #getWriter()}, 
+	 * does not flush or commit the response. Called by {@link AppFilter} after the request is handled,
+	 * also when handling the request failed.
+	 */
+	public void finish() throws IOException {
+		if (encodingWriter != null) encodingWriter.endOfInput();
+	}
+
+	@Override
+	public void setStatus(final int sc) {
+		status = sc;
+		super.setStatus(sc);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void setStatus(final int sc, final String sm) {
+		status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(final int sc) throws IOException {
+		status = sc;
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(final int sc, final String msg) throws IOException {
+		status = sc;
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(final String location) throws IOException {
+		status = SC_MOVED_TEMPORARILY;
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		status = SC_OK;
+		discard();
+	}
+
+	@Override
+	public void resetBuffer() {
+		super.resetBuffer();
+		discard();
+	}
+
+	/** Called after the response buffer was reset (the container throws an IllegalStateException if the response was committed). */
+	private void discard() {
+		
+		if (encodingWriter != null) encodingWriter.discard();
+		if (out != null) out.count = 0L;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		
+		if (writer != null) throw new IllegalStateException("getWriter() has already been called for this response.");
+		return getCountingOutputStream();
+	}
+
+	/** 
+	 * Returns a writer that encodes text using the character encoding of the response
+	 * and writes the bytes via the (counting) output stream of the response.
+	 */
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		
+		if (writer == null) {
+			if (out != null) throw new IllegalStateException("getOutputStream() has already been called for this response.");
+			encodingWriter = new EncodingWriter(getCountingOutputStream(), 
+					StringUtils.findCharset(getCharacterEncoding()).newEncoder());
+			writer = new PrintWriter(encodingWriter);
+		}
+		return writer;
+	}
+
+
+	private CountingOutputStream getCountingOutputStream() throws IOException {
+		
+		if (out == null) out = new CountingOutputStream(super.getOutputStream());
+		return out;
+	}
+
+	/** 
+	 * Encodes text and writes the bytes to the output stream immediately
+	 * (unlike OutputStreamWriter which keeps up to 8kb of bytes in its own buffer). 
+	 * Only the high surrogate of a surrogate pair split over two writes is kept until the next write.
+	 * Unmappable and malformed characters are replaced (like OutputStreamWriter). 
+	 */
+	private static class EncodingWriter extends Writer {
+		
+		final OutputStream out;
+		final CharsetEncoder encoder;
+		final ByteBuffer bytes = ByteBuffer.allocate(1024);
+		final char[] one = new char[1];
+		char highSurrogate;
+		
+		EncodingWriter(final OutputStream out, final CharsetEncoder encoder) {
+			
+			this.out = out;
+			this.encoder = encoder.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		
+		@Override
+		public void write(final int c) throws IOException {
+			
+			one[0] = (char) c;
+			write(one, 0, 1);
+		}
+		
+		@Override
+		public void write(final char[] cbuf, final int off, final int len) throws IOException {
+			
+			if (len <= 0) return;
+			if (highSurrogate == 0) {
+				encode(CharBuffer.wrap(cbuf, off, len), false);
+			} else {
+				char[] joined = new char[len + 1];
+				joined[0] = highSurrogate;
+				System.arraycopy(cbuf, off, joined, 1, len);
+				highSurrogate = 0;
+				encode(CharBuffer.wrap(joined), false);
+			}
+		}
+		
+		@Override
+		public void write(final String s, final int off, final int len) throws IOException {
+			
+			if (len <= 0) return;
+			if (highSurrogate == 0) {
+				encode(CharBuffer.wrap(s, off, off + len), false);
+			} else {
+				write(s.toCharArray(), off, len);
+			}
+		}
+		
+		private void encode(final CharBuffer in, final boolean endOfInput) throws IOException {
+			
+			CoderResult result;
+			do {
+				result = encoder.encode(in, bytes, endOfInput);
+				writeBytes();
+			} while (result.isOverflow());
+			if (endOfInput) {
+				while (encoder.flush(bytes).isOverflow()) writeBytes();
+				writeBytes();
+				encoder.reset();
+			} else if (in.hasRemaining()) {
+				// A high surrogate at the end of the input, the low surrogate is expected in the next write.
+				highSurrogate = in.get();
+			}
+		}
+		
+		private void writeBytes() throws IOException {
+			
+			if (bytes.position() > 0) {
+				out.write(bytes.array(), 0, bytes.position());
+				bytes.clear();
+			}
+		}
+		
+		/** Encodes a pending high surrogate (as replacement). */
+		void endOfInput() throws IOException {
+			
+			if (highSurrogate != 0) {
+				one[0] = highSurrogate;
+				highSurrogate = 0;
+				encode(CharBuffer.wrap(one), true);
+			}
+		}
+		
+		/** Discards a pending high surrogate, called when the response buffer is reset. */
+		void discard() {
+			
+			highSurrogate = 0;
+			encoder.reset();
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			
+			endOfInput();
+			out.close();
+		}
+	}
+
+	private static class CountingOutputStream extends ServletOutputStream {
+
+		final ServletOutputStream out;
+		long count;
+		
+		CountingOutputStream(final ServletOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
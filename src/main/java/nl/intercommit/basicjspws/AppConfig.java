@@ -0,0 +1,221 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable snapshot of the application properties (see {@link AppInit#getAppConfig()}).
+ * Unlike {@link Properties} (a synchronized Hashtable), reading values does not lock. 
+ * Typed values (numbers, durations, sizes) are parsed once per snapshot and cached.
+ * An invalid value is logged once and the default value is returned.
+ * <br>Durations are a number with an optional unit: ms, s, m, h or d (e.g. "30s"). 
+ * Sizes are a number with an optional unit: b, kb, mb or gb (e.g. "16mb", 1 kb is 1024 bytes).
+ * @author FWiers
+ *
+ */
+public final class AppConfig {
+
+	private static final Logger log = LoggerFactory.getLogger(AppConfig.class);
+
+	/** Cached for values that cannot be parsed. */
+	private static final Object INVALID = new Object();
+
+	private final Map<String, String> values;
+	private final long version;
+	private final long loadTime = System.currentTimeMillis();
+	private final ConcurrentHashMap<String, Object> booleans = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentHashMap<String, Object> numbers = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentHashMap<String, Object> durations = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentHashMap<String, Object> sizes = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Creates a snapshot of the properties (values are trimmed, empty values are ignored).
+	 * @param version The version of the snapshot (increased with every reload).
+	 */
+	public AppConfig(final Properties props, final long version) {
+		
+		Map<String, String> m = new HashMap<String, String>();
+		for (String key : props.stringPropertyNames()) {
+			String v = props.getProperty(key);
+			if (v != null && !(v = v.trim()).isEmpty()) m.put(key, v);
+		}
+		values = Collections.unmodifiableMap(m);
+		this.version = version;
+	}
+
+	/** The version of this snapshot (0 for the first snapshot). */
+	public long getVersion() { return version; }
+
+	/** The time this snapshot was created. */
+	public long getLoadTime() { return loadTime; }
+
+	/** All keys (unmodifiable). */
+	public Set<String> getKeys() { return values.keySet(); }
+
+	/** Returns the trimmed value or null if there is no (non-empty) value. */
+	public String get(final String key) { return values.get(key); }
+
+	/** Returns the trimmed value or defaultValue if there is no (non-empty) value. */
+	public String get(final String key, final String defaultValue) {
+		
+		String v = values.get(key);
+		return (v == null ? defaultValue : v);
+	}
+
+	/** Returns true for "true", "yes", "on" or "1" (case insensitive), false for "false", "no", "off" or "0". */
+	public boolean getBoolean(final String key, final boolean defaultValue) {
+		
+		Object o = booleans.get(key);
+		if (o == null) o = cache(booleans, key, parseBoolean(values.get(key)), "boolean");
+		return (o instanceof Boolean ? (Boolean) o : defaultValue);
+	}
+
+	public int getInt(final String key, final int defaultValue) {
+		
+		long v = getLong(key, defaultValue);
+		return (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ? defaultValue : (int) v);
+	}
+
+	public long getLong(final String key, final long defaultValue) {
+		
+		Object o = numbers.get(key);
+		if (o == null) o = cache(numbers, key, parseLong(values.get(key)), "number");
+		return (o instanceof Long ? (Long) o : defaultValue);
+	}
+
+	/** Returns the duration in milliseconds (a number without unit is in milliseconds). */
+	public long getDurationMs(final String key, final long defaultValue) {
+		
+		Object o = durations.get(key);
+		if (o == null) o = cache(durations, key, parseDurationMs(values.get(key)), "duration");
+		return (o instanceof Long ? (Long) o : defaultValue);
+	}
+
+	/** Returns the size in bytes (a number without unit is in bytes). */
+	public long getSizeBytes(final String key, final long defaultValue) {
+		
+		Object o = sizes.get(key);
+		if (o == null) o = cache(sizes, key, parseSizeBytes(values.get(key)), "size");
+		return (o instanceof Long ? (Long) o : defaultValue);
+	}
+
+	/** Caches the parsed value (or {@link #INVALID}). Returns null if there is no value. */
+	private Object cache(final ConcurrentHashMap<String, Object> cache, final String key, final Object parsed, final String type) {
+		
+		if (!values.containsKey(key)) return null;
+		Object o = (parsed == null ? INVALID : parsed);
+		if (cache.putIfAbsent(key, o) == null && o == INVALID) {
+			log.warn("Invalid " + type + " value for " + key + ": " + values.get(key));
+		}
+		return o;
+	}
+
+	/** Returns the keys that are added, removed or have a different value in the other snapshot. */
+	public Set<String> getChangedKeys(final AppConfig other) {
+		
+		Set<String> changed = new TreeSet<String>();
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (!e.getValue().equals(other.values.get(e.getKey()))) changed.add(e.getKey());
+		}
+		for (String key : other.values.keySet()) {
+			if (!values.containsKey(key)) changed.add(key);
+		}
+		return changed;
+	}
+
+	/** Returns a (new) Properties instance with all values. */
+	public Properties toProperties() {
+		
+		Properties p = new Properties();
+		p.putAll(values);
+		return p;
+	}
+
+	@Override
+	public String toString() {
+		return "AppConfig [version=" + version + ", keys=" + values.size() + "]";
+	}
+
+	/* *** Parsing, all return null for invalid values. *** */
+
+	public static Boolean parseBoolean(final String s) {
+		
+		if (s == null) return null;
+		if (s.equalsIgnoreCase("true") || s.equalsIgnoreCase("yes") || s.equalsIgnoreCase("on") || s.equals("1")) return Boolean.TRUE;
+		if (s.equalsIgnoreCase("false") || s.equalsIgnoreCase("no") || s.equalsIgnoreCase("off") || s.equals("0")) return Boolean.FALSE;
+		return null;
+	}
+
+	public static Long parseLong(final String s) {
+		
+		if (s == null) return null;
+		try {
+			return Long.valueOf(s.trim());
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+	public static Long parseDurationMs(final String s) {
+		
+		if (s == null) return null;
+		String v = s.trim().toLowerCase();
+		long factor = 1L;
+		if (v.endsWith("ms")) {
+			v = v.substring(0, v.length() - 2);
+		} else if (v.endsWith("s")) {
+			factor = 1000L; v = v.substring(0, v.length() - 1);
+		} else if (v.endsWith("m")) {
+			factor = 60L * 1000L; v = v.substring(0, v.length() - 1);
+		} else if (v.endsWith("h")) {
+			factor = 3600L * 1000L; v = v.substring(0, v.length() - 1);
+		} else if (v.endsWith("d")) {
+			factor = 24L * 3600L * 1000L; v = v.substring(0, v.length() - 1);
+		}
+		Long n = parseLong(v);
+		return (n == null ? null : n * factor);
+	}
+
+	public static Long parseSizeBytes(final String s) {
+		
+		if (s == null) return null;
+		String v = s.trim().toLowerCase();
+		if (v.endsWith("b")) v = v.substring(0, v.length() - 1);
+		long factor = 1L;
+		if (v.endsWith("k")) {
+			factor = 1024L; v = v.substring(0, v.length() - 1);
+		} else if (v.endsWith("m")) {
+			factor = 1024L * 1024L; v = v.substring(0, v.length() - 1);
+		} else if (v.endsWith("g")) {
+			factor = 1024L * 1024L * 1024L; v = v.substring(0, v.length() - 1);
+		}
+		Long n = parseLong(v);
+		return (n == null ? null : n * factor);
+	}
+}
@@ -0,0 +1,35 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.util.Set;
+
+/**
+ * Notified when the application properties are reloaded and changed (see {@link AppInit#addConfigListener(AppConfigListener)}).
+ * @author FWiers
+ *
+ */
+public interface AppConfigListener {
+
+	/**
+	 * Called after the new configuration is published (see {@link AppInit#getAppConfig()}).
+	 * @param changedKeys The keys that were added, removed or changed (sorted, at least one key).
+	 */
+	void configChanged(AppConfig oldConfig, AppConfig newConfig, Set<String> changedKeys);
+}
@@ -19,7 +19,7 @@
 package nl.intercommit.basicjspws;
 
 import java.io.IOException;
-import java.net.URL;
+import java.util.Set;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -28,12 +28,15 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A simple filter that sets the "requestedUrl" as attribute and updates the statistics.
+ * A simple filter that creates the {@link RequestContext}, sets the "requestedUrl" as attribute and updates the statistics.
+ * Requests can be flagged for debug logging via the {@link RequestDebugFilter}.
+ * If the {@link AppInit#accessLog} is enabled, a line is written to the access log for every request.
  * @author FWiers
  *
  */
@@ -44,24 +47,159 @@ public class AppFilter implements Filter {
 	@Override
 	public void destroy() {}
 
+	/** Flags requests for debug logging, see {@link #getDebugFilter()}. */
+	protected volatile RequestDebugFilter debugFilter;
+
+	/**
+	 * Sets up the {@link RequestDebugFilter} (see {@link #getDebugFilter()}),
+	 * see {@link #setDebugOptions(AppConfig)}.
+	 */
 	@Override
-	public void init(final FilterConfig fc) throws ServletException {}
+	public void init(final FilterConfig fc) throws ServletException {
+		
+		final AppInit app = AppInit.appInstance;
+		long t = app.startupProfiler.begin();
+		getDebugFilter();
+		final String prefix = app.baseName + ".debug.";
+		app.addConfigListener(new AppConfigListener() {
+			@Override public void configChanged(final AppConfig oldConfig, final AppConfig newConfig, final Set<String> changedKeys) {
+				for (String key : changedKeys) {
+					if (key.startsWith(prefix)) {
+						// A removed token disables flagging requests via the request header.
+						if (newConfig.get(prefix + "token") == null) getDebugFilter().setHeaderToken(null);
+						setDebugOptions(newConfig);
+						break;
+					}
+				}
+			}
+		});
+		app.warmup.setFilter(this);
+		app.startupProfiler.end("init filter", t);
+	}
+
+	/**
+	 * Returns the {@link RequestDebugFilter} from the logger context (see {@link LogbackUtil#getRequestDebugFilter()}).
+	 * When the logger context is reset (e.g. the logging configuration file is reloaded), the filter is stopped and removed: 
+	 * the filter is then looked up again (the new logging configuration may contain a new filter) 
+	 * and the options are set again (see {@link #setDebugOptions(AppConfig)}).
+	 */
+	protected RequestDebugFilter getDebugFilter() {
+		
+		RequestDebugFilter filter = debugFilter;
+		if (filter == null || !filter.isStarted()) {
+			synchronized (this) {
+				filter = debugFilter;
+				if (filter == null || !filter.isStarted()) {
+					filter = LogbackUtil.getRequestDebugFilter();
+					debugFilter = filter;
+					setDebugOptions(AppInit.appInstance.getAppConfig());
+				}
+			}
+		}
+		return filter;
+	}
 
 	/**
-	 * Determines the requestURL (registered as attribute "requestedUrl")
-	 * and updated the hit-count for the requestedUrl.
+	 * Sets the options of the {@link RequestDebugFilter}, also called when the options change in the reloaded configuration.
+	 * Settings from a logging configuration file can be overridden in {@link AppInit#appProps} using the keys
+	 * <br> - baseName.debug.header: name of the request header that flags a request for debug logging.
+	 * <br> - baseName.debug.token: value the request header must have (no value disables the request header).
+	 * <br> - baseName.debug.routes: comma-separated list of URLs relative to the base URL (e.g. pages/log,pages/stats) 
+	 * for which requests are sampled for debug logging.
+	 * <br> - baseName.debug.sample: one in this amount of requests for a route is logged at debug level.
+	 */
+	protected void setDebugOptions(final AppConfig config) {
+		
+		final RequestDebugFilter debugFilter = this.debugFilter;
+		final AppInit app = AppInit.appInstance;
+		final String prefix = app.baseName + ".debug.";
+		if (config.get(prefix + "header") != null) {
+			debugFilter.setHeaderName(config.get(prefix + "header"));
+		}
+		if (config.get(prefix + "token") != null) {
+			debugFilter.setHeaderToken(config.get(prefix + "token"));
+		}
+		if (config.get(prefix + "routes") != null) {
+			StringBuilder sb = new StringBuilder();
+			for (String route : config.get(prefix + "routes").split(",")) {
+				route = route.trim();
+				if (route.isEmpty()) continue;
+				if (route.startsWith("/")) route = route.substring(1);
+				if (sb.length() > 0) sb.append(',');
+				sb.append(app.baseUrl).append(route);
+			}
+			debugFilter.setRoutes(sb.toString());
+		}
+		debugFilter.setSampleRate(config.getInt(prefix + "sample", debugFilter.getSampleRate()));
+		log.info("Request debug logging: " + debugFilter);
+	}
+
+	/**
+	 * Creates the {@link RequestContext} for the request, registers the requestedUrl as attribute "requestedUrl"
+	 * and updates the hit-count for the requestedUrl.
+	 * The requestedUrl is the request URI (the path of the request URL without query string).
+	 * If the {@link RequestDebugFilter} flags the request, all log statements for the request are logged at debug level.
+	 * If the {@link AppInit#accessLog} is enabled, the response is wrapped in an {@link AccessLogResponse}
+	 * and the request is logged after it is handled.
+	 * <br>The first request logs the startup phases (see {@link AppInit#startupProfiler}).
+	 * <br>Requests from the {@link AppInit#warmup} are not counted in the statistics and not written to the access log.
 	 */
 	@Override
 	public void doFilter(final ServletRequest filterRequest, final ServletResponse filterResponse,
 			final FilterChain chain) throws IOException, ServletException {
 
 		final HttpServletRequest request = (HttpServletRequest) filterRequest;
-		//HttpServletResponse response = (HttpServletResponse) filterResponse;
-		String requestedUrl = new URL(request.getRequestURL().toString()).getPath();
-		log.debug("Filtering for {}", requestedUrl);
-		request.setAttribute("requestedUrl", requestedUrl);
-		ControllerUtil.getAppStats().incRequest(requestedUrl);
-		chain.doFilter(filterRequest, filterResponse);
+		final long start = System.nanoTime();
+		final boolean warmupRequest = AppInit.appInstance.warmup.isWarmupThread();
+		final StartupProfiler profiler = AppInit.appInstance.startupProfiler;
+		if (!warmupRequest && profiler.firstRequest()) {
+			log.info(profiler.getDescription());
+		}
+		final AccessLog accessLog = (warmupRequest ? null : AppInit.appInstance.accessLog);
+		final AccessLogResponse accessResponse = (accessLog == null ? null 
+				: new AccessLogResponse((HttpServletResponse) filterResponse));
+		final RequestContext ctx = RequestContext.acquire(request, 
+				(accessResponse == null ? (HttpServletResponse) filterResponse : accessResponse), start);
+		final String requestedUrl = ctx.getRequestedUrl();
+		final RequestDebugFilter debugFilter = getDebugFilter();
+		final boolean debugRequest = debugFilter.isDebugRequest(request, requestedUrl);
+		if (debugRequest) {
+			debugFilter.beginDebug();
+			ctx.setDebug(true);
+		}
+		try {
+			log.debug("Filtering for {}", requestedUrl);
+			// For jsp-pages and code that does not use the request context.
+			request.setAttribute("requestedUrl", requestedUrl);
+			if (!warmupRequest) ControllerUtil.getAppStats().incRequest(requestedUrl);
+			if (accessResponse == null) {
+				chain.doFilter(filterRequest, filterResponse);
+			} else {
+				logAccess(accessLog, request, accessResponse, chain, start);
+			}
+		} finally {
+			if (debugRequest) debugFilter.endDebug();
+			ctx.release();
+		}
+	}
+
+	private void logAccess(final AccessLog accessLog, final HttpServletRequest request, final AccessLogResponse response, 
+			final FilterChain chain, final long start) throws IOException, ServletException {
+		
+		boolean failed = true;
+		try {
+			chain.doFilter(request, response);
+			failed = false;
+		} finally {
+			try {
+				response.finish();
+			} catch (IOException e) {
+				log.debug("Could not finish response: " + e);
+			}
+			// An exception from the chain results in an error response from the servlet container.
+			int status = (failed && response.getStatus() < 400 ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus());
+			accessLog.log(request, status, response.getBytesWritten(), System.nanoTime() - start);
+		}
 	}
 
 }
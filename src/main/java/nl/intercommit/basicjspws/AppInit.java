@@ -18,6 +18,7 @@
 */
 package nl.intercommit.basicjspws;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
@@ -25,6 +26,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -63,7 +66,10 @@ public abstract class AppInit implements ServletContextListener {
 	/** The the first part in the URL referring to this application
 	 * surrounded by forward slashes  (e.g. localhost:8080&lt;baseUrl&gt;). */
 	public String baseUrl;
-	/** Properties loaded during startup. */
+	/** 
+	 * Properties loaded during startup. Updated when the properties are reloaded (see {@link #reloadAppConfig()}), 
+	 * prefer {@link #getAppConfig()} for reading (no locking, typed values parsed once). 
+	 */
 	public Properties appProps;
 	/** The home-directory of this application (usually home-directory of Tomcat). */
 	public String appHomeDir;
@@ -73,6 +79,19 @@ public abstract class AppInit implements ServletContextListener {
 	public String defaultEncoding;
 	/** The servlet context that this listener uses to register global webapp attributes. */ 
 	public ServletContext sc;
+	/** Timings of the startup phases, shown on the statistics page. */
+	public StartupProfiler startupProfiler;
+	/** The access log written by {@link AppFilter}, null if disabled (see {@link #initAccessLog()}). */
+	public AccessLog accessLog;
+	/** Warms up the application before it reports ready to take traffic (see {@link Warmup}), started by {@link AppServlet#init()}. */
+	public Warmup warmup;
+
+	private volatile AppConfig appConfig;
+	/** The properties last loaded by {@link #getAppProps(ServletContextEvent)}, used to find changes when reloading. */
+	private AppConfig loadedConfig;
+	private final List<AppConfigListener> configListeners = new CopyOnWriteArrayList<AppConfigListener>();
+	private ServletContextEvent contextEvent;
+	private Thread configWatcher;
 
 	/** The app-name is used in jsp-pages to show the name of this application. Stored in ServletContext as appName. */
 	protected abstract String getAppName();
@@ -88,31 +107,50 @@ public abstract class AppInit implements ServletContextListener {
 	 * Used in index jsp-page (via IndexController). */
 	protected abstract String getAppEnv();
 	
-	/** Load the properties for this application (can return empty Properties instance but not null). */
+	/** 
+	 * Load the properties for this application (can return empty Properties instance but not null). 
+	 * Also called when the properties are reloaded (see {@link #getAppPropsFile()}).
+	 */
 	protected abstract Properties getAppProps(final ServletContextEvent sce);
 	
+	/** 
+	 * The file from which {@link #getAppProps(ServletContextEvent)} loads the properties.
+	 * If not null, the properties are reloaded when the file changes (see {@link #startConfigWatcher()}).
+	 * Default null (no reloading).
+	 */
+	protected File getAppPropsFile() { return null; }
+	
 	/** Initialize the rest of the application. */
 	protected abstract void initApp(final ServletContextEvent sce);
 
 	/**
 	 * Initializes the application:
+	 * <br> - sets {@link #startupProfiler} (all following phases are timed)
 	 * <br> - sets {@link #appInstance}
 	 * <br> - sets {@link #sc}
 	 * <br> - calls {@link #setHomeDir()}
 	 * <br> - registers in ServletContext appName, appBaseName, appVersion and appHomeDir
 	 * <br> - calls {@link LogbackUtil#initLogging(String, String)}
-	 * <br> - calls {@link SysPropsUtil#logSysProps(Logger, boolean, boolean)}
+	 * <br> - calls {@link SysPropsUtil#logSysProps(Logger, boolean, boolean)} in a background thread
 	 * <br> - sets {@link #appStats}
-	 * <br> - calls {@link #getAppProps(ServletContextEvent)}
+	 * <br> - calls {@link #getAppProps(ServletContextEvent)} and sets a first {@link #getAppConfig()} snapshot
 	 * <br> - calls {@link #getAppEnv()} and registers it in ServletContext via appEnv
 	 * <br> - sets {@link #defaultEncoding} (default UTF-8) using {@link #appProps} baseName.default.encoding as key.
+	 * <br> - sets the {@link #getAppConfig()} snapshot again, so that it contains the properties set by {@link #initApp(ServletContextEvent)}
 	 * <br> - sets {@link #baseUrl} (default "/baseName/") where baseUrl is constructed using {@link #appProps}'s baseName.base.url as key.
+	 * <br> - calls {@link #initAccessLog()}
+	 * <br> - sets {@link #warmup}
+	 * <br> - calls {@link #startConfigWatcher()}
+	 * <br>Controllers are created by the {@link AppServlet} (lazily when registered as {@link LazyController}).
 	 */
 	@Override
 	public void contextInitialized(final ServletContextEvent sce) {
 		
+		startupProfiler = new StartupProfiler();
+		final long start = startupProfiler.begin();
 		appInstance = this;
 		sc = sce.getServletContext();
+		contextEvent = sce;
 		appName = getAppName();
 		baseName = getBaseName();
 		setHomeDir();
@@ -120,10 +158,19 @@ public abstract class AppInit implements ServletContextListener {
 		sc.setAttribute("appBaseName", baseName);
 		sc.setAttribute("appVersion", getAppVersion());
 		sc.setAttribute("appHomeDir", appHomeDir); 
+		long t = startupProfiler.begin();
 		LogbackUtil.initLogging(appHomeDir, baseName + "-logback.xml");
-		SysPropsUtil.logSysProps(log, true, true);
+		startupProfiler.end("init logging", t);
+		// Only logs, nothing depends on it.
+		startInBackground("log system properties", new Runnable() {
+			@Override public void run() { SysPropsUtil.logSysProps(log, true, true); }
+		});
 		appStats = new AppStats();
+		t = startupProfiler.begin();
 		appProps = getAppProps(sce);
+		loadedConfig = new AppConfig(appProps, 0L);
+		appConfig = loadedConfig;
+		startupProfiler.end("load app properties", t);
 		sc.setAttribute("appEnv", getAppEnv()); 
 		try {
 			defaultEncoding = appProps.getProperty(baseName + ".default.encoding", "UTF-8");
@@ -131,11 +178,169 @@ public abstract class AppInit implements ServletContextListener {
 		} catch (Exception e) {
 			throw new RuntimeException("Invalid encoding for " + baseName + ": " + defaultEncoding, e);
 		}
+		t = startupProfiler.begin();
 		initApp(sce);
+		startupProfiler.end("init app", t);
+		// initApp can set properties for the framework (e.g. warmup and access log settings).
+		appConfig = new AppConfig(appProps, 0L);
 		baseUrl = appProps.getProperty(baseName + ".base.url");
 		if (isEmpty(baseUrl)) baseUrl = "/" + baseName + "/";
 		if (!baseUrl.endsWith("/")) baseUrl = baseUrl + "/";
 		log.debug("Base URL set to " + baseUrl);
+		t = startupProfiler.begin();
+		initAccessLog();
+		startupProfiler.end("init access log", t);
+		warmup = new Warmup(appConfig, baseName, baseUrl);
+		startConfigWatcher();
+		startupProfiler.end("context initialized", start);
+		log.info(appName + " context initialized in " + ((System.nanoTime() - start) / 1000000L) + " ms");
+	}
+	
+	/**
+	 * Runs a startup phase in a (daemon) background thread, the phase is timed by the {@link #startupProfiler}.
+	 * @return The started thread.
+	 */
+	protected Thread startInBackground(final String phaseName, final Runnable phase) {
+		
+		Thread thread = new Thread(new Runnable() {
+			@Override public void run() {
+				long t = startupProfiler.begin();
+				try {
+					phase.run();
+				} catch (Exception e) {
+					log.error("Startup phase " + phaseName + " failed.", e);
+				}
+				startupProfiler.end(phaseName, t);
+			}
+		}, baseName + "-startup-" + phaseName.replace(' ', '-'));
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	/** 
+	 * The current snapshot of the application properties, replaced when the properties are reloaded.
+	 * Reading does not lock. 
+	 */
+	public AppConfig getAppConfig() { return appConfig; }
+
+	/** Registers a listener that is called when the application properties are reloaded and changed. */
+	public void addConfigListener(final AppConfigListener listener) { configListeners.add(listener); }
+
+	public void removeConfigListener(final AppConfigListener listener) { configListeners.remove(listener); }
+
+	/**
+	 * Reloads the application properties via {@link #getAppProps(ServletContextEvent)}.
+	 * If properties changed compared to the previous load, the changes are merged into {@link #appProps}
+	 * (properties set by the application, e.g. in {@link #initApp(ServletContextEvent)}, are kept),
+	 * a new {@link #getAppConfig()} snapshot of {@link #appProps} is published
+	 * and the listeners are notified (see {@link #addConfigListener(AppConfigListener)}).
+	 * @return The changed keys (empty if nothing changed).
+	 */
+	public synchronized Set<String> reloadAppConfig() {
+		
+		AppConfig oldConfig = appConfig;
+		Properties props = getAppProps(contextEvent);
+		AppConfig loaded = new AppConfig(props, oldConfig.getVersion() + 1L);
+		Set<String> changed = loaded.getChangedKeys(loadedConfig);
+		if (changed.isEmpty()) return changed;
+		for (String key : changed) {
+			String value = loaded.get(key);
+			if (value == null) {
+				appProps.remove(key);
+			} else {
+				appProps.setProperty(key, value);
+			}
+		}
+		loadedConfig = loaded;
+		AppConfig newConfig = new AppConfig(appProps, oldConfig.getVersion() + 1L);
+		appConfig = newConfig;
+		log.info("Application properties reloaded, changed keys: " + changed);
+		for (AppConfigListener listener : configListeners) {
+			try {
+				listener.configChanged(oldConfig, newConfig, changed);
+			} catch (Exception e) {
+				log.error("Configuration listener " + listener + " failed.", e);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * If {@link #getAppPropsFile()} is not null, starts a (daemon) thread that checks the file for changes
+	 * and calls {@link #reloadAppConfig()} when the file changed. 
+	 * The file is checked every baseName.config.reload.interval (a duration, default 10s, 0 to disable).
+	 * <br>The file's modification time and size are polled, java.nio.file.WatchService requires Java 7.
+	 */
+	protected void startConfigWatcher() {
+		
+		final File file = getAppPropsFile();
+		final long intervalMs = appConfig.getDurationMs(baseName + ".config.reload.interval", 10000L);
+		if (file == null || intervalMs <= 0L) return;
+		configWatcher = new Thread(new Runnable() {
+			@Override public void run() {
+				long lastModified = file.lastModified();
+				long length = file.length();
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(intervalMs);
+					} catch (InterruptedException ie) {
+						break;
+					}
+					long modified = file.lastModified();
+					long l = file.length();
+					if (modified == lastModified && l == length) continue;
+					lastModified = modified;
+					length = l;
+					try {
+						reloadAppConfig();
+					} catch (Exception e) {
+						log.error("Could not reload application properties from " + file, e);
+					}
+				}
+			}
+		}, baseName + "-config-watcher");
+		configWatcher.setDaemon(true);
+		configWatcher.start();
+		log.info("Reloading application properties when " + file + " changes.");
+	}
+
+	/**
+	 * Starts the {@link #accessLog} if {@link #appProps} has baseName.accesslog=true.
+	 * Called after {@link #initApp(ServletContextEvent)} (settings can be set programmatically in initApp) 
+	 * and after {@link #baseUrl} is set.
+	 * Other settings (see {@link AccessLog}) use keys starting with baseName.accesslog:
+	 * <br> - .dir: directory for the log files (default appHomeDir/logs)
+	 * <br> - .format: ncsa (default) or json
+	 * <br> - .maxsize: rotate when the log file reaches this size (e.g. 64mb, 
+	 * the older key .maxsizemb with a size in megabytes is used if .maxsize is not set)
+	 * <br> - .rotate: rotate when the log file is older (a duration, e.g. 24h, 0 to only rotate on size,
+	 * the older key .rotatehours with a duration in hours is used if .rotate is not set)
+	 * <br> - .maxfiles: the amount of rotated log files to keep
+	 * <br> - .queuesize: maximum amount of log lines waiting to be written
+	 */
+	protected void initAccessLog() {
+		
+		final AppConfig config = appConfig;
+		final String key = baseName + ".accesslog";
+		if (!config.getBoolean(key, false)) return;
+		AccessLog al = new AccessLog();
+		al.setDir(config.get(key + ".dir", appHomeDir + "logs"));
+		al.setPrefix(baseName + "-access");
+		al.setFormat(config.get(key + ".format", AccessLog.FORMAT_NCSA));
+		final long mb = 1024L * 1024L;
+		al.setMaxFileSizeMb((int) (config.getSizeBytes(key + ".maxsize", 
+				config.getLong(key + ".maxsizemb", AccessLog.DEFAULT_MAX_FILE_SIZE_MB) * mb) / mb));
+		al.setRotateIntervalMs(config.getDurationMs(key + ".rotate", 
+				config.getLong(key + ".rotatehours", AccessLog.DEFAULT_ROTATE_INTERVAL_MS / 3600000L) * 3600000L));
+		al.setMaxFiles(config.getInt(key + ".maxfiles", AccessLog.DEFAULT_MAX_FILES));
+		al.setQueueSize(config.getInt(key + ".queuesize", AccessLog.DEFAULT_QUEUE_SIZE));
+		try {
+			al.start();
+			accessLog = al;
+		} catch (Exception e) {
+			log.error("Could not start access log.", e);
+		}
 	}
 	
 	/** Sets {@link #appHomeDir} (specified via system property -DbaseName.home or uses catalina/tomcat home directory).
@@ -153,21 +358,28 @@ public abstract class AppInit implements ServletContextListener {
 	}
 	
 	/**
-	 * Closes the logger (calls {@link LogbackUtil#getLoggerContext()}.stop())
-	 * and sets {@link #sc} to null.
+	 * Stops the {@link #warmup}, the configuration watcher and the {@link #accessLog}, closes the logger (calls {@link LogbackUtil#getLoggerContext()}.stop()),
+	 * clears all {@link ManagedThreadLocal} values from all threads and sets {@link #sc} to null.
 	 * Overload to shutdown additional services when application is stopped/undeployed.
-	 * <br>Call {@link AppInit#clearThreadLocals(List)} if needed.
+	 * <br>Use {@link ManagedThreadLocal} instead of {@link ThreadLocal} to prevent memory leaks when the web-app is redeployed.
 	 */
 	@Override
 	public void contextDestroyed(final ServletContextEvent sce) {
 
+		if (warmup != null) warmup.stop();
+		if (configWatcher != null) configWatcher.interrupt();
+		if (accessLog != null) accessLog.stop();
 		LogbackUtil.getLoggerContext().stop();
+		int threads = ManagedThreadLocal.clearAll();
+		if (log.isDebugEnabled()) log.debug("Cleared managed thread-locals from " + threads + " threads.");
 		sc = null;
 	}
 	
 	/**
-	 * Calls {@link #clearThreadLocals(List)} with the one threadLocal.
+	 * Calls {@link #clearThreadLocals(Collection)} with the one threadLocal.
+	 * @deprecated Use a {@link ManagedThreadLocal} instead.
 	 */
+	@Deprecated
 	protected void clearThreadLocal(ThreadLocal<?> threadLocal) {
 		clearThreadLocals(Arrays.asList(new ThreadLocal<?>[] { threadLocal }));
 	}
@@ -180,7 +392,9 @@ public abstract class AppInit implements ServletContextListener {
 	 * <br>Copied from<br>
 	 * http://svn.apache.org/repos/asf/tomcat/tc7.0.x/tags/TOMCAT_7_0_8/java/org/apache/catalina/loader/WebappClassLoader.java
 	 * @param threadLocals The (static) ThreadLocal variables that are used in this web-app.
+	 * @deprecated Relies on reflection into JDK internals (fails on newer JVMs), use a {@link ManagedThreadLocal} instead.
 	 */
+	@Deprecated
 	protected void clearThreadLocals(Collection<ThreadLocal<?>> threadLocals) {
 		
 		Thread[] threads = getThreads();
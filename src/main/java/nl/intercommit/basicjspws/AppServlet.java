@@ -20,7 +20,10 @@ package nl.intercommit.basicjspws;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
@@ -38,7 +41,8 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Servlet called for all pages after {@link AppFilter} has pre-processed the requests.
- * <br>New controllers can be added by extending this class and overloading 
+ * <br>New controllers can be added by annotating them with {@link Route} (see {@link #registerRouteIndexes(String)})
+ * or by extending this class and overloading 
  * {@link #registerRequestControllers(String)}, {@link #registerRequestUrlsInServletContextByControllerName(ServletContext)}
  * and/or {@link #init()}.
  * After overloading, register the new servlet class in WebContent/WEB-INF/web.xml
@@ -55,9 +59,21 @@ public class AppServlet extends HttpServlet {
 	 */
 	protected Map<String, Controller> requestControllers = new HashMap<String, Controller>(); 
 	
+	/** 
+	 * Deduplicates the log statements for requests without a controller and for failing controllers,
+	 * so that a flood of similar errors does not flood the logs (see {@link #doPost(HttpServletRequest, HttpServletResponse)}).
+	 * Amounts of suppressed statements are logged periodically between {@link #init()} and {@link #destroy()}.
+	 */
+	public static final LogDedup logDedup = new LogDedup(log, LogDedup.DEFAULT_INTERVAL_MS, LogDedup.DEFAULT_MAX_KEYS);
+	
+	/** Request attribute set by the container when a request is forwarded (servlet spec 2.4 and later). */
+	public static final String FORWARD_REQUEST_URI = "javax.servlet.forward.request_uri";
+	
 	
 	/**
 	 * Fills {@link #requestControllers} (request URLs with associated Controller instances).
+	 * Controllers that are expensive to create are registered as {@link LazyController}
+	 * so that they are created on the first request instead of during startup.
 	 * @param baseUrl e.g. "/baseName/" (always ends and starts with a /). 
 	 */
 	protected void registerRequestControllers(final String baseUrl) {
@@ -68,7 +84,10 @@ public class AppServlet extends HttpServlet {
 		requestControllers.put(baseUrl + "pages/sysenv", new SysEnv());
 		requestControllers.put(baseUrl + "pages/log", new Log());
 		requestControllers.put(baseUrl + "pages/logerror", new LogError());
-		requestControllers.put(baseUrl + "pages/logstatus", new LogStatus());
+		requestControllers.put(baseUrl + "pages/logquery", new LogQuery());
+		requestControllers.put(baseUrl + "pages/logtail", new LogTail());
+		requestControllers.put(baseUrl + "pages/logstatus", new LazyController("logStatusPageUrl", LogStatus.class));
+		requestControllers.put(baseUrl + "pages/ready", new Ready());
 	}
 	
 	/** 
@@ -104,16 +123,53 @@ public class AppServlet extends HttpServlet {
 	}
 
 	/**
-	 * Calls {@link #registerRequestControllers(String)} and 
+	 * Registers the controllers from all {@link RouteIndex}es generated by the {@link RouteProcessor}
+	 * for controllers annotated with {@link Route}. The route indexes are found via {@link ServiceLoader},
+	 * controllers are created by the generated code (no classpath scanning and no reflection per controller).
+	 * Routes from a route index replace routes registered by {@link #registerRequestControllers(String)}.
+	 * @return The amount of registered routes.
+	 */
+	protected int registerRouteIndexes(final String baseUrl) {
+		
+		int count = 0;
+		ClassLoader cl = Thread.currentThread().getContextClassLoader();
+		if (cl == null) cl = getClass().getClassLoader();
+		Iterator<RouteIndex> indexes = ServiceLoader.load(RouteIndex.class, cl).iterator();
+		while (true) {
+			RouteIndex index;
+			try {
+				if (!indexes.hasNext()) break;
+				index = indexes.next();
+			} catch (ServiceConfigurationError sce) {
+				log.error("Could not load route index.", sce);
+				continue;
+			}
+			int routes = index.registerRoutes(baseUrl, requestControllers);
+			log.debug("Registered {} routes from route index {}", routes, index.getClass().getName());
+			count += routes;
+		}
+		return count;
+	}
+
+	/**
+	 * Calls {@link #registerRequestControllers(String)}, {@link #registerRouteIndexes(String)} and 
 	 * {@link #registerRequestUrlsInServletContextByControllerName(ServletContext)}.
+	 * Then starts the {@link AppInit#warmup} (the application reports ready when warmup is done)
+	 * and the periodic flush of {@link #logDedup}.
 	 */
 	@Override
     public void init() throws ServletException {
     	
+		StartupProfiler profiler = AppInit.appInstance.startupProfiler;
+		long t = profiler.begin();
 		String baseUrl = AppInit.appInstance.baseUrl;
 		registerRequestControllers(baseUrl);
+		registerRouteIndexes(baseUrl);
 		registerRequestUrlsInServletContextByControllerName(getServletContext());
+		profiler.end("init servlet", t);
     	log.debug("Servlet initialized");
+    	AppInit.appInstance.warmup.start(this);
+    	logDedup.start(AppInit.appInstance.baseName + "-logdedup");
     }
 
 	/** 
@@ -125,18 +181,40 @@ public class AppServlet extends HttpServlet {
 	}
 
 	/**
-	 * Looks up the controller for the "requestedUrl" (set by {@link AppFilter}) and executes the found controller.
+	 * Looks up the controller for the requested URL (see {@link ControllerUtil#getRequestedUrl(HttpServletRequest)}), 
+	 * registers the controller in the {@link RequestContext} and executes the found controller.
 	 * If the controller returns a non-null String, a jsp-page is displayed.
+	 * <br>Warnings and errors are logged via {@link #logDedup}: similar statements (same log site, URL and exception class)
+	 * are logged at most once per minute. Requests without a controller are similar regardless of the URL
+	 * (a URL scanner would otherwise log a warning per URL).
+	 * <br>A forwarded request (e.g. to a jsp-page when there is no jsp-support) gets a 404 response: 
+	 * the forwarded request has the same requested URL and would execute the same controller again.
 	 * <br>IOExceptions from the request and response objects should bubble up and NOT be catched, 
 	 * see also http://stackoverflow.com/questions/4300513/best-practice-response-getoutputstream 
 	 */
 	@Override
 	protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
 		
-		Controller handler = requestControllers.get((String)request.getAttribute("requestedUrl"));
+		if (request.getAttribute(FORWARD_REQUEST_URI) != null) {
+			String viewName = request.getServletPath() + (request.getPathInfo() == null ? "" : request.getPathInfo());
+			long suppressed = logDedup.tryLog("404 forward without jsp-support", viewName);
+			if (suppressed >= 0) {
+				log.error(LogDedup.withSuppressed(getRemoteLocation(request) + " Request for " + request.getAttribute(FORWARD_REQUEST_URI) 
+						+ " was forwarded to view page " + viewName + " but there is no jsp-support for this page.", suppressed));
+			}
+			response.sendError(404, "Could not find page " + viewName);
+			return;
+		}
+		final RequestContext ctx = RequestContext.current();
+		final String requestedUrl = (ctx == null ? (String)request.getAttribute("requestedUrl") : ctx.getRequestedUrl());
+		Controller handler = requestControllers.get(requestedUrl);
+		if (ctx != null) ctx.setController(handler);
 		if (handler == null) {
-			response.sendError(404, "No controller found for "  + request.getAttribute("requestedUrl"));
-			log.warn(getRemoteLocation(request) + " No controller available for URL " + request.getAttribute("requestedUrl"));
+			response.sendError(404, "No controller found for "  + requestedUrl);
+			long suppressed = logDedup.tryLog("404 no controller", "");
+			if (suppressed >= 0) {
+				log.warn(LogDedup.withSuppressed(getRemoteLocation(request) + " No controller available for URL " + requestedUrl, suppressed));
+			}
 			return;
 		}
 		String viewName = null;
@@ -144,13 +222,21 @@ public class AppServlet extends HttpServlet {
 			viewName = handler.handleRequest(request, response);
 		} catch (Exception e) {
 			// Runtime exception from controller, e.g. IndexOutOfBoundsExcpetion.
-			log.error(getRemoteLocation(request) + " Controller " + handler.getClass().getName() + " failed to handle request properly.", e);
-			response.sendError(500, "Cannot process request for URL " + request.getAttribute("requestedUrl") + ": " + e);
+			long suppressed = logDedup.tryLog("500 controller failed", requestedUrl + " " + e.getClass().getName());
+			if (suppressed >= 0) {
+				log.error(LogDedup.withSuppressed(getRemoteLocation(request) + " Controller " + handler.getClass().getName() 
+						+ " failed to handle request properly.", suppressed), e);
+			}
+			response.sendError(500, "Cannot process request for URL " + requestedUrl + ": " + e);
 			return;
 		} catch (Throwable t) {
 			// Really bad, e.g. OutOfMemoryError or StackOverflowError.
-			log.error(getRemoteLocation(request) + " Server barfed while executing controller " + handler.getClass().getName(), t);
-			response.sendError(500, "Server having trouble processing request for URL " + request.getAttribute("requestedUrl") + ": " + t);
+			long suppressed = logDedup.tryLog("500 server barfed", requestedUrl + " " + t.getClass().getName());
+			if (suppressed >= 0) {
+				log.error(LogDedup.withSuppressed(getRemoteLocation(request) + " Server barfed while executing controller " 
+						+ handler.getClass().getName(), suppressed), t);
+			}
+			response.sendError(500, "Server having trouble processing request for URL " + requestedUrl + ": " + t);
 			return;
 		}
 		if (isEmpty(viewName)) {
@@ -159,7 +245,11 @@ public class AppServlet extends HttpServlet {
 		}
 		RequestDispatcher view = request.getRequestDispatcher(viewName);
 		if (view == null) {
-			log.warn(getRemoteLocation(request) + " Controller " + handler.getClass().getName() + " returned view page " + viewName +", but the page does not exist.");
+			long suppressed = logDedup.tryLog("404 view not found", requestedUrl + " " + viewName);
+			if (suppressed >= 0) {
+				log.warn(LogDedup.withSuppressed(getRemoteLocation(request) + " Controller " + handler.getClass().getName() 
+						+ " returned view page " + viewName +", but the page does not exist.", suppressed));
+			}
 			response.sendError(404, "Could not find page " + viewName);
 			return;
 		}
@@ -167,8 +257,11 @@ public class AppServlet extends HttpServlet {
 		if (log.isTraceEnabled()) log.trace(getRemoteLocation(request) + " doPost done for " + viewName);
 	}
 	
+	/** Stops the periodic flush of {@link #logDedup}. */
 	@Override
-	public void destroy() {}
+	public void destroy() {
+		logDedup.stop();
+	}
 	
 	public static boolean isEmpty(final String s) { return (s == null || s.trim().isEmpty()); };
 	
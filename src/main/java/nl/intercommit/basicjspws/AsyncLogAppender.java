@@ -0,0 +1,354 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+
+/**
+ * Sends log events to the attached appenders from a background thread, so that request threads
+ * do not wait for console or file output.
+ * <br>Log events are put in a bounded queue. The background thread takes log events from the queue in batches 
+ * (at most {@link #setBatchSize(int)} events), sends them to the attached appenders and then flushes the output 
+ * of the attached {@link OutputStreamAppender}s once per batch (the encoders of these appenders are set to not flush 
+ * immediately while attached).
+ * <br>When the queue is near full (less than {@link #setDiscardingPercentage(int)} percent capacity left), 
+ * events with a level of {@link #setDiscardingLevel(String)} (default DEBUG) or lower are discarded. 
+ * When the queue is full, INFO and WARN events are dropped. ERROR events are never dropped: 
+ * the logging thread waits until there is room in the queue.
+ * <br>When the appender is stopped, events still in the queue are sent to the attached appenders,
+ * events appended while stopping bypass the queue (see {@link #stop()}).
+ * <br>Queue size, dropped events and batch latency are shown via {@link #getStatsDescription()}.
+ * <br>Used by {@link LogbackUtil#setLoggingProgrammatic()} (see {@link LogbackUtil#asyncOutput}), 
+ * can also be used in a logback configuration file, e.g.
+ * <br><code>&lt;appender name="ASYNC" class="nl.intercommit.basicjspws.AsyncLogAppender"&gt;&lt;appender-ref ref="FILE" /&gt;&lt;/appender&gt;</code>
+ * @author FWiers
+ *
+ */
+public class AsyncLogAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent> {
+
+	public static final int DEFAULT_QUEUE_SIZE = 8192;
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	public static final int DEFAULT_DISCARDING_PERCENTAGE = 20;
+
+	private final AppenderAttachableImpl<ILoggingEvent> aai = new AppenderAttachableImpl<ILoggingEvent>();
+	private final List<OutputStreamAppender<ILoggingEvent>> flushAppenders = new CopyOnWriteArrayList<OutputStreamAppender<ILoggingEvent>>();
+	
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int discardingPercentage = DEFAULT_DISCARDING_PERCENTAGE;
+	private Level discardingLevel = Level.DEBUG;
+	private boolean includeCallerData;
+	
+	private ArrayBlockingQueue<ILoggingEvent> queue;
+	private int discardingThreshold;
+	private Thread worker;
+	private volatile boolean stopping;
+	/** Amount of threads in {@link #append(ILoggingEvent)}, see {@link #stop()}. */
+	private final AtomicInteger appending = new AtomicInteger();
+
+	private final AtomicLong discardedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong waitedCount = new AtomicLong();
+	// Only updated by the worker thread.
+	private volatile long batchCount;
+	private volatile long eventCount;
+	private volatile long batchTimeTotalNs;
+	private volatile long batchTimeMaxNs;
+	private volatile long batchTimeLastNs;
+	private volatile int queueSizeMax;
+	
+	/** Maximum amount of events in the queue (default {@link #DEFAULT_QUEUE_SIZE}). Must be set before the appender is started. */
+	public void setQueueSize(final int queueSize) { this.queueSize = queueSize; }
+	public int getQueueSize() { return queueSize; }
+
+	/** Maximum amount of events sent to the attached appenders before output is flushed (default {@link #DEFAULT_BATCH_SIZE}). */
+	public void setBatchSize(final int batchSize) { this.batchSize = batchSize; }
+	public int getBatchSize() { return batchSize; }
+	
+	/** Percentage of queue capacity left below which low-level events are discarded (default {@link #DEFAULT_DISCARDING_PERCENTAGE}, 0 to never discard). */
+	public void setDiscardingPercentage(final int discardingPercentage) { this.discardingPercentage = discardingPercentage; }
+	public int getDiscardingPercentage() { return discardingPercentage; }
+	
+	/** Events with this level or lower are discarded when the queue is near full (default DEBUG). */
+	public void setDiscardingLevel(final String level) { this.discardingLevel = Level.toLevel(level, Level.DEBUG); }
+	public String getDiscardingLevel() { return discardingLevel.toString(); }
+
+	/** If true, caller data is collected before an event is queued (expensive, default false). */
+	public void setIncludeCallerData(final boolean includeCallerData) { this.includeCallerData = includeCallerData; }
+	public boolean isIncludeCallerData() { return includeCallerData; }
+
+	@Override
+	public void start() {
+		
+		if (queueSize < 1) {
+			addError("Invalid queue size " + queueSize + " for appender " + name);
+			return;
+		}
+		if (batchSize < 1) batchSize = 1;
+		queue = new ArrayBlockingQueue<ILoggingEvent>(queueSize);
+		discardingThreshold = (int) ((long) queueSize * discardingPercentage / 100L);
+		Iterator<Appender<ILoggingEvent>> appenders = aai.iteratorForAppenders();
+		while (appenders.hasNext()) {
+			registerFlush(appenders.next());
+		}
+		stopping = false;
+		worker = new Thread(new Worker(), "AsyncLogAppender-" + name);
+		worker.setDaemon(true);
+		super.start();
+		worker.start();
+	}
+
+	/**
+	 * Stops the worker thread and sends the events remaining in the queue to the attached appenders.
+	 * Events appended after the stopping-flag is set are sent to the attached appenders directly (bypassing the queue).
+	 * Before the queue is drained, stop waits (at most a second) for appends that started before the stopping-flag was set,
+	 * so that an event offered to the queue after the final drain is not lost.
+	 */
+	@Override
+	public void stop() {
+		
+		if (!isStarted()) return;
+		super.stop();
+		stopping = true;
+		worker.interrupt();
+		try {
+			worker.join(1000L);
+			// Appends that did not see the stopping-flag may still offer events to the queue.
+			long deadline = System.currentTimeMillis() + 1000L;
+			while (appending.get() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1L);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		if (worker.isAlive()) {
+			addWarn("Worker thread of appender " + name + " did not stop in time, " + queue.size() + " events remaining in queue.");
+		} else {
+			if (appending.get() > 0) {
+				addWarn("Appender " + name + " stopped while " + appending.get() + " events were being appended.");
+			}
+			// Worker stopped, send any remaining events.
+			List<ILoggingEvent> batch = new ArrayList<ILoggingEvent>();
+			queue.drainTo(batch);
+			appendBatch(batch);
+		}
+		for (OutputStreamAppender<ILoggingEvent> appender : flushAppenders) {
+			setImmediateFlush(appender, true);
+		}
+		flushAppenders.clear();
+		aai.detachAndStopAllAppenders();
+	}
+
+	@Override
+	protected void append(final ILoggingEvent e) {
+		
+		appending.incrementAndGet();
+		try {
+			if (stopping) {
+				// Queue is (being) drained for the last time by stop().
+				aai.appendLoopOnAppenders(e);
+			} else {
+				enqueue(e);
+			}
+		} finally {
+			appending.decrementAndGet();
+		}
+	}
+	
+	private void enqueue(final ILoggingEvent e) {
+		
+		int remaining = queue.remainingCapacity();
+		int level = e.getLevel().toInt();
+		if (remaining < discardingThreshold && level <= discardingLevel.toInt()) {
+			discardedCount.incrementAndGet();
+			return;
+		}
+		e.prepareForDeferredProcessing();
+		if (includeCallerData) e.getCallerData();
+		if (queue.offer(e)) return;
+		if (level < Level.ERROR_INT) {
+			droppedCount.incrementAndGet();
+			return;
+		}
+		waitedCount.incrementAndGet();
+		try {
+			while (!queue.offer(e, 100L, TimeUnit.MILLISECONDS)) {
+				if (stopping) {
+					// Worker no longer running, do not lose the error.
+					aai.appendLoopOnAppenders(e);
+					return;
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			aai.appendLoopOnAppenders(e);
+		}
+	}
+	
+	private void appendBatch(final List<ILoggingEvent> batch) {
+		
+		if (batch.isEmpty()) return;
+		long start = System.nanoTime();
+		int size = batch.size();
+		for (int i = 0; i < size; i++) {
+			aai.appendLoopOnAppenders(batch.get(i));
+		}
+		for (OutputStreamAppender<ILoggingEvent> appender : flushAppenders) {
+			OutputStream out = appender.getOutputStream();
+			if (out == null) continue;
+			try { 
+				out.flush(); 
+			} catch (Exception e) {
+				addWarn("Failed to flush output of appender " + appender.getName() + ": " + e);
+			}
+		}
+		long time = System.nanoTime() - start;
+		batchCount++;
+		eventCount += size;
+		batchTimeTotalNs += time;
+		batchTimeLastNs = time;
+		if (time > batchTimeMaxNs) batchTimeMaxNs = time;
+		batch.clear();
+	}
+	
+	/** If the appender writes to an output stream, the output stream is flushed after each batch instead of after each event. */
+	@SuppressWarnings("unchecked")
+	private void registerFlush(final Appender<ILoggingEvent> appender) {
+		
+		if (!(appender instanceof OutputStreamAppender)) return;
+		OutputStreamAppender<ILoggingEvent> osa = (OutputStreamAppender<ILoggingEvent>) appender;
+		if (setImmediateFlush(osa, false) && !flushAppenders.contains(osa)) {
+			flushAppenders.add(osa);
+		}
+	}
+	
+	private static boolean setImmediateFlush(final OutputStreamAppender<ILoggingEvent> appender, final boolean immediateFlush) {
+		
+		Encoder<ILoggingEvent> encoder = appender.getEncoder();
+		if (!(encoder instanceof LayoutWrappingEncoder)) return false;
+		((LayoutWrappingEncoder<ILoggingEvent>) encoder).setImmediateFlush(immediateFlush);
+		return true;
+	}
+	
+	/** The amount of events currently waiting in the queue. */
+	public int getQueueDepth() { return (queue == null ? 0 : queue.size()); }
+	/** The amount of low-level events discarded because the queue was near full. */
+	public long getDiscardedCount() { return discardedCount.get(); }
+	/** The amount of INFO and WARN events dropped because the queue was full. */
+	public long getDroppedCount() { return droppedCount.get(); }
+	/** The amount of times an ERROR event had to wait for room in the queue. */
+	public long getWaitedCount() { return waitedCount.get(); }
+	
+	/** Queue and batch statistics, shown on the statistics page. */
+	public String getStatsDescription() {
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append("Async log appender ").append(name).append(':');
+		sb.append("\nQueue depth: ").append(getQueueDepth()).append(" (max ").append(queueSizeMax).append(" of ").append(queueSize).append(')');
+		sb.append("\nDiscarded ").append(discardingLevel).append(" and lower: ").append(getDiscardedCount());
+		sb.append("\nDropped INFO and WARN: ").append(getDroppedCount());
+		sb.append("\nWaited ERROR: ").append(getWaitedCount());
+		long batches = batchCount;
+		sb.append("\nBatches: ").append(batches).append(", events: ").append(eventCount);
+		sb.append("\nBatch latency (microseconds): last ").append(batchTimeLastNs / 1000L)
+		.append(", avg ").append(batches == 0L ? 0L : batchTimeTotalNs / batches / 1000L)
+		.append(", max ").append(batchTimeMaxNs / 1000L);
+		sb.append('\n');
+		return sb.toString();
+	}
+
+	@Override
+	public void addAppender(final Appender<ILoggingEvent> newAppender) {
+		
+		aai.addAppender(newAppender);
+		if (isStarted()) registerFlush(newAppender);
+	}
+
+	@Override
+	public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() { return aai.iteratorForAppenders(); }
+
+	@Override
+	public Appender<ILoggingEvent> getAppender(final String name) { return aai.getAppender(name); }
+
+	@Override
+	public boolean isAttached(final Appender<ILoggingEvent> appender) { return aai.isAttached(appender); }
+
+	@Override
+	public void detachAndStopAllAppenders() { 
+		
+		aai.detachAndStopAllAppenders();
+		flushAppenders.clear();
+	}
+
+	@Override
+	public boolean detachAppender(final Appender<ILoggingEvent> appender) {
+		
+		flushAppenders.remove(appender);
+		return aai.detachAppender(appender);
+	}
+
+	@Override
+	public boolean detachAppender(final String name) {
+		
+		Appender<ILoggingEvent> appender = aai.getAppender(name);
+		return (appender == null ? false : detachAppender(appender));
+	}
+
+	private class Worker implements Runnable {
+		
+		@Override
+		public void run() {
+			
+			List<ILoggingEvent> batch = new ArrayList<ILoggingEvent>(batchSize);
+			while (!stopping) {
+				try {
+					ILoggingEvent e = queue.take();
+					int depth = queue.size() + 1;
+					if (depth > queueSizeMax) queueSizeMax = depth;
+					batch.add(e);
+					queue.drainTo(batch, batchSize - 1);
+					appendBatch(batch);
+				} catch (InterruptedException ie) {
+					// Stopping
+				} catch (Exception e) {
+					addError("Failed to append batch of log events.", e);
+					batch.clear();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes CBOR (RFC 7049) to the response output stream, see {@link ResponseEncoder}.
+ * <br>Objects are written as maps with text keys, objects and arrays of unknown size 
+ * are written with indefinite length. Doubles are written as integer if integral, 
+ * as single precision float if that is exact, else as double precision float. 
+ * @author FWiers
+ *
+ */
+public class CborWriter extends ResponseEncoder {
+
+	public static final String CONTENT_TYPE = "application/cbor";
+
+	private static final int UNSIGNED = 0;
+	private static final int NEGATIVE = 1 << 5;
+	private static final int TEXT = 3 << 5;
+	private static final int ARRAY = 4 << 5;
+	private static final int MAP = 5 << 5;
+	private static final int INDEFINITE = 31;
+	private static final int FALSE = 0xF4;
+	private static final int TRUE = 0xF5;
+	private static final int NULL = 0xF6;
+	private static final int FLOAT32 = 0xFA;
+	private static final int FLOAT64 = 0xFB;
+	private static final int BREAK = 0xFF;
+	
+	private static final Pool<CborWriter> pool = new Pool<CborWriter>() {
+		@Override protected CborWriter create() { return new CborWriter(); }
+	};
+	
+	/** For each nesting level, true if the object or array has indefinite length (needs a break at the end). */
+	private boolean[] indefinite = new boolean[16];
+	private int depth;
+
+	protected CborWriter() {}
+	
+	/** Returns a writer for the response (the thread's re-used writer if it is not in use) and sets the content type to {@link #CONTENT_TYPE}. */
+	public static CborWriter get(final HttpServletResponse response) {
+		return pool.get(response);
+	}
+
+	@Override
+	public String getContentType() { return CONTENT_TYPE; }
+	
+	@Override
+	protected void start(final HttpServletResponse response) {
+		
+		super.start(response);
+		depth = 0;
+	}
+
+	@Override
+	public CborWriter beginObject(final int size) {
+		
+		begin(MAP, size);
+		return this;
+	}
+
+	@Override
+	public CborWriter endObject() {
+		
+		end();
+		return this;
+	}
+
+	@Override
+	public CborWriter beginArray(final int size) {
+		
+		begin(ARRAY, size);
+		return this;
+	}
+
+	@Override
+	public CborWriter endArray() {
+		
+		end();
+		return this;
+	}
+
+	@Override
+	public CborWriter name(final String name) {
+		
+		putText(name);
+		return this;
+	}
+
+	@Override
+	public CborWriter value(final String value) {
+		
+		if (value == null) {
+			put(NULL);
+		} else {
+			putText(value);
+		}
+		return this;
+	}
+
+	@Override
+	public CborWriter value(final long value) {
+		
+		if (value < 0L) {
+			putHeader(NEGATIVE, -1L - value);
+		} else {
+			putHeader(UNSIGNED, value);
+		}
+		return this;
+	}
+
+	@Override
+	public CborWriter value(final double value) {
+		
+		if (isIntegral(value)) {
+			value((long) value);
+		} else if ((float) value == value || Double.isNaN(value)) {
+			put(FLOAT32);
+			putBigEndian(Float.floatToIntBits((float) value), 4);
+		} else {
+			put(FLOAT64);
+			putBigEndian(Double.doubleToLongBits(value), 8);
+		}
+		return this;
+	}
+
+	@Override
+	public CborWriter value(final boolean value) {
+		
+		put(value ? TRUE : FALSE);
+		return this;
+	}
+
+	@Override
+	public CborWriter nullValue() {
+		
+		put(NULL);
+		return this;
+	}
+
+	private void begin(final int majorType, final int size) {
+		
+		if (depth == indefinite.length) {
+			boolean[] larger = new boolean[depth * 2];
+			System.arraycopy(indefinite, 0, larger, 0, depth);
+			indefinite = larger;
+		}
+		indefinite[depth++] = (size < 0);
+		if (size < 0) {
+			put(majorType | INDEFINITE);
+		} else {
+			putHeader(majorType, size);
+		}
+	}
+	
+	private void end() {
+		if (indefinite[--depth]) put(BREAK);
+	}
+	
+	private void putText(final String s) {
+		
+		final int length = s.length();
+		// Length in bytes is the length in chars for ASCII strings.
+		boolean ascii = true;
+		for (int i = 0; i < length && ascii; i++) {
+			ascii = (s.charAt(i) < 0x80);
+		}
+		putHeader(TEXT, ascii ? length : StringUtils.utf8Length(s));
+		putUtf8(s);
+	}
+	
+	/** Puts the major type with the argument in the smallest possible encoding. */
+	private void putHeader(final int majorType, final long n) {
+		
+		if (n < 24L) {
+			put(majorType | (int) n);
+		} else if (n < 0x100L) {
+			put(majorType | 24);
+			put((int) n);
+		} else if (n < 0x10000L) {
+			put(majorType | 25);
+			putBigEndian(n, 2);
+		} else if (n < 0x100000000L) {
+			put(majorType | 26);
+			putBigEndian(n, 4);
+		} else {
+			put(majorType | 27);
+			putBigEndian(n, 8);
+		}
+	}
+}
@@ -18,12 +18,14 @@
 */
 package nl.intercommit.basicjspws;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Map;
@@ -50,15 +52,24 @@ public class ControllerUtil {
 
 	private static final Logger log = LoggerFactory.getLogger(ControllerUtil.class);
 
+	/** Maximum size of the per-thread buffer for encoding text output, see {@link #writeResponse(HttpServletResponse, String, String, String)}. */
+	public static final int MAX_TEXT_BUFFER_SIZE = 65536;
+	
+	private static final ManagedThreadLocal<byte[]> textBuffers = new ManagedThreadLocal<byte[]>(false) {
+		@Override protected byte[] initialValue() { return new byte[4096]; }
+	};
+
 	private ControllerUtil() {}
 	
 	/**
-	 * Description of remote location between []. If used in log-statements, 
-	 * it is best to cache this value in a local String. 
+	 * Description of remote location between []. 
+	 * Created once per request when the {@link RequestContext} is available.
 	 * @return [RemoteIP:port] from request.
 	 */
 	public static String getRemoteLocation(final HttpServletRequest request) {
 
+		RequestContext ctx = RequestContext.current();
+		if (ctx != null) return ctx.getRemoteLocation();
 		return "[" + request.getRemoteAddr() + ":" + request.getRemotePort() + "]";
 	}
 	
@@ -107,30 +118,28 @@ public class ControllerUtil {
 	}
 	
 	/**
-	 * Tries to read the contents from the Reader of the request.
+	 * Tries to read the contents of the request, see {@link RequestBody#get(HttpServletRequest)}.
+	 * <br>Note that the size and time limits of {@link RequestBody} apply: contents larger than 
+	 * baseName.request.body.maxsize (default 1mb) are not read and null is returned 
+	 * (before the limits were introduced, this method read contents of any size). 
+	 * A rejected body is logged as a warning (deduplicated via {@link AppServlet#logDedup}). 
+	 * Controllers that need to tell the client why the contents were not read should use
+	 * {@link RequestBody#get(HttpServletRequest)} and {@link RequestBody#sendError(HttpServletResponse)} instead.
 	 * @param request the (post) request.
 	 * @return null (failed to get any contents) or an non-empty String.
 	 */
 	public static String getRequestContent(final HttpServletRequest request) {
 		
-		boolean haveSomething = false;
-		final StringBuilder sb = new StringBuilder("");
-		BufferedReader r = null;
-		try {
-			r = request.getReader();
-			char[] cbuf = new char[1024];
-			int read = 0;
-			while ((read = r.read(cbuf)) > 0) {
-				haveSomething = true;
-				sb.append(cbuf, 0, read);
+		RequestBody body = RequestBody.get(request);
+		if (!body.isComplete()) {
+			long suppressed = AppServlet.logDedup.tryLog("request contents rejected", body.getStatus() + " " + request.getRequestURI());
+			if (suppressed >= 0) {
+				log.warn(LogDedup.withSuppressed(getRemoteLocation(request) + " Could not read request contents for " + request.getRequestURI() 
+						+ " (status " + body.getStatus() + ", content length " + request.getContentLength() + ")", suppressed));
 			}
-		} catch (Exception e) {
-			log.warn("Could not read text from request: " + e);
-			haveSomething = false;
-		} finally {
-			FileUtil.close(r);
+			return null;
 		}
-		return (haveSomething ? sb.toString() : null);
+		return (body.getLength() > 0 ? body.getText() : null);
 	}
 	
 	/** Use this method instead of request.getSession() so that statistics are updated. */
@@ -155,7 +164,26 @@ public class ControllerUtil {
 		if (v != null) v = v.trim();
 		return (v == null || v.isEmpty() ? null : v);
 	}
-	
+
+	/** Returns the parameter value as a number or defaultValue if the parameter is not present or is not a number. */
+	public static int getParamInt(final HttpServletRequest request, final String paramName, final int defaultValue) {
+
+		long v = getParamLong(request, paramName, defaultValue);
+		return (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ? defaultValue : (int) v);
+	}
+
+	/** Returns the parameter value as a number or defaultValue if the parameter is not present or is not a number. */
+	public static long getParamLong(final HttpServletRequest request, final String paramName, final long defaultValue) {
+
+		String v = getParamTrimmed(request, paramName);
+		if (v == null) return defaultValue;
+		try {
+			return Long.parseLong(v);
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
 	/** 
 	 * Sends the errorCode with the erroMsg.
 	 * @return always null.
@@ -189,7 +217,11 @@ public class ControllerUtil {
 		return writeResponse(response, contentType, getDefaultEncoding(), output);
 	}
 	/**
-	 * Sends output to the client. Commits the response (no further writing possible).
+	 * Sends output to the client with a Content-Length header. Commits the response (no further writing possible).
+	 * The output is encoded into a per-thread re-used buffer (see {@link #MAX_TEXT_BUFFER_SIZE}) and written to the output stream.
+	 * Output that can be larger than the buffer (more than a third of the buffer size in characters) 
+	 * is written with the response's writer without a Content-Length header, as is output for a response of which the writer is already in use.
+	 * For constant output, see {@link #writeConstant(HttpServletResponse, String, String, String)}.
 	 * @param response may not already be committed.
 	 * @param contentType Mandatory e.g. text/plain text/html text/xml
 	 * @param encoding Mandatory e.g. UTF-8 or ISO-8859-1 (the default)
@@ -202,15 +234,132 @@ public class ControllerUtil {
 		try {
 			response.setContentType(contentType);
 			response.setCharacterEncoding(encoding);
-			PrintWriter pw = response.getWriter();
-			pw.write(output);
-			pw.flush();
+			// Text too large for the buffer is encoded by the response's writer (without Content-Length header).
+			final boolean large = (output.length() > MAX_TEXT_BUFFER_SIZE / 3);
+			OutputStream out = null;
+			if (!large) {
+				try {
+					out = response.getOutputStream();
+				} catch (IllegalStateException ise) {
+					// Writer already in use.
+				}
+			}
+			if (out == null) {
+				PrintWriter pw = response.getWriter();
+				pw.write(output);
+				pw.flush();
+				return null;
+			}
+			final Charset cs = StringUtils.findCharset(encoding);
+			byte[] buf = textBuffers.get();
+			final int size = StringUtils.maxEncodedLength(output, cs);
+			if (size > buf.length) {
+				buf = new byte[Math.max(size, Math.min(MAX_TEXT_BUFFER_SIZE, buf.length * 2))];
+				if (buf.length <= MAX_TEXT_BUFFER_SIZE) textBuffers.set(buf);
+			}
+			final int length = StringUtils.encode(output, cs, buf, 0);
+			writeBytes(response, out, buf, 0, length);
 		} catch (Exception e) {
 			log.warn("Could not write text-response: " + e);
 		}
 		return null;
 	}
 
+	/** 
+	 * Sends the constant output to the client with a Content-Length header, 
+	 * the output is encoded only once (see {@link EncodedBody#get(String, String, String)}). 
+	 * <br>For literal constants only (e.g. "ready"): output that varies per request 
+	 * (e.g. contains a time or a name) replaces the cached bodies, use {@link #writeResponse(HttpServletResponse, String, String, String)} instead.
+	 * @return always null.
+	 */
+	public static String writeConstant(final HttpServletResponse response, final String contentType, final String encoding, final String output) {
+		return EncodedBody.get(contentType, encoding, output).write(response);
+	}
+
+	/** 
+	 * Sends the pre-encoded body to the client with a Content-Length header (see {@link EncodedBody#write(HttpServletResponse)}). 
+	 * @return always null.
+	 */
+	public static String writeResponse(final HttpServletResponse response, final EncodedBody body) {
+		return body.write(response);
+	}
+
+	/**
+	 * Returns a writer that sends JSON (UTF-8) directly to the response output stream 
+	 * (see {@link JsonWriter#get(HttpServletResponse)}), finish with {@link JsonWriter#send()}.
+	 */
+	public static JsonWriter getJsonWriter(final HttpServletResponse response) {
+		return JsonWriter.get(response);
+	}
+
+	/**
+	 * Returns an encoder that sends a value as JSON, CBOR or MessagePack (depending on the request's Accept header)
+	 * directly to the response output stream (see {@link ResponseEncoder#get(HttpServletRequest, HttpServletResponse)}), 
+	 * finish with {@link ResponseEncoder#send()}.
+	 */
+	public static ResponseEncoder getResponseEncoder(final HttpServletRequest request, final HttpServletResponse response) {
+		return ResponseEncoder.get(request, response);
+	}
+
+	/**
+	 * Sends pre-encoded text to the client with a Content-Length header. Commits the response (no further writing possible).
+	 * Output larger than {@link ResponseTransfer#CHUNK_SIZE} is written via {@link ResponseTransfer}.
+	 * @param response may not already be committed.
+	 * @param contentType Mandatory e.g. text/plain text/html text/xml
+	 * @param encoding The encoding of output e.g. UTF-8
+	 * @param output The encoded text to send as output.
+	 * @return always null.
+	 */
+	public static String writeResponse(final HttpServletResponse response, final String contentType, final String encoding, final byte[] output) {
+		
+		try {
+			response.setContentType(contentType);
+			response.setCharacterEncoding(encoding);
+			writeBytes(response, response.getOutputStream(), output, 0, output.length);
+		} catch (Exception e) {
+			log.warn("Could not write encoded text-response: " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Same as {@link #writeResponse(HttpServletResponse, String, String, byte[])} for the remaining bytes in the buffer
+	 * (the buffer's position is not changed).
+	 */
+	public static String writeResponse(final HttpServletResponse response, final String contentType, final String encoding, final ByteBuffer output) {
+		
+		if (output.hasArray()) {
+			try {
+				response.setContentType(contentType);
+				response.setCharacterEncoding(encoding);
+				writeBytes(response, response.getOutputStream(), output.array(), output.arrayOffset() + output.position(), output.remaining());
+			} catch (Exception e) {
+				log.warn("Could not write encoded text-response: " + e);
+			}
+		} else {
+			response.setContentType(contentType);
+			response.setCharacterEncoding(encoding);
+			ResponseTransfer.write(response, null, output);
+		}
+		return null;
+	}
+	
+	/** 
+	 * Writes bytes with a Content-Length header, directly to out if the bytes fit in one chunk 
+	 * (a small response is buffered by the server), else via {@link ResponseTransfer}. 
+	 */
+	private static void writeBytes(final HttpServletResponse response, final OutputStream out, 
+			final byte[] b, final int offset, final int length) throws IOException {
+		
+		if (length > ResponseTransfer.CHUNK_SIZE) {
+			ResponseTransfer.write(response, null, b, offset, length);
+		} else {
+			response.setContentLength(length);
+			out.write(b, offset, length);
+			out.flush();
+		}
+	}
+
 	/** Calls {@link #writeResponse(HttpServletResponse, String, String, InputStreamReader, boolean)} 
 	 * but uses the default encoding for character set (see {@link #getDefaultEncoding()}).
 	 */
@@ -254,7 +403,7 @@ public class ControllerUtil {
 	}
 
 	/** 
-	 * Sends a file in bytes back to the client. Commits the response (no further writing possible).  
+	 * Sends a file in bytes back to the client (see {@link ResponseTransfer}). Commits the response (no further writing possible).  
 	 * General content-type is "application/octet-stream", but for example for pdf use "application/pdf". 
 	 * @param closeIn If true, given input-stream is always closed.
 	 * @return always null.
@@ -262,15 +411,10 @@ public class ControllerUtil {
 	public static String  writeResponse(final HttpServletResponse response, final String contentType, 
 			final String fileName, final InputStream in, final boolean closeIn) {
 		
-		OutputStream out = null;
 		try {
 			response.setContentType(contentType);
 			response.setHeader("Content-Disposition","attachment;filename="+fileName);
-			out = response.getOutputStream();
-			FileUtil.copyStreams(in, out);
-			out.flush();
-		} catch (Exception e) {
-			log.warn("Could not write byte-response from inputstream: " + e);
+			ResponseTransfer.write(response, null, in, -1L);
 		} finally {
 			if (closeIn) FileUtil.close(in);
 		}
@@ -294,11 +438,19 @@ public class ControllerUtil {
 	}
 	
 	/**
-	 * @return The properties from {@link AppInit}
+	 * @return The properties from {@link AppInit}, 
+	 * see also {@link #getAppConfig()} for lock-free reading and typed values.
 	 */
 	public static Properties getAppProps() {
 		return AppInit.appInstance.appProps;
 	}
+
+	/**
+	 * @return The current snapshot of the properties from {@link AppInit} (see {@link AppInit#getAppConfig()}).
+	 */
+	public static AppConfig getAppConfig() {
+		return AppInit.appInstance.getAppConfig();
+	}
 	
 	/**
 	 * @return The default encoding alias from {@link AppInit}
@@ -315,11 +467,22 @@ public class ControllerUtil {
 	}
 
 	/**
-	 * @return The "requestedUrl" attribute set by the MainFilter.
+	 * @return The requested URL from the {@link RequestContext} 
+	 * or the "requestedUrl" attribute (both set by the {@link AppFilter}).
 	 */
 	public static String getRequestedUrl(final HttpServletRequest request) {
+		
+		RequestContext ctx = RequestContext.current();
+		if (ctx != null) return ctx.getRequestedUrl();
 		return (String)request.getAttribute("requestedUrl");
 	}
+
+	/**
+	 * @return The {@link RequestContext} for the current request (see {@link RequestContext#current()}).
+	 */
+	public static RequestContext getRequestContext() {
+		return RequestContext.current();
+	}
 	
 	/**
 	 * @return True if o is null or o as string is empty after trimming.
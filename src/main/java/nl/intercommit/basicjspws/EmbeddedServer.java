@@ -0,0 +1,222 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.EnumSet;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.DispatcherType;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the application in an embedded Jetty server instead of a Tomcat installation configured via web.xml:
+ * the {@link AppInit} is registered as context listener, the {@link AppFilter} filters all requests 
+ * and the {@link AppServlet} (subclass) handles all requests in context "/baseName".
+ * <br>Start with (Jetty 7 and servlet-api 2.5 must be on the classpath, both are optional dependencies of this jar):
+ * <br><code>java -cp ... nl.intercommit.basicjspws.EmbeddedServer com.example.MyAppInit [com.example.MyAppServlet]</code>
+ * <br>Server settings are read from {@link AppInit#getAppConfig()} after {@link AppInit#contextInitialized(ServletContextEvent)}
+ * (the connector does not accept requests before that) using keys starting with baseName.server:
+ * <br> - .host: the host (interface) to listen on (default all interfaces)
+ * <br> - .port: the port to listen on (default {@link #DEFAULT_PORT}, 0 for a free port)
+ * <br> - .threads.min / .threads.max: size of the request thread pool (default 4 / 50)
+ * <br> - .acceptors: amount of threads accepting connections (default 1)
+ * <br> - .idletimeout: idle connections are closed after this time (default 30s)
+ * <br> - .buffer.header: maximum size of the request headers (default 8kb)
+ * <br> - .buffer.request / .buffer.response: size of the request and response buffers (default 16kb / 32kb)
+ * <br>There is no jsp-support: controllers should write the response (e.g. via {@link ControllerUtil#writeResponse(javax.servlet.http.HttpServletResponse, String, String)}).
+ * View pages returned by controllers (forwards to /WEB-INF/...) are shown as plain text by the {@link ViewServlet}.
+ * @author FWiers
+ *
+ */
+public class EmbeddedServer {
+
+	private static final Logger log = LoggerFactory.getLogger(EmbeddedServer.class);
+	
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_MIN_THREADS = 4;
+	public static final int DEFAULT_MAX_THREADS = 50;
+
+	protected final AppInit appInit;
+	protected final Class<? extends AppServlet> servletClass;
+	protected Server server;
+	protected SelectChannelConnector connector;
+	protected QueuedThreadPool threadPool;
+	protected ServletContextHandler context;
+	
+	/** Uses {@link AppServlet} to handle requests. */
+	public EmbeddedServer(final AppInit appInit) {
+		this(appInit, AppServlet.class);
+	}
+	
+	public EmbeddedServer(final AppInit appInit, final Class<? extends AppServlet> servletClass) {
+		
+		this.appInit = appInit;
+		this.servletClass = servletClass;
+	}
+	
+	/**
+	 * Starts the server, the application is initialized and the server accepts requests when this method returns.
+	 * The server is stopped when the JVM shuts down.
+	 */
+	public void start() throws Exception {
+		
+		final long start = System.nanoTime();
+		threadPool = new QueuedThreadPool();
+		threadPool.setName(appInit.getBaseName() + "-http");
+		threadPool.setMinThreads(DEFAULT_MIN_THREADS);
+		threadPool.setMaxThreads(DEFAULT_MAX_THREADS);
+		server = new Server();
+		server.setThreadPool(threadPool);
+		server.setSendServerVersion(false);
+		server.setStopAtShutdown(true);
+		connector = new SelectChannelConnector();
+		connector.setPort(DEFAULT_PORT);
+		server.addConnector(connector);
+		context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+		context.setContextPath("/" + appInit.getBaseName());
+		context.addEventListener(appInit);
+		// Called after appInit, Jetty starts the connector after the context.
+		context.addEventListener(new ServletContextListener() {
+			@Override public void contextInitialized(final ServletContextEvent sce) { configure(appInit.getAppConfig()); }
+			@Override public void contextDestroyed(final ServletContextEvent sce) {}
+		});
+		context.addFilter(AppFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+		ServletHolder servlet = new ServletHolder(servletClass);
+		servlet.setInitOrder(1);
+		context.addServlet(servlet, "/*");
+		// Without this mapping, forwards to view pages are matched by "/*" and end up in the AppServlet again.
+		context.addServlet(new ServletHolder(new ViewServlet()), "/WEB-INF/*");
+		server.setHandler(context);
+		server.start();
+		if (!context.isAvailable()) {
+			server.stop();
+			throw new IllegalStateException("Application " + appInit.getBaseName() + " failed to start.");
+		}
+		log.info(appInit.appName + " started on port " + getPort() + " in " + ((System.nanoTime() - start) / 1000000L) + " ms"
+				+ " (JVM uptime " + java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime() + " ms)");
+	}
+
+	/** Configures the connector and thread pool, see {@link EmbeddedServer}. */
+	protected void configure(final AppConfig config) {
+		
+		final String prefix = appInit.baseName + ".server.";
+		String host = config.get(prefix + "host");
+		if (host != null) connector.setHost(host);
+		connector.setPort(config.getInt(prefix + "port", DEFAULT_PORT));
+		connector.setAcceptors(config.getInt(prefix + "acceptors", 1));
+		connector.setMaxIdleTime((int) config.getDurationMs(prefix + "idletimeout", 30000L));
+		connector.setRequestHeaderSize((int) config.getSizeBytes(prefix + "buffer.header", 8192L));
+		connector.setRequestBufferSize((int) config.getSizeBytes(prefix + "buffer.request", 16384L));
+		connector.setResponseBufferSize((int) config.getSizeBytes(prefix + "buffer.response", 32768L));
+		int maxThreads = config.getInt(prefix + "threads.max", DEFAULT_MAX_THREADS);
+		threadPool.setMaxThreads(maxThreads);
+		threadPool.setMinThreads(Math.min(maxThreads, config.getInt(prefix + "threads.min", DEFAULT_MIN_THREADS)));
+		log.debug("Server threads {}-{}, {} acceptors", new Object[] { threadPool.getMinThreads(), maxThreads, connector.getAcceptors() });
+	}
+	
+	/** The port the server listens on (the actual port if port 0 was configured). */
+	public int getPort() { return connector.getLocalPort(); }
+	
+	/** Stops the server (the application is stopped via {@link AppInit#contextDestroyed(ServletContextEvent)}). */
+	public void stop() throws Exception {
+		if (server != null) server.stop();
+	}
+	
+	/** Waits until the server is stopped. */
+	public void join() throws InterruptedException {
+		server.join();
+	}
+	
+	/**
+	 * Starts the application in an embedded server.
+	 * @param args The class name of the {@link AppInit} subclass and optionally the class name of the {@link AppServlet} subclass. 
+	 */
+	public static void main(final String[] args) throws Exception {
+		
+		if (args.length < 1) {
+			System.err.println("Usage: " + EmbeddedServer.class.getName() + " <AppInit class> [AppServlet class]");
+			System.exit(1);
+		}
+		AppInit appInit = (AppInit) Class.forName(args[0]).newInstance();
+		Class<? extends AppServlet> servletClass = (args.length > 1 ? Class.forName(args[1]).asSubclass(AppServlet.class) : AppServlet.class);
+		EmbeddedServer server = new EmbeddedServer(appInit, servletClass);
+		try {
+			server.start();
+		} catch (Exception e) {
+			log.error("Failed to start " + args[0], e);
+			System.exit(1);
+		}
+		server.join();
+	}
+
+	/**
+	 * Shows view pages (jsp-pages under /WEB-INF/) without jsp-support: the page title 
+	 * and the other request attributes set by the controller are written as plain text.
+	 * Only forwards from the {@link AppServlet} are shown, direct requests get a 404 response.
+	 */
+	public static class ViewServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+			doPost(request, response);
+		}
+
+		@Override
+		protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+			
+			if (request.getAttribute(AppServlet.FORWARD_REQUEST_URI) == null) {
+				response.sendError(404);
+				return;
+			}
+			response.setContentType("text/plain");
+			response.setCharacterEncoding(ControllerUtil.getDefaultEncoding());
+			PrintWriter pw = response.getWriter();
+			Object title = request.getAttribute(Controller.PAGE_TITLE);
+			if (title != null) pw.println(title);
+			Enumeration<?> names = request.getAttributeNames();
+			while (names.hasMoreElements()) {
+				String name = names.nextElement().toString();
+				if (name.startsWith("javax.") || name.startsWith("org.eclipse.") || name.equals(Controller.PAGE_TITLE)
+						|| name.equals("requestedUrl") || name.equals(RequestBody.REQUEST_ATTR)) {
+					continue;
+				}
+				pw.println();
+				pw.println(name + ":");
+				pw.println(request.getAttribute(name));
+			}
+			pw.flush();
+		}
+	}
+}
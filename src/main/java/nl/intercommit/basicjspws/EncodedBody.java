@@ -0,0 +1,170 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A response body that is encoded once, for responses with constant text. 
+ * Writing the body sets the content type, character encoding and Content-Length 
+ * and writes the bytes without any encoding work.
+ * <br>Keep an instance in a constant or use {@link #get(String, String, String)} which caches 
+ * at most {@link #MAX_CACHED} bodies of at most {@link #MAX_CACHED_LENGTH} characters
+ * (see also {@link ControllerUtil#writeConstant(HttpServletResponse, String, String, String)}).
+ * The cache is meant for literal constants: when it is full, it is cleared 
+ * (bodies that are still used are cached again, so the cache does not keep the first bodies forever).
+ * @author FWiers
+ *
+ */
+public final class EncodedBody {
+
+	private static final Logger log = LoggerFactory.getLogger(EncodedBody.class);
+
+	public static final int MAX_CACHED = 256;
+	public static final int MAX_CACHED_LENGTH = 8192;
+	
+	/** Cached bodies by content type, encoding and text. Updated while holding the lock on the cache. */
+	private static final ConcurrentHashMap<Key, EncodedBody> cache = new ConcurrentHashMap<Key, EncodedBody>();
+	
+	private final String contentType;
+	private final String encoding;
+	private final byte[] bytes;
+	
+	/** Encodes text using the encoding (ISO-8859-1 if the encoding is unknown). */
+	public EncodedBody(final String contentType, final String encoding, final String text) {
+		
+		this.contentType = contentType;
+		this.encoding = encoding;
+		byte[] b;
+		try {
+			b = StringUtils.getBytes(text, StringUtils.findCharset(encoding));
+		} catch (Exception e) {
+			log.warn("Cannot encode body with " + encoding + ": " + e);
+			b = StringUtils.getBytes(text, StringUtils.ISO_8859_1);
+		}
+		bytes = b;
+	}
+
+	/** A body from bytes that are already encoded (the bytes are copied). */
+	public EncodedBody(final String contentType, final String encoding, final byte[] encoded) {
+		
+		this.contentType = contentType;
+		this.encoding = encoding;
+		bytes = new byte[encoded.length];
+		System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+	}
+	
+	/** Returns the (cached) encoded body for the text, see {@link EncodedBody}. */
+	public static EncodedBody get(final String contentType, final String encoding, final String text) {
+		
+		if (text.length() > MAX_CACHED_LENGTH) {
+			return new EncodedBody(contentType, encoding, text);
+		}
+		final Key key = new Key(contentType, encoding, text);
+		EncodedBody body = cache.get(key);
+		if (body == null) {
+			body = new EncodedBody(contentType, encoding, text);
+			synchronized (cache) {
+				if (cache.size() >= MAX_CACHED) {
+					log.debug("Encoded body cache is full, clearing {} cached bodies.", cache.size());
+					cache.clear();
+				}
+				EncodedBody cached = cache.putIfAbsent(key, body);
+				if (cached != null) body = cached;
+			}
+		}
+		return body;
+	}
+	
+	/** Removes all cached bodies. */
+	public static void clearCache() { 
+		synchronized (cache) { cache.clear(); }
+	}
+	
+	public static int getCacheSize() { return cache.size(); }
+	
+	public String getContentType() { return contentType; }
+
+	public String getEncoding() { return encoding; }
+	
+	/** The amount of bytes in the body. */
+	public int getLength() { return bytes.length; }
+	
+	/** A read-only view of the encoded bytes. */
+	public ByteBuffer asByteBuffer() { return ByteBuffer.wrap(bytes).asReadOnlyBuffer(); }
+	
+	/** 
+	 * Sends the body to the client. Commits the response (no further writing possible).
+	 * @return always null.
+	 */
+	public String write(final HttpServletResponse response) {
+		
+		try {
+			response.setContentType(contentType);
+			response.setCharacterEncoding(encoding);
+			response.setContentLength(bytes.length);
+			OutputStream out = response.getOutputStream();
+			out.write(bytes);
+			out.flush();
+		} catch (Exception e) {
+			log.warn("Could not write encoded response: " + e);
+		}
+		return null;
+	}
+	
+	/** Key for the cache. */
+	private static final class Key {
+		
+		final String contentType;
+		final String encoding;
+		final String text;
+		final int hash;
+		
+		Key(final String contentType, final String encoding, final String text) {
+			
+			this.contentType = contentType;
+			this.encoding = encoding;
+			this.text = text;
+			hash = (31 * (31 * text.hashCode() + (contentType == null ? 0 : contentType.hashCode())) 
+					+ (encoding == null ? 0 : encoding.hashCode()));
+		}
+		
+		@Override
+		public int hashCode() { return hash; }
+		
+		@Override
+		public boolean equals(final Object o) {
+			
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return (hash == k.hash && text.equals(k.text) && equal(contentType, k.contentType) && equal(encoding, k.encoding));
+		}
+		
+		private static boolean equal(final String a, final String b) {
+			return (a == null ? b == null : a.equals(b));
+		}
+	}
+}
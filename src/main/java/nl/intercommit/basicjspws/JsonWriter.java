@@ -0,0 +1,282 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes JSON as UTF-8 bytes to the response output stream, see {@link ResponseEncoder}.
+ * <br>Usage in a controller (see {@link ControllerUtil#getJsonWriter(HttpServletResponse)}):
+ * <br><code>return getJsonWriter(response).beginObject().name("count").value(1).name("names").beginArray().value("a").endArray().endObject().send();</code>
+ * <br>Commas between values are written by the writer, the caller is responsible for a correct nesting of objects and arrays.
+ * Sizes of objects and arrays are not used.
+ * Strings are escaped by {@link #putEscape(char, byte[], int)}, also used for the JSON written by 
+ * {@link nl.intercommit.basicjspws.controllers.LogTail} and the {@link AccessLog} 
+ * (unpaired surrogates are written as '?'). NaN and infinite numbers are written as null.
+ * @author FWiers
+ *
+ */
+public class JsonWriter extends ResponseEncoder {
+
+	/** Content type set by {@link #get(HttpServletResponse)} (with character encoding UTF-8). */
+	public static final String CONTENT_TYPE = "application/json";
+	
+	/** Maximum amount of bytes written by {@link #putEscape(char, byte[], int)}. */
+	public static final int MAX_ESCAPE_LENGTH = 6;
+	/** Maximum amount of bytes written for one character (an escape or a surrogate pair as 4 bytes, plus a closing quote). */
+	private static final int MAX_CHAR_BYTES = MAX_ESCAPE_LENGTH + 1;
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	/** For ASCII characters: 0 if the character is written as is, else the character after the backslash ('u' for \\u00xx). */
+	private static final byte[] ESCAPES = new byte[128];
+	static {
+		for (int i = 0; i < 0x20; i++) ESCAPES[i] = 'u';
+		ESCAPES['"'] = '"';
+		ESCAPES['\\'] = '\\';
+		ESCAPES['\n'] = 'n';
+		ESCAPES['\r'] = 'r';
+		ESCAPES['\t'] = 't';
+		ESCAPES['\b'] = 'b';
+		ESCAPES['\f'] = 'f';
+	}
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] LONG_MIN = StringUtils.getBytes(Long.toString(Long.MIN_VALUE), StringUtils.US_ASCII);
+
+	private static final Pool<JsonWriter> pool = new Pool<JsonWriter>() {
+		@Override protected JsonWriter create() { return new JsonWriter(); }
+	};
+
+	/** For each nesting level, true if the level contains a value (a comma is needed before the next value). */
+	private boolean[] hasValue = new boolean[16];
+	private int depth;
+	private boolean afterName;
+
+	protected JsonWriter() {}
+	
+	/** 
+	 * Returns a writer for the response (the thread's re-used writer if it is not in use) 
+	 * and sets the content type to {@link #CONTENT_TYPE} with UTF-8 character encoding. 
+	 */
+	public static JsonWriter get(final HttpServletResponse response) {
+		return pool.get(response);
+	}
+	
+	@Override
+	public String getContentType() { return CONTENT_TYPE; }
+
+	@Override
+	protected void start(final HttpServletResponse response) {
+		
+		super.start(response);
+		response.setCharacterEncoding("UTF-8");
+		depth = 0;
+		afterName = false;
+	}
+	
+	@Override
+	public JsonWriter beginObject(final int size) {
+		
+		beforeValue();
+		put('{');
+		push();
+		return this;
+	}
+
+	@Override
+	public JsonWriter endObject() {
+		
+		depth--;
+		put('}');
+		return this;
+	}
+
+	@Override
+	public JsonWriter beginArray(final int size) {
+		
+		beforeValue();
+		put('[');
+		push();
+		return this;
+	}
+
+	@Override
+	public JsonWriter endArray() {
+		
+		depth--;
+		put(']');
+		return this;
+	}
+	
+	@Override
+	public JsonWriter name(final String name) {
+		
+		beforeValue();
+		putString(name);
+		put(':');
+		afterName = true;
+		return this;
+	}
+	
+	@Override
+	public JsonWriter value(final String value) {
+		
+		beforeValue();
+		if (value == null) {
+			put(NULL);
+		} else {
+			putString(value);
+		}
+		return this;
+	}
+	
+	@Override
+	public JsonWriter value(final long value) {
+		
+		beforeValue();
+		putDecimal(value);
+		return this;
+	}
+
+	/** Writes the value, NaN and infinite values are written as null. */
+	@Override
+	public JsonWriter value(final double value) {
+		
+		beforeValue();
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			put(NULL);
+		} else if (isIntegral(value)) {
+			putDecimal((long) value);
+		} else {
+			String s = Double.toString(value);
+			ensure(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				buf[pos++] = (byte) s.charAt(i);
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(final boolean value) {
+		
+		beforeValue();
+		put(value ? TRUE : FALSE);
+		return this;
+	}
+
+	@Override
+	public JsonWriter nullValue() {
+		
+		beforeValue();
+		put(NULL);
+		return this;
+	}
+
+	/** Writes a comma if the value is not the first in an object or array. */
+	private void beforeValue() {
+		
+		if (afterName) {
+			afterName = false;
+		} else if (depth > 0) {
+			if (hasValue[depth - 1]) {
+				put(',');
+			} else {
+				hasValue[depth - 1] = true;
+			}
+		}
+	}
+	
+	private void push() {
+		
+		if (depth == hasValue.length) {
+			boolean[] larger = new boolean[depth * 2];
+			System.arraycopy(hasValue, 0, larger, 0, depth);
+			hasValue = larger;
+		}
+		hasValue[depth++] = false;
+	}
+	
+	private void putDecimal(long v) {
+		
+		if (v == Long.MIN_VALUE) {
+			put(LONG_MIN);
+			return;
+		}
+		ensure(20);
+		if (v < 0L) {
+			buf[pos++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long limit = 10L; v >= limit && digits < 19; limit *= 10L) digits++;
+		int i = pos + digits;
+		pos = i;
+		do {
+			buf[--i] = (byte) ('0' + (v % 10L));
+			v /= 10L;
+		} while (v > 0L);
+	}
+	
+	private void putString(final String s) {
+		
+		put('"');
+		final int length = s.length();
+		for (int i = 0; i < length; i++) {
+			if (pos > buf.length - MAX_CHAR_BYTES) flushBuffer();
+			char c = s.charAt(i);
+			if (c < 0x80 && ESCAPES[c] == 0) {
+				buf[pos++] = (byte) c;
+			} else if (needsEscape(c)) {
+				pos = putEscape(c, buf, pos);
+			} else {
+				i = putUtf8Char(s, i);
+			}
+		}
+		// An empty string has no room reserved for the closing quote.
+		put('"');
+	}
+	
+	/** 
+	 * True if c is escaped in a JSON string: quote, backslash, control characters and the line separators 
+	 * U+2028 and U+2029 (not allowed in JavaScript strings). 
+	 */
+	public static boolean needsEscape(final char c) {
+		return (c < 0x80 ? ESCAPES[c] != 0 : (c == 0x2028 || c == 0x2029));
+	}
+	
+	/** 
+	 * Writes the JSON escape for c (see {@link #needsEscape(char)}) into b, 
+	 * at most {@link #MAX_ESCAPE_LENGTH} bytes (the caller ensures there is room).
+	 * @return The new position in b.
+	 */
+	public static int putEscape(final char c, final byte[] b, int pos) {
+		
+		b[pos++] = '\\';
+		byte e = (c < 0x80 ? ESCAPES[c] : (byte) 'u');
+		b[pos++] = e;
+		if (e == 'u') {
+			b[pos++] = HEX[(c >> 12) & 0xF];
+			b[pos++] = HEX[(c >> 8) & 0xF];
+			b[pos++] = HEX[(c >> 4) & 0xF];
+			b[pos++] = HEX[c & 0xF];
+		}
+		return pos;
+	}
+}
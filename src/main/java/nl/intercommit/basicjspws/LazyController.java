@@ -0,0 +1,92 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A controller that creates the actual controller on the first request.
+ * Used by {@link AppServlet#registerRequestControllers(String)} for controllers that are expensive to create 
+ * (e.g. {@link nl.intercommit.basicjspws.controllers.LogStatus}), so that these do not delay the startup.
+ * Controllers that must be ready before the first request (eager controllers) are registered as instance.
+ * <br>Controllers are eager unless registered as lazy controller (lazy is opt-in, not the default): 
+ * most controllers are cheap to create, an eager controller fails at startup instead of at the first request
+ * and the name of a lazy controller must be given when it is registered (see {@link #getName()}).
+ * Register a controller as lazy when creating it is measurably slow (see the startup phases of {@link StartupProfiler}).
+ * @author FWiers
+ *
+ */
+public class LazyController implements Controller {
+
+	private final String name;
+	private final Class<? extends Controller> controllerClass;
+	private volatile Controller controller;
+
+	/**
+	 * @param name The name of the controller (see {@link Controller#getName()}).
+	 * @param controllerClass The controller class, must have a public constructor without arguments.
+	 */
+	public LazyController(final String name, final Class<? extends Controller> controllerClass) {
+		
+		this.name = name;
+		this.controllerClass = controllerClass;
+	}
+
+	/** Returns the actual controller, creates it if needed. */
+	public Controller getController() {
+		
+		Controller c = controller;
+		if (c == null) {
+			synchronized (this) {
+				c = controller;
+				if (c == null) {
+					StartupProfiler profiler = (AppInit.appInstance == null ? null : AppInit.appInstance.startupProfiler);
+					long t = System.nanoTime();
+					try {
+						c = controllerClass.newInstance();
+					} catch (Exception e) {
+						throw new RuntimeException("Could not create controller " + controllerClass.getName(), e);
+					}
+					if (profiler != null) profiler.end("create controller " + controllerClass.getSimpleName(), t);
+					controller = c;
+				}
+			}
+		}
+		return c;
+	}
+
+	/** True if the actual controller was created. */
+	public boolean isCreated() { return (controller != null); }
+
+	public Class<? extends Controller> getControllerClass() { return controllerClass; }
+
+	@Override
+	public String handleRequest(final HttpServletRequest request, final HttpServletResponse response) {
+		return getController().handleRequest(request, response);
+	}
+
+	@Override
+	public String getName() { return name; }
+
+	@Override
+	public String toString() {
+		return "LazyController [" + controllerClass.getName() + (isCreated() ? "" : ", not created") + "]";
+	}
+}
@@ -0,0 +1,619 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
+
+/**
+ * Stores log events in a compact binary format in memory-mapped segment files in one directory.
+ * <br>A segment file (prefix-firstSeq.blog) starts with a header (magic, version, sequence number of the first record) 
+ * followed by records: length, timestamp, level, logger name, thread name and message (including the stack trace if any),
+ * strings are stored as UTF-8 bytes with a variable-length size.
+ * Each segment file has a sparse index file (prefix-firstSeq.bidx) with the sequence number, timestamp and position 
+ * of every {@link #INDEX_INTERVAL}th record, used to find records by sequence number or time.
+ * <br>When a segment is full, a new segment is started. When there are more than maxSegments segments, 
+ * the oldest segment is deleted and its memory-mappings are released as soon as no thread is reading from it 
+ * (the JDK has no API to unmap a file, if the mapping cannot be released it is released when it is garbage collected).
+ * <br>Appending is done by one thread at a time, reading does not block appending.
+ * <br>Written by {@link LogArchiveAppender}. Archives can be read offline using {@link #main(String[])}.
+ * @author FWiers
+ *
+ */
+public class LogArchive implements LogBuffer {
+
+	public static final String DATA_EXT = ".blog";
+	public static final String INDEX_EXT = ".bidx";
+	/** An index entry is written for every INDEX_INTERVAL records. */
+	public static final int INDEX_INTERVAL = 64;
+	
+	private static final int MAGIC = 0x424A4C41; // BJLA
+	private static final int VERSION = 1;
+	/** Magic (4), version (4), first sequence number (8). */
+	private static final int HEADER_SIZE = 16;
+	/** Sequence number (8), timestamp (8), position (4). */
+	private static final int INDEX_ENTRY_SIZE = 20;
+	/** Length (4), timestamp (8), level (1), 3 string sizes (1). */
+	private static final int MIN_RECORD_SIZE = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File dir;
+	private final String prefix;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final boolean readOnly;
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	
+	// Guarded by this
+	private Segment current;
+	private ByteBuffer currentWrite;
+	private byte[] scratch = new byte[1024];
+
+	/**
+	 * Opens the segments in the directory.
+	 * @param dir The directory containing the segment files (created if it does not exist).
+	 * @param prefix The prefix for segment file names.
+	 * @param segmentSize The size of one segment file in bytes.
+	 * @param maxSegments The maximum amount of segment files to keep.
+	 * @param readOnly If true, no records can be appended.
+	 */
+	public LogArchive(final File dir, final String prefix, final int segmentSize, final int maxSegments, final boolean readOnly) throws IOException {
+		
+		this.dir = dir;
+		this.prefix = prefix;
+		this.segmentSize = Math.max(segmentSize, 64 * 1024);
+		this.maxSegments = Math.max(maxSegments, 2);
+		this.readOnly = readOnly;
+		if (!readOnly && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create log archive directory " + dir);
+		}
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File d, final String name) {
+				return (name.startsWith(prefix + "-") && name.endsWith(DATA_EXT));
+			}
+		});
+		if (names == null) names = new String[0];
+		// File names contain zero-padded sequence numbers, sorting by name sorts by sequence number.
+		Arrays.sort(names);
+		for (String name : names) {
+			try {
+				segments.add(Segment.open(new File(dir, name), readOnly));
+			} catch (IOException ioe) {
+				if (readOnly) throw ioe;
+				// Unreadable segment (e.g. from an older version), skip it.
+			}
+		}
+	}
+	
+	/** Stores the log event. */
+	public synchronized void append(final ILoggingEvent e) throws IOException {
+		
+		if (readOnly) throw new IOException("Log archive " + dir + " is read-only.");
+		String msg = e.getFormattedMessage();
+		IThrowableProxy tp = e.getThrowableProxy();
+		if (tp != null) {
+			msg = (msg == null ? "" : msg) + CoreConstants.LINE_SEPARATOR + ThrowableProxyUtil.asString(tp);
+		}
+		int maxLength = segmentSize - HEADER_SIZE;
+		int length = encode(e, msg, maxLength);
+		if (current == null || current.end + length > segmentSize) {
+			roll();
+		}
+		Segment s = current;
+		int pos = s.end;
+		long seq = s.lastSeq + 1;
+		ByteBuffer w = currentWrite;
+		w.position(pos + 4);
+		w.put(scratch, 4, length - 4);
+		// Write length last, a record with length 0 marks the end of the records.
+		w.putInt(pos, length - 4);
+		if ((seq - s.firstSeq) % INDEX_INTERVAL == 0L && s.index != null && (s.indexCount + 1) * INDEX_ENTRY_SIZE <= s.index.capacity()) {
+			int ipos = s.indexCount * INDEX_ENTRY_SIZE;
+			s.index.putLong(ipos + 8, e.getTimeStamp());
+			s.index.putInt(ipos + 16, pos);
+			s.index.putLong(ipos, seq);
+			s.indexCount++;
+		}
+		s.end = pos + length;
+		// Publish, readers read lastSeq first.
+		s.lastSeq = seq;
+	}
+	
+	/** Encodes the record in {@link #scratch}, returns the total record length. */
+	private int encode(final ILoggingEvent e, final String msg, final int maxLength) {
+		
+		String logger = (e.getLoggerName() == null ? "" : e.getLoggerName());
+		String thread = (e.getThreadName() == null ? "" : e.getThreadName());
+		int needed = 13 + 15 + 3 * (logger.length() + thread.length() + (msg == null ? 0 : msg.length()));
+		if (needed > scratch.length) {
+			scratch = new byte[Math.min(Math.max(needed, scratch.length * 2), maxLength)];
+		}
+		putLong(scratch, 4, e.getTimeStamp());
+		scratch[12] = LogbackUtil.getLevelIndex(e.getLevel());
+		int pos = 13;
+		pos = putString(logger, pos, Math.min(1024, scratch.length - pos - 10));
+		pos = putString(thread, pos, Math.min(1024, scratch.length - pos - 5));
+		pos = putString(msg, pos, scratch.length - pos - 5);
+		return pos;
+	}
+	
+	private int putString(final String s, final int pos, final int maxLength) {
+		
+		// Size is written as variable-length int, reserve 5 bytes and move bytes when less are needed.
+		int length = StringUtils.putUtf8(s, scratch, pos + 5, maxLength);
+		int sizeLength = varIntLength(length);
+		if (sizeLength < 5) System.arraycopy(scratch, pos + 5, scratch, pos + sizeLength, length);
+		putVarInt(scratch, pos, length);
+		return pos + sizeLength + length;
+	}
+	
+	/** Starts a new segment and deletes old segments. Must be called while holding the lock. */
+	private void roll() throws IOException {
+		
+		long firstSeq = 1L;
+		if (!segments.isEmpty()) firstSeq = segments.get(segments.size() - 1).lastSeq + 1;
+		File f = new File(dir, prefix + "-" + String.format("%019d", firstSeq) + DATA_EXT);
+		current = Segment.create(f, firstSeq, segmentSize);
+		currentWrite = current.data.duplicate();
+		segments.add(current);
+		while (segments.size() > maxSegments) {
+			Segment old = segments.remove(0);
+			old.retire();
+			if (!old.file.delete()) old.file.deleteOnExit();
+			File idx = indexFile(old.file);
+			if (!idx.delete()) idx.deleteOnExit();
+		}
+	}
+	
+	/** Stops appending to the current segment (a new segment is started for the next record). */
+	public synchronized void close() {
+		
+		if (current != null) {
+			current.data.force();
+			if (current.index != null) current.index.force();
+		}
+		current = null;
+		currentWrite = null;
+	}
+
+	/** The sequence number of the oldest record in the archive (0 if archive is empty). */
+	public long getFirstSeq() {
+		
+		for (Segment s : segments) {
+			if (s.lastSeq >= s.firstSeq) return s.firstSeq;
+		}
+		return 0L;
+	}
+
+	/** The sequence number of the last record in the archive (0 if archive is empty). */
+	public long getLastSeq() {
+		
+		int size = segments.size();
+		return (size == 0 ? 0L : segments.get(size - 1).lastSeq);
+	}
+	
+	@Override
+	public int fillLogPage(final long beforeSeq, final int skip, final LogBufferPage page) {
+		
+		page.clear();
+		long firstSeq = getFirstSeq();
+		long lastSeq = getLastSeq();
+		page.firstSeq = firstSeq;
+		page.lastSeq = (firstSeq == 0L ? 0L : lastSeq);
+		long seq = Math.min(lastSeq, beforeSeq - 1) - Math.max(0, skip);
+		page.startSeq = seq;
+		if (firstSeq == 0L) return 0;
+		ILoggingEvent[] block = new ILoggingEvent[INDEX_INTERVAL];
+		while (!page.isFull() && seq >= firstSeq) {
+			Segment s = getSegment(seq);
+			if (s == null) break;
+			long blockStart = s.firstSeq + ((seq - s.firstSeq) / INDEX_INTERVAL) * INDEX_INTERVAL;
+			int count;
+			try {
+				count = s.read(blockStart, block, (int) (seq - blockStart + 1));
+			} finally {
+				s.release();
+			}
+			for (int i = count - 1; i >= 0 && !page.isFull(); i--) {
+				page.add(blockStart + i, block[i]);
+			}
+			seq = blockStart - 1;
+		}
+		return page.size;
+	}
+
+	/**
+	 * Reads records in order of sequence number.
+	 * @param seq The sequence number of the first record to read.
+	 * @param events The records read, ordered by sequence number.
+	 * @return The amount of records read into events.
+	 */
+	public int read(long seq, final ILoggingEvent[] events) {
+		
+		int count = 0;
+		while (count < events.length) {
+			Segment s = getSegment(seq);
+			if (s == null) break;
+			int max;
+			int read;
+			ILoggingEvent[] part;
+			try {
+				max = (int) Math.min(events.length - count, s.lastSeq - seq + 1);
+				if (max <= 0) break;
+				part = (count == 0 ? events : new ILoggingEvent[max]);
+				read = s.read(seq, part, max);
+			} finally {
+				s.release();
+			}
+			if (part != events) System.arraycopy(part, 0, events, count, read);
+			count += read;
+			seq += read;
+			if (read < max) break;
+		}
+		return count;
+	}
+
+	@Override
+	public long findLogSeqAfter(final long timeStamp) {
+		
+		Segment found = null;
+		try {
+			for (Segment s : segments) {
+				if (s.lastSeq < s.firstSeq || !s.acquire()) continue;
+				if (found != null && s.getTimeStamp(0) > timeStamp) {
+					s.release();
+					break;
+				}
+				if (found != null) found.release();
+				found = s;
+			}
+			if (found == null) return getLastSeq() + 1;
+			return found.findSeqAfter(timeStamp);
+		} finally {
+			if (found != null) found.release();
+		}
+	}
+	
+	/** 
+	 * Returns the segment that contains the record with the sequence number, or null. 
+	 * The returned segment is acquired for reading: call {@link Segment#release()} when done.
+	 */
+	private Segment getSegment(final long seq) {
+		
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment s;
+			try {
+				s = segments.get(i);
+			} catch (IndexOutOfBoundsException ignored) {
+				// Oldest segment was removed
+				continue;
+			}
+			if (seq >= s.firstSeq) return (seq <= s.lastSeq && s.acquire() ? s : null);
+		}
+		return null;
+	}
+
+	static File indexFile(final File dataFile) {
+		
+		String name = dataFile.getName();
+		return new File(dataFile.getParentFile(), name.substring(0, name.length() - DATA_EXT.length()) + INDEX_EXT);
+	}
+
+	/** One data file with its index file. */
+	static class Segment {
+		
+		final File file;
+		final long firstSeq;
+		/** Only used with absolute gets and puts, can be shared by threads. */
+		final MappedByteBuffer data;
+		final MappedByteBuffer index;
+		volatile long lastSeq;
+		volatile int end;
+		volatile int indexCount;
+		/** Amount of threads reading from the mappings, guarded by this segment. */
+		private int readers;
+		/** True when the segment was removed from the archive, guarded by this segment. */
+		private boolean retired;
+
+		Segment(final File file, final long firstSeq, final MappedByteBuffer data, final MappedByteBuffer index) {
+			
+			this.file = file;
+			this.firstSeq = firstSeq;
+			this.data = data;
+			this.index = index;
+			this.lastSeq = firstSeq - 1;
+			this.end = HEADER_SIZE;
+		}
+
+		static Segment create(final File f, final long firstSeq, final int size) throws IOException {
+			
+			MappedByteBuffer data = map(f, size, false);
+			data.putInt(0, MAGIC);
+			data.putInt(4, VERSION);
+			data.putLong(8, firstSeq);
+			MappedByteBuffer index = map(indexFile(f), (size / (INDEX_INTERVAL * MIN_RECORD_SIZE) + 1) * INDEX_ENTRY_SIZE, false);
+			return new Segment(f, firstSeq, data, index);
+		}
+		
+		static Segment open(final File f, final boolean readOnly) throws IOException {
+			
+			MappedByteBuffer data = map(f, 0, readOnly);
+			if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+				throw new IOException("Not a log archive segment: " + f);
+			}
+			File idx = indexFile(f);
+			MappedByteBuffer index = (idx.isFile() ? map(idx, 0, readOnly) : null);
+			Segment s = new Segment(f, data.getLong(8), data, index);
+			int count = 0;
+			if (index != null) {
+				while ((count + 1) * INDEX_ENTRY_SIZE <= index.capacity() && index.getLong(count * INDEX_ENTRY_SIZE) != 0L) count++;
+			}
+			s.indexCount = count;
+			// Find the end of the records, start at the last index entry.
+			long seq = s.firstSeq;
+			int pos = HEADER_SIZE;
+			if (count > 0) {
+				seq = index.getLong((count - 1) * INDEX_ENTRY_SIZE);
+				pos = index.getInt((count - 1) * INDEX_ENTRY_SIZE + 16);
+			}
+			int length;
+			while (pos + 4 <= data.capacity() && (length = data.getInt(pos)) > 0 && pos + 4 + length <= data.capacity()) {
+				pos += 4 + length;
+				seq++;
+			}
+			s.end = pos;
+			s.lastSeq = seq - 1;
+			return s;
+		}
+		
+		/** 
+		 * Registers a reader of the mappings, must be followed by {@link #release()}. 
+		 * @return false if the segment was removed from the archive (the mappings must not be used). 
+		 */
+		synchronized boolean acquire() {
+			
+			if (retired) return false;
+			readers++;
+			return true;
+		}
+		
+		/** Unregisters a reader, the last reader of a removed segment releases the mappings. */
+		synchronized void release() {
+			if (--readers == 0 && retired) unmap();
+		}
+		
+		/** Called when the segment is removed from the archive, the mappings are released when there are no readers. */
+		synchronized void retire() {
+			
+			retired = true;
+			if (readers == 0) unmap();
+		}
+		
+		private void unmap() {
+			
+			unmap(data);
+			if (index != null) unmap(index);
+		}
+
+		/** 
+		 * Releases the memory-mapping of the buffer (instead of waiting for garbage collection), the buffer must no longer be used. 
+		 * Uses the JDK's internal cleaner (Java 6 to 8), does nothing if that is not available.
+		 */
+		static void unmap(final MappedByteBuffer buffer) {
+			
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+			} catch (Throwable t) {
+				// Mapping is released when the buffer is garbage collected.
+			}
+		}
+		
+		static MappedByteBuffer map(final File f, final int size, final boolean readOnly) throws IOException {
+			
+			RandomAccessFile raf = new RandomAccessFile(f, readOnly ? "r" : "rw");
+			try {
+				if (size > 0) raf.setLength(size);
+				// Mapping remains valid after the file is closed.
+				return raf.getChannel().map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+		}
+
+		/** Returns the position of the record with the sequence number (which must be in this segment). */
+		int getPosition(final long seq) {
+			
+			long recordSeq = firstSeq;
+			int pos = HEADER_SIZE;
+			int entry = (int) Math.min((seq - firstSeq) / INDEX_INTERVAL, indexCount - 1L);
+			if (entry >= 0) {
+				recordSeq = index.getLong(entry * INDEX_ENTRY_SIZE);
+				pos = index.getInt(entry * INDEX_ENTRY_SIZE + 16);
+			}
+			while (recordSeq < seq) {
+				pos += 4 + data.getInt(pos);
+				recordSeq++;
+			}
+			return pos;
+		}
+
+		/** Timestamp of the index entry (Long.MAX_VALUE if there is no such entry). */
+		long getTimeStamp(final int entry) {
+			return (entry < indexCount ? index.getLong(entry * INDEX_ENTRY_SIZE + 8) : Long.MAX_VALUE);
+		}
+
+		/** Reads at most max records starting at seq. */
+		int read(final long seq, final ILoggingEvent[] events, final int max) {
+			
+			long last = lastSeq;
+			int pos = getPosition(seq);
+			int count = 0;
+			for (long s = seq; s <= last && count < max; s++) {
+				events[count++] = decode(pos);
+				pos += 4 + data.getInt(pos);
+			}
+			return count;
+		}
+
+		long findSeqAfter(final long timeStamp) {
+			
+			long last = lastSeq;
+			// Binary search for the last index entry with a timestamp before or at timeStamp.
+			int low = 0;
+			int high = indexCount - 1;
+			int found = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (getTimeStamp(mid) <= timeStamp) {
+					found = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			long seq = (found < 0 ? firstSeq : index.getLong(found * INDEX_ENTRY_SIZE));
+			int pos = (found < 0 ? HEADER_SIZE : index.getInt(found * INDEX_ENTRY_SIZE + 16));
+			while (seq <= last && data.getLong(pos + 4) <= timeStamp) {
+				pos += 4 + data.getInt(pos);
+				seq++;
+			}
+			return seq;
+		}
+		
+		LoggingEvent decode(final int recordPos) {
+			
+			LoggingEvent le = new LoggingEvent();
+			le.setTimeStamp(data.getLong(recordPos + 4));
+			le.setLevel(LogbackUtil.getLevel(data.get(recordPos + 12)));
+			int[] pos = new int[] { recordPos + 13 };
+			le.setLoggerName(getString(pos));
+			le.setThreadName(getString(pos));
+			le.setMessage(getString(pos));
+			return le;
+		}
+		
+		private String getString(final int[] pos) {
+			
+			int p = pos[0];
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data.get(p++);
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) bytes[i] = data.get(p + i);
+			pos[0] = p + length;
+			return new String(bytes, UTF8);
+		}
+	}
+
+	private static int varIntLength(final int v) {
+		
+		if ((v & ~0x7F) == 0) return 1;
+		if ((v & ~0x3FFF) == 0) return 2;
+		if ((v & ~0x1FFFFF) == 0) return 3;
+		if ((v & ~0xFFFFFFF) == 0) return 4;
+		return 5;
+	}
+
+	private static void putVarInt(final byte[] b, int pos, int v) {
+		
+		while ((v & ~0x7F) != 0) {
+			b[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		b[pos] = (byte) v;
+	}
+
+	private static void putLong(final byte[] b, final int pos, final long v) {
+		for (int i = 0; i < 8; i++) b[pos + i] = (byte) (v >>> (56 - 8 * i));
+	}
+
+	/**
+	 * Prints the records in a log archive directory to standard out, oldest record first.
+	 * <br>Usage: LogArchive directory [prefix] [fromTime] [toTime]
+	 * <br>Times are in milliseconds since epoch, default prefix is "log".
+	 */
+	public static void main(final String[] args) throws IOException {
+		
+		if (args.length < 1) {
+			System.err.println("Usage: " + LogArchive.class.getName() + " directory [prefix] [fromTime] [toTime]");
+			System.exit(1);
+		}
+		String prefix = (args.length > 1 ? args[1] : LogArchiveAppender.DEFAULT_PREFIX);
+		long from = (args.length > 2 ? Long.parseLong(args[2]) : Long.MIN_VALUE);
+		long to = (args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE);
+		LogArchive archive = new LogArchive(new File(args[0]), prefix, 0, Integer.MAX_VALUE, true);
+		print(archive, from, to, System.out);
+	}
+	
+	/** Prints the records with a timestamp in the range (inclusive), oldest record first. */
+	public static void print(final LogArchive archive, final long fromTime, final long toTime, final PrintStream out) {
+		
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+		Date d = new Date();
+		long seq = (fromTime == Long.MIN_VALUE ? archive.getFirstSeq() : archive.findLogSeqAfter(fromTime - 1));
+		long endSeq = (toTime == Long.MAX_VALUE ? archive.getLastSeq() + 1 : archive.findLogSeqAfter(toTime));
+		ILoggingEvent[] events = new ILoggingEvent[INDEX_INTERVAL];
+		while (seq < endSeq) {
+			int count = archive.read(seq, events);
+			if (count == 0) break;
+			for (int i = 0; i < count && seq < endSeq; i++, seq++) {
+				ILoggingEvent e = events[i];
+				d.setTime(e.getTimeStamp());
+				out.print(df.format(d));
+				out.print(" [");
+				out.print(e.getThreadName());
+				out.print("] ");
+				out.print(e.getLevel());
+				out.print(' ');
+				out.print(e.getLoggerName());
+				out.print(" - ");
+				out.println(e.getFormattedMessage());
+			}
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,125 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.File;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+/**
+ * Appends log events to a {@link LogArchive}: compact binary records in rolling memory-mapped segment files.
+ * The archive can be read by the log pages (see {@link nl.intercommit.basicjspws.controllers.Log}, request parameter "archive")
+ * and offline via {@link LogArchive#main(String[])}.
+ * <br>Used by {@link LogbackUtil#initLogging(String, String)} when {@link LogbackUtil#archiveLogs} is true, 
+ * can also be used in a logback configuration file, e.g.
+ * <br><code>&lt;appender name="ARCHIVE" class="nl.intercommit.basicjspws.LogArchiveAppender"&gt;&lt;dir&gt;/var/log/myapp/archive&lt;/dir&gt;&lt;/appender&gt;</code>
+ * @author FWiers
+ *
+ */
+public class LogArchiveAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements LogBuffer {
+
+	public static final String DEFAULT_PREFIX = "log";
+	public static final int DEFAULT_SEGMENT_SIZE_MB = 16;
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+	
+	private String dir;
+	private String prefix = DEFAULT_PREFIX;
+	private int segmentSizeMb = DEFAULT_SEGMENT_SIZE_MB;
+	private int maxSegments = DEFAULT_MAX_SEGMENTS;
+	private volatile LogArchive archive;
+	
+	/** The directory for the segment files (mandatory). */
+	public void setDir(final String dir) { this.dir = dir; }
+	public String getDir() { return dir; }
+
+	/** The prefix for segment file names (default {@link #DEFAULT_PREFIX}). */
+	public void setPrefix(final String prefix) { this.prefix = prefix; }
+	public String getPrefix() { return prefix; }
+
+	/** The size of one segment file in megabytes (default {@link #DEFAULT_SEGMENT_SIZE_MB}). */
+	public void setSegmentSizeMb(final int segmentSizeMb) { this.segmentSizeMb = segmentSizeMb; }
+	public int getSegmentSizeMb() { return segmentSizeMb; }
+
+	/** The maximum amount of segment files to keep (default {@link #DEFAULT_MAX_SEGMENTS}). */
+	public void setMaxSegments(final int maxSegments) { this.maxSegments = maxSegments; }
+	public int getMaxSegments() { return maxSegments; }
+	
+	/** The archive written to, null if appender is not started. */
+	public LogArchive getArchive() { return archive; }
+
+	@Override
+	public void start() {
+		
+		if (AppInit.isEmpty(dir)) {
+			addError("No directory set for appender " + name);
+			return;
+		}
+		if (segmentSizeMb < 1 || segmentSizeMb > 1024) {
+			addError("Segment size " + segmentSizeMb + " MB is invalid for appender " + name);
+			return;
+		}
+		try {
+			archive = new LogArchive(new File(dir), prefix, segmentSizeMb * 1024 * 1024, maxSegments, false);
+		} catch (Exception e) {
+			addError("Cannot open log archive in " + dir + " for appender " + name, e);
+			return;
+		}
+		super.start();
+	}
+	
+	@Override
+	public void stop() {
+		
+		super.stop();
+		LogArchive a = archive;
+		if (a != null) a.close();
+	}
+
+	@Override
+	protected void append(final ILoggingEvent e) {
+		
+		LogArchive a = archive;
+		if (a == null) return;
+		try {
+			a.append(e);
+		} catch (Exception ex) {
+			addError("Failed to archive log event.", ex);
+		}
+	}
+
+	@Override
+	public int fillLogPage(final long beforeSeq, final int skip, final LogBufferPage page) {
+		
+		LogArchive a = archive;
+		if (a == null) {
+			page.clear();
+			page.firstSeq = page.lastSeq = page.startSeq = 0L;
+			return 0;
+		}
+		return a.fillLogPage(beforeSeq, skip, page);
+	}
+
+	@Override
+	public long findLogSeqAfter(final long timeStamp) {
+		
+		LogArchive a = archive;
+		return (a == null ? 1L : a.findLogSeqAfter(timeStamp));
+	}
+}
@@ -0,0 +1,44 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+/**
+ * An in-memory buffer of log events that can be read page by page, last event first.
+ * Each log event in the buffer has a sequence number (the first event appended has sequence number 1).
+ * Implemented by {@link LogRingAppender} and {@link LogBufferAppender}, 
+ * see also {@link LogbackUtil#getLogEventBuffer(String)}.
+ * @author FWiers
+ *
+ */
+public interface LogBuffer {
+
+	/**
+	 * Copies log events into the page, last event first. The page is cleared first.
+	 * @param beforeSeq Only copy events with a sequence number lower than this number (use Long.MAX_VALUE to start at the last event).
+	 * @param skip The amount of events to skip before copying events.
+	 * @return The amount of events copied.
+	 */
+	int fillLogPage(long beforeSeq, int skip, LogBufferPage page);
+
+	/**
+	 * Finds the sequence number of the first log event with a timestamp after the given timestamp.
+	 * @return The sequence number (last sequence number plus one if all events have an older or equal timestamp).
+	 */
+	long findLogSeqAfter(long timeStamp);
+}
@@ -0,0 +1,66 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.CyclicBufferAppender;
+
+/**
+ * A {@link CyclicBufferAppender} that numbers the appended events.
+ * The first event appended gets sequence number 1, the event at index <code>i</code> in the buffer has sequence number
+ * <code>getAppendCount() - getLength() + 1 + i</code>.
+ * The sequence number is used as a stable cursor when paging through the buffer (see {@link LogBuffer}).
+ * <br>Can be used in a logback configuration file instead of the {@link CyclicBufferAppender}, e.g.
+ * <br><code>&lt;appender name="CYCLIC" class="nl.intercommit.basicjspws.LogBufferAppender"&gt;</code>
+ * @author FWiers
+ *
+ */
+public class LogBufferAppender extends CyclicBufferAppender<ILoggingEvent> implements LogBuffer {
+
+	/** Guarded by the lock on this appender (see {@link ch.qos.logback.core.AppenderBase#doAppend(Object)}). */
+	private long appendCount;
+
+	@Override
+	protected void append(final ILoggingEvent eventObject) {
+
+		if (!isStarted()) return;
+		super.append(eventObject);
+		appendCount++;
+	}
+
+	/** The total number of events appended, equal to the sequence number of the last appended event. */
+	public synchronized long getAppendCount() { return appendCount; }
+
+	@Override
+	public int fillLogPage(final long beforeSeq, final int skip, final LogBufferPage page) {
+		return LogbackUtil.fillLogPage(this, beforeSeq, skip, page);
+	}
+
+	@Override
+	public long findLogSeqAfter(final long timeStamp) {
+		return LogbackUtil.findLogSeqAfter(this, timeStamp);
+	}
+
+	@Override
+	public void stop() {
+
+		super.stop();
+		synchronized (this) { appendCount = 0L; }
+	}
+}
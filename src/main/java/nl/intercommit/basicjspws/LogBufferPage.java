@@ -0,0 +1,73 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * A page of log events copied from a log buffer, last event first.
+ * A page is re-used to read a log buffer in small chunks so that the memory needed to show a log buffer
+ * does not depend on the size of the log buffer. 
+ * Filled by {@link LogBuffer#fillLogPage(long, int, LogBufferPage)}.
+ * @author FWiers
+ *
+ */
+public class LogBufferPage {
+
+	/** The copied events, last event first. */
+	public final ILoggingEvent[] events;
+	/** The sequence numbers of the copied events (a log buffer can skip events that are unavailable, sequence numbers can have gaps). */
+	public final long[] seqs;
+	/** The amount of events copied into {@link #events}. */
+	public int size;
+	/** The sequence number from which events were copied. */
+	public long startSeq;
+	/** The sequence number of the oldest event available in the log buffer (0 when log buffer is empty). */
+	public long firstSeq;
+	/** The sequence number of the latest event available in the log buffer (0 when log buffer is empty). */
+	public long lastSeq;
+
+	public LogBufferPage(final int maxSize) {
+		events = new ILoggingEvent[maxSize];
+		seqs = new long[maxSize];
+	}
+
+	/** Adds an event to this page, the page must not be full. */
+	public void add(final long seq, final ILoggingEvent event) {
+		
+		seqs[size] = seq;
+		events[size++] = event;
+	}
+
+	/** True if no more events can be added. */
+	public boolean isFull() { return (size == events.length); }
+
+	/** The sequence number of the last (oldest) event on this page, or {@link #startSeq} when the page is empty. */
+	public long getEndSeq() { return (size == 0 ? startSeq : seqs[size - 1]); }
+
+	/** True if the log buffer contains events older than the events on this page. */
+	public boolean hasMore() { return (size > 0 && getEndSeq() > firstSeq); }
+
+	/** Removes references to events so they can be garbage collected. */
+	public void clear() {
+
+		for (int i = 0; i < size; i++) events[i] = null;
+		size = 0;
+	}
+}
@@ -0,0 +1,273 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deduplicates log statements from hot error paths (e.g. 404 and 500 responses in {@link AppServlet}).
+ * A statement is identified by its message template (the constant part of the message, i.e. the log site)
+ * and a key (the variable part that makes statements similar, e.g. route and exception class).
+ * The first occurrence is logged, further occurrences within the interval are suppressed and counted.
+ * The first occurrence after the interval is logged again with the amount of suppressed similar statements.
+ * If there is no further occurrence, the amount of suppressed statements is logged by {@link #flush()}
+ * (called periodically after {@link #start(String)}), so that the end of a flood is reported too.
+ * <br>Memory is bounded: each template has at most maxKeys keys, when the maximum is reached 
+ * new keys for the template share one entry (see {@link #OVERFLOW_KEY}). A flood of one statement 
+ * therefore does not suppress the first occurrence of another statement. 
+ * Keys without occurrences during the interval are removed by {@link #flush()}. 
+ * Looking up a key is lock-free (no locks or synchronization when a statement is suppressed).
+ * <br>Usage:
+ * <br><code>long suppressed = logDedup.tryLog("Controller failed", route + " " + e.getClass().getName());
+ * <br>if (suppressed &gt;= 0) log.warn(LogDedup.withSuppressed(msg, suppressed));</code>
+ * @author FWiers
+ *
+ */
+public class LogDedup {
+
+	public static final long DEFAULT_INTERVAL_MS = 60000L;
+	/** Default maximum amount of keys per template. */
+	public static final int DEFAULT_MAX_KEYS = 256;
+	/** Key used for all new keys of a template when the maximum amount of keys for the template is reached. */
+	public static final String OVERFLOW_KEY = "(other)";
+
+	private static class Entry {
+		
+		final String template;
+		final String key;
+		final AtomicLong windowStart;
+		final AtomicLong suppressed = new AtomicLong();
+		final AtomicLong total = new AtomicLong(1L);
+		
+		Entry(final String template, final String key, final long windowStart) {
+			this.template = template;
+			this.key = key;
+			this.windowStart = new AtomicLong(windowStart);
+		}
+	}
+	
+	/** The keys of one template. */
+	private static class Template {
+		
+		final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+		final AtomicInteger keyCount = new AtomicInteger();
+	}
+
+	private final Logger log;
+	private final long intervalMs;
+	private final int maxKeys;
+	private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+	private final AtomicLong suppressedTotal = new AtomicLong();
+	private Thread flusher;
+
+	/** Uses the {@link #DEFAULT_INTERVAL_MS} and {@link #DEFAULT_MAX_KEYS}, logs suppressed counts via the logger of this class. */
+	public LogDedup() {
+		this(LoggerFactory.getLogger(LogDedup.class), DEFAULT_INTERVAL_MS, DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 * @param log The logger used by {@link #flush()} to log the amount of suppressed statements.
+	 * @param intervalMs The minimum time between two log statements with the same template and key.
+	 * @param maxKeys The maximum amount of keys to track per template.
+	 */
+	public LogDedup(final Logger log, final long intervalMs, final int maxKeys) {
+		
+		this.log = log;
+		this.intervalMs = Math.max(0L, intervalMs);
+		this.maxKeys = Math.max(1, maxKeys);
+	}
+
+	/** Registers an occurrence of the key with an empty template, see {@link #tryLog(String, String)}. */
+	public long tryLog(final String key) {
+		return tryLog("", key);
+	}
+	
+	/**
+	 * Registers an occurrence of the statement.
+	 * @param template The constant part of the message (or another identification of the log site).
+	 * @param key The variable part of the statement that makes statements similar. 
+	 * @return -1 if the log statement should be suppressed,
+	 * else the amount of statements suppressed since the statement was last logged (0 for the first occurrence).
+	 */
+	public long tryLog(final String template, final String key) {
+
+		final long now = System.currentTimeMillis();
+		Template t = templates.get(template);
+		if (t == null) {
+			Template existing = templates.putIfAbsent(template, t = new Template());
+			if (existing != null) t = existing;
+		}
+		Entry e = t.entries.get(key);
+		if (e == null) {
+			e = getNewEntry(t, template, key, now);
+			if (e == null) return 0L;
+		}
+		e.total.incrementAndGet();
+		final long start = e.windowStart.get();
+		// Only one thread starts the new window and logs, other threads see the updated window start.
+		if (now - start >= intervalMs && e.windowStart.compareAndSet(start, now)) {
+			return e.suppressed.getAndSet(0L);
+		}
+		e.suppressed.incrementAndGet();
+		suppressedTotal.incrementAndGet();
+		return -1L;
+	}
+
+	/** Returns null if the key was added (and should be logged), else the entry to use for the key. */
+	private Entry getNewEntry(final Template t, final String template, final String key, final long now) {
+		
+		String k = key;
+		final boolean overflow = (t.keyCount.incrementAndGet() > maxKeys);
+		if (overflow) {
+			t.keyCount.decrementAndGet();
+			k = OVERFLOW_KEY;
+			Entry e = t.entries.get(k);
+			if (e != null) return e;
+		}
+		Entry existing = t.entries.putIfAbsent(k, new Entry(template, k, now));
+		if (existing != null && !overflow) t.keyCount.decrementAndGet();
+		return existing;
+	}
+
+	/** Appends the amount of suppressed statements (if any) to the message. */
+	public static String withSuppressed(final String msg, final long suppressed) {
+		return (suppressed > 0L ? msg + " (suppressed " + suppressed + " similar)" : msg);
+	}
+	
+	/**
+	 * For statements last logged more than the interval ago: logs (as warning) the amount of statements suppressed since then 
+	 * and starts a new interval, or removes the statement's key if there were no occurrences.
+	 * An occurrence registered by another thread while its key is removed can be lost from the counts.
+	 * @return The amount of removed keys.
+	 */
+	public int flush() {
+		
+		final long now = System.currentTimeMillis();
+		int removed = 0;
+		for (Template t : templates.values()) {
+			Iterator<Entry> entries = t.entries.values().iterator();
+			while (entries.hasNext()) {
+				Entry e = entries.next();
+				final long start = e.windowStart.get();
+				if (now - start < intervalMs) continue;
+				if (e.suppressed.get() == 0L) {
+					entries.remove();
+					if (!OVERFLOW_KEY.equals(e.key)) t.keyCount.decrementAndGet();
+					removed++;
+				} else if (e.windowStart.compareAndSet(start, now)) {
+					long suppressed = e.suppressed.getAndSet(0L);
+					if (suppressed > 0L) {
+						log.warn("Suppressed " + suppressed + " similar log statements in the last " + ((now - start) / 1000L) + " seconds: " 
+								+ e.template + (e.template.isEmpty() ? "" : " ") + e.key);
+					}
+				}
+			}
+		}
+		return removed;
+	}
+	
+	/** Starts a (daemon) thread that calls {@link #flush()} every quarter of the interval (at least every second). */
+	public synchronized void start(final String threadName) {
+		
+		if (flusher != null) return;
+		final long sleepMs = Math.max(1000L, intervalMs / 4L);
+		flusher = new Thread(new Runnable() {
+			@Override public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(sleepMs);
+					} catch (InterruptedException ie) {
+						break;
+					}
+					try {
+						flush();
+					} catch (Exception e) {
+						log.warn("Could not flush suppressed log statements: " + e);
+					}
+				}
+			}
+		}, threadName);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/** Stops the thread started by {@link #start(String)}. */
+	public synchronized void stop() {
+		
+		if (flusher == null) return;
+		flusher.interrupt();
+		try {
+			flusher.join(1000L);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		flusher = null;
+	}
+
+	/** Total amount of suppressed log statements. */
+	public long getSuppressedCount() { return suppressedTotal.get(); }
+
+	/** Amount of tracked keys (over all templates). */
+	public int getKeyCount() { 
+		
+		int count = 0;
+		for (Template t : templates.values()) count += t.entries.size();
+		return count; 
+	}
+
+	/** 
+	 * Statistics shown on the statistics page: 
+	 * total suppressed and the keys with the most occurrences (at most maxKeys).
+	 */
+	public String getStatsDescription(final int maxKeys) {
+		
+		List<Entry> l = new ArrayList<Entry>();
+		for (Template t : templates.values()) l.addAll(t.entries.values());
+		Collections.sort(l, new Comparator<Entry>() {
+			@Override public int compare(final Entry e1, final Entry e2) {
+				long t1 = e1.total.get(), t2 = e2.total.get();
+				return (t1 < t2 ? 1 : (t1 == t2 ? 0 : -1));
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		sb.append("Suppressed log statements: ").append(suppressedTotal.get())
+		.append(" (keys: ").append(l.size()).append(')');
+		for (int i = 0; i < l.size() && i < maxKeys; i++) {
+			Entry e = l.get(i);
+			sb.append('\n').append(e.total.get()).append(" x ").append(e.template).append(e.template.isEmpty() ? "" : " ").append(e.key);
+		}
+		return sb.append('\n').toString();
+	}
+
+	/** Removes all keys. */
+	public void clear() {
+		templates.clear();
+	}
+}
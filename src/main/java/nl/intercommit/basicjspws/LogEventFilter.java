@@ -0,0 +1,98 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.util.regex.Pattern;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Selects log events by level, logger name prefix, thread name, time range and message pattern.
+ * All criteria are optional, an event must match all criteria that are set.
+ * Used to query log buffers, see {@link nl.intercommit.basicjspws.controllers.LogQuery}. 
+ * <br>A filter is not changed after it is used and can be used by multiple threads.
+ * @author FWiers
+ *
+ */
+public class LogEventFilter {
+
+	/** 
+	 * Log buffers are ordered by the time events are appended, not by the timestamps of the events: 
+	 * a thread can be delayed between creating and appending an event (e.g. by an async appender).
+	 * Queries expect timestamps to be out of order by at most this amount of milliseconds. 
+	 */
+	public static final long ORDER_MARGIN_MS = 5000L;
+
+	/** Minimum level of the log event (null for any level). */
+	public Level level;
+	/** Logger name must start with this prefix (null for any logger). */
+	public String loggerPrefix;
+	/** Thread name must be equal to this name (null for any thread). */
+	public String threadName;
+	/** The formatted message must contain a match for this pattern (null for any message). */
+	public Pattern messagePattern;
+	/** Minimum timestamp (inclusive) of the log event. */
+	public long fromTime = Long.MIN_VALUE;
+	/** Maximum timestamp (inclusive) of the log event. */
+	public long toTime = Long.MAX_VALUE;
+
+	/** True if the log event matches all criteria. */
+	public boolean accept(final ILoggingEvent e) {
+		
+		if (level != null && !e.getLevel().isGreaterOrEqual(level)) return false;
+		long ts = e.getTimeStamp();
+		if (ts < fromTime || ts > toTime) return false;
+		if (loggerPrefix != null && (e.getLoggerName() == null || !e.getLoggerName().startsWith(loggerPrefix))) return false;
+		if (threadName != null && !threadName.equals(e.getThreadName())) return false;
+		// Most expensive check last.
+		if (messagePattern != null && (e.getFormattedMessage() == null || !messagePattern.matcher(e.getFormattedMessage()).find())) return false;
+		return true;
+	}
+
+	/** 
+	 * True if the log event is older than {@link #fromTime} by more than {@link #ORDER_MARGIN_MS}. 
+	 * Since log buffers are ordered by time (within the margin), no more matching events can be found in older log events. 
+	 */
+	public boolean isBefore(final ILoggingEvent e) {
+		return (e.getTimeStamp() + ORDER_MARGIN_MS < fromTime);
+	}
+
+	/** 
+	 * The timestamp to find the newest event that can match in a log buffer (toTime plus {@link #ORDER_MARGIN_MS}), 
+	 * or Long.MAX_VALUE if there is no "to time".
+	 * @param toTime {@link #toTime} or a lower "to time" used for one query.
+	 */
+	public static long getSearchTime(final long toTime) {
+		return (toTime > Long.MAX_VALUE - ORDER_MARGIN_MS ? Long.MAX_VALUE : toTime + ORDER_MARGIN_MS);
+	}
+
+	@Override
+	public String toString() {
+		
+		StringBuilder sb = new StringBuilder();
+		if (level != null) sb.append(" level>=").append(level);
+		if (loggerPrefix != null) sb.append(" logger=").append(loggerPrefix).append('*');
+		if (threadName != null) sb.append(" thread=").append(threadName);
+		if (fromTime != Long.MIN_VALUE) sb.append(" from=").append(fromTime);
+		if (toTime != Long.MAX_VALUE) sb.append(" to=").append(toTime);
+		if (messagePattern != null) sb.append(" regex=").append(messagePattern.pattern());
+		return (sb.length() == 0 ? "(all)" : sb.substring(1));
+	}
+}
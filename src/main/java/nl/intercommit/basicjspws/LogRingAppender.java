@@ -0,0 +1,308 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+/**
+ * An in-memory log buffer that stores log events in a compact form in a preallocated ring of bytes.
+ * Appending an event does not take a lock: an event claims a slot in the ring using an atomic counter,
+ * writes the event into the slot and then publishes the slot.
+ * <br>Each slot ({@link #setSlotSize(int)} bytes) contains the timestamp, level, logger name id, thread name id
+ * and the formatted message (including the stack trace if any) as UTF-8 bytes. 
+ * Messages that do not fit in a slot are truncated. Logger and thread names are stored once in a name table.
+ * <br>Readers validate that a slot was not overwritten while it was read. Events that are overwritten
+ * or that are still being written are skipped by readers.
+ * A reader copies the bytes of a slot and then validates the copy with a compare-and-set of the slot's sequence number 
+ * to the same value. Under the Java memory model a second volatile read would not be enough: plain reads before 
+ * a volatile read may be reordered after it (Java 6 has no load fence). The compare-and-set is a volatile write, 
+ * the plain reads of the copy cannot be reordered after it and a writer that claims the slot after the compare-and-set 
+ * cannot have its bytes seen by the copy. Readers are rare (log pages), the extra write hardly affects writers.
+ * <br>An event is dropped (see {@link #getDroppedCount()}) when its writer finds its slot already claimed by a writer 
+ * that is a full ring ahead (the slow writer's event is older), or when the slot is still being written by a writer 
+ * that is a full ring behind (a slow writer blocks the slot, the newer event is dropped, 
+ * see {@link #getDroppedWhileWritingCount()}). Both only happen when more events are logged concurrently 
+ * than the ring has slots, or when a writer is paused (e.g. by the scheduler) for a full ring of events.
+ * <br>Used by {@link LogbackUtil#setLoggingProgrammatic()}, can also be used in a logback configuration file, e.g.
+ * <br><code>&lt;appender name="CYCLIC" class="nl.intercommit.basicjspws.LogRingAppender"&gt;&lt;sizeMb&gt;8&lt;/sizeMb&gt;&lt;/appender&gt;</code>
+ * @author FWiers
+ *
+ */
+public class LogRingAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements LogBuffer {
+
+	public static final int DEFAULT_SIZE_MB = 8;
+	public static final int DEFAULT_SLOT_SIZE = 512;
+	/** Maximum amount of logger and thread names stored in the name table. */
+	public static final int MAX_NAMES = 65536;
+	
+	/** Timestamp (8), level (1), logger id (4), thread id (4), message length (4). */
+	private static final int HEADER_SIZE = 21;
+	/** Value of a published slot while it is being written. */
+	private static final long WRITING = Long.MIN_VALUE;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int sizeMb = DEFAULT_SIZE_MB;
+	private int slotSize = DEFAULT_SLOT_SIZE;
+	private volatile Ring ring;
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong droppedWhileWritingCount = new AtomicLong();
+	
+	private final ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<String, Integer>();
+	private final AtomicReferenceArray<String> names = new AtomicReferenceArray<String>(MAX_NAMES);
+	private final AtomicInteger nameCount = new AtomicInteger();
+
+	/** The size of the ring in megabytes (default {@link #DEFAULT_SIZE_MB}). Must be set before the appender is started. */
+	public void setSizeMb(final int sizeMb) { this.sizeMb = sizeMb; }
+	public int getSizeMb() { return sizeMb; }
+
+	/** The size in bytes of one event in the ring (default {@link #DEFAULT_SLOT_SIZE}). Must be set before the appender is started. */
+	public void setSlotSize(final int slotSize) { this.slotSize = slotSize; }
+	public int getSlotSize() { return slotSize; }
+	
+	/** The amount of events that can be stored in the ring (0 when appender is not started). */
+	public int getMaxEvents() { 
+		Ring r = ring;
+		return (r == null ? 0 : r.slotCount); 
+	}
+
+	/** 
+	 * The amount of events dropped because a slot was overtaken by a writer that was a full ring ahead,
+	 * or because a slot was still being written by a writer that was a full ring behind. 
+	 */
+	public long getDroppedCount() { return droppedCount.get(); }
+
+	/** The part of {@link #getDroppedCount()} dropped because the slot was still being written by a writer a full ring behind. */
+	public long getDroppedWhileWritingCount() { return droppedWhileWritingCount.get(); }
+	
+	@Override
+	public void start() {
+		
+		if (slotSize < HEADER_SIZE + 16) {
+			addError("Slot size " + slotSize + " is too small for appender " + name);
+			return;
+		}
+		if (sizeMb < 1) {
+			addError("Size " + sizeMb + " MB is too small for appender " + name);
+			return;
+		}
+		long maxSlots = (sizeMb * 1024L * 1024L) / slotSize;
+		// Use a power of 2 for the amount of slots so that a slot index is a simple mask.
+		int slotCount = Integer.highestOneBit((int) Math.min(maxSlots, Integer.MAX_VALUE / slotSize));
+		ring = new Ring(slotCount, slotSize);
+		super.start();
+	}
+	
+	@Override
+	public void stop() {
+		
+		super.stop();
+		ring = null;
+	}
+
+	@Override
+	protected void append(final ILoggingEvent e) {
+
+		Ring r = ring;
+		if (r == null) return;
+		long seq = r.lastSeq.incrementAndGet();
+		int slot = (int) (seq & r.mask);
+		// Claim the slot, unless a writer that is a full ring ahead already claimed it.
+		long published;
+		do {
+			published = r.published.get(slot);
+			if (published == WRITING || published > seq) {
+				if (published == WRITING) droppedWhileWritingCount.incrementAndGet();
+				droppedCount.incrementAndGet();
+				return;
+			}
+		} while (!r.published.compareAndSet(slot, published, WRITING));
+		final byte[] b = r.bytes;
+		int pos = slot * r.slotSize;
+		putLong(b, pos, e.getTimeStamp());
+		b[pos + 8] = LogbackUtil.getLevelIndex(e.getLevel());
+		putInt(b, pos + 9, getNameId(e.getLoggerName()));
+		putInt(b, pos + 13, getNameId(e.getThreadName()));
+		String msg = e.getFormattedMessage();
+		IThrowableProxy tp = e.getThrowableProxy();
+		if (tp != null) {
+			msg = (msg == null ? "" : msg) + CoreConstants.LINE_SEPARATOR + ThrowableProxyUtil.asString(tp);
+		}
+		int msgLength = StringUtils.putUtf8(msg, b, pos + HEADER_SIZE, r.slotSize - HEADER_SIZE);
+		putInt(b, pos + 17, msgLength);
+		r.published.set(slot, seq);
+	}
+
+	@Override
+	public int fillLogPage(final long beforeSeq, final int skip, final LogBufferPage page) {
+		
+		page.clear();
+		Ring r = ring;
+		long lastSeq = (r == null ? 0L : r.lastSeq.get());
+		if (lastSeq == 0L) {
+			page.firstSeq = page.lastSeq = page.startSeq = 0L;
+			return 0;
+		}
+		long firstSeq = Math.max(1L, lastSeq - r.slotCount + 1);
+		page.firstSeq = firstSeq;
+		page.lastSeq = lastSeq;
+		long seq = Math.min(lastSeq, beforeSeq - 1) - Math.max(0, skip);
+		page.startSeq = seq;
+		while (!page.isFull() && seq >= firstSeq) {
+			ILoggingEvent le = read(r, seq);
+			if (le != null) page.add(seq, le);
+			seq--;
+		}
+		return page.size;
+	}
+
+	@Override
+	public long findLogSeqAfter(final long timeStamp) {
+		
+		Ring r = ring;
+		if (r == null) return 1L;
+		long high = r.lastSeq.get() + 1;
+		long low = Math.max(1L, high - r.slotCount);
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (readTimeStamp(r, mid) <= timeStamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** Returns the log event with the given sequence number or null if the event is not available. */
+	private ILoggingEvent read(final Ring r, final long seq) {
+		
+		int slot = (int) (seq & r.mask);
+		if (r.published.get(slot) != seq) return null;
+		int pos = slot * r.slotSize;
+		// Copy first, the copy is only used when the slot was not overwritten while copying (see class description).
+		int msgLength = Math.min(Math.max(0, getInt(r.bytes, pos + 17)), r.slotSize - HEADER_SIZE);
+		final byte[] b = new byte[HEADER_SIZE + msgLength];
+		System.arraycopy(r.bytes, pos, b, 0, b.length);
+		if (!r.published.compareAndSet(slot, seq, seq)) return null;
+		long timeStamp = getLong(b, 0);
+		int levelIndex = b[8];
+		int loggerId = getInt(b, 9);
+		int threadId = getInt(b, 13);
+		if (levelIndex < 0 || levelIndex > 4 || getInt(b, 17) != msgLength) return null;
+		String msg = new String(b, HEADER_SIZE, msgLength, UTF8);
+		LoggingEvent le = new LoggingEvent();
+		le.setTimeStamp(timeStamp);
+		le.setLevel(LogbackUtil.getLevel(levelIndex));
+		le.setLoggerName(getName(loggerId));
+		le.setThreadName(getName(threadId));
+		le.setMessage(msg);
+		return le;
+	}
+
+	/** 
+	 * Returns the timestamp of the log event with the given sequence number 
+	 * or Long.MIN_VALUE if the event is not available. 
+	 */
+	private long readTimeStamp(final Ring r, final long seq) {
+
+		int slot = (int) (seq & r.mask);
+		if (r.published.get(slot) != seq) return Long.MIN_VALUE;
+		long timeStamp = getLong(r.bytes, slot * r.slotSize);
+		// Validates the plain reads, see class description.
+		return (r.published.compareAndSet(slot, seq, seq) ? timeStamp : Long.MIN_VALUE);
+	}
+	
+	/** Returns the id for the name in the name table, or -1 if the name table is full. */
+	private int getNameId(final String name) {
+		
+		if (name == null) return -1;
+		Integer id = nameIds.get(name);
+		if (id != null) return id;
+		int newId = nameCount.getAndIncrement();
+		if (newId >= MAX_NAMES) {
+			nameCount.set(MAX_NAMES);
+			return -1;
+		}
+		// Set name before id is available to other writers.
+		names.set(newId, name);
+		id = nameIds.putIfAbsent(name, newId);
+		return (id == null ? newId : id);
+	}
+	
+	private String getName(final int id) {
+		
+		String name = (id < 0 || id >= MAX_NAMES ? null : names.get(id));
+		return (name == null ? "?" : name);
+	}
+
+	private static void putInt(final byte[] b, final int pos, final int v) {
+		
+		b[pos] = (byte) (v >>> 24);
+		b[pos + 1] = (byte) (v >>> 16);
+		b[pos + 2] = (byte) (v >>> 8);
+		b[pos + 3] = (byte) v;
+	}
+
+	private static int getInt(final byte[] b, final int pos) {
+		return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+	}
+
+	private static void putLong(final byte[] b, final int pos, final long v) {
+		
+		putInt(b, pos, (int) (v >>> 32));
+		putInt(b, pos + 4, (int) v);
+	}
+
+	private static long getLong(final byte[] b, final int pos) {
+		return ((long) getInt(b, pos) << 32) | (getInt(b, pos + 4) & 0xFFFFFFFFL);
+	}
+
+	/** The preallocated storage, replaced as a whole when the appender is (re)started. */
+	private static class Ring {
+
+		final int slotCount;
+		final int slotSize;
+		final int mask;
+		final byte[] bytes;
+		/** Per slot the sequence number of the event stored in the slot, or {@link LogRingAppender#WRITING}. */
+		final AtomicLongArray published;
+		final AtomicLong lastSeq = new AtomicLong();
+
+		Ring(final int slotCount, final int slotSize) {
+			
+			this.slotCount = slotCount;
+			this.slotSize = slotSize;
+			this.mask = slotCount - 1;
+			this.bytes = new byte[slotCount * slotSize];
+			this.published = new AtomicLongArray(slotCount);
+		}
+	}
+}
@@ -19,6 +19,9 @@
 package nl.intercommit.basicjspws;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +32,9 @@ import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.classic.filter.ThresholdFilter;
 import ch.qos.logback.classic.joran.JoranConfigurator;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AsyncAppenderBase;
 import ch.qos.logback.core.ConsoleAppender;
 import ch.qos.logback.core.joran.spi.JoranException;
 import ch.qos.logback.core.read.CyclicBufferAppender;
@@ -78,6 +84,7 @@ public class LogbackUtil {
 				//Call context.reset() to clear any previous configuration, e.g. default configuration.
 				loggerContext.reset(); 
 				configurator.doConfigure(configFile);
+				if (asyncOutputFromFile) wrapOutputAppenders(getRootLogger());
 				org.slf4j.LoggerFactory.getLogger(LogbackUtil.class).info("Logging configured from " + configFile);
 			} catch (JoranException je) {
 				// StatusPrinter will handle this
@@ -86,8 +93,63 @@ public class LogbackUtil {
 		} else {
 			setLoggingProgrammatic();
 		}
+		if (archiveLogs) addArchiveAppender(appHomeDir);
 	}
+	
+	/** 
+	 * If true, {@link #initLogging(String, String)} adds a {@link LogArchiveAppender} named "ARCHIVE" to the root logger
+	 * (unless the logging configuration already contains an appender named "ARCHIVE"). Default false.
+	 */
+	public static boolean archiveLogs;
+
+	/**
+	 * Adds a {@link LogArchiveAppender} named "ARCHIVE" to the root logger, if not already present,
+	 * that writes to the directory "logs/archive" in the appHomeDir.
+	 * @return The (new) appender or null if the appender could not be started.
+	 */
+	public static Appender<ILoggingEvent> addArchiveAppender(final String appHomeDir) {
+		
+		Logger rootLogger = getRootLogger();
+		Appender<ILoggingEvent> appender = rootLogger.getAppender("ARCHIVE");
+		if (appender != null) return appender;
+		LogArchiveAppender archive = new LogArchiveAppender();
+		archive.setContext(getLoggerContext());
+		archive.setName("ARCHIVE");
+		archive.setDir(appHomeDir + "logs" + File.separator + "archive");
+		archive.start();
+		if (!archive.isStarted()) {
+			StatusPrinter.printInCaseOfErrorsOrWarnings(getLoggerContext());
+			return null;
+		}
+		rootLogger.addAppender(archive);
+		return archive;
+	}
+
+	/** If true (the default), {@link #setLoggingProgrammatic()} sends log events to console via an {@link AsyncLogAppender}. */
+	public static boolean asyncOutput = true;
+	
+	/** 
+	 * If true, after logging is configured from a file, the output appenders of the root logger are wrapped 
+	 * in an {@link AsyncLogAppender} (see {@link #wrapOutputAppenders(Logger)}). Default false.
+	 */
+	public static boolean asyncOutputFromFile;
+
+	/** 
+	 * If true, {@link #setLoggingProgrammatic()} uses a {@link LogBufferAppender} (a {@link CyclicBufferAppender} of 512 events)
+	 * instead of a {@link LogRingAppender} for the in-memory log buffers. 
+	 */
+	public static boolean useCyclicLogBuffers;
 
+	/** 
+	 * The level of the root logger set by {@link #setLoggingProgrammatic()} (default INFO).
+	 * Debug logging for individual requests is enabled via the {@link RequestDebugFilter}.
+	 */
+	public static Level programmaticLevel = Level.INFO;
+
+	/**
+	 * Configures logging to console and to the in-memory log buffers "CYCLIC" and "CYCLICERROR" 
+	 * (see {@link #useCyclicLogBuffers}). The root logger level is set to {@link #programmaticLevel}.
+	 */
 	public static void setLoggingProgrammatic() {
 		// Code copied from http://logback.qos.ch/xref/chapters/layouts/PatternSample.html
 
@@ -97,7 +159,7 @@ public class LogbackUtil {
 		loggerContext.reset();
 		Logger rootLogger = getRootLogger();
 		
-		rootLogger.setLevel(Level.DEBUG);
+		rootLogger.setLevel(programmaticLevel);
 		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
 		encoder.setPattern("%d{HH:mm:ss.SSS} [%thread] %-5level %logger{35} - %msg%n");
 		encoder.setContext(loggerContext);
@@ -108,17 +170,17 @@ public class LogbackUtil {
 		appender.setName("CONSOLE");
 		appender.start();
 		rootLogger.addAppender(appender);
+		if (asyncOutput) wrapOutputAppenders(rootLogger);
 		
-		CyclicBufferAppender<ILoggingEvent> logBuffer = new CyclicBufferAppender<ILoggingEvent>();
+		Appender<ILoggingEvent> logBuffer = createLogBuffer(LogRingAppender.DEFAULT_SIZE_MB, LogRingAppender.DEFAULT_SLOT_SIZE);
 		logBuffer.setContext(loggerContext);
-		logBuffer.setMaxSize(512);
 		logBuffer.setName("CYCLIC");
 		logBuffer.start();
 		rootLogger.addAppender(logBuffer);
 		
-		CyclicBufferAppender<ILoggingEvent> logBufferError = new CyclicBufferAppender<ILoggingEvent>();
+		// Error events usually have a stack trace, use larger slots.
+		Appender<ILoggingEvent> logBufferError = createLogBuffer(2, 4096);
 		logBufferError.setContext(loggerContext);
-		logBufferError.setMaxSize(512);
 		logBufferError.setName("CYCLICERROR");
 		ThresholdFilter errorFilter = new ThresholdFilter();
 		errorFilter.setContext(loggerContext);
@@ -131,6 +193,97 @@ public class LogbackUtil {
 		org.slf4j.LoggerFactory.getLogger(LogbackUtil.class).info("Logging configured programmatically, printing log-messages to console.");
 	}
 
+	private static Appender<ILoggingEvent> createLogBuffer(final int sizeMb, final int slotSize) {
+		
+		if (useCyclicLogBuffers) {
+			LogBufferAppender logBuffer = new LogBufferAppender();
+			logBuffer.setMaxSize(512);
+			return logBuffer;
+		}
+		LogRingAppender logBuffer = new LogRingAppender();
+		logBuffer.setSizeMb(sizeMb);
+		logBuffer.setSlotSize(slotSize);
+		return logBuffer;
+	}
+
+	/**
+	 * Moves all appenders of the logger, except log buffers (appenders implementing {@link LogBuffer}, e.g. the {@link LogArchiveAppender})
+	 * and asynchronous appenders, 
+	 * to a new {@link AsyncLogAppender} named "ASYNC" that is attached to the logger instead.
+	 * @return The new appender or null if there were no appenders to move.
+	 */
+	public static AsyncLogAppender wrapOutputAppenders(final Logger logger) {
+		
+		List<Appender<ILoggingEvent>> outputAppenders = new ArrayList<Appender<ILoggingEvent>>();
+		Iterator<Appender<ILoggingEvent>> appenders = logger.iteratorForAppenders();
+		while (appenders.hasNext()) {
+			Appender<ILoggingEvent> appender = appenders.next();
+			// Log buffers are read by the application and must contain an event as soon as it is logged.
+			if (appender instanceof LogBuffer || appender instanceof CyclicBufferAppender 
+					|| appender instanceof AsyncLogAppender || appender instanceof AsyncAppenderBase) continue;
+			outputAppenders.add(appender);
+		}
+		if (outputAppenders.isEmpty()) return null;
+		AsyncLogAppender async = new AsyncLogAppender();
+		async.setContext(logger.getLoggerContext());
+		async.setName("ASYNC");
+		for (Appender<ILoggingEvent> appender : outputAppenders) {
+			logger.detachAppender(appender);
+			async.addAppender(appender);
+		}
+		async.start();
+		logger.addAppender(async);
+		return async;
+	}
+	
+	/** 
+	 * Statistics of the {@link AsyncLogAppender}s and the {@link LogRingAppender}s of the root logger
+	 * and of the {@link RequestDebugFilter}, shown on the statistics page. 
+	 */
+	public static String getLogStatsDescription() {
+		
+		StringBuilder sb = new StringBuilder();
+		Iterator<Appender<ILoggingEvent>> appenders = getRootLogger().iteratorForAppenders();
+		while (appenders.hasNext()) {
+			Appender<ILoggingEvent> appender = appenders.next();
+			if (appender instanceof AsyncLogAppender) {
+				sb.append('\n').append(((AsyncLogAppender) appender).getStatsDescription());
+			} else if (appender instanceof LogRingAppender) {
+				LogRingAppender ring = (LogRingAppender) appender;
+				sb.append("\nLog ring appender ").append(ring.getName()).append(':')
+				.append("\nMax. events: ").append(ring.getMaxEvents())
+				.append("\nDropped: ").append(ring.getDroppedCount())
+				.append(" (slot still being written: ").append(ring.getDroppedWhileWritingCount()).append(")\n");
+			}
+		}
+		for (TurboFilter tf : getLoggerContext().getTurboFilterList()) {
+			if (tf instanceof RequestDebugFilter) {
+				sb.append("\nRequests logged at debug level: ").append(((RequestDebugFilter) tf).getFlaggedRequests()).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the {@link RequestDebugFilter} from the logger context. 
+	 * If the logging configuration does not contain one, a new (started) filter is added to the logger context.
+	 */
+	public static RequestDebugFilter getRequestDebugFilter() {
+		
+		LoggerContext loggerContext = getLoggerContext();
+		synchronized (loggerContext) {
+			for (TurboFilter tf : loggerContext.getTurboFilterList()) {
+				if (tf instanceof RequestDebugFilter) return (RequestDebugFilter) tf;
+			}
+			RequestDebugFilter filter = new RequestDebugFilter();
+			filter.setContext(loggerContext);
+			filter.setName("REQUESTDEBUG");
+			filter.start();
+			loggerContext.addTurboFilter(filter);
+			return filter;
+		}
+	}
+
 	public static LoggerContext getLoggerContext() {
 		//Logger rootLogger = (Logger)LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
 		//return rootLogger.getLoggerContext();
@@ -143,9 +296,145 @@ public class LogbackUtil {
 		return getLoggerContext().getLogger(Logger.ROOT_LOGGER_NAME);
 	}
 
+	/** 
+	 * Returns the {@link CyclicBufferAppender} with the given name from the root logger, 
+	 * or null if there is no such appender.
+	 * @deprecated Returns null for the default in-memory log buffers "CYCLIC" and "CYCLICERROR" 
+	 * (these are {@link LogRingAppender}s unless {@link #useCyclicLogBuffers} is set), 
+	 * use {@link #getLogEventBuffer(String)} which supports all in-memory log buffers.
+	 */
+	@Deprecated
 	public static CyclicBufferAppender<ILoggingEvent> getLogBuffer(String name) {
-		return (CyclicBufferAppender<ILoggingEvent>) getRootLogger().getAppender(name);
+		return getCyclicBufferAppender(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static CyclicBufferAppender<ILoggingEvent> getCyclicBufferAppender(final String name) {
+		
+		Appender<ILoggingEvent> appender = getRootLogger().getAppender(name);
+		return (appender instanceof CyclicBufferAppender ? (CyclicBufferAppender<ILoggingEvent>) appender : null);
+	}
+
+	/**
+	 * Returns the in-memory log buffer with the given name from the root logger,
+	 * or null if there is no such appender.
+	 * Supports a {@link LogRingAppender}, a {@link LogBufferAppender} and logback's {@link CyclicBufferAppender}.
+	 */
+	public static LogBuffer getLogEventBuffer(String name) {
+		
+		Appender<ILoggingEvent> appender = getRootLogger().getAppender(name);
+		if (appender instanceof LogBuffer) return (LogBuffer) appender;
+		final CyclicBufferAppender<ILoggingEvent> logBuffer = getCyclicBufferAppender(name);
+		if (logBuffer == null) return null;
+		return new LogBuffer() {
+			@Override
+			public int fillLogPage(long beforeSeq, int skip, LogBufferPage page) {
+				return LogbackUtil.fillLogPage(logBuffer, beforeSeq, skip, page);
+			}
+			@Override
+			public long findLogSeqAfter(long timeStamp) {
+				return LogbackUtil.findLogSeqAfter(logBuffer, timeStamp);
+			}
+		};
 	}
+
+	/**
+	 * Copies log events from the log buffer into the page, last event first.
+	 * Events are copied while holding the lock of the log buffer (the same lock used when appending events),
+	 * so copying should be done in small pages and formatting of events should be done after this method returns.
+	 * <br>For a {@link LogBufferAppender} sequence numbers are stable, for other log buffers the sequence number 
+	 * is the index in the buffer plus one (which shifts when new events are appended and the buffer is not yet full). 
+	 * @param logBuffer The log buffer to read from.
+	 * @param beforeSeq Only copy events with a sequence number lower than this number (use Long.MAX_VALUE to start at the last event).
+	 * @param skip The amount of events to skip before copying events.
+	 * @param page The page to fill, it is cleared first.
+	 * @return The amount of events copied.
+	 */
+	public static int fillLogPage(final CyclicBufferAppender<ILoggingEvent> logBuffer, 
+			final long beforeSeq, final int skip, final LogBufferPage page) {
+		
+		page.clear();
+		synchronized (logBuffer) {
+			int length = logBuffer.getLength();
+			long lastSeq = getLastSeq(logBuffer, length);
+			long firstSeq = lastSeq - length + 1;
+			page.firstSeq = (length == 0 ? 0L : firstSeq);
+			page.lastSeq = (length == 0 ? 0L : lastSeq);
+			long seq = Math.min(lastSeq, beforeSeq - 1) - Math.max(0, skip);
+			page.startSeq = seq;
+			while (!page.isFull() && seq >= firstSeq && length > 0) {
+				page.add(seq, (ILoggingEvent) logBuffer.get((int) (seq - firstSeq)));
+				seq--;
+			}
+		}
+		return page.size;
+	}
+
+	/**
+	 * Finds the sequence number of the first log event in the log buffer with a timestamp after the given timestamp
+	 * using a binary search. Log events in a log buffer are (nearly) ordered by time.
+	 * Each probe holds the lock of the log buffer only for the lookup of one event, appending events is not blocked 
+	 * during the search.
+	 * @return The sequence number (last sequence number plus one if all events have an older or equal timestamp).
+	 */
+	public static long findLogSeqAfter(final CyclicBufferAppender<ILoggingEvent> logBuffer, final long timeStamp) {
+		
+		long low, high;
+		synchronized (logBuffer) {
+			int length = logBuffer.getLength();
+			high = getLastSeq(logBuffer, length) + 1;
+			low = high - length;
+		}
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (getTimeStamp(logBuffer, mid) <= timeStamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** 
+	 * Returns the timestamp of the log event with the given sequence number, 
+	 * Long.MIN_VALUE if the event is no longer available or Long.MAX_VALUE if the event does not yet exist. 
+	 */
+	private static long getTimeStamp(final CyclicBufferAppender<ILoggingEvent> logBuffer, final long seq) {
+		
+		synchronized (logBuffer) {
+			int length = logBuffer.getLength();
+			long lastSeq = getLastSeq(logBuffer, length);
+			if (seq > lastSeq) return Long.MAX_VALUE;
+			long index = seq - (lastSeq - length + 1);
+			if (index < 0) return Long.MIN_VALUE;
+			return ((ILoggingEvent) logBuffer.get((int) index)).getTimeStamp();
+		}
+	}
+
+	/** Sequence number of the last event in the log buffer, must be called while holding the lock on the log buffer. */
+	private static long getLastSeq(final CyclicBufferAppender<ILoggingEvent> logBuffer, final int length) {
+		return (logBuffer instanceof LogBufferAppender ? ((LogBufferAppender) logBuffer).getAppendCount() : length);
+	}
+	
+	/** Returns a number (0 for TRACE to 4 for ERROR) for a level, used to store a level in one byte. See also {@link #getLevel(int)}. */
+	public static byte getLevelIndex(final Level level) {
+		
+		switch (level.toInt()) {
+		case Level.TRACE_INT: return 0;
+		case Level.DEBUG_INT: return 1;
+		case Level.INFO_INT: return 2;
+		case Level.WARN_INT: return 3;
+		default: return 4;
+		}
+	}
+
+	/** Returns the level for a number returned by {@link #getLevelIndex(Level)} (ERROR for unknown numbers). */
+	public static Level getLevel(final int levelIndex) {
+		return (levelIndex >= 0 && levelIndex < LEVELS.length ? LEVELS[levelIndex] : Level.ERROR);
+	}
+
+	private static final Level[] LEVELS = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR };
 	
 	public static boolean isEmpty(final String s) { return (s == null || s.trim().isEmpty()); }
 
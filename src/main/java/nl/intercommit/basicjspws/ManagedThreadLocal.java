@@ -0,0 +1,169 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-local variable managed by this framework so that values never leak the web-app's classloader 
+ * when the web-app is redeployed, without the reflective cleanup of {@link AppInit#clearThreadLocals(java.util.Collection)}.
+ * <br>All managed thread-locals of a thread share one plain {@link ThreadLocal} with an Object[] value 
+ * (a JDK class, so the thread does not reference any class from the web-app's classloader).
+ * The Object[] of each thread is registered, {@link #clearAll()} (called from {@link AppInit#contextDestroyed(javax.servlet.ServletContextEvent)})
+ * removes all values from all threads. 
+ * <br>A request-scoped managed thread-local is cleared at the end of each request by {@link AppFilter} (see {@link #endRequest()}),
+ * a thread-scoped managed thread-local keeps its value for the next request on the same thread 
+ * (e.g. buffers, builders and encoders that can be re-used).
+ * <br>Usage:
+ * <br><code>private static final ManagedThreadLocal&lt;StringBuilder&gt; SB = new ManagedThreadLocal&lt;StringBuilder&gt;(false) {
+ * <br>&nbsp;&nbsp;&nbsp;&nbsp;@Override protected StringBuilder initialValue() { return new StringBuilder(); }
+ * <br>};</code>
+ * @author FWiers
+ *
+ */
+public class ManagedThreadLocal<T> {
+
+	/** Note: not a subclass of ThreadLocal, so that the thread-local map of a thread only references JDK classes. */
+	private static final ThreadLocal<Object[]> SLOTS = new ThreadLocal<Object[]>();
+	private static final AtomicInteger slotCount = new AtomicInteger();
+	/** The slots of all threads, threads that have died are removed automatically. Guarded by itself. */
+	private static final Map<Thread, Object[]> threadSlots = new WeakHashMap<Thread, Object[]>();
+	/** Indexes of request-scoped slots (copy on write). */
+	private static volatile int[] requestSlots = new int[0];
+	/** 
+	 * The value of a slot without a value: a slot that was never set or was removed or cleared. 
+	 * A value set to null is therefore the same as no value, the next {@link #get()} calls {@link #initialValue()}. 
+	 */
+	private static final Object UNSET = null;
+
+	private final int index;
+	private final boolean requestScoped;
+
+	/**
+	 * @param requestScoped If true, the value is removed at the end of each request (see {@link #endRequest()}),
+	 * else the value is kept until {@link #remove()} or {@link #clearAll()} is called.
+	 */
+	public ManagedThreadLocal(final boolean requestScoped) {
+		
+		this.requestScoped = requestScoped;
+		index = slotCount.getAndIncrement();
+		if (requestScoped) {
+			synchronized (threadSlots) {
+				int[] old = requestSlots;
+				int[] slots = new int[old.length + 1];
+				System.arraycopy(old, 0, slots, 0, old.length);
+				slots[old.length] = index;
+				requestSlots = slots;
+			}
+		}
+	}
+
+	/** Returns the initial value of this thread-local for a thread (default null). Overload to create a value. */
+	protected T initialValue() { return null; }
+
+	public boolean isRequestScoped() { return requestScoped; }
+
+	/** Returns the value for the current thread, calls {@link #initialValue()} if there is no value. */
+	@SuppressWarnings("unchecked")
+	public T get() {
+		
+		Object[] slots = getSlots();
+		Object v = slots[index];
+		if (v == UNSET) {
+			v = initialValue();
+			// initialValue() could have used other managed thread-locals.
+			getSlots()[index] = v;
+		}
+		return (T) v;
+	}
+
+	/** Sets the value for the current thread (setting null is the same as {@link #remove()}). */
+	public void set(final T value) {
+		getSlots()[index] = value;
+	}
+
+	/** Removes the value for the current thread, a next {@link #get()} calls {@link #initialValue()}. */
+	public void remove() {
+		
+		Object[] slots = SLOTS.get();
+		if (slots != null && index < slots.length) slots[index] = null;
+	}
+
+	/** Returns the slots of the current thread, large enough for this thread-local. */
+	private Object[] getSlots() {
+		
+		Object[] slots = SLOTS.get();
+		if (slots != null && index < slots.length) return slots;
+		Object[] newSlots = new Object[Math.max(slotCount.get(), 8)];
+		if (slots != null) System.arraycopy(slots, 0, newSlots, 0, slots.length);
+		SLOTS.set(newSlots);
+		synchronized (threadSlots) {
+			threadSlots.put(Thread.currentThread(), newSlots);
+		}
+		return newSlots;
+	}
+
+	/** Removes the values of all request-scoped managed thread-locals for the current thread. Called by {@link AppFilter}. */
+	public static void endRequest() {
+		
+		Object[] slots = SLOTS.get();
+		if (slots == null) return;
+		final int[] indexes = requestSlots;
+		for (int i = 0; i < indexes.length; i++) {
+			if (indexes[i] < slots.length) slots[indexes[i]] = null;
+		}
+	}
+
+	/** 
+	 * Removes the values of all managed thread-locals from all threads.
+	 * Called by {@link AppInit#contextDestroyed(javax.servlet.ServletContextEvent)} (when there are no more requests). 
+	 * Values set by other threads after this call are not removed by a next call.
+	 * @return The amount of threads that had values.
+	 */
+	public static int clearAll() {
+		
+		List<Object[]> all;
+		synchronized (threadSlots) {
+			all = new ArrayList<Object[]>(threadSlots.values());
+			threadSlots.clear();
+		}
+		for (Object[] slots : all) {
+			for (int i = 0; i < slots.length; i++) {
+				slots[i] = null;
+			}
+		}
+		SLOTS.remove();
+		return all.size();
+	}
+
+	/** The amount of threads that have (had) a value in a managed thread-local. */
+	public static int getThreadCount() {
+		
+		synchronized (threadSlots) {
+			return threadSlots.size();
+		}
+	}
+
+	/** The amount of managed thread-locals created. */
+	public static int getSlotCount() { return slotCount.get(); }
+}
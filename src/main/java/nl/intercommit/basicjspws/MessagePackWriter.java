@@ -0,0 +1,298 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes MessagePack to the response output stream, see {@link ResponseEncoder}.
+ * <br>Objects are written as maps with string keys. MessagePack requires the size of maps and arrays in advance: 
+ * for an object or array of unknown size, a 32-bit size is written when it ends and the encoded bytes 
+ * are kept in the buffer (not sent) until then, at most {@link ResponseEncoder#MAX_HOLD_SIZE} bytes 
+ * (an IllegalStateException is thrown when that is exceeded). Doubles are written as integer if integral, 
+ * as float 32 if that is exact, else as float 64.
+ * @author FWiers
+ *
+ */
+public class MessagePackWriter extends ResponseEncoder {
+
+	public static final String CONTENT_TYPE = "application/msgpack";
+
+	private static final int FIXMAP = 0x80;
+	private static final int FIXARRAY = 0x90;
+	private static final int FIXSTR = 0xA0;
+	private static final int NIL = 0xC0;
+	private static final int FALSE = 0xC2;
+	private static final int TRUE = 0xC3;
+	private static final int FLOAT32 = 0xCA;
+	private static final int FLOAT64 = 0xCB;
+	private static final int UINT8 = 0xCC;
+	private static final int UINT16 = 0xCD;
+	private static final int UINT32 = 0xCE;
+	private static final int UINT64 = 0xCF;
+	private static final int INT8 = 0xD0;
+	private static final int INT16 = 0xD1;
+	private static final int INT32 = 0xD2;
+	private static final int INT64 = 0xD3;
+	private static final int STR8 = 0xD9;
+	private static final int STR16 = 0xDA;
+	private static final int STR32 = 0xDB;
+	private static final int ARRAY16 = 0xDC;
+	private static final int ARRAY32 = 0xDD;
+	private static final int MAP16 = 0xDE;
+	private static final int MAP32 = 0xDF;
+	
+	private static final Pool<MessagePackWriter> pool = new Pool<MessagePackWriter>() {
+		@Override protected MessagePackWriter create() { return new MessagePackWriter(); }
+	};
+	
+	/** 
+	 * For each nesting level: -1 if the size was written, 
+	 * else the position in the buffer of the size to write when the object or array ends. 
+	 */
+	private int[] sizePos = new int[16];
+	/** For each nesting level: the amount of names or values written (for an object or array of unknown size). */
+	private int[] counts = new int[16];
+	private int depth;
+	/** True if the next value is the value for a name (not counted). */
+	private boolean afterName;
+
+	protected MessagePackWriter() {}
+
+	/** Returns a writer for the response (the thread's re-used writer if it is not in use) and sets the content type to {@link #CONTENT_TYPE}. */
+	public static MessagePackWriter get(final HttpServletResponse response) {
+		return pool.get(response);
+	}
+
+	@Override
+	public String getContentType() { return CONTENT_TYPE; }
+
+	@Override
+	protected void start(final HttpServletResponse response) {
+		
+		super.start(response);
+		depth = 0;
+		afterName = false;
+	}
+
+	@Override
+	public MessagePackWriter beginObject(final int size) {
+		
+		begin(FIXMAP, MAP16, MAP32, size);
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter endObject() {
+		
+		end();
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter beginArray(final int size) {
+		
+		begin(FIXARRAY, ARRAY16, ARRAY32, size);
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter endArray() {
+		
+		end();
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter name(final String name) {
+		
+		count();
+		putStr(name);
+		afterName = true;
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter value(final String value) {
+		
+		count();
+		if (value == null) {
+			put(NIL);
+		} else {
+			putStr(value);
+		}
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter value(final long value) {
+		
+		count();
+		putInt(value);
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter value(final double value) {
+		
+		count();
+		if (isIntegral(value)) {
+			putInt((long) value);
+		} else if ((float) value == value || Double.isNaN(value)) {
+			put(FLOAT32);
+			putBigEndian(Float.floatToIntBits((float) value), 4);
+		} else {
+			put(FLOAT64);
+			putBigEndian(Double.doubleToLongBits(value), 8);
+		}
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter value(final boolean value) {
+		
+		count();
+		put(value ? TRUE : FALSE);
+		return this;
+	}
+
+	@Override
+	public MessagePackWriter nullValue() {
+		
+		count();
+		put(NIL);
+		return this;
+	}
+	
+	/** Counts a name in an object or a value in an array (not the value for a name). */
+	private void count() {
+		
+		if (afterName) {
+			afterName = false;
+		} else if (depth > 0) {
+			counts[depth - 1]++;
+		}
+	}
+
+	private void begin(final int fixType, final int type16, final int type32, final int size) {
+		
+		count();
+		if (depth == sizePos.length) {
+			int[] larger = new int[depth * 2];
+			System.arraycopy(sizePos, 0, larger, 0, depth);
+			sizePos = larger;
+			larger = new int[depth * 2];
+			System.arraycopy(counts, 0, larger, 0, depth);
+			counts = larger;
+		}
+		counts[depth] = 0;
+		if (size < 0) {
+			// Keep the bytes in the buffer until the size is known.
+			hold++;
+			put(type32);
+			sizePos[depth] = pos;
+			putBigEndian(0L, 4);
+		} else {
+			sizePos[depth] = -1;
+			if (size < 16) {
+				put(fixType | size);
+			} else if (size < 0x10000) {
+				put(type16);
+				putBigEndian(size, 2);
+			} else {
+				put(type32);
+				putBigEndian(size, 4);
+			}
+		}
+		depth++;
+	}
+
+	private void end() {
+		
+		depth--;
+		int p = sizePos[depth];
+		if (p > -1) {
+			int n = counts[depth];
+			buf[p] = (byte) (n >> 24);
+			buf[p + 1] = (byte) (n >> 16);
+			buf[p + 2] = (byte) (n >> 8);
+			buf[p + 3] = (byte) n;
+			hold--;
+		}
+	}
+	
+	private void putInt(final long v) {
+		
+		if (v >= 0L) {
+			if (v < 0x80L) {
+				put((int) v);
+			} else if (v < 0x100L) {
+				put(UINT8);
+				put((int) v);
+			} else if (v < 0x10000L) {
+				put(UINT16);
+				putBigEndian(v, 2);
+			} else if (v < 0x100000000L) {
+				put(UINT32);
+				putBigEndian(v, 4);
+			} else {
+				put(UINT64);
+				putBigEndian(v, 8);
+			}
+		} else if (v >= -32L) {
+			put((int) v & 0xFF);
+		} else if (v >= Byte.MIN_VALUE) {
+			put(INT8);
+			put((int) v & 0xFF);
+		} else if (v >= Short.MIN_VALUE) {
+			put(INT16);
+			putBigEndian(v, 2);
+		} else if (v >= Integer.MIN_VALUE) {
+			put(INT32);
+			putBigEndian(v, 4);
+		} else {
+			put(INT64);
+			putBigEndian(v, 8);
+		}
+	}
+	
+	private void putStr(final String s) {
+		
+		final int length = s.length();
+		// Length in bytes is the length in chars for ASCII strings.
+		boolean ascii = true;
+		for (int i = 0; i < length && ascii; i++) {
+			ascii = (s.charAt(i) < 0x80);
+		}
+		final int size = (ascii ? length : StringUtils.utf8Length(s));
+		if (size < 32) {
+			put(FIXSTR | size);
+		} else if (size < 0x100) {
+			put(STR8);
+			put(size);
+		} else if (size < 0x10000) {
+			put(STR16);
+			putBigEndian(size, 2);
+		} else {
+			put(STR32);
+			putBigEndian(size, 4);
+		}
+		putUtf8(s);
+	}
+}
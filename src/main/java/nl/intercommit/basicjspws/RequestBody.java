@@ -0,0 +1,215 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The body of a request, read completely (up to a maximum size and within a maximum time) 
+ * into a per-thread re-used buffer before a controller handles the contents.
+ * <br>The servlet API (2.5) has no non-blocking input: a slow client sending a large body keeps a request thread busy.
+ * The size and time limits (configured with baseName.request.body.maxsize, default 1mb, 
+ * and baseName.request.body.timeout, default 30s) put a bound on that. A single blocking read is 
+ * bounded by the server's idle timeout (e.g. baseName.server.idletimeout for {@link EmbeddedServer}).
+ * <br>Use {@link #get(HttpServletRequest)} and check {@link #isComplete()}, if not complete, 
+ * send {@link #getStatus()} as error (see {@link #sendError(HttpServletResponse)}).
+ * <br>The contents are only valid during the request: the buffer is re-used for the next request handled by the same thread.
+ * @author FWiers
+ *
+ */
+public class RequestBody {
+
+	private static final Logger log = LoggerFactory.getLogger(RequestBody.class);
+	
+	/** Request attribute containing the RequestBody after it was read. */
+	public static final String REQUEST_ATTR = RequestBody.class.getName();
+	
+	public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+	public static final long DEFAULT_TIMEOUT_MS = 30000L;
+	/** Maximum size of the per-thread buffer, larger bodies are read into a new buffer. */
+	public static final int MAX_POOLED_SIZE = 65536;
+	
+	private static final byte[] EMPTY = new byte[0];
+	
+	private static final ManagedThreadLocal<byte[][]> buffers = new ManagedThreadLocal<byte[][]>(false) {
+		@Override protected byte[][] initialValue() { return new byte[][] { new byte[4096] }; }
+	};
+	
+	private final byte[] buffer;
+	private final int length;
+	private final int status;
+	private final String encoding;
+	
+	protected RequestBody(final byte[] buffer, final int length, final int status, final String encoding) {
+		
+		this.buffer = buffer;
+		this.length = length;
+		this.status = status;
+		this.encoding = encoding;
+	}
+	
+	/** 
+	 * Returns the body of the request, reads the body if that was not done before for the request
+	 * (using the configured limits, see {@link RequestBody}).
+	 */
+	public static RequestBody get(final HttpServletRequest request) {
+		
+		RequestBody body = (RequestBody) request.getAttribute(REQUEST_ATTR);
+		if (body == null) {
+			AppConfig config = ControllerUtil.getAppConfig();
+			String baseName = AppInit.appInstance.baseName;
+			body = read(request, (int) Math.min(Integer.MAX_VALUE, config.getSizeBytes(baseName + ".request.body.maxsize", DEFAULT_MAX_SIZE)), 
+					config.getDurationMs(baseName + ".request.body.timeout", DEFAULT_TIMEOUT_MS));
+			request.setAttribute(REQUEST_ATTR, body);
+		}
+		return body;
+	}
+	
+	/**
+	 * Reads the body of the request from the request's input stream.
+	 * @param maxSize Bodies larger than this are not read, status is 413 (request entity too large).
+	 * @param timeoutMs When reading takes longer, reading stops and status is 408 (request timeout).
+	 * @return The body, status is 400 (bad request) if the body could not be read.
+	 */
+	public static RequestBody read(final HttpServletRequest request, final int maxSize, final long timeoutMs) {
+		
+		String encoding = request.getCharacterEncoding();
+		if (encoding == null) encoding = "ISO-8859-1";
+		final int contentLength = request.getContentLength();
+		if (contentLength > maxSize) {
+			log.debug("Request body of {} bytes exceeds maximum size {}", contentLength, maxSize);
+			return new RequestBody(EMPTY, 0, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, encoding);
+		}
+		if (contentLength == 0) {
+			return new RequestBody(EMPTY, 0, HttpServletResponse.SC_OK, encoding);
+		}
+		final byte[][] pooled = buffers.get();
+		byte[] buf = pooled[0];
+		if (contentLength > buf.length) buf = grow(pooled, buf, contentLength, contentLength);
+		final long deadline = System.currentTimeMillis() + timeoutMs;
+		int limit = Math.min(buf.length, maxSize);
+		int length = 0;
+		int status = HttpServletResponse.SC_OK;
+		try {
+			final InputStream in = request.getInputStream();
+			int read;
+			while ((read = in.read(buf, length, limit - length)) > -1) {
+				length += read;
+				if (length == contentLength) break;
+				if (System.currentTimeMillis() > deadline) {
+					log.debug("Reading request body took longer than {} ms ({} bytes read)", timeoutMs, length);
+					status = HttpServletResponse.SC_REQUEST_TIMEOUT;
+					break;
+				}
+				if (length == limit) {
+					if (limit == maxSize) {
+						if (in.read() < 0) break;
+						log.debug("Request body exceeds maximum size {}", maxSize);
+						status = HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
+						break;
+					}
+					buf = grow(pooled, buf, length + 1, maxSize);
+					limit = Math.min(buf.length, maxSize);
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Could not read request body: " + e);
+			status = HttpServletResponse.SC_BAD_REQUEST;
+		}
+		// Input stream is closed by the servlet container.
+		return (status == HttpServletResponse.SC_OK ? new RequestBody(buf, length, status, encoding) 
+				: new RequestBody(EMPTY, 0, status, encoding));
+	}
+	
+	/** Returns a larger buffer (at least minSize, at most maxSize) containing the bytes of buf, keeps it for re-use if not too large. */
+	private static byte[] grow(final byte[][] pooled, final byte[] buf, final int minSize, final int maxSize) {
+		
+		int size = (int) Math.min(maxSize, Math.max(minSize, Math.min(Integer.MAX_VALUE, buf.length * 2L)));
+		byte[] larger = new byte[size];
+		System.arraycopy(buf, 0, larger, 0, buf.length);
+		if (size <= MAX_POOLED_SIZE) pooled[0] = larger;
+		return larger;
+	}
+	
+	/** True if the complete body was read (the body can be empty). */
+	public boolean isComplete() { return (status == HttpServletResponse.SC_OK); }
+	
+	/** 200 if the body was read, else a HTTP error status (400, 408 or 413). */
+	public int getStatus() { return status; }
+	
+	/** 
+	 * Sends the error status if the body was not read completely.
+	 * @return always null.
+	 */
+	public String sendError(final HttpServletResponse response) {
+		
+		if (!isComplete()) {
+			ControllerUtil.sendError(response, status, (status == HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE 
+					? "Request body too large." : (status == HttpServletResponse.SC_REQUEST_TIMEOUT 
+							? "Request body not received in time." : "Could not read request body.")));
+		}
+		return null;
+	}
+	
+	/** The amount of bytes in the body. */
+	public int getLength() { return length; }
+	
+	/** The character encoding of the request, ISO-8859-1 if the request did not specify one. */
+	public String getEncoding() { return encoding; }
+	
+	/** The buffer containing the body from position 0 to {@link #getLength()}, only valid during the request. */
+	public byte[] getBuffer() { return buffer; }
+	
+	/** A copy of the body. */
+	public byte[] getBytes() {
+		
+		byte[] b = new byte[length];
+		System.arraycopy(buffer, 0, b, 0, length);
+		return b;
+	}
+	
+	/** The body as stream, only valid during the request. */
+	public InputStream getInputStream() { return new ByteArrayInputStream(buffer, 0, length); }
+	
+	/** The body decoded using the request's character encoding. */
+	public String getText() {
+		
+		Charset cs;
+		try {
+			cs = StringUtils.findCharset(encoding);
+		} catch (Exception e) {
+			log.debug("Unknown request encoding {}, using ISO-8859-1", encoding);
+			cs = StringUtils.ISO_8859_1;
+		}
+		return StringUtils.toString(buffer, 0, length, cs);
+	}
+	
+	@Override
+	public String toString() {
+		return "RequestBody: status " + status + ", " + length + " bytes";
+	}
+}
@@ -0,0 +1,195 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Per-request data set by {@link AppFilter}: the requested URL, the start time, the remote location, 
+ * the resolved controller (set by {@link AppServlet}) and path parameters.
+ * Use {@link #current()} (or the methods in {@link ControllerUtil}) to get the context for the current request
+ * instead of looking up request attributes.
+ * <br>Request contexts are recycled: each thread re-uses one instance that is reset after the request is handled. 
+ * Do not keep a reference to a request context after the request is handled 
+ * (e.g. in another thread), use {@link #isActive()} when in doubt.
+ * <br>A request dispatched to the filter again while the thread handles a request (a nested request) gets its own context:
+ * {@link #current()} returns the context of the nested request until it is released, then the context of the outer request.
+ * @author FWiers
+ *
+ */
+public class RequestContext {
+
+	/** The maximum amount of path parameters. */
+	public static final int MAX_PARAMS = 8;
+
+	private static final ManagedThreadLocal<RequestContext> CONTEXTS = new ManagedThreadLocal<RequestContext>(false) {
+		@Override protected RequestContext initialValue() { return new RequestContext(); }
+	};
+
+	private boolean active;
+	private HttpServletRequest request;
+	private HttpServletResponse response;
+	private String requestedUrl;
+	private long startNs;
+	private long startTime;
+	private String remoteLocation;
+	private Controller controller;
+	private boolean debug;
+	private final String[] paramNames = new String[MAX_PARAMS];
+	private final String[] paramValues = new String[MAX_PARAMS];
+	private int paramCount;
+	/** The context of the outer request while this context is used for a nested request. */
+	private RequestContext outer;
+
+	/** 
+	 * Returns a (reset) request context for the request. 
+	 * If the context of the current thread is in use (e.g. a request dispatched to the filter again), 
+	 * a new context is returned that is the current context until it is released.
+	 * Must be followed by a call to {@link #release()} after the request is handled.
+	 */
+	public static RequestContext acquire(final HttpServletRequest request, final HttpServletResponse response, final long startNs) {
+		
+		RequestContext ctx = CONTEXTS.get();
+		if (ctx.active) {
+			// Nested request, the outer context is restored when the nested context is released.
+			RequestContext nested = new RequestContext();
+			nested.outer = ctx;
+			CONTEXTS.set(nested);
+			ctx = nested;
+		}
+		ctx.active = true;
+		ctx.request = request;
+		ctx.response = response;
+		ctx.startNs = startNs;
+		ctx.startTime = System.currentTimeMillis();
+		ctx.requestedUrl = request.getRequestURI();
+		return ctx;
+	}
+
+	/** Returns the context of the request handled by the current thread, or null if there is none. */
+	public static RequestContext current() {
+		
+		RequestContext ctx = CONTEXTS.get();
+		return (ctx.active ? ctx : null);
+	}
+
+	/** The (thread-scoped) managed thread-local with the recycled contexts. */
+	public static ManagedThreadLocal<?> getThreadLocal() { return CONTEXTS; }
+
+	/** 
+	 * Resets this context so that it can be re-used for the next request.
+	 * For a nested request, the context of the outer request becomes the current context again.
+	 * For the outer (non-nested) request, also removes the values of request-scoped managed thread-locals (see {@link ManagedThreadLocal#endRequest()}).
+	 */
+	public void release() {
+		
+		if (!active) return;
+		active = false;
+		if (outer == null) {
+			ManagedThreadLocal.endRequest();
+		} else {
+			CONTEXTS.set(outer);
+			outer = null;
+		}
+		request = null;
+		response = null;
+		requestedUrl = null;
+		remoteLocation = null;
+		controller = null;
+		debug = false;
+		startNs = 0L;
+		startTime = 0L;
+		for (int i = 0; i < paramCount; i++) {
+			paramNames[i] = null;
+			paramValues[i] = null;
+		}
+		paramCount = 0;
+	}
+
+	/** False if the request was handled and this context is (or will be) re-used for another request. */
+	public boolean isActive() { return active; }
+
+	public HttpServletRequest getRequest() { return request; }
+
+	public HttpServletResponse getResponse() { return response; }
+
+	/** The path of the requested URL (without query string), e.g. /baseName/pages/stats */
+	public String getRequestedUrl() { return requestedUrl; }
+
+	/** Value of {@link System#nanoTime()} when the request was received. */
+	public long getStartNs() { return startNs; }
+
+	/** Value of {@link System#currentTimeMillis()} when the request was received. */
+	public long getStartTime() { return startTime; }
+
+	/** Nanoseconds since the request was received. */
+	public long getElapsedNs() { return System.nanoTime() - startNs; }
+
+	/** Same as {@link ControllerUtil#getRemoteLocation(HttpServletRequest)}, created once per request. */
+	public String getRemoteLocation() {
+		
+		if (remoteLocation == null) remoteLocation = "[" + request.getRemoteAddr() + ":" + request.getRemotePort() + "]";
+		return remoteLocation;
+	}
+
+	/** The controller handling the request (set by {@link AppServlet}), null if no controller was found (yet). */
+	public Controller getController() { return controller; }
+	public void setController(final Controller controller) { this.controller = controller; }
+
+	/** True if the request is logged at debug level (see {@link RequestDebugFilter}). */
+	public boolean isDebug() { return debug; }
+	public void setDebug(final boolean debug) { this.debug = debug; }
+
+	/** 
+	 * Sets a path parameter (e.g. an ID that is part of the requested URL), 
+	 * replaces the value if the parameter already exists.
+	 * @throws IllegalStateException if there are already {@link #MAX_PARAMS} parameters. 
+	 */
+	public void setParam(final String name, final String value) {
+		
+		for (int i = 0; i < paramCount; i++) {
+			if (paramNames[i].equals(name)) {
+				paramValues[i] = value;
+				return;
+			}
+		}
+		if (paramCount == MAX_PARAMS) throw new IllegalStateException("Maximum of " + MAX_PARAMS + " path parameters reached.");
+		paramNames[paramCount] = name;
+		paramValues[paramCount++] = value;
+	}
+
+	/** Returns the value of the path parameter or null. */
+	public String getParam(final String name) {
+		
+		for (int i = 0; i < paramCount; i++) {
+			if (paramNames[i].equals(name)) return paramValues[i];
+		}
+		return null;
+	}
+
+	public int getParamCount() { return paramCount; }
+	public String getParamName(final int index) { return paramNames[index]; }
+	public String getParamValue(final int index) { return paramValues[index]; }
+
+	@Override
+	public String toString() {
+		return "RequestContext [" + (active ? requestedUrl : "inactive") + "]";
+	}
+}
@@ -0,0 +1,179 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+
+/**
+ * A turbo filter that enables debug logging for selected requests only, so that the root logger can stay at INFO level.
+ * {@link AppFilter} flags a request (for the thread handling it) when the request has the trusted header 
+ * (see {@link #setHeaderToken(String)}) or when the request is sampled for one of the debug routes 
+ * (see {@link #setRoutes(String)} and {@link #setSampleRate(int)}).
+ * For a flagged request, all log statements at or above {@link #setLevel(String)} (default DEBUG) are accepted.
+ * <br>When no request is flagged, {@link #decide(Marker, Logger, Level, String, Object[], Throwable)} only reads one volatile counter.
+ * <br>{@link AppFilter} adds this filter to the logger context if the logging configuration does not contain one, e.g.
+ * <br><code>&lt;turboFilter class="nl.intercommit.basicjspws.RequestDebugFilter"&gt;&lt;headerToken&gt;secret&lt;/headerToken&gt;&lt;/turboFilter&gt;</code>
+ * @author FWiers
+ *
+ */
+public class RequestDebugFilter extends TurboFilter {
+
+	public static final String DEFAULT_HEADER_NAME = "X-Debug-Log";
+
+	/** Amount of threads currently handling a flagged request. */
+	private static final AtomicInteger flaggedThreads = new AtomicInteger();
+	private static final ManagedThreadLocal<boolean[]> flagged = new ManagedThreadLocal<boolean[]>(false) {
+		@Override protected boolean[] initialValue() { return new boolean[1]; }
+	};
+
+	// Volatile: options can change when the configuration is reloaded.
+	private volatile String headerName = DEFAULT_HEADER_NAME;
+	private volatile String headerToken;
+	private volatile String[] routes = new String[0];
+	private volatile int sampleRate = 100;
+	private volatile int levelInt = Level.DEBUG_INT;
+	private final AtomicLong routeRequests = new AtomicLong();
+	private final AtomicLong flaggedRequests = new AtomicLong();
+
+	/** The name of the request header that flags a request for debug logging (default {@link #DEFAULT_HEADER_NAME}). */
+	public void setHeaderName(final String headerName) { this.headerName = headerName; }
+	public String getHeaderName() { return headerName; }
+
+	/** 
+	 * The value the request header must have to flag a request for debug logging.
+	 * If not set (the default), requests are not flagged via the request header.
+	 */
+	public void setHeaderToken(final String headerToken) { this.headerToken = (LogbackUtil.isEmpty(headerToken) ? null : headerToken.trim()); }
+	public String getHeaderToken() { return headerToken; }
+
+	/** 
+	 * Comma-separated list of request-URL prefixes (e.g. "/baseName/pages/log,/baseName/pages/stats") 
+	 * for which requests are sampled for debug logging. Default none.
+	 */
+	public void setRoutes(final String routes) {
+		
+		List<String> l = new ArrayList<String>();
+		if (routes != null) {
+			for (String r : routes.split(",")) {
+				if (!LogbackUtil.isEmpty(r)) l.add(r.trim());
+			}
+		}
+		this.routes = l.toArray(new String[l.size()]);
+	}
+	public String getRoutes() {
+		
+		StringBuilder sb = new StringBuilder();
+		for (String r : routes) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(r);
+		}
+		return sb.toString();
+	}
+
+	/** One in sampleRate requests for a route is flagged for debug logging (default 100, 1 flags all requests for a route). */
+	public void setSampleRate(final int sampleRate) { this.sampleRate = Math.max(1, sampleRate); }
+	public int getSampleRate() { return sampleRate; }
+
+	/** The lowest level logged for a flagged request (default DEBUG). */
+	public void setLevel(final String level) { levelInt = Level.toLevel(level, Level.DEBUG).levelInt; }
+	public String getLevel() { return Level.toLevel(levelInt).toString(); }
+
+	/** Amount of requests flagged for debug logging. */
+	public long getFlaggedRequests() { return flaggedRequests.get(); }
+
+	/**
+	 * Returns true if the request should be logged at debug level: the request has the trusted header
+	 * or the request is sampled for one of the routes.
+	 * @param requestedUrl The path of the requested URL (see {@link ControllerUtil#getRequestedUrl(HttpServletRequest)}).
+	 */
+	public boolean isDebugRequest(final HttpServletRequest request, final String requestedUrl) {
+		
+		if (!isStarted()) return false;
+		final String token = headerToken;
+		if (token != null && token.equals(request.getHeader(headerName))) {
+			return true;
+		}
+		final String[] routes = this.routes;
+		for (int i = 0; i < routes.length; i++) {
+			if (requestedUrl.startsWith(routes[i])) {
+				return (routeRequests.getAndIncrement() % sampleRate == 0);
+			}
+		}
+		return false;
+	}
+
+	/** 
+	 * Flags the current thread for debug logging. Must be followed by {@link #endDebug()}
+	 * (in a finally-block) when the request is handled.
+	 */
+	public void beginDebug() {
+		
+		boolean[] f = flagged.get();
+		if (f[0]) return;
+		f[0] = true;
+		flaggedThreads.incrementAndGet();
+		flaggedRequests.incrementAndGet();
+	}
+
+	/** Removes the debug logging flag from the current thread (if the thread was flagged). */
+	public void endDebug() {
+		
+		boolean[] f = flagged.get();
+		if (!f[0]) return;
+		f[0] = false;
+		flaggedThreads.decrementAndGet();
+	}
+
+	/** True if the current thread is handling a request flagged for debug logging. */
+	public static boolean isDebugThread() {
+		return (flaggedThreads.get() > 0 && flagged.get()[0]);
+	}
+
+	/** The (thread-scoped) managed thread-local that flags threads. */
+	public static ManagedThreadLocal<?> getThreadLocal() { return flagged; }
+
+	@Override
+	public FilterReply decide(final Marker marker, final Logger logger, final Level level, 
+			final String format, final Object[] params, final Throwable t) {
+
+		if (flaggedThreads.get() == 0 || level == null || level.levelInt < levelInt || !flagged.get()[0]) {
+			return FilterReply.NEUTRAL;
+		}
+		return FilterReply.ACCEPT;
+	}
+
+	@Override
+	public String toString() {
+		return "RequestDebugFilter [header=" + headerName + (headerToken == null ? " (disabled)" : "") 
+				+ ", routes=" + getRoutes() + ", sampleRate=" + sampleRate + ", level=" + getLevel() 
+				+ ", flaggedRequests=" + flaggedRequests.get() + "]";
+	}
+}
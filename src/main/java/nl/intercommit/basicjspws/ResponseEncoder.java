@@ -0,0 +1,334 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a structured value (objects, arrays, strings, numbers, booleans and null) to the response output stream 
+ * in one of the formats JSON ({@link JsonWriter}), CBOR ({@link CborWriter}) or MessagePack ({@link MessagePackWriter}).
+ * A controller writes the value once to the encoder returned by {@link #get(HttpServletRequest, HttpServletResponse)}
+ * (format chosen by the request's Accept header, see {@link #getFormat(HttpServletRequest)}) and finishes with {@link #send()}:
+ * <br><code>return getResponseEncoder(request, response).beginObject(2).name("count").value(1).name("names").beginArray(1).value("a").endArray().endObject().send();</code>
+ * <br>The value is encoded while it is written, there is no intermediate tree. 
+ * Encoded bytes are collected in a re-used buffer of {@link #BUFFER_SIZE} bytes. If the value fits in the buffer, 
+ * it is sent with a Content-Length header when {@link #send()} is called, else the buffer is written each time it is full.
+ * <br>The size of objects (amount of names) and arrays can be given when they are started, use -1 if the size is unknown.
+ * Binary formats can write sizes of containers more compactly when known in advance 
+ * (for MessagePack, a container of unknown size is kept in the buffer until it ends, 
+ * at most {@link #MAX_HOLD_SIZE} bytes: give the size of large objects and arrays).
+ * <br>An encoder is re-used by the thread, it must not be used after {@link #send()}.
+ * An encoder that is not sent is available again after the request (see {@link ManagedThreadLocal#endRequest()}).
+ * @author FWiers
+ *
+ */
+public abstract class ResponseEncoder {
+
+	private static final Logger log = LoggerFactory.getLogger(ResponseEncoder.class);
+
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_CBOR = "cbor";
+	public static final String FORMAT_MSGPACK = "msgpack";
+	
+	/** Encoded values up to this size are sent with a Content-Length header. */
+	public static final int BUFFER_SIZE = 16384;
+	/** 
+	 * Maximum size of the buffer while bytes are kept in the buffer (see {@link #hold}), 
+	 * e.g. for a MessagePack object or array of unknown size. 
+	 */
+	public static final int MAX_HOLD_SIZE = 4 * 1024 * 1024;
+
+	protected byte[] buf = new byte[BUFFER_SIZE];
+	protected int pos;
+	/** While larger than 0, the buffer is not written to the response but grows (to update bytes written before). */
+	protected int hold;
+	/** Amount of bytes written to the response before the bytes in the buffer. */
+	private long flushed;
+	private HttpServletResponse response;
+	/** Not null when the buffer was written to the response. */
+	private OutputStream out;
+	private boolean failed;
+	/** Not null when this is the thread's re-used encoder. */
+	private Pool<?> pool;
+	
+	/** The content type of the encoded value. */
+	public abstract String getContentType();
+
+	/** Starts an object, size is the amount of names in the object (-1 if unknown). */
+	public abstract ResponseEncoder beginObject(int size);
+	public abstract ResponseEncoder endObject();
+	/** Starts an array, size is the amount of values in the array (-1 if unknown). */
+	public abstract ResponseEncoder beginArray(int size);
+	public abstract ResponseEncoder endArray();
+	/** Writes the name of the next value in an object. */
+	public abstract ResponseEncoder name(String name);
+	/** Writes a string value, null is written as null. */
+	public abstract ResponseEncoder value(String value);
+	public abstract ResponseEncoder value(long value);
+	/** Writes the value, integral values are written as integer. */
+	public abstract ResponseEncoder value(double value);
+	public abstract ResponseEncoder value(boolean value);
+	public abstract ResponseEncoder nullValue();
+
+	/** Starts an object of unknown size. */
+	public ResponseEncoder beginObject() { return beginObject(-1); }
+	/** Starts an array of unknown size. */
+	public ResponseEncoder beginArray() { return beginArray(-1); }
+
+	/** 
+	 * Returns an encoder for the format requested by the request (see {@link #getFormat(HttpServletRequest)}) 
+	 * and sets the response's content type and the "Vary: Accept" header. 
+	 */
+	public static ResponseEncoder get(final HttpServletRequest request, final HttpServletResponse response) {
+		
+		response.setHeader("Vary", "Accept");
+		return get(getFormat(request), response);
+	}
+
+	/** Returns an encoder for the format (one of the FORMAT constants, JSON if unknown) and sets the response's content type. */
+	public static ResponseEncoder get(final String format, final HttpServletResponse response) {
+		
+		if (FORMAT_CBOR.equals(format)) return CborWriter.get(response);
+		if (FORMAT_MSGPACK.equals(format)) return MessagePackWriter.get(response);
+		return JsonWriter.get(response);
+	}
+	
+	/**
+	 * Returns the format from the request parameter "format" if it is one of the FORMAT constants,
+	 * else the format of the media type in the Accept header with the highest quality 
+	 * (application/cbor for CBOR, application/msgpack, application/x-msgpack or application/vnd.msgpack for MessagePack), 
+	 * else {@link #FORMAT_JSON}.
+	 */
+	public static String getFormat(final HttpServletRequest request) {
+		
+		String format = request.getParameter("format");
+		if (FORMAT_JSON.equals(format) || FORMAT_CBOR.equals(format) || FORMAT_MSGPACK.equals(format)) {
+			return format;
+		}
+		final String accept = request.getHeader("Accept");
+		if (accept == null || accept.indexOf("application/") < 0) return FORMAT_JSON;
+		format = FORMAT_JSON;
+		float bestQuality = 0f;
+		for (String mediaRange : accept.split(",")) {
+			String[] params = mediaRange.split(";");
+			String mediaType = params[0].trim().toLowerCase();
+			String f = null;
+			if ("application/json".equals(mediaType)) {
+				f = FORMAT_JSON;
+			} else if ("application/cbor".equals(mediaType)) {
+				f = FORMAT_CBOR;
+			} else if ("application/msgpack".equals(mediaType) || "application/x-msgpack".equals(mediaType) 
+					|| "application/vnd.msgpack".equals(mediaType)) {
+				f = FORMAT_MSGPACK;
+			}
+			if (f == null) continue;
+			float quality = 1f;
+			for (int i = 1; i < params.length; i++) {
+				String p = params[i].trim();
+				if (p.startsWith("q=")) {
+					try { quality = Float.parseFloat(p.substring(2)); } catch (NumberFormatException ignored) {}
+				}
+			}
+			if (quality > bestQuality) {
+				bestQuality = quality;
+				format = f;
+			}
+		}
+		return format;
+	}
+	
+	/** Prepares this encoder for writing to the response and sets the content type. */
+	protected void start(final HttpServletResponse response) {
+		
+		if (buf.length > BUFFER_SIZE) buf = new byte[BUFFER_SIZE];
+		pos = 0;
+		hold = 0;
+		flushed = 0L;
+		out = null;
+		failed = false;
+		this.response = response;
+		response.setContentType(getContentType());
+	}
+	
+	/**
+	 * Sends the encoded value: with a Content-Length header if the complete value is still in the buffer, 
+	 * else the remainder of the value is written. Commits the response (no further writing possible).
+	 * @return always null.
+	 */
+	public String send() {
+		
+		try {
+			if (!failed) {
+				if (out == null) {
+					response.setContentLength(pos);
+					out = response.getOutputStream();
+				}
+				out.write(buf, 0, pos);
+				out.flush();
+			}
+		} catch (Exception e) {
+			log.warn("Could not write " + getContentType() + " response: " + e);
+		} finally {
+			response = null;
+			out = null;
+			pos = 0;
+			if (pool != null) {
+				pool.inUse.remove();
+				pool = null;
+			}
+		}
+		return null;
+	}
+
+	/** The amount of bytes written so far. */
+	public long getSize() { return flushed + pos; }
+
+	/** Makes room for size bytes in the buffer. */
+	protected void ensure(final int size) {
+		
+		if (pos + size > buf.length) {
+			flushBuffer();
+			if (pos + size > buf.length) {
+				if (hold > 0 && pos + size > MAX_HOLD_SIZE) throw holdSizeExceeded();
+				buf = Arrays.copyOf(buf, pos + size);
+			}
+		}
+	}
+	
+	private IllegalStateException holdSizeExceeded() {
+		
+		return new IllegalStateException("Encoded " + getContentType() + " value of unknown size exceeds " + MAX_HOLD_SIZE 
+				+ " bytes, the size of (large) objects and arrays must be given when they are started.");
+	}
+	
+	/** 
+	 * Writes the buffer to the response (without Content-Length header), or grows the buffer while {@link #hold} is set.
+	 * @throws IllegalStateException when the buffer would grow larger than {@link #MAX_HOLD_SIZE}
+	 * (nothing was written to the response yet: the request fails with an error response).  
+	 */
+	protected void flushBuffer() {
+		
+		if (hold > 0) {
+			if (buf.length >= MAX_HOLD_SIZE) throw holdSizeExceeded();
+			buf = Arrays.copyOf(buf, Math.min(MAX_HOLD_SIZE, buf.length * 2));
+			return;
+		}
+		try {
+			if (!failed) {
+				if (out == null) out = response.getOutputStream();
+				out.write(buf, 0, pos);
+			}
+		} catch (Exception e) {
+			log.warn("Could not write " + getContentType() + " response: " + e);
+			failed = true;
+		}
+		flushed += pos;
+		pos = 0;
+	}
+	
+	protected void put(final int b) {
+		
+		ensure(1);
+		buf[pos++] = (byte) b;
+	}
+
+	protected void put(final byte[] b) {
+		
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, pos, b.length);
+		pos += b.length;
+	}
+	
+	/** Puts the value as big-endian bytes (the last size bytes of value). */
+	protected void putBigEndian(final long value, final int size) {
+		
+		ensure(size);
+		for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+			buf[pos++] = (byte) (value >> shift);
+		}
+	}
+	
+	/** 
+	 * Puts the string as UTF-8 bytes, unpaired surrogates are written as '?' 
+	 * (the amount of bytes is {@link StringUtils#utf8Length(String)}). 
+	 */
+	protected void putUtf8(final String s) {
+		
+		final int length = s.length();
+		for (int i = 0; i < length; i++) {
+			if (pos > buf.length - 4) flushBuffer();
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else {
+				i = putUtf8Char(s, i);
+			}
+		}
+	}
+	
+	/** 
+	 * Puts the character at index i of s as UTF-8 bytes (at most 4 bytes, see {@link StringUtils#putUtf8Char(String, int, byte[], int)}).
+	 * @return the index of the last character that was put (i + 1 for a surrogate pair). 
+	 */
+	protected final int putUtf8Char(final String s, final int i) {
+		
+		final int start = pos;
+		pos = StringUtils.putUtf8Char(s, i, buf, pos);
+		return (pos - start == 4 ? i + 1 : i);
+	}
+	
+	/** True if the value can be written as integer without loss. */
+	protected static boolean isIntegral(final double value) {
+		return (value == (long) value && Math.abs(value) < 1e15);
+	}
+
+	/** Re-uses an encoder per thread, see {@link ResponseEncoder}. */
+	protected abstract static class Pool<T extends ResponseEncoder> {
+		
+		private final ManagedThreadLocal<T> encoders = new ManagedThreadLocal<T>(false) {
+			@Override protected T initialValue() { return create(); }
+		};
+		/** Set while the thread's encoder is in use, cleared at the end of the request. */
+		private final ManagedThreadLocal<Boolean> inUse = new ManagedThreadLocal<Boolean>(true);
+
+		protected abstract T create();
+		
+		/** Returns the thread's encoder, or a new encoder if the thread's encoder is in use. */
+		public T get(final HttpServletResponse response) {
+			
+			T encoder;
+			if (inUse.get() == null) {
+				inUse.set(Boolean.TRUE);
+				encoder = encoders.get();
+				((ResponseEncoder) encoder).pool = this;
+			} else {
+				encoder = create();
+			}
+			encoder.start(response);
+			return encoder;
+		}
+	}
+}
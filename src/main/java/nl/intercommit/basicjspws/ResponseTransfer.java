@@ -0,0 +1,266 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes (large) response bodies from byte arrays, byte buffers, files, input streams or a {@link Producer}
+ * in chunks of {@link #CHUNK_SIZE} and keeps track of the transfers in progress.
+ * <br>The servlet API (2.5) has no non-blocking output: a request thread writing to a slow client 
+ * is blocked in a write until the client has received enough of the response. 
+ * The statistics (see {@link #getStatsDescription()}) show how many threads are blocked in a write 
+ * and how many bytes are still to be sent, which shows when slow clients are holding up request threads. 
+ * The amount of bytes buffered by the server before a write blocks is set with the server's response buffer size 
+ * (e.g. baseName.server.buffer.response for {@link EmbeddedServer}).
+ * <br>A chunk is copied via a per-thread re-used buffer when the source is not a byte array.
+ * @author FWiers
+ *
+ */
+public class ResponseTransfer {
+
+	private static final Logger log = LoggerFactory.getLogger(ResponseTransfer.class);
+
+	/** Maximum amount of bytes written in one write. */
+	public static final int CHUNK_SIZE = 32768;
+	
+	/** Produces the bytes of a response. */
+	public interface Producer {
+		/** 
+		 * Puts the next bytes to send in buf (starting at 0). 
+		 * @return the amount of bytes put in buf (can be 0), or -1 when all bytes were produced. 
+		 */
+		int produce(byte[] buf) throws IOException;
+	}
+	
+	private static final AtomicInteger transfers = new AtomicInteger();
+	private static final AtomicInteger blockedWriters = new AtomicInteger();
+	private static final AtomicLong bytesInFlight = new AtomicLong();
+	private static final AtomicLong totalTransfers = new AtomicLong();
+	private static final AtomicLong failedTransfers = new AtomicLong();
+	private static final AtomicLong totalBytes = new AtomicLong();
+	private static final AtomicLong writeTimeNs = new AtomicLong();
+
+	private static final ManagedThreadLocal<byte[]> chunks = new ManagedThreadLocal<byte[]>(false) {
+		@Override protected byte[] initialValue() { return new byte[CHUNK_SIZE]; }
+	};
+
+	/** Writes all bytes, see {@link #write(HttpServletResponse, String, byte[], int, int)}. */
+	public static boolean write(final HttpServletResponse response, final String contentType, final byte[] b) {
+		return write(response, contentType, b, 0, b.length);
+	}
+	
+	/**
+	 * Writes the bytes with a Content-Length header. Commits the response (no further writing possible).
+	 * @param contentType If not null, the content type to set (else it must be set already).
+	 * @return true if all bytes were written, false if writing failed (a warning is logged).
+	 */
+	public static boolean write(final HttpServletResponse response, final String contentType, final byte[] b, final int offset, final int length) {
+		
+		final Transfer t = new Transfer(length);
+		try {
+			final OutputStream out = start(response, contentType, length);
+			int written = 0;
+			while (written < length) {
+				int n = Math.min(CHUNK_SIZE, length - written);
+				t.write(out, b, offset + written, n);
+				written += n;
+			}
+			t.finish(out);
+		} catch (Exception e) {
+			log.warn("Could not write byte-response: " + e);
+		} finally {
+			t.end();
+		}
+		return t.completed;
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer (the buffer's position is not changed), 
+	 * see {@link #write(HttpServletResponse, String, byte[], int, int)}.
+	 */
+	public static boolean write(final HttpServletResponse response, final String contentType, final ByteBuffer bb) {
+		
+		if (bb.hasArray()) {
+			return write(response, contentType, bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+		}
+		final ByteBuffer src = bb.duplicate();
+		final int length = src.remaining();
+		return write(response, contentType, length, new Producer() {
+			@Override public int produce(final byte[] buf) {
+				if (!src.hasRemaining()) return -1;
+				int n = Math.min(buf.length, src.remaining());
+				src.get(buf, 0, n);
+				return n;
+			}
+		});
+	}
+
+	/** Writes the contents of the file, see {@link #write(HttpServletResponse, String, byte[], int, int)}. */
+	public static boolean write(final HttpServletResponse response, final String contentType, final File f) {
+		
+		InputStream in = null;
+		try {
+			in = new FileInputStream(f);
+		} catch (Exception e) {
+			log.warn("Could not open file for byte-response: " + e);
+			return false;
+		}
+		try {
+			return write(response, contentType, in, f.length());
+		} finally {
+			FileUtil.close(in);
+		}
+	}
+
+	/** 
+	 * Writes the bytes from the input stream (does not close the stream), 
+	 * see {@link #write(HttpServletResponse, String, byte[], int, int)}.
+	 * @param length The amount of bytes the stream contains, -1 if unknown (no Content-Length header is set).
+	 */
+	public static boolean write(final HttpServletResponse response, final String contentType, final InputStream in, final long length) {
+		
+		return write(response, contentType, length, new Producer() {
+			@Override public int produce(final byte[] buf) throws IOException { return in.read(buf); }
+		});
+	}
+	
+	/**
+	 * Writes the bytes from the producer, see {@link #write(HttpServletResponse, String, byte[], int, int)}.
+	 * @param length The amount of bytes the producer produces, -1 if unknown (no Content-Length header is set).
+	 * Bytes produced beyond this length are not written, producing less bytes fails the transfer.
+	 */
+	public static boolean write(final HttpServletResponse response, final String contentType, final long length, final Producer producer) {
+		
+		final Transfer t = new Transfer(length);
+		try {
+			final OutputStream out = start(response, contentType, length);
+			final byte[] buf = chunks.get();
+			long written = 0L;
+			int n;
+			while ((length < 0L || written < length) && (n = producer.produce(buf)) > -1) {
+				// Never send more than the Content-Length.
+				if (length > -1L && n > length - written) n = (int) (length - written);
+				if (n > 0) t.write(out, buf, 0, n);
+				written += n;
+			}
+			if (written < length) {
+				log.warn("Byte-response incomplete, produced " + written + " of " + length + " bytes.");
+			} else {
+				t.finish(out);
+			}
+		} catch (Exception e) {
+			log.warn("Could not write produced byte-response: " + e);
+		} finally {
+			t.end();
+		}
+		return t.completed;
+	}
+	
+	private static OutputStream start(final HttpServletResponse response, final String contentType, final long length) throws IOException {
+		
+		if (contentType != null) response.setContentType(contentType);
+		if (length > -1L && length <= Integer.MAX_VALUE) response.setContentLength((int) length);
+		return response.getOutputStream();
+	}
+	
+	/** Updates the statistics for one transfer. */
+	private static final class Transfer {
+		
+		/** Bytes to write that are counted in {@link ResponseTransfer#bytesInFlight}. */
+		long remaining;
+		boolean completed;
+		
+		Transfer(final long length) {
+			
+			remaining = Math.max(0L, length);
+			transfers.incrementAndGet();
+			totalTransfers.incrementAndGet();
+			bytesInFlight.addAndGet(remaining);
+		}
+		
+		void write(final OutputStream out, final byte[] b, final int offset, final int length) throws IOException {
+			
+			// Bytes beyond a known length (or all bytes if the length is unknown) are counted during the write.
+			final long counted = Math.min(remaining, length);
+			remaining -= counted;
+			if (counted < length) bytesInFlight.addAndGet(length - counted);
+			blockedWriters.incrementAndGet();
+			final long start = System.nanoTime();
+			try {
+				out.write(b, offset, length);
+			} finally {
+				writeTimeNs.addAndGet(System.nanoTime() - start);
+				blockedWriters.decrementAndGet();
+				bytesInFlight.addAndGet(-length);
+			}
+			totalBytes.addAndGet(length);
+		}
+		
+		void finish(final OutputStream out) throws IOException {
+			
+			out.flush();
+			completed = true;
+		}
+		
+		void end() {
+			
+			bytesInFlight.addAndGet(-remaining);
+			if (!completed) failedTransfers.incrementAndGet();
+			transfers.decrementAndGet();
+		}
+	}
+	
+	/** The amount of responses being written. */
+	public static int getTransfers() { return transfers.get(); }
+
+	/** The amount of threads waiting for a write to complete. */
+	public static int getBlockedWriters() { return blockedWriters.get(); }
+
+	/** The amount of bytes still to be written by the responses being written. */
+	public static long getBytesInFlight() { return bytesInFlight.get(); }
+
+	public static long getTotalTransfers() { return totalTransfers.get(); }
+
+	public static long getFailedTransfers() { return failedTransfers.get(); }
+
+	public static long getTotalBytes() { return totalBytes.get(); }
+
+	/** Total time spent by threads in writes (including waiting for slow clients). */
+	public static long getWriteTimeMs() { return writeTimeNs.get() / 1000000L; }
+	
+	public static String getStatsDescription() {
+		
+		return "Response transfers: " + getTransfers() + " in progress, " + getBlockedWriters() + " blocked in write, " 
+				+ getBytesInFlight() + " bytes in flight. Total: " + getTotalTransfers() + " transfers (" + getFailedTransfers() + " failed), " 
+				+ getTotalBytes() + " bytes, " + getWriteTimeMs() + " ms in write.\n";
+	}
+}
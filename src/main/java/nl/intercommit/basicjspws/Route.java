@@ -0,0 +1,59 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Registers a {@link Controller} for one or more request URLs without overriding 
+ * {@link AppServlet#registerRequestControllers(String)}.
+ * The {@link RouteProcessor} generates a {@link RouteIndex} at compile time for all controllers with this annotation,
+ * {@link AppServlet#init()} loads the generated route indexes (no classpath scanning).
+ * <br>Example:
+ * <br><code>@Route("pages/orders")
+ * <br>public class Orders implements Controller { ... }</code>
+ * <br>The annotated class must be public, not abstract and have a public constructor without arguments.
+ * @author FWiers
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Route {
+
+	/** The request URLs relative to the base URL, e.g. "pages/orders" (an empty string for the base URL itself). */
+	String[] value();
+
+	/** 
+	 * If true, the controller is created on the first request (see {@link LazyController}). 
+	 * Default false: the controller is created when the servlet is initialized 
+	 * (lazy is opt-in, see {@link LazyController} for the reason). 
+	 */
+	boolean lazy() default false;
+
+	/** 
+	 * The name of a lazy controller (see {@link Controller#getName()}), 
+	 * needed to register the request URL in the servlet context for a lazy controller. 
+	 */
+	String name() default "";
+}
@@ -0,0 +1,39 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.util.Map;
+
+/**
+ * A route index registers controllers for request URLs. 
+ * Implementations are generated by the {@link RouteProcessor} for controllers annotated with {@link Route}
+ * and found by {@link AppServlet#init()} via {@link java.util.ServiceLoader}.
+ * @author FWiers
+ *
+ */
+public interface RouteIndex {
+
+	/**
+	 * Creates the controllers and puts them in the map.
+	 * @param baseUrl e.g. "/baseName/" (always ends and starts with a /).
+	 * @param controllers The controllers by request URL (see {@link AppServlet#requestControllers}).
+	 * @return The amount of registered request URLs. 
+	 */
+	int registerRoutes(String baseUrl, Map<String, Controller> controllers);
+}
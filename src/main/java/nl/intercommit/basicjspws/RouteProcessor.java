@@ -0,0 +1,215 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that generates a {@link RouteIndex} for all controllers annotated with {@link Route}.
+ * The generated class creates the controllers with "new" (no reflection) and is registered as service 
+ * in META-INF/services so that {@link AppServlet#init()} can find it.
+ * <br>The processor is registered in this jar (META-INF/services/javax.annotation.processing.Processor),
+ * javac runs it automatically when this jar is on the compile classpath.
+ * <br>The generated class is named GeneratedRouteIndex and placed in the package of the first (sorted by name) controller,
+ * the option -Abasicjspws.routeIndex=fully.qualified.ClassName sets another name.
+ * <br>Note that an incremental build (only changed classes) results in an incomplete index, use a full build.  
+ * @author FWiers
+ *
+ */
+@SupportedAnnotationTypes("nl.intercommit.basicjspws.Route")
+@SupportedOptions(RouteProcessor.OPTION_INDEX_NAME)
+public class RouteProcessor extends AbstractProcessor {
+
+	public static final String OPTION_INDEX_NAME = "basicjspws.routeIndex";
+	public static final String DEFAULT_INDEX_SIMPLE_NAME = "GeneratedRouteIndex";
+
+	private final List<TypeElement> controllers = new ArrayList<TypeElement>();
+	private boolean generated;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+		
+		boolean found = false;
+		for (Element e : roundEnv.getElementsAnnotatedWith(Route.class)) {
+			if (isValid(e)) {
+				controllers.add((TypeElement) e);
+				found = true;
+			}
+		}
+		if (found && generated) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, 
+					"Route index already generated, cannot add routes from generated sources.");
+			return true;
+		}
+		if (found && !roundEnv.errorRaised()) {
+			generate();
+			generated = true;
+		}
+		return true;
+	}
+
+	private boolean isValid(final Element e) {
+		
+		if (e.getKind() != ElementKind.CLASS) {
+			error(e, "@Route can only be used on a class.");
+			return false;
+		}
+		TypeElement te = (TypeElement) e;
+		if (!te.getModifiers().contains(Modifier.PUBLIC) || te.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(e, "A class with @Route must be public and not abstract.");
+			return false;
+		}
+		if (te.getNestingKind().isNested() && !te.getModifiers().contains(Modifier.STATIC)) {
+			error(e, "A nested class with @Route must be static.");
+			return false;
+		}
+		TypeMirror controllerType = processingEnv.getElementUtils().getTypeElement(Controller.class.getName()).asType();
+		if (!processingEnv.getTypeUtils().isAssignable(te.asType(), controllerType)) {
+			error(e, "A class with @Route must implement " + Controller.class.getName());
+			return false;
+		}
+		boolean hasConstructor = false;
+		for (ExecutableElement c : ElementFilter.constructorsIn(te.getEnclosedElements())) {
+			if (c.getParameters().isEmpty() && c.getModifiers().contains(Modifier.PUBLIC)) {
+				hasConstructor = true;
+			}
+		}
+		if (!hasConstructor) {
+			error(e, "A class with @Route must have a public constructor without arguments.");
+			return false;
+		}
+		return true;
+	}
+
+	private void error(final Element e, final String msg) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, e);
+	}
+
+	private void generate() {
+		
+		Collections.sort(controllers, new Comparator<TypeElement>() {
+			@Override public int compare(final TypeElement t1, final TypeElement t2) {
+				return t1.getQualifiedName().toString().compareTo(t2.getQualifiedName().toString());
+			}
+		});
+		String indexName = processingEnv.getOptions().get(OPTION_INDEX_NAME);
+		if (indexName == null || indexName.trim().isEmpty()) {
+			PackageElement pe = processingEnv.getElementUtils().getPackageOf(controllers.get(0));
+			indexName = (pe.isUnnamed() ? "" : pe.getQualifiedName() + ".") + DEFAULT_INDEX_SIMPLE_NAME;
+		}
+		indexName = indexName.trim();
+		int i = indexName.lastIndexOf('.');
+		String packageName = (i < 0 ? null : indexName.substring(0, i));
+		String simpleName = indexName.substring(i + 1);
+		Writer w = null;
+		try {
+			JavaFileObject source = processingEnv.getFiler().createSourceFile(indexName, controllers.toArray(new Element[controllers.size()]));
+			w = source.openWriter();
+			if (packageName != null) w.write("package " + packageName + ";\n\n");
+			w.write("import java.util.Map;\n\n");
+			w.write("import nl.intercommit.basicjspws.Controller;\n");
+			w.write("import nl.intercommit.basicjspws.LazyController;\n");
+			w.write("import nl.intercommit.basicjspws.RouteIndex;\n\n");
+			w.write("/** Generated by " + RouteProcessor.class.getName() + " for " + controllers.size() + " controllers, do not edit. */\n");
+			w.write("public class " + simpleName + " implements RouteIndex {\n\n");
+			w.write("\t@Override\n");
+			w.write("\tpublic int registerRoutes(final String baseUrl, final Map<String, Controller> controllers) {\n\n");
+			w.write("\t\tController c;\n");
+			int routeCount = 0;
+			for (TypeElement te : controllers) {
+				Route route = te.getAnnotation(Route.class);
+				String className = te.getQualifiedName().toString();
+				if (route.lazy()) {
+					String name = (route.name().isEmpty() ? "null" : toJavaString(route.name()));
+					w.write("\t\tc = new LazyController(" + name + ", " + className + ".class);\n");
+				} else {
+					w.write("\t\tc = new " + className + "();\n");
+				}
+				for (String url : route.value()) {
+					url = url.trim();
+					while (url.startsWith("/")) url = url.substring(1);
+					w.write("\t\tcontrollers.put(baseUrl + " + toJavaString(url) + ", c);\n");
+					routeCount++;
+				}
+			}
+			w.write("\t\treturn " + routeCount + ";\n");
+			w.write("\t}\n}\n");
+			w.close();
+			w = null;
+			FileObject service = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", 
+					"META-INF/services/" + RouteIndex.class.getName());
+			w = service.openWriter();
+			w.write(indexName + "\n");
+			w.close();
+			w = null;
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, 
+					"Generated route index " + indexName + " with " + routeCount + " routes.");
+		} catch (IOException ioe) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not generate route index " + indexName + ": " + ioe);
+		} finally {
+			FileUtil.close(w);
+		}
+	}
+
+	private static String toJavaString(final String s) {
+		
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20 || c > 0x7e) {
+				sb.append("\\u").append(SysPropsUtil.toHex(c >> 12)).append(SysPropsUtil.toHex(c >> 8))
+				.append(SysPropsUtil.toHex(c >> 4)).append(SysPropsUtil.toHex(c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,117 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Times the phases of the application startup (see {@link AppInit#contextInitialized(javax.servlet.ServletContextEvent)})
+ * and the time to the first request (see {@link AppFilter}).
+ * Phases can run in parallel (each phase records the thread it ran in).
+ * <br>Usage:
+ * <br><code>long t = profiler.begin();
+ * <br>...
+ * <br>profiler.end("phase name", t);</code>
+ * @author FWiers
+ *
+ */
+public class StartupProfiler {
+
+	private static class Phase {
+		
+		final String name;
+		final String thread;
+		final long startNs;
+		final long durationNs;
+		
+		Phase(final String name, final String thread, final long startNs, final long durationNs) {
+			this.name = name;
+			this.thread = thread;
+			this.startNs = startNs;
+			this.durationNs = durationNs;
+		}
+	}
+
+	private final long startNs = System.nanoTime();
+	private final List<Phase> phases = new ArrayList<Phase>();
+	private final AtomicBoolean firstRequest = new AtomicBoolean();
+	private volatile long firstRequestNs = -1L;
+
+	/** Returns the start time for a phase, to be used with {@link #end(String, long)}. */
+	public long begin() {
+		return System.nanoTime();
+	}
+
+	/** Records a phase that started at beginNs (see {@link #begin()}) and ends now. */
+	public void end(final String phaseName, final long beginNs) {
+		
+		long now = System.nanoTime();
+		Phase p = new Phase(phaseName, Thread.currentThread().getName(), beginNs - startNs, now - beginNs);
+		synchronized (phases) {
+			phases.add(p);
+		}
+	}
+
+	/** 
+	 * Records the time to the first request. 
+	 * @return true for the first request, false for all other requests.
+	 */
+	public boolean firstRequest() {
+		
+		if (firstRequestNs >= 0L || !firstRequest.compareAndSet(false, true)) return false;
+		firstRequestNs = System.nanoTime() - startNs;
+		return true;
+	}
+
+	/** Milliseconds from the start of the profiler to the first request, -1 if there was no request yet. */
+	public long getTimeToFirstRequestMs() {
+		
+		long t = firstRequestNs;
+		return (t < 0L ? -1L : t / 1000000L);
+	}
+
+	/** Startup phases with their start time, duration and thread. */
+	public String getDescription() {
+		
+		List<Phase> l;
+		synchronized (phases) {
+			l = new ArrayList<Phase>(phases);
+		}
+		StringBuilder sb = new StringBuilder("Startup phases (start + duration in ms):");
+		for (Phase p : l) {
+			sb.append('\n').append(toMs(p.startNs)).append(" + ").append(toMs(p.durationNs))
+			.append(' ').append(p.name).append(" [").append(p.thread).append(']');
+		}
+		sb.append("\nTime to first request: ");
+		if (firstRequestNs < 0L) {
+			sb.append("no request yet");
+		} else {
+			sb.append(toMs(firstRequestNs)).append(" ms");
+		}
+		return sb.append('\n').toString();
+	}
+
+	private static String toMs(final long ns) {
+		
+		long tenths = ns / 100000L;
+		return (tenths / 10L) + "." + (tenths % 10L);
+	}
+}
@@ -20,9 +20,17 @@ package nl.intercommit.basicjspws;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -30,6 +38,10 @@ import java.util.concurrent.ConcurrentHashMap;
  * <br>see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6790402 
  * <br>Solution copied form  
  * <br>http://bazaar.launchpad.net/~mark-mysql/connectorj/5.1/view/1063/src/com/mysql/jdbc/StringUtils.java
+ * <br>The methods using a {@link Charset} (e.g. {@link #encode(String, Charset, byte[], int)} and {@link #decode(byte[], int, int, Charset, char[], int)})
+ * have fast paths for US-ASCII, ISO-8859-1 and UTF-8 and re-use per-thread encoders and decoders for other charsets.
+ * Results are the same as from {@link Charset#encode(String)} and {@link Charset#decode(ByteBuffer)}
+ * (malformed and unmappable input is replaced).
  * @author frederikw
  *
  */
@@ -40,6 +52,81 @@ public class StringUtils {
 
 	public static final String platformEncoding = System.getProperty("file.encoding");
 
+	public static final Charset US_ASCII = Charset.forName("US-ASCII");
+	public static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Maximum size of the per-thread scratch buffers, larger buffers are not kept. */
+	public static final int MAX_SCRATCH_SIZE = 16384;
+
+	private static final int ASCII = 1;
+	private static final int ISO = 2;
+	private static final int UTF8 = 3;
+
+	/** Per-thread encoders, decoders and scratch buffers, see {@link #coders}. */
+	private static final class Coders {
+		
+		Charset encoderCharset;
+		CharsetEncoder encoder;
+		Charset decoderCharset;
+		CharsetDecoder decoder;
+		final Map<Charset, CharsetEncoder> encoders = new HashMap<Charset, CharsetEncoder>();
+		final Map<Charset, CharsetDecoder> decoders = new HashMap<Charset, CharsetDecoder>();
+		byte[] bytes = new byte[256];
+		char[] chars = new char[256];
+		
+		CharsetEncoder getEncoder(final Charset cs) {
+			
+			if (cs != encoderCharset) {
+				CharsetEncoder e = encoders.get(cs);
+				if (e == null) {
+					e = cs.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+					encoders.put(cs, e);
+				}
+				encoderCharset = cs;
+				encoder = e;
+			}
+			return encoder.reset();
+		}
+
+		CharsetDecoder getDecoder(final Charset cs) {
+			
+			if (cs != decoderCharset) {
+				CharsetDecoder d = decoders.get(cs);
+				if (d == null) {
+					d = cs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+					decoders.put(cs, d);
+				}
+				decoderCharset = cs;
+				decoder = d;
+			}
+			return decoder.reset();
+		}
+		
+		byte[] getBytes(final int size) {
+			
+			if (bytes.length < size) {
+				if (size > MAX_SCRATCH_SIZE) return new byte[size];
+				bytes = new byte[Math.max(size, Math.min(MAX_SCRATCH_SIZE, bytes.length * 2))];
+			}
+			return bytes;
+		}
+
+		char[] getChars(final int size) {
+			
+			if (chars.length < size) {
+				if (size > MAX_SCRATCH_SIZE) return new char[size];
+				chars = new char[Math.max(size, Math.min(MAX_SCRATCH_SIZE, chars.length * 2))];
+			}
+			return chars;
+		}
+	}
+
+	/** Encoders and decoders are not thread-safe, each thread has its own (re-used) instances. */
+	private static final ManagedThreadLocal<Coders> coders = new ManagedThreadLocal<Coders>(false) {
+		@Override protected Coders initialValue() { return new Coders(); }
+	};
+
 	public static Charset findCharset(final String alias) throws UnsupportedEncodingException {
 		
 		try {
@@ -69,22 +156,19 @@ public class StringUtils {
 	public static String toString(final byte[] value, final int offset, final int length,
 			final String encoding) throws UnsupportedEncodingException {
 
-		Charset cs = findCharset(encoding);
-		return cs.decode(ByteBuffer.wrap(value, offset, length)).toString();
+		return toString(value, offset, length, findCharset(encoding));
 	}
 
 	public static String toString(final byte[] value, final String encoding)
 			throws UnsupportedEncodingException {
 
-		Charset cs = findCharset(encoding);
-		return cs.decode(ByteBuffer.wrap(value)).toString();
+		return toString(value, 0, value.length, findCharset(encoding));
 	}
 
 	public static String toString(final byte[] value, final int offset, final int length) {
 
 		try {
-			Charset cs = findCharset(platformEncoding);
-			return cs.decode(ByteBuffer.wrap(value, offset, length)).toString();
+			return toString(value, offset, length, findCharset(platformEncoding));
 		} catch (UnsupportedEncodingException e) {
 			// can't happen, emulating new String(byte[])
 		}
@@ -94,8 +178,7 @@ public class StringUtils {
 	public static String toString(final byte[] value) {
 		
 		try {
-			Charset cs = findCharset(platformEncoding);
-			return cs.decode(ByteBuffer.wrap(value)).toString();
+			return toString(value, 0, value.length, findCharset(platformEncoding));
 		} catch (UnsupportedEncodingException e) {
 			// can't happen, emulating new String(byte[])
 		}
@@ -105,32 +188,337 @@ public class StringUtils {
 	public static byte[] getBytes(final String value, final String encoding)
 			throws UnsupportedEncodingException {
 
-		Charset cs = findCharset(encoding);
-		// can't simply .array() this to get the bytes
-		// especially with variable-length charsets the 
-		// buffer is sometimes larger than the actual encoded data
-		ByteBuffer buf = cs.encode(value);
-		int encodedLen = buf.limit();
-		byte[] asBytes = new byte[encodedLen];
-		buf.get(asBytes, 0, encodedLen);
-		return asBytes;
+		return getBytes(value, findCharset(encoding));
 	}
 
 	public static byte[] getBytes(final String value) {
 		
 		try {
-			Charset cs = findCharset(platformEncoding);
-			ByteBuffer buf = cs.encode(value);
-			int encodedLen = buf.limit();
-			byte[] asBytes = new byte[encodedLen];
-			buf.get(asBytes, 0, encodedLen);
-			return asBytes;
+			return getBytes(value, findCharset(platformEncoding));
 		} catch (UnsupportedEncodingException e) {
 			// can't happen, emulating new String(byte[])
 		}
 		return null;
 	}
 	
+	private static int fastPath(final Charset cs) {
+		
+		if (cs == UTF_8) return UTF8;
+		if (cs == ISO_8859_1) return ISO;
+		if (cs == US_ASCII) return ASCII;
+		// Charset.forName can return a new instance for the same charset.
+		final String name = cs.name();
+		if ("UTF-8".equals(name)) return UTF8;
+		if ("ISO-8859-1".equals(name)) return ISO;
+		if ("US-ASCII".equals(name)) return ASCII;
+		return 0;
+	}
+
+	/** 
+	 * Encodes value in charset cs. 
+	 * Same result as {@link String#getBytes(Charset)} but faster for US-ASCII, ISO-8859-1 and UTF-8
+	 * and re-using a per-thread encoder for other charsets. 
+	 */
+	public static byte[] getBytes(final String value, final Charset cs) {
+		
+		final int length = value.length();
+		final int fp = fastPath(cs);
+		if (fp == UTF8) {
+			byte[] b = new byte[utf8Length(value)];
+			putUtf8(value, b, 0, b.length);
+			return b;
+		}
+		if (fp != 0) {
+			byte[] b = new byte[length];
+			int size = putSingleByte(value, b, 0, (fp == ASCII ? 0x80 : 0x100));
+			return (size == length ? b : Arrays.copyOf(b, size));
+		}
+		final Coders c = coders.get();
+		final CharsetEncoder encoder = c.getEncoder(cs);
+		final byte[] scratch = c.getBytes((int) (length * (double) encoder.maxBytesPerChar()) + 16);
+		int size = encode(encoder, value, scratch, 0, scratch.length);
+		return Arrays.copyOf(scratch, size);
+	}
+
+	/**
+	 * Encodes value in charset cs into the (caller-supplied) buffer dest, no intermediate objects are created
+	 * for US-ASCII, ISO-8859-1 and UTF-8. 
+	 * Use {@link #maxEncodedLength(String, Charset)} to determine a buffer size that always fits.
+	 * @return The amount of bytes written to dest, or -1 if the encoded value does not fit in dest 
+	 * (dest may contain partially encoded bytes).
+	 */
+	public static int encode(final String value, final Charset cs, final byte[] dest, final int offset) {
+		
+		final int length = value.length();
+		final int available = dest.length - offset;
+		final int fp = fastPath(cs);
+		if (fp == UTF8) {
+			// Only calculate the exact length when the value might not fit.
+			if (available < length * 3 && utf8Length(value) > available) return -1;
+			return putUtf8(value, dest, offset, available);
+		}
+		if (fp != 0) {
+			if (length > available) {
+				// Surrogate pairs are encoded as one byte.
+				if (value.codePointCount(0, length) > available) return -1;
+			}
+			return putSingleByte(value, dest, offset, (fp == ASCII ? 0x80 : 0x100));
+		}
+		return encode(coders.get().getEncoder(cs), value, dest, offset, available);
+	}
+	
+	private static int encode(final CharsetEncoder encoder, final String value, final byte[] dest, final int offset, final int length) {
+		
+		final ByteBuffer out = ByteBuffer.wrap(dest, offset, length);
+		CoderResult cr = encoder.encode(CharBuffer.wrap(value), out, true);
+		if (!cr.isOverflow()) cr = encoder.flush(out);
+		return (cr.isOverflow() ? -1 : out.position() - offset);
+	}
+	
+	/** The maximum amount of bytes needed to encode value in charset cs (see {@link #encode(String, Charset, byte[], int)}). */
+	public static int maxEncodedLength(final String value, final Charset cs) {
+		
+		final int fp = fastPath(cs);
+		if (fp == UTF8) return value.length() * 3;
+		if (fp != 0) return value.length();
+		return (int) (value.length() * (double) coders.get().getEncoder(cs).maxBytesPerChar()) + 16;
+	}
+
+	/** Writes characters below limit as one byte, others as '?' (a surrogate pair is one character). */
+	private static int putSingleByte(final String s, final byte[] b, final int offset, final int limit) {
+		
+		final int length = s.length();
+		int pos = offset;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < limit) {
+				b[pos++] = (byte) c;
+			} else {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) i++;
+				b[pos++] = '?';
+			}
+		}
+		return pos - offset;
+	}
+	
+	/** The amount of bytes needed to encode s in UTF-8 (unpaired surrogates are encoded as '?'). */
+	public static int utf8Length(final String s) {
+		
+		final int length = s.length();
+		int size = length;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) continue;
+			if (c < 0x800) {
+				size++;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				// 4 bytes for 2 chars
+				size += 2;
+				i++;
+			} else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+				size += 2;
+			}
+		}
+		return size;
+	}
+
+	/** 
+	 * Decodes bytes in charset cs.
+	 * Same result as {@link Charset#decode(ByteBuffer)} but faster for US-ASCII, ISO-8859-1 and UTF-8
+	 * and re-using a per-thread decoder and buffer for other charsets. 
+	 */
+	@SuppressWarnings("deprecation")
+	public static String toString(final byte[] value, final int offset, final int length, final Charset cs) {
+		
+		final int fp = fastPath(cs);
+		if (fp == ISO || (fp == ASCII && isAscii(value, offset, length))) {
+			// The deprecated constructor creates the string from the bytes without a decoder and without copying a char-array.
+			return new String(value, 0, offset, length);
+		}
+		final Coders c = coders.get();
+		final char[] scratch = c.getChars(fp == 0 ? (int) (length * (double) c.getDecoder(cs).maxCharsPerByte()) + 16 : length);
+		return new String(scratch, 0, decode(value, offset, length, cs, scratch, 0));
+	}
+
+	/**
+	 * Decodes bytes in charset cs into the (caller-supplied) buffer dest, no intermediate objects are created
+	 * for US-ASCII, ISO-8859-1 and UTF-8 (these need at most one char per byte).
+	 * @return The amount of chars written to dest, or -1 if the decoded value does not fit in dest.
+	 */
+	public static int decode(final byte[] value, final int offset, final int length, final Charset cs, final char[] dest, final int destOffset) {
+		
+		final int fp = fastPath(cs);
+		if (fp == 0) {
+			final CharsetDecoder decoder = coders.get().getDecoder(cs);
+			final CharBuffer out = CharBuffer.wrap(dest, destOffset, dest.length - destOffset);
+			CoderResult cr = decoder.decode(ByteBuffer.wrap(value, offset, length), out, true);
+			if (!cr.isOverflow()) cr = decoder.flush(out);
+			return (cr.isOverflow() ? -1 : out.position() - destOffset);
+		}
+		if (fp == UTF8) {
+			int size = decodeUtf8(value, offset, length, dest, destOffset);
+			if (size != -2) return size;
+			// Malformed input: use the decoder for the same replacement characters as Charset.decode.
+			final CharsetDecoder decoder = coders.get().getDecoder(UTF_8);
+			final CharBuffer out = CharBuffer.wrap(dest, destOffset, dest.length - destOffset);
+			CoderResult cr = decoder.decode(ByteBuffer.wrap(value, offset, length), out, true);
+			if (!cr.isOverflow()) cr = decoder.flush(out);
+			return (cr.isOverflow() ? -1 : out.position() - destOffset);
+		}
+		if (length > dest.length - destOffset) return -1;
+		final int end = offset + length;
+		int pos = destOffset;
+		if (fp == ISO) {
+			for (int i = offset; i < end; i++) {
+				dest[pos++] = (char) (value[i] & 0xFF);
+			}
+		} else {
+			for (int i = offset; i < end; i++) {
+				byte b = value[i];
+				dest[pos++] = (b < 0 ? '\uFFFD' : (char) b);
+			}
+		}
+		return length;
+	}
+	
+	private static boolean isAscii(final byte[] value, final int offset, final int length) {
+		
+		final int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			if (value[i] < 0) return false;
+		}
+		return true;
+	}
+	
+	/** 
+	 * Decodes well-formed UTF-8.
+	 * @return The amount of chars written, -1 if dest is too small or -2 if the input is malformed. 
+	 */
+	private static int decodeUtf8(final byte[] b, final int offset, final int length, final char[] dest, final int destOffset) {
+		
+		final int end = offset + length;
+		final int destEnd = dest.length;
+		int i = offset;
+		int pos = destOffset;
+		// ASCII loop
+		while (i < end && pos < destEnd && b[i] >= 0) {
+			dest[pos++] = (char) b[i++];
+		}
+		while (i < end) {
+			if (pos >= destEnd) return -1;
+			int b0 = b[i];
+			if (b0 >= 0) {
+				dest[pos++] = (char) b0;
+				i++;
+				continue;
+			}
+			b0 &= 0xFF;
+			if (b0 < 0xC2) return -2;
+			if (b0 < 0xE0) {
+				if (i + 1 >= end) return -2;
+				int b1 = b[i + 1];
+				if ((b1 & 0xC0) != 0x80) return -2;
+				dest[pos++] = (char) (((b0 & 0x1F) << 6) | (b1 & 0x3F));
+				i += 2;
+			} else if (b0 < 0xF0) {
+				if (i + 2 >= end) return -2;
+				int b1 = b[i + 1] & 0xFF;
+				int b2 = b[i + 2];
+				if ((b1 & 0xC0) != 0x80 || (b2 & 0xC0) != 0x80) return -2;
+				// No overlong encoding and no surrogates.
+				if ((b0 == 0xE0 && b1 < 0xA0) || (b0 == 0xED && b1 > 0x9F)) return -2;
+				dest[pos++] = (char) (((b0 & 0x0F) << 12) | ((b1 & 0x3F) << 6) | (b2 & 0x3F));
+				i += 3;
+			} else if (b0 < 0xF5) {
+				if (i + 3 >= end) return -2;
+				int b1 = b[i + 1] & 0xFF;
+				int b2 = b[i + 2];
+				int b3 = b[i + 3];
+				if ((b1 & 0xC0) != 0x80 || (b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) return -2;
+				if ((b0 == 0xF0 && b1 < 0x90) || (b0 == 0xF4 && b1 > 0x8F)) return -2;
+				if (pos + 1 >= destEnd) return -1;
+				int cp = ((b0 & 0x07) << 18) | ((b1 & 0x3F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F);
+				dest[pos++] = (char) ((cp >>> 10) + (Character.MIN_HIGH_SURROGATE - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10)));
+				dest[pos++] = (char) ((cp & 0x3FF) + Character.MIN_LOW_SURROGATE);
+				i += 4;
+			} else {
+				return -2;
+			}
+		}
+		return pos - destOffset;
+	}
+	
+	/** 
+	 * Writes s as UTF-8 bytes into b without creating intermediate objects. 
+	 * Truncates s if it does not fit in maxLength bytes (a character is never partially written).
+	 * Unpaired surrogate characters are written as '?'.
+	 * @return The amount of bytes written. 
+	 */
+	public static int putUtf8(final String s, final byte[] b, final int offset, final int maxLength) {
+		
+		if (s == null) return 0;
+		int pos = offset;
+		int end = offset + maxLength;
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (pos + 1 > end) break;
+				b[pos++] = (byte) c;
+			} else {
+				int size = utf8CharLength(s, i);
+				if (pos + size > end) break;
+				pos = putUtf8Char(s, i, b, pos);
+				if (size == 4) i++;
+			}
+		}
+		return pos - offset;
+	}
+	
+	/** 
+	 * The amount of bytes needed to encode the character at index i of s in UTF-8: 
+	 * 4 for a surrogate pair (the characters at i and i + 1), 1 for an unpaired surrogate (written as '?'). 
+	 */
+	public static int utf8CharLength(final String s, final int i) {
+		
+		char c = s.charAt(i);
+		if (c < 0x80) return 1;
+		if (c < 0x800) return 2;
+		if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) return 3;
+		return (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)) ? 4 : 1);
+	}
+	
+	/**
+	 * Writes the character at index i of s as UTF-8 bytes into b (the amount of bytes is {@link #utf8CharLength(String, int)},
+	 * the caller ensures there is room). This is the one UTF-8 encoder used by the fast paths in this project
+	 * (e.g. {@link #putUtf8(String, byte[], int, int)}, {@link ResponseEncoder} and {@link AccessLog}).
+	 * @return The new position in b: pos + 4 if the surrogate pair at i and i + 1 was written 
+	 * (the caller skips the low surrogate at i + 1).
+	 */
+	public static int putUtf8Char(final String s, final int i, final byte[] b, int pos) {
+		
+		char c = s.charAt(i);
+		if (c < 0x80) {
+			b[pos++] = (byte) c;
+		} else if (c < 0x800) {
+			b[pos++] = (byte) (0xC0 | (c >> 6));
+			b[pos++] = (byte) (0x80 | (c & 0x3F));
+		} else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+			b[pos++] = (byte) (0xE0 | (c >> 12));
+			b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			b[pos++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			int cp = Character.toCodePoint(c, s.charAt(i + 1));
+			b[pos++] = (byte) (0xF0 | (cp >> 18));
+			b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+			b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			b[pos++] = (byte) (0x80 | (cp & 0x3F));
+		} else {
+			b[pos++] = '?';
+		}
+		return pos;
+	}
+
 	/**
 	 * Surround a given string with a 'border' string, useful when constructing 'like' queries.
 	 * Examples:
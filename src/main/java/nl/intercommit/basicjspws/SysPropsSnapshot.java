@@ -0,0 +1,72 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+/**
+ * Rendered system environment and system properties (see {@link SysPropsUtil#getSnapshot()}).
+ * The plain text rendering is also available as pre-encoded UTF-8 bytes so that it can be written directly to a response.
+ * @author FWiers
+ *
+ */
+public class SysPropsSnapshot {
+
+	private final String systemEnv;
+	private final String systemProps;
+	private final byte[] textBytes;
+	private final int propsCount;
+	private final int propsHash;
+	private final long created;
+	/** Updated when the system properties are checked and not changed. */
+	volatile long checked;
+	
+	SysPropsSnapshot(final String systemEnv, final String systemProps, final int propsCount, final int propsHash, final long created) {
+		
+		this.systemEnv = systemEnv;
+		this.systemProps = systemProps;
+		this.propsCount = propsCount;
+		this.propsHash = propsHash;
+		this.created = created;
+		checked = created;
+		textBytes = StringUtils.getBytes("System environment properties:" + systemEnv + SysPropsUtil.lf + SysPropsUtil.lf 
+				+ "System properties:" + systemProps + SysPropsUtil.lf, StringUtils.UTF_8);
+	}
+	
+	/** Same as {@link SysPropsUtil#getSystemEnv()}. */
+	public String getSystemEnv() { return systemEnv; }
+
+	/** Same as {@link SysPropsUtil#getSystemProps()}. */
+	public String getSystemProps() { return systemProps; }
+
+	/** 
+	 * The system environment and system properties as plain text encoded in UTF-8. 
+	 * Do not modify the returned bytes (the array is shared). 
+	 */
+	public byte[] getTextBytes() { return textBytes; }
+	
+	/** True if the system properties have the same amount and content-hash. */
+	boolean isSame(final int count, final int hash) {
+		return (propsCount == count && propsHash == hash);
+	}
+	
+	/** Time (milliseconds) the snapshot was rendered. */
+	public long getCreated() { return created; }
+	
+	/** Content-hash of the system properties, for use as entity tag. */
+	public int getPropsHash() { return propsHash; }
+}
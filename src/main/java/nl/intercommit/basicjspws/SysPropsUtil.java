@@ -20,6 +20,7 @@ package nl.intercommit.basicjspws;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Properties;
 
 /**
  * Static methods dealing with propery values from the system (environment).
@@ -35,6 +36,11 @@ public class SysPropsUtil {
 	/** Set to true to disable logging of system (environment) properties by {@link #logSysProps(org.slf4j.Logger, boolean, boolean)}. */
 	public static boolean logNothing;
 
+	/** Minimum time between checks for changed system properties by {@link #getSnapshot()} (default 5 seconds). */
+	public static volatile long snapshotCheckIntervalMs = 5000L;
+	
+	private static volatile SysPropsSnapshot snapshot;
+
 	/**
 	 * Shows system properties (from {@link System#getProperties()}) and system environment properties (from {@link System#getenv()}) in log.
 	 * @param log The log to log the properties to in one log-statement.
@@ -58,6 +64,30 @@ public class SysPropsUtil {
 		}
 	}
 
+	/**
+	 * Returns the rendered system environment and system properties.
+	 * The snapshot is rendered again only when the system properties changed (different amount or content-hash).
+	 * Changes are checked at most once every {@link #snapshotCheckIntervalMs}.
+	 * The system environment cannot change and is rendered once.
+	 */
+	public static SysPropsSnapshot getSnapshot() {
+		
+		SysPropsSnapshot s = snapshot;
+		final long now = System.currentTimeMillis();
+		if (s != null && now - s.checked < snapshotCheckIntervalMs) return s;
+		final Properties props = System.getProperties();
+		final int count = props.size();
+		final int hash = props.hashCode();
+		if (s != null && s.isSame(count, hash)) {
+			s.checked = now;
+			return s;
+		}
+		// Concurrent updates can render twice, the result is the same.
+		s = new SysPropsSnapshot((s == null ? getSystemEnv() : s.getSystemEnv()), getSystemProps(), count, hash, now);
+		snapshot = s;
+		return s;
+	}
+
 	public static String getSystemEnv() {
 
 		ArrayList<String> sysKeys = new ArrayList<String>(); 
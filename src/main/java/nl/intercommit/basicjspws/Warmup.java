@@ -0,0 +1,392 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up the JIT compiler and the jsp-pages by replaying synthetic requests through the {@link AppFilter} 
+ * and the {@link AppServlet} (and the controllers) before the application reports it is ready to take traffic.
+ * <br>Settings are read from {@link AppInit#getAppConfig()} using the keys:
+ * <br> - baseName.warmup: true to enable warmup (default false, the application is ready when the servlet is initialized).
+ * <br> - baseName.warmup.urls: comma-separated list of URLs relative to the base URL, 
+ * optionally with a query string (default {@link #DEFAULT_URLS}).
+ * <br> - baseName.warmup.iterations: the amount of times all URLs are requested (default 1000).
+ * <br> - baseName.warmup.time: the maximum duration of the warmup (default 30s).
+ * <br>Warmup runs in a background thread after {@link AppServlet#init()} with mock request and response objects 
+ * (responses are discarded). Warmup requests are not counted in the statistics and not written to the access log.
+ * <br>Warmup requests execute the real controllers: do not use URLs of controllers with side effects 
+ * (e.g. controllers that change data or call other services). Long-poll URLs such as pages/logtail 
+ * block the warmup thread until the poll times out.
+ * The warmup is stopped when the application is stopped (see {@link #stop()}).
+ * The readiness is shown by the {@link nl.intercommit.basicjspws.controllers.Ready} controller, 
+ * use it as health-check for load balancers.
+ * @author FWiers
+ *
+ */
+public class Warmup implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(Warmup.class);
+	
+	public static final String DEFAULT_URLS = "pages/index,pages/stats,pages/log,pages/logerror,pages/sysenv";
+	public static final int DEFAULT_ITERATIONS = 1000;
+	public static final long DEFAULT_TIME_MS = 30000L;
+
+	private final boolean enabled;
+	private final String[] urls;
+	private final int iterations;
+	private final long maxTimeMs;
+	private final String contextPath;
+	
+	private volatile Filter filter;
+	private volatile Thread thread;
+	private volatile boolean ready;
+	private volatile boolean stopped;
+	private volatile long durationMs;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private Servlet servlet;
+	
+	/**
+	 * Reads the warmup settings, see {@link Warmup}.
+	 * @param baseUrl The base URL, warmup URLs are relative to it.
+	 */
+	public Warmup(final AppConfig config, final String baseName, final String baseUrl) {
+		
+		final String prefix = baseName + ".warmup";
+		enabled = config.getBoolean(prefix, false);
+		List<String> l = new ArrayList<String>();
+		for (String url : config.get(prefix + ".urls", DEFAULT_URLS).split(",")) {
+			url = url.trim();
+			if (url.isEmpty()) continue;
+			if (url.startsWith("/")) url = url.substring(1);
+			l.add(baseUrl + url);
+		}
+		urls = l.toArray(new String[l.size()]);
+		iterations = Math.max(0, config.getInt(prefix + ".iterations", DEFAULT_ITERATIONS));
+		maxTimeMs = config.getDurationMs(prefix + ".time", DEFAULT_TIME_MS);
+		contextPath = baseUrl.substring(0, baseUrl.length() - 1);
+	}
+	
+	/** Set by {@link AppFilter#init(javax.servlet.FilterConfig)} so that warmup requests go through the filter. */
+	public void setFilter(final Filter filter) { this.filter = filter; }
+
+	/**
+	 * Starts the warmup in a background thread, or sets the state to ready if warmup is not enabled.
+	 * Called by {@link AppServlet#init()}.
+	 */
+	public synchronized void start(final Servlet servlet) {
+		
+		if (ready || thread != null || stopped) return;
+		if (!enabled || urls.length == 0 || iterations == 0) {
+			ready = true;
+			return;
+		}
+		this.servlet = servlet;
+		Thread t = new Thread(this, AppInit.appInstance.baseName + "-warmup");
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+		log.info("Warming up with " + urls.length + " URLs, " + iterations + " iterations, maximum " + maxTimeMs + " ms.");
+	}
+	
+	/** Replays the warmup requests, always ends with setting the state to ready. */
+	@Override
+	public void run() {
+		
+		final long start = System.currentTimeMillis();
+		final long end = start + maxTimeMs;
+		try {
+			for (int i = 0; i < iterations && !isStopping(); i++) {
+				for (String url : urls) {
+					if (isStopping()) break;
+					request(url);
+				}
+				if (System.currentTimeMillis() > end) break;
+			}
+		} finally {
+			durationMs = System.currentTimeMillis() - start;
+			thread = null;
+			if (stopped) {
+				log.info("Warmup stopped: " + getDescription());
+			} else {
+				ready = true;
+				log.info("Warmup finished, ready to take traffic: " + getDescription());
+			}
+		}
+	}
+	
+	/** A controller can clear the interrupted state (e.g. when catching an InterruptedException), the stopped flag remains set. */
+	private boolean isStopping() {
+		return (stopped || Thread.currentThread().isInterrupted());
+	}
+	
+	/**
+	 * Stops the warmup if it is running: interrupts the warmup thread and waits (at most 5 seconds) 
+	 * for the current warmup request to finish. The warmup cannot be started after this method is called.
+	 * Called by {@link AppInit#contextDestroyed(javax.servlet.ServletContextEvent)}, so that warmup requests
+	 * do not run in a stopped application (and do not keep the application's classes in memory).
+	 */
+	public synchronized void stop() {
+		
+		stopped = true;
+		Thread t = thread;
+		if (t == null) return;
+		t.interrupt();
+		try {
+			t.join(5000L);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		if (t.isAlive()) log.warn("Warmup thread did not stop within 5 seconds.");
+	}
+	
+	/** Executes one warmup request for the URL (with optional query string). */
+	protected void request(final String url) {
+		
+		final Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+		String uri = url;
+		String query = null;
+		int qi = url.indexOf('?');
+		if (qi > -1) {
+			uri = url.substring(0, qi);
+			query = url.substring(qi + 1);
+			parseQuery(query, params);
+		}
+		final MockResponse mresp = new MockResponse();
+		final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[] { HttpServletRequest.class }, new MockRequest(uri, query, params));
+		final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[] { HttpServletResponse.class }, mresp);
+		requests.incrementAndGet();
+		try {
+			Filter f = filter;
+			if (f == null) {
+				servlet.service(request, response);
+			} else {
+				f.doFilter(request, response, new FilterChain() {
+					@Override public void doFilter(final ServletRequest req, final ServletResponse resp) throws IOException, ServletException {
+						servlet.service(req, resp);
+					}
+				});
+			}
+			if (mresp.status >= 500) failures.incrementAndGet();
+		} catch (Throwable t) {
+			failures.incrementAndGet();
+			if (log.isDebugEnabled()) log.debug("Warmup request for " + url + " failed: " + t);
+		}
+	}
+	
+	private static void parseQuery(final String query, final Map<String, String[]> params) {
+		
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty()) continue;
+			int ei = pair.indexOf('=');
+			String name = (ei < 0 ? pair : pair.substring(0, ei));
+			String value = (ei < 0 ? "" : pair.substring(ei + 1));
+			try {
+				name = URLDecoder.decode(name, "UTF-8");
+				value = URLDecoder.decode(value, "UTF-8");
+			} catch (UnsupportedEncodingException ignored) {}
+			String[] old = params.get(name);
+			if (old == null) {
+				params.put(name, new String[] { value });
+			} else {
+				String[] values = new String[old.length + 1];
+				System.arraycopy(old, 0, values, 0, old.length);
+				values[old.length] = value;
+				params.put(name, values);
+			}
+		}
+	}
+	
+	/** True when warmup is done (or not enabled) and the application can take traffic. */
+	public boolean isReady() { return ready; }
+	
+	/** True if the current thread is executing warmup requests. */
+	public boolean isWarmupThread() { return (thread == Thread.currentThread()); }
+	
+	public boolean isEnabled() { return enabled; }
+
+	public long getRequests() { return requests.get(); }
+
+	public long getFailures() { return failures.get(); }
+
+	/** A one-line description of the warmup state. */
+	public String getDescription() {
+		
+		if (!enabled) return (ready ? "ready (no warmup)" : "not ready (servlet not initialized)");
+		return (ready ? "ready" : (stopped ? "stopped" : "warming up")) + ", " + requests.get() + " warmup requests (" + failures.get() + " failed)"
+				+ (ready || (stopped && thread == null) ? " in " + durationMs + " ms" : "");
+	}
+	
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + ": " + getDescription();
+	}
+	
+	/** Returns a default value for the return type of a method not implemented by the mocks. */
+	private static Object defaultValue(final Class<?> type) {
+		
+		if (!type.isPrimitive()) return null;
+		if (type == boolean.class) return Boolean.FALSE;
+		if (type == int.class) return Integer.valueOf(0);
+		if (type == long.class) return Long.valueOf(0L);
+		return null;
+	}
+	
+	/** Handler for a mock GET request from localhost. */
+	class MockRequest implements InvocationHandler {
+		
+		final String uri;
+		final String query;
+		final Map<String, String[]> params;
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		String encoding = "UTF-8";
+		
+		MockRequest(final String uri, final String query, final Map<String, String[]> params) {
+			this.uri = uri;
+			this.query = query;
+			this.params = params;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			
+			final String name = method.getName();
+			if ("getRequestURI".equals(name)) return uri;
+			if ("getRequestURL".equals(name)) return new StringBuffer("http://localhost").append(uri);
+			if ("getQueryString".equals(name)) return query;
+			if ("getMethod".equals(name)) return "GET";
+			if ("getProtocol".equals(name)) return "HTTP/1.1";
+			if ("getScheme".equals(name)) return "http";
+			if ("getContextPath".equals(name)) return contextPath;
+			if ("getServletPath".equals(name)) return uri.substring(contextPath.length());
+			if ("getRemoteAddr".equals(name) || "getLocalAddr".equals(name)) return "127.0.0.1";
+			if ("getRemoteHost".equals(name) || "getServerName".equals(name) || "getLocalName".equals(name)) return "localhost";
+			if ("getLocale".equals(name)) return Locale.getDefault();
+			if ("getLocales".equals(name)) return Collections.enumeration(Collections.singletonList(Locale.getDefault()));
+			if ("getCharacterEncoding".equals(name)) return encoding;
+			if ("setCharacterEncoding".equals(name)) { encoding = (String) args[0]; return null; }
+			if ("getParameter".equals(name)) {
+				String[] values = params.get(args[0]);
+				return (values == null ? null : values[0]);
+			}
+			if ("getParameterValues".equals(name)) return params.get(args[0]);
+			if ("getParameterMap".equals(name)) return Collections.unmodifiableMap(params);
+			if ("getParameterNames".equals(name)) return Collections.enumeration(params.keySet());
+			if ("getAttribute".equals(name)) return attributes.get(args[0]);
+			if ("setAttribute".equals(name)) { attributes.put((String) args[0], args[1]); return null; }
+			if ("removeAttribute".equals(name)) { attributes.remove(args[0]); return null; }
+			if ("getAttributeNames".equals(name)) return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+			if ("getHeaderNames".equals(name) || "getHeaders".equals(name)) return Collections.enumeration(Collections.emptyList());
+			if ("getIntHeader".equals(name) || "getContentLength".equals(name)) return Integer.valueOf(-1);
+			if ("getDateHeader".equals(name)) return Long.valueOf(-1L);
+			if ("getRequestDispatcher".equals(name)) {
+				return (AppInit.appInstance.sc == null ? null : AppInit.appInstance.sc.getRequestDispatcher((String) args[0]));
+			}
+			if ("getInputStream".equals(name)) return new EmptyInputStream();
+			return objectMethod(proxy, method, args);
+		}
+	}
+
+	/** Handler for a mock response that discards all output. */
+	static class MockResponse implements InvocationHandler {
+		
+		int status = 200;
+		String encoding = "UTF-8";
+		boolean committed;
+		PrintWriter writer;
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			
+			final String name = method.getName();
+			if ("setStatus".equals(name)) { status = (Integer) args[0]; return null; }
+			if ("sendError".equals(name)) { status = (Integer) args[0]; committed = true; return null; }
+			if ("sendRedirect".equals(name)) { status = 302; committed = true; return null; }
+			if ("isCommitted".equals(name)) return Boolean.valueOf(committed);
+			if ("flushBuffer".equals(name)) { committed = true; return null; }
+			if ("getCharacterEncoding".equals(name)) return encoding;
+			if ("setCharacterEncoding".equals(name)) { encoding = (String) args[0]; return null; }
+			if ("getLocale".equals(name)) return Locale.getDefault();
+			if ("getOutputStream".equals(name)) return new DiscardOutputStream();
+			if ("getWriter".equals(name)) {
+				if (writer == null) writer = new PrintWriter(new DiscardWriter());
+				return writer;
+			}
+			if (name.startsWith("encode")) return args[0];
+			return objectMethod(proxy, method, args);
+		}
+	}
+	
+	private static Object objectMethod(final Object proxy, final Method method, final Object[] args) {
+		
+		final String name = method.getName();
+		if ("equals".equals(name)) return Boolean.valueOf(proxy == args[0]);
+		if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+		if ("toString".equals(name)) return "Warmup " + method.getDeclaringClass().getSimpleName();
+		return defaultValue(method.getReturnType());
+	}
+
+	static class EmptyInputStream extends ServletInputStream {
+		@Override public int read() { return -1; }
+	}
+
+	static class DiscardOutputStream extends ServletOutputStream {
+		@Override public void write(final int b) {}
+		@Override public void write(final byte[] b, final int off, final int len) {}
+	}
+	
+	static class DiscardWriter extends Writer {
+		@Override public void write(final char[] cbuf, final int off, final int len) {}
+		@Override public void write(final String str, final int off, final int len) {}
+		@Override public void flush() {}
+		@Override public void close() {}
+	}
+}
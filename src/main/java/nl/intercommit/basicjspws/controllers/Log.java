@@ -18,11 +18,18 @@
 */
 package nl.intercommit.basicjspws.controllers;
 
+import static nl.intercommit.basicjspws.ControllerUtil.*;
+
+import java.io.PrintWriter;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import nl.intercommit.basicjspws.AppInit;
 import nl.intercommit.basicjspws.Controller;
+import nl.intercommit.basicjspws.LogBuffer;
+import nl.intercommit.basicjspws.LogEventFilter;
+import nl.intercommit.basicjspws.LogArchiveAppender;
+import nl.intercommit.basicjspws.LogBufferPage;
 import nl.intercommit.basicjspws.LogbackUtil;
 
 import org.slf4j.Logger;
@@ -32,10 +39,14 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.LoggingEvent;
-import ch.qos.logback.core.read.CyclicBufferAppender;
 
 /**
-* Shows log-statements from the "CYCLIC" log-buffer.
+* Shows log-statements from the "CYCLIC" log-buffer (see {@link LogbackUtil#getLogEventBuffer(String)}).
+* <br>Log events are written directly to the response as text, last event first.
+* Request parameters "offset" and "limit" (default {@link #DEFAULT_LIMIT}, max. {@link #MAX_LIMIT}) select a page of events,
+* request parameter "before" (a sequence number) can be used as cursor to show the next page
+* and request parameter "time" (milliseconds since epoch) shows the events logged at or before the given time.
+* <br>If request parameter "archive" is "true", log events are read from the "ARCHIVE" appender (see {@link LogArchiveAppender}). 
 * @author FWiers
 *
 */
@@ -43,8 +54,12 @@ public class Log implements Controller {
 	
 	private static final Logger log = LoggerFactory.getLogger(Log.class);
 
-	PatternLayout logLayout;
-	CyclicBufferAppender<ILoggingEvent> logBuffer;
+	/** Default amount of log events shown on one page. */
+	public static final int DEFAULT_LIMIT = 512;
+	/** Maximum amount of log events shown on one page. */
+	public static final int MAX_LIMIT = 100000;
+	/** Amount of log events copied from a log buffer in one go. */
+	public static final int COPY_SIZE = 64;
 	
 	@Override
 	public String getName() { return "logPageUrl"; }
@@ -52,35 +67,123 @@ public class Log implements Controller {
 	@Override
 	public String handleRequest(HttpServletRequest request,	HttpServletResponse response) {
 		
-		request.setAttribute(PAGE_TITLE, AppInit.appInstance.appName + " Log");
-		request.setAttribute("logText", "");
-		logBuffer = LogbackUtil.getLogBuffer("CYCLIC");
+		String bufferName = ("true".equals(getParamTrimmed(request, "archive")) ? "ARCHIVE" : "CYCLIC");
+		LogBuffer logBuffer = LogbackUtil.getLogEventBuffer(bufferName);
 		if (logBuffer == null) {
-			request.setAttribute("logTextInfo", "Log buffer is not available (please check log configuration for CYCLIC appender).");
-		} else if (logBuffer.getLength() == 0) {
-			request.setAttribute("logTextInfo", "No log events available, log buffer is empty.");
-		} else {
-			// logLayout cannot be stored: it no longer works when the log configuration file is updated. 
-			logLayout = new PatternLayout();
-			logLayout.setContext(LogbackUtil.getLoggerContext());
-			logLayout.setPattern("%d{dd/MM HH:mm:ss:SSS} %-5level %logger{35} - %msg%n");
-			logLayout.start();
-
-			int maxEvents = logBuffer.getLength(); 
-			request.setAttribute("logTextInfo", logLayout.doLayout(
-					createLoggingEvent("Showing " + maxEvents + " log events, last event first.")));
-			StringBuilder sb = new StringBuilder();
-			LoggingEvent le;
-			for (int i = maxEvents-1; i >= 0; i--) {
-				le = (LoggingEvent) logBuffer.get(i);
-				String line = logLayout.doLayout(le); 
-				sb.append(line);
+			return writeResponse(response, "text/plain", "Log buffer is not available (please check log configuration for " + bufferName + " appender).");
+		}
+		int count = writeLogEvents(request, response, logBuffer, "%d{dd/MM HH:mm:ss:SSS} %-5level %logger{35} - %msg%n", "log");
+		log.debug("Returned {} log events as text", count);
+		return null;
+	}
+	
+	/** Calls {@link #writeLogEvents(HttpServletRequest, HttpServletResponse, LogBuffer, String, String, LogEventFilter)} without a filter. */
+	public static int writeLogEvents(final HttpServletRequest request, final HttpServletResponse response, 
+			final LogBuffer logBuffer, final String logPattern, final String description) {
+		return writeLogEvents(request, response, logBuffer, logPattern, description, null);
+	}
+	
+	/**
+	 * Writes a page of log events from the log buffer to the response, last event first.
+	 * Events are copied from the log buffer in small chunks and written directly to the response,
+	 * memory usage does not depend on the size of the log buffer.
+	 * <br>Uses request parameters "before" (sequence number cursor), "time", "offset" and "limit".
+	 * @param logPattern The pattern for a {@link PatternLayout} used to format the log events.
+	 * @param description The type of log events (used in the informational line at the top of the response).
+	 * @param filter If not null, only events accepted by the filter are written (and counted for "offset" and "limit").
+	 * If the filter has a "to time" or request parameter "time" is set, the starting point is found using {@link LogBuffer#findLogSeqAfter(long)}
+	 * (for a filter, request parameter "time" limits the "to time" of the filter and the search starts {@link LogEventFilter#ORDER_MARGIN_MS} later).
+	 * @return The amount of log events written.
+	 */
+	public static int writeLogEvents(final HttpServletRequest request, final HttpServletResponse response, 
+			final LogBuffer logBuffer, final String logPattern, final String description,
+			final LogEventFilter filter) {
+		
+		long before = getParamLong(request, "before", Long.MAX_VALUE);
+		int offset = Math.max(0, getParamInt(request, "offset", 0));
+		int limit = Math.min(MAX_LIMIT, getParamInt(request, "limit", DEFAULT_LIMIT));
+		if (limit < 1) limit = DEFAULT_LIMIT;
+		long time = getParamLong(request, "time", Long.MAX_VALUE);
+		// The filter is not changed, it can be shared.
+		final long toTime = (filter == null ? Long.MAX_VALUE : Math.min(time, filter.toTime));
+		if (filter != null) {
+			time = LogEventFilter.getSearchTime(toTime);
+		}
+		if (time != Long.MAX_VALUE) {
+			before = Math.min(before, logBuffer.findLogSeqAfter(time));
+		}
+		// logLayout cannot be stored: it no longer works when the log configuration file is updated. 
+		PatternLayout logLayout = new PatternLayout();
+		logLayout.setContext(LogbackUtil.getLoggerContext());
+		logLayout.setPattern(logPattern);
+		logLayout.start();
+		LogBufferPage page = new LogBufferPage(filter == null ? Math.min(COPY_SIZE, limit) : COPY_SIZE);
+		int written = 0;
+		try {
+			// With a filter, the offset is applied to matching events only.
+			logBuffer.fillLogPage(before, (filter == null ? offset : 0), page);
+			response.setContentType("text/plain");
+			response.setCharacterEncoding(getDefaultEncoding());
+			PrintWriter pw = response.getWriter();
+			if (page.size == 0) {
+				pw.write(logLayout.doLayout(createLoggingEvent(page.lastSeq == 0L 
+						? "No " + description + " events available, log buffer is empty."
+						: "No " + description + " events available for this page (" + page.firstSeq + " to " + page.lastSeq + " in log buffer).")));
+				pw.flush();
+				return 0;
+			}
+			long first = page.startSeq;
+			if (filter == null) {
+				long last = Math.max(page.firstSeq, first - limit + 1);
+				pw.write(logLayout.doLayout(createLoggingEvent("Showing " + (first - last + 1) + " " + description 
+						+ " events (" + first + " to " + last + " of " + page.firstSeq + " to " + page.lastSeq + "), last event first.")));
+			} else {
+				pw.write(logLayout.doLayout(createLoggingEvent("Showing at most " + limit + " " + description 
+						+ " events matching " + filter + (toTime < filter.toTime ? " time<=" + toTime : "") + (offset > 0 ? " after skipping " + offset + " matching events" : "") 
+						+ ", starting at " + first + " (" + page.firstSeq + " to " + page.lastSeq + " in log buffer), last event first.")));
+			}
+			pw.write('\n');
+			long nextBefore = first + 1;
+			boolean done = false;
+			while (page.size > 0 && !done) {
+				for (int i = 0; i < page.size; i++) {
+					ILoggingEvent le = page.events[i];
+					if (filter != null) {
+						if (filter.isBefore(le)) {
+							done = true;
+							break;
+						}
+						nextBefore = page.seqs[i];
+						if (le.getTimeStamp() > toTime || !filter.accept(le)) continue;
+						if (offset > 0) {
+							offset--;
+							continue;
+						}
+					} else {
+						nextBefore = page.seqs[i];
+					}
+					pw.write(logLayout.doLayout(le));
+					if (++written >= limit) {
+						done = true;
+						break;
+					}
+				}
+				if (done || !page.hasMore()) break;
+				logBuffer.fillLogPage(page.getEndSeq(), 0, page);
+			}
+			if (written >= limit && nextBefore > page.firstSeq) {
+				pw.write('\n');
+				pw.write(logLayout.doLayout(createLoggingEvent("More " + description 
+						+ " events available, use request parameters \"before=" + nextBefore + "&limit=" + limit + "\" to show the next page.")));
 			}
-			request.setAttribute("logText", sb.toString());
-			log.debug("Returning {} log events as text", maxEvents);
+			pw.flush();
+		} catch (Exception e) {
+			log.warn("Could not write " + description + " events: " + e);
+		} finally {
+			page.clear();
 			logLayout.stop();
 		}
-		return "/WEB-INF/pages/log.jsp";
+		return written;
 	}
 	
 	public static LoggingEvent createLoggingEvent(String msg) {
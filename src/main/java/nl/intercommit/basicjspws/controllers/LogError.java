@@ -18,23 +18,21 @@
 */
 package nl.intercommit.basicjspws.controllers;
 
+import static nl.intercommit.basicjspws.ControllerUtil.*;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import nl.intercommit.basicjspws.AppInit;
 import nl.intercommit.basicjspws.Controller;
+import nl.intercommit.basicjspws.LogBuffer;
 import nl.intercommit.basicjspws.LogbackUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ch.qos.logback.classic.PatternLayout;
-import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.spi.LoggingEvent;
-import ch.qos.logback.core.read.CyclicBufferAppender;
-
 /**
  * Shows log-statements from the "CYCLICERROR" log-buffer.
+ * Uses the same request parameters as {@link Log}.
  * @author FWiers
  *
  */
@@ -42,44 +40,19 @@ public class LogError implements Controller {
 	
 	private static final Logger log = LoggerFactory.getLogger(LogError.class);
 
-	PatternLayout logLayout;
-	CyclicBufferAppender<ILoggingEvent> logBuffer;
-
 	@Override
 	public String getName() { return "logErrorPageUrl"; }
 
 	@Override
 	public String handleRequest(HttpServletRequest request,	HttpServletResponse response) {
 		
-		request.setAttribute(PAGE_TITLE, AppInit.appInstance.appName + " Log error");
-		request.setAttribute("logText", "");
-		logBuffer = LogbackUtil.getLogBuffer("CYCLICERROR");
+		LogBuffer logBuffer = LogbackUtil.getLogEventBuffer("CYCLICERROR");
 		if (logBuffer == null) {
-			request.setAttribute("logTextInfo", "Log error buffer is not available (please check log configuration for CYCLICERROR appender).");
-		} else if (logBuffer.getLength() == 0) {
-			request.setAttribute("logTextInfo", "No error log events available, log buffer is empty.");
-		} else {
-			// logLayout cannot be stored: it no longer works when the log configuration file is updated. 
-			logLayout = new PatternLayout();
-			logLayout.setContext(LogbackUtil.getLoggerContext());
-			logLayout.setPattern("%d [%thread] %-5level %logger - %msg%n");
-			logLayout.start();
-
-			int maxEvents = logBuffer.getLength(); 
-			request.setAttribute("logTextInfo", logLayout.doLayout(
-					Log.createLoggingEvent("Showing " + maxEvents + " log error events, last event first.")));
-			StringBuilder sb = new StringBuilder();
-			LoggingEvent le;
-			for (int i = maxEvents-1; i >= 0; i--) {
-				le = (LoggingEvent) logBuffer.get(i);
-				String line = logLayout.doLayout(le); 
-				sb.append(line);
-			}
-			request.setAttribute("logText", sb.toString());
-			log.debug("Returning {} log error events as text", maxEvents);
-			logLayout.stop();
+			return writeResponse(response, "text/plain", "Log error buffer is not available (please check log configuration for CYCLICERROR appender).");
 		}
-		return "/WEB-INF/pages/log.jsp";
+		int count = Log.writeLogEvents(request, response, logBuffer, "%d [%thread] %-5level %logger - %msg%n", "log error");
+		log.debug("Returned {} log error events as text", count);
+		return null;
 	}
 	
 }
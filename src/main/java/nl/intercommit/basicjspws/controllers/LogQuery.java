@@ -0,0 +1,92 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.controllers;
+
+import static nl.intercommit.basicjspws.ControllerUtil.*;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nl.intercommit.basicjspws.Controller;
+import nl.intercommit.basicjspws.LogBuffer;
+import nl.intercommit.basicjspws.LogEventFilter;
+import nl.intercommit.basicjspws.LogbackUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * Searches log-statements in the "CYCLIC" log-buffer (or the "CYCLICERROR" log-buffer when request parameter "buffer" is "error").
+ * <br>Search criteria are set via request parameters (see also {@link LogEventFilter}):
+ * <br> - level: minimum log level (e.g. WARN)
+ * <br> - logger: logger name prefix
+ * <br> - thread: thread name
+ * <br> - from / to: timestamp range in milliseconds since epoch (inclusive)
+ * <br> - regex: regular expression to find in the log message
+ * <br>Matching events are written directly to the response, last event first. 
+ * Request parameters "before", "offset" (an amount of matching events to skip) and "limit" can be used for paging (see {@link Log}).
+ * @author FWiers
+ *
+ */
+public class LogQuery implements Controller {
+
+	private static final Logger log = LoggerFactory.getLogger(LogQuery.class);
+
+	@Override
+	public String getName() { return "logQueryPageUrl"; }
+
+	@Override
+	public String handleRequest(final HttpServletRequest request, final HttpServletResponse response) {
+		
+		String bufferName = ("error".equalsIgnoreCase(getParamTrimmed(request, "buffer")) ? "CYCLICERROR" : "CYCLIC");
+		LogBuffer logBuffer = LogbackUtil.getLogEventBuffer(bufferName);
+		if (logBuffer == null) {
+			return writeResponse(response, "text/plain", "Log buffer is not available (please check log configuration for " + bufferName + " appender).");
+		}
+		LogEventFilter filter = new LogEventFilter();
+		String level = getParamTrimmed(request, "level");
+		if (level != null) {
+			filter.level = Level.toLevel(level, null);
+			if (filter.level == null) {
+				return sendError(response, 400, "Invalid log level: " + level);
+			}
+		}
+		filter.loggerPrefix = getParamTrimmed(request, "logger");
+		filter.threadName = getParamTrimmed(request, "thread");
+		filter.fromTime = getParamLong(request, "from", Long.MIN_VALUE);
+		filter.toTime = getParamLong(request, "to", Long.MAX_VALUE);
+		String regex = getParamTrimmed(request, "regex");
+		if (regex != null) {
+			try {
+				filter.messagePattern = Pattern.compile(regex);
+			} catch (PatternSyntaxException pse) {
+				return sendError(response, 400, "Invalid regular expression: " + pse.getMessage());
+			}
+		}
+		int count = Log.writeLogEvents(request, response, logBuffer, "%d [%thread] %-5level %logger - %msg%n", "log", filter);
+		if (log.isDebugEnabled()) log.debug("Returned {} log events from {} matching {}", new Object[] { count, bufferName, filter });
+		return null;
+	}
+
+}
@@ -0,0 +1,248 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.controllers;
+
+import static nl.intercommit.basicjspws.ControllerUtil.*;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nl.intercommit.basicjspws.Controller;
+import nl.intercommit.basicjspws.JsonWriter;
+import nl.intercommit.basicjspws.LogBuffer;
+import nl.intercommit.basicjspws.LogBufferPage;
+import nl.intercommit.basicjspws.LogbackUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Streams new log-statements from the "CYCLIC" log-buffer (or the "CYCLICERROR" log-buffer when request parameter "buffer" is "error").
+ * <br>If the request accepts "text/event-stream" (or request parameter "format" is "sse"), log events are sent as Server-Sent Events
+ * for at most "seconds" (default {@link #DEFAULT_SSE_SECONDS}) seconds. 
+ * Each event has the sequence number of the log event as id, so that a client (e.g. a browser's EventSource) 
+ * can reconnect and resume using the "Last-Event-ID" header.
+ * <br>Otherwise a long-poll is done: the request waits at most "seconds" (default {@link #DEFAULT_POLL_SECONDS}) seconds
+ * for new log events and returns the new log events as JSON (see {@link JsonWriter}). 
+ * The next long-poll should use the returned "lastSeq" as the value for request parameter "after". 
+ * <br>All clients read from the same log-buffer, log events are stored only once and appending log events is never 
+ * delayed by clients. A client that falls behind more than the size of the log-buffer misses events: 
+ * a Server-Sent Events stream is then closed with a "dropped" event, a long-poll response has "missed" set to true.
+ * <br>When the sequence number of the client is higher than the sequence number of the latest event in the log-buffer,
+ * the sequence numbers were restarted (e.g. after a redeploy or a new log configuration): events are sent from the oldest 
+ * available event, preceded by a "reset" event for a Server-Sent Events stream, a long-poll response has "reset" set to true.
+ * <br>The servlet container's request thread is used for the duration of the request, 
+ * the amount of concurrent clients is limited to {@link #MAX_CLIENTS}.
+ * @author FWiers
+ *
+ */
+public class LogTail implements Controller {
+
+	private static final Logger log = LoggerFactory.getLogger(LogTail.class);
+
+	public static final int DEFAULT_SSE_SECONDS = 30;
+	public static final int DEFAULT_POLL_SECONDS = 20;
+	public static final int MAX_SECONDS = 300;
+	public static final int MAX_CLIENTS = 4;
+	/** Time to wait before checking the log buffer for new events. */
+	public static final long POLL_INTERVAL_MS = 200L;
+	/** Time between comments sent to detect closed Server-Sent Events connections. */
+	public static final long HEARTBEAT_MS = 10000L;
+	
+	private static final AtomicInteger clients = new AtomicInteger();
+	
+	@Override
+	public String getName() { return "logTailUrl"; }
+
+	@Override
+	public String handleRequest(final HttpServletRequest request, final HttpServletResponse response) {
+		
+		String bufferName = ("error".equalsIgnoreCase(getParamTrimmed(request, "buffer")) ? "CYCLICERROR" : "CYCLIC");
+		LogBuffer logBuffer = LogbackUtil.getLogEventBuffer(bufferName);
+		if (logBuffer == null) {
+			return sendError(response, 404, "Log buffer is not available (please check log configuration for " + bufferName + " appender).");
+		}
+		String accept = request.getHeader("Accept");
+		boolean sse = ("sse".equals(getParamTrimmed(request, "format")) || (accept != null && accept.contains("text/event-stream")));
+		long after = -1L;
+		String lastEventId = request.getHeader("Last-Event-ID");
+		if (!isEmpty(lastEventId)) {
+			try { after = Long.parseLong(lastEventId.trim()); } catch (NumberFormatException ignored) {}
+		}
+		if (after < 0L) after = getParamLong(request, "after", -1L);
+		int seconds = Math.min(MAX_SECONDS, getParamInt(request, "seconds", sse ? DEFAULT_SSE_SECONDS : DEFAULT_POLL_SECONDS));
+		if (clients.incrementAndGet() > MAX_CLIENTS) {
+			clients.decrementAndGet();
+			return sendError(response, 503, "Too many log tail clients, try again later.");
+		}
+		LogBufferPage page = new LogBufferPage(Log.COPY_SIZE);
+		// logLayout cannot be stored: it no longer works when the log configuration file is updated. 
+		PatternLayout logLayout = new PatternLayout();
+		logLayout.setContext(LogbackUtil.getLoggerContext());
+		logLayout.setPattern("%d{dd/MM HH:mm:ss:SSS} [%thread] %-5level %logger{35} - %msg%n");
+		logLayout.start();
+		try {
+			if (after < 0L) {
+				// Start with new log events.
+				logBuffer.fillLogPage(Long.MAX_VALUE, 0, page);
+				after = page.lastSeq;
+				page.clear();
+			}
+			long endTime = System.currentTimeMillis() + Math.max(0, seconds) * 1000L;
+			if (sse) {
+				writeEventStream(response, logBuffer, page, logLayout, after, endTime);
+			} else {
+				writeLongPoll(response, logBuffer, page, logLayout, after, endTime);
+			}
+		} catch (InterruptedException ie) {
+			log.debug("Log tail interrupted.");
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log.debug("Log tail stopped: " + e);
+		} finally {
+			clients.decrementAndGet();
+			page.clear();
+			logLayout.stop();
+		}
+		return null;
+	}
+	
+	protected void writeEventStream(final HttpServletResponse response, final LogBuffer logBuffer, final LogBufferPage page, 
+			final PatternLayout logLayout, long after, final long endTime) throws Exception {
+
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		PrintWriter pw = response.getWriter();
+		pw.write("retry: 1000\n\n");
+		pw.flush();
+		long lastWrite = System.currentTimeMillis();
+		while (System.currentTimeMillis() < endTime) {
+			if (readAfter(logBuffer, after, page)) {
+				pw.write("event: reset\ndata: log sequence restarted after " + after + ", sending from the oldest log event\n\n");
+				after = 0L;
+			}
+			if (after > 0L && page.firstSeq > after + 1) {
+				pw.write("event: dropped\ndata: " + (page.firstSeq - after - 1) + " log events missed\n\n");
+				pw.flush();
+				return;
+			}
+			if (page.size == 0) {
+				if (System.currentTimeMillis() - lastWrite > HEARTBEAT_MS) {
+					pw.write(":\n\n");
+					pw.flush();
+					if (pw.checkError()) return;
+					lastWrite = System.currentTimeMillis();
+				}
+				Thread.sleep(POLL_INTERVAL_MS);
+				continue;
+			}
+			for (int i = page.size - 1; i >= 0; i--) {
+				if (page.seqs[i] <= after) continue;
+				pw.write("id: ");
+				pw.write(Long.toString(page.seqs[i]));
+				pw.write('\n');
+				String text = logLayout.doLayout(page.events[i]);
+				int start = 0;
+				int end;
+				while ((end = text.indexOf('\n', start)) > -1 || start < text.length()) {
+					if (end < 0) end = text.length();
+					int lineEnd = (end > start && text.charAt(end - 1) == '\r' ? end - 1 : end);
+					pw.write("data: ");
+					pw.write(text, start, lineEnd - start);
+					pw.write('\n');
+					start = end + 1;
+				}
+				pw.write('\n');
+				after = page.seqs[i];
+			}
+			page.clear();
+			pw.flush();
+			if (pw.checkError()) return;
+			lastWrite = System.currentTimeMillis();
+		}
+	}
+	
+	protected void writeLongPoll(final HttpServletResponse response, final LogBuffer logBuffer, final LogBufferPage page, 
+			final PatternLayout logLayout, long after, final long endTime) throws Exception {
+		
+		boolean reset = readAfter(logBuffer, after, page);
+		if (reset) after = 0L;
+		while (page.size == 0 && System.currentTimeMillis() < endTime) {
+			Thread.sleep(POLL_INTERVAL_MS);
+			if (readAfter(logBuffer, after, page)) {
+				reset = true;
+				after = 0L;
+			}
+		}
+		response.setHeader("Cache-Control", "no-cache");
+		JsonWriter json = getJsonWriter(response);
+		long lastSeq = after;
+		json.beginObject().name("events").beginArray();
+		for (int i = page.size - 1; i >= 0; i--) {
+			ILoggingEvent le = page.events[i];
+			json.beginObject()
+				.name("seq").value(page.seqs[i])
+				.name("time").value(le.getTimeStamp())
+				.name("level").value(le.getLevel().toString())
+				.name("logger").value(le.getLoggerName())
+				.name("thread").value(le.getThreadName())
+				.name("text").value(logLayout.doLayout(le))
+				.endObject();
+			lastSeq = page.seqs[i];
+		}
+		json.endArray()
+			.name("lastSeq").value(lastSeq)
+			.name("missed").value(after > 0L && page.firstSeq > after + 1)
+			.name("reset").value(reset)
+			.endObject().send();
+	}
+	
+	/** 
+	 * Fills the page with at most a page-size of log events that have a sequence number higher than after,
+	 * the page contains the events last event first. 
+	 * @return true if after is higher than the sequence number of the latest event in the log buffer 
+	 * (the sequence was restarted): the page is filled with the oldest events instead (as if after is 0).
+	 */
+	protected static boolean readAfter(final LogBuffer logBuffer, final long after, final LogBufferPage page) {
+		
+		logBuffer.fillLogPage(Math.max(after, 0L) + 1 + page.events.length, 0, page);
+		if (after > page.lastSeq) {
+			page.clear();
+			readAfter(logBuffer, 0L, page);
+			return true;
+		}
+		if (page.size == 0 && page.firstSeq > after + 1) {
+			// Client is behind, continue with the oldest available events.
+			logBuffer.fillLogPage(page.firstSeq + page.events.length, 0, page);
+		}
+		// Remove events that are not new from the end of the page.
+		while (page.size > 0 && page.seqs[page.size - 1] <= after) {
+			page.events[--page.size] = null;
+		}
+		return false;
+	}
+	
+}
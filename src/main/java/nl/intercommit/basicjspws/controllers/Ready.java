@@ -0,0 +1,52 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.controllers;
+
+import static nl.intercommit.basicjspws.ControllerUtil.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nl.intercommit.basicjspws.AppInit;
+import nl.intercommit.basicjspws.Controller;
+import nl.intercommit.basicjspws.Warmup;
+
+/**
+ * Readiness check for load balancers: responds with status 200 and text "ready" when the application can take traffic,
+ * else with status 503 (e.g. while warming up, see {@link Warmup}).
+ * @author FWiers
+ *
+ */
+public class Ready implements Controller {
+
+	@Override
+	public String getName() { return "readyUrl"; }
+
+	@Override
+	public String handleRequest(final HttpServletRequest request, final HttpServletResponse response) {
+		
+		final Warmup warmup = AppInit.appInstance.warmup;
+		response.setHeader("Cache-Control", "no-cache");
+		if (warmup != null && warmup.isReady()) {
+			return writeConstant(response, "text/plain", getDefaultEncoding(), "ready");
+		}
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		return writeResponse(response, "text/plain", (warmup == null ? "not ready" : warmup.getDescription()));
+	}
+}
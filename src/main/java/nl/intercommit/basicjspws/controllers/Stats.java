@@ -22,13 +22,19 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import nl.intercommit.basicjspws.AppInit;
+import nl.intercommit.basicjspws.AppServlet;
 import nl.intercommit.basicjspws.AppStats;
 import nl.intercommit.basicjspws.Controller;
+import nl.intercommit.basicjspws.LogbackUtil;
+import nl.intercommit.basicjspws.ResponseTransfer;
 
 import static nl.intercommit.basicjspws.ControllerUtil.*;
 
 /**
- * Shows App statistics (see {@link AppStats}).
+ * Shows App statistics (see {@link AppStats}), logging statistics (see {@link LogbackUtil#getLogStatsDescription()}),
+ * suppressed error log statements (see {@link AppServlet#logDedup}), access log statistics (see {@link AppInit#accessLog}),
+ * the startup phases (see {@link AppInit#startupProfiler}), the warmup state (see {@link AppInit#warmup})
+ * and the responses being written (see {@link ResponseTransfer}).
  * @author frederikw
  *
  */
@@ -41,7 +47,12 @@ public class Stats implements Controller {
 	public String handleRequest(final HttpServletRequest request, final HttpServletResponse response) {
 		
 		request.setAttribute(PAGE_TITLE, AppInit.appInstance.appName + " statistics");
-		request.setAttribute("appStatistics", getAppStats().getStatsDescription());
+		request.setAttribute("appStatistics", getAppStats().getStatsDescription() + LogbackUtil.getLogStatsDescription()
+				+ '\n' + AppServlet.logDedup.getStatsDescription(10)
+				+ (AppInit.appInstance.accessLog == null ? "" : '\n' + AppInit.appInstance.accessLog.getStatsDescription())
+				+ '\n' + AppInit.appInstance.startupProfiler.getDescription()
+				+ '\n' + AppInit.appInstance.warmup
+				+ '\n' + ResponseTransfer.getStatsDescription());
 		return "/WEB-INF/pages/stats.jsp";
 	}
 }
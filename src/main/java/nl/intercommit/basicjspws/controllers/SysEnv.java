@@ -18,15 +18,20 @@
 */
 package nl.intercommit.basicjspws.controllers;
 
+import static nl.intercommit.basicjspws.ControllerUtil.*;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import nl.intercommit.basicjspws.AppInit;
 import nl.intercommit.basicjspws.Controller;
+import nl.intercommit.basicjspws.SysPropsSnapshot;
 import nl.intercommit.basicjspws.SysPropsUtil;
 
 /**
- * Show the system environment using {@link SysPropsUtil}.
+ * Show the system environment using {@link SysPropsUtil#getSnapshot()} (rendered again only when system properties change).
+ * If request parameter "format" is "text", the system environment is returned as plain text
+ * with an ETag so that a monitoring probe can use If-None-Match (response status 304 when nothing changed).
  * @author frederikw
  *
  */
@@ -38,9 +43,19 @@ public class SysEnv implements Controller {
 	@Override
 	public String handleRequest(final HttpServletRequest request, final HttpServletResponse response) {
 		
+		final SysPropsSnapshot snapshot = SysPropsUtil.getSnapshot();
+		if ("text".equals(request.getParameter("format"))) {
+			final String etag = "\"" + Integer.toHexString(snapshot.getPropsHash()) + "\"";
+			response.setHeader("ETag", etag);
+			if (etag.equals(request.getHeader("If-None-Match"))) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return null;
+			}
+			return writeResponse(response, "text/plain", "UTF-8", snapshot.getTextBytes());
+		}
 		request.setAttribute(PAGE_TITLE, AppInit.appInstance.appName + " system environemnt");
-		request.setAttribute("systemEnv", SysPropsUtil.getSystemEnv());
-		request.setAttribute("systemProps", SysPropsUtil.getSystemProps());
+		request.setAttribute("systemEnv", snapshot.getSystemEnv());
+		request.setAttribute("systemProps", snapshot.getSystemProps());
 		return "/WEB-INF/pages/sysenv.jsp";
 	}
 }
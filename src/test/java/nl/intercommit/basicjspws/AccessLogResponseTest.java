@@ -0,0 +1,93 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+
+import org.junit.Test;
+
+public class AccessLogResponseTest {
+
+	@Test
+	public void writerDoesNotBuffer() throws Exception {
+		
+		TestResponse r = new TestResponse();
+		r.characterEncoding = "UTF-8";
+		AccessLogResponse response = new AccessLogResponse(r);
+		PrintWriter pw = response.getWriter();
+		pw.print("abc\u00e9");
+		assertEquals("abc\u00e9", r.getText());
+		assertEquals(5L, response.getBytesWritten());
+		assertFalse(response.isCommitted());
+		response.finish();
+		assertFalse("Finish does not commit", response.isCommitted());
+	}
+	
+	@Test
+	public void resetBufferDiscardsText() throws Exception {
+		
+		TestResponse r = new TestResponse();
+		r.characterEncoding = "UTF-8";
+		AccessLogResponse response = new AccessLogResponse(r);
+		PrintWriter pw = response.getWriter();
+		pw.print("discarded\ud83d");
+		response.resetBuffer();
+		pw.print("kept");
+		response.finish();
+		assertEquals("kept", r.getText());
+		assertEquals(4L, response.getBytesWritten());
+		pw.print("error");
+		response.sendError(500);
+		response.reset();
+		assertEquals(200, response.getStatus());
+		assertEquals(0, r.getBody().length);
+		assertEquals(0L, response.getBytesWritten());
+	}
+
+	@Test
+	public void surrogatePairSplitOverWrites() throws Exception {
+		
+		TestResponse r = new TestResponse();
+		r.characterEncoding = "UTF-8";
+		AccessLogResponse response = new AccessLogResponse(r);
+		PrintWriter pw = response.getWriter();
+		pw.print('\ud83d');
+		assertEquals(0, r.getBody().length);
+		pw.print("\ude00x\ud83d");
+		response.finish();
+		assertEquals("\ud83d\ude00x?", r.getText());
+		assertEquals(6L, response.getBytesWritten());
+	}
+	
+	@Test
+	public void encoding() throws Exception {
+		
+		TestResponse r = new TestResponse();
+		AccessLogResponse response = new AccessLogResponse(r);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) sb.append((char) (32 + i % 300));
+		response.getWriter().print(sb);
+		response.finish();
+		byte[] expected = sb.toString().getBytes("ISO-8859-1");
+		assertArrayEquals(expected, r.getBody());
+		assertEquals(expected.length, response.getBytesWritten());
+	}
+}
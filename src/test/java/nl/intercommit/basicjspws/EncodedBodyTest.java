@@ -0,0 +1,73 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class EncodedBodyTest {
+
+	@After
+	public void clearCache() {
+		EncodedBody.clearCache();
+	}
+	
+	@Test
+	public void cachedByTypeEncodingAndText() {
+		
+		EncodedBody.clearCache();
+		EncodedBody body = EncodedBody.get("text/plain", "UTF-8", "é");
+		assertSame(body, EncodedBody.get("text/plain", "UTF-8", new String("é")));
+		assertEquals(2, body.getLength());
+		EncodedBody iso = EncodedBody.get("text/plain", "ISO-8859-1", "é");
+		assertEquals(1, iso.getLength());
+		assertSame(body, EncodedBody.get("text/plain", "UTF-8", "é"));
+		EncodedBody html = EncodedBody.get("text/html", "UTF-8", "é");
+		assertNotSame(body, html);
+		assertEquals(3, EncodedBody.getCacheSize());
+		TestResponse r = new TestResponse();
+		html.write(r);
+		assertEquals("text/html", r.contentType);
+		assertEquals("UTF-8", r.characterEncoding);
+		assertEquals("é", r.getText());
+		assertEquals(2, r.contentLength);
+	}
+	
+	@Test
+	public void cacheIsBounded() {
+		
+		EncodedBody.clearCache();
+		for (int i = 0; i < EncodedBody.MAX_CACHED; i++) {
+			EncodedBody.get("text/plain", "UTF-8", "body " + i);
+		}
+		assertEquals(EncodedBody.MAX_CACHED, EncodedBody.getCacheSize());
+		// A full cache is cleared, new bodies are cached.
+		EncodedBody body = EncodedBody.get("text/plain", "UTF-8", "new");
+		assertEquals(1, EncodedBody.getCacheSize());
+		assertSame(body, EncodedBody.get("text/plain", "UTF-8", "new"));
+		char[] chars = new char[EncodedBody.MAX_CACHED_LENGTH + 1];
+		Arrays.fill(chars, 'x');
+		EncodedBody.get("text/plain", "UTF-8", new String(chars));
+		assertEquals(1, EncodedBody.getCacheSize());
+	}
+}
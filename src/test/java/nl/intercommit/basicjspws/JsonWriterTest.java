@@ -0,0 +1,111 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class JsonWriterTest {
+
+	@Test
+	public void values() {
+		
+		TestResponse response = new TestResponse();
+		JsonWriter.get(response).beginObject().name("s").value("a\"b\\c\n\u0001\u2028é😀")
+			.name("n").value(-12L).name("d").value(1.5).name("i").value(2.0).name("nan").value(Double.NaN)
+			.name("min").value(Long.MIN_VALUE).name("b").value(true).name("null").nullValue()
+			.name("a").beginArray().value("").beginArray().endArray().beginObject().endObject().endArray()
+			.endObject().send();
+		assertEquals("{\"s\":\"a\\\"b\\\\c\\n\\u0001\\u2028é😀\",\"n\":-12,\"d\":1.5,\"i\":2,\"nan\":null,"
+				+ "\"min\":-9223372036854775808,\"b\":true,\"null\":null,\"a\":[\"\",[],{}]}", response.getText());
+		assertEquals("application/json", response.contentType);
+		assertEquals(response.getBody().length, response.contentLength);
+	}
+
+	/** Strings are written with {@link JsonWriter#putEscape(char, byte[], int)} for characters that need an escape. */
+	@Test
+	public void escapes() {
+		
+		byte[] b = new byte[JsonWriter.MAX_ESCAPE_LENGTH];
+		for (char c = 0; c < 0x3000; c++) {
+			if (!JsonWriter.needsEscape(c)) continue;
+			int end = JsonWriter.putEscape(c, b, 0);
+			TestResponse response = new TestResponse();
+			JsonWriter.get(response).value(String.valueOf(c)).send();
+			assertEquals("\"" + StringUtils.toString(b, 0, end, StringUtils.US_ASCII) + "\"", response.getText());
+		}
+		assertTrue(JsonWriter.needsEscape('\u2029'));
+		assertFalse(JsonWriter.needsEscape('\u20ac'));
+		assertEquals(2, JsonWriter.putEscape('\t', b, 0));
+		assertEquals("\\t", StringUtils.toString(b, 0, 2, StringUtils.US_ASCII));
+		assertEquals(6, JsonWriter.putEscape('\u001f', b, 0));
+		assertEquals("\\u001f", StringUtils.toString(b, 0, 6, StringUtils.US_ASCII));
+	}
+
+	@Test
+	public void unpairedSurrogate() {
+		
+		TestResponse response = new TestResponse();
+		JsonWriter.get(response).value("a\ud800b\udc00").send();
+		assertEquals("\"a?b?\"", response.getText());
+	}
+
+	/** An empty string at the end of a full buffer must not overflow the buffer. */
+	@Test
+	public void emptyStringAtBufferEnd() {
+		
+		for (int offset = 0; offset < 8; offset++) {
+			TestResponse response = new TestResponse();
+			JsonWriter w = JsonWriter.get(response);
+			w.beginArray();
+			StringBuilder expected = new StringBuilder("[");
+			for (int i = 0; i < offset; i++) {
+				w.value(1L);
+				expected.append("1,");
+			}
+			for (int i = 0; i < 6000; i++) {
+				w.value("xx").value("");
+				expected.append(i == 0 ? "" : ",").append("\"xx\",\"\"");
+			}
+			w.endArray().send();
+			expected.append(']');
+			assertEquals(expected.toString(), response.getText());
+			assertEquals("Written in parts without Content-Length", -1, response.contentLength);
+		}
+	}
+	
+	/** Every string length around the buffer size, with multi-byte characters at the buffer boundary. */
+	@Test
+	public void stringsAtBufferBoundary() {
+		
+		String[] fills = { "x", "é", "€", "😀", "\n", "\u0001" };
+		for (String fill : fills) {
+			for (int length = ResponseEncoder.BUFFER_SIZE - 10; length < ResponseEncoder.BUFFER_SIZE + 2; length++) {
+				TestResponse response = new TestResponse();
+				StringBuilder sb = new StringBuilder(length);
+				for (int i = 0; i < length; i++) sb.append('a');
+				String prefix = sb.toString();
+				JsonWriter.get(response).beginArray().value(prefix + fill).value("").endArray().send();
+				String escaped = ("\n".equals(fill) ? "\\n" : "\u0001".equals(fill) ? "\\u0001" : fill);
+				assertEquals("[\"" + prefix + escaped + "\",\"\"]", response.getText());
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.ConsoleAppender;
+
+public class LogArchiveTest {
+
+	/** Makes records large enough to fill the (minimum) segment size with a few hundred events. */
+	private static final String PADDING = new String(new char[200]).replace('\0', 'x');
+	
+	private File dir;
+	
+	@Before
+	public void createDir() {
+		
+		dir = new File(System.getProperty("java.io.tmpdir"), "logarchivetest-" + System.nanoTime());
+		assertTrue(dir.mkdirs());
+	}
+	
+	@After
+	public void deleteDir() {
+		
+		File[] files = dir.listFiles();
+		if (files != null) for (File f : files) f.delete();
+		dir.delete();
+	}
+	
+	private static LoggingEvent event(final int i) {
+		
+		LoggingEvent le = new LoggingEvent();
+		le.setTimeStamp(1000L + i);
+		le.setLevel(Level.INFO);
+		le.setLoggerName("test.logger");
+		le.setThreadName("test-thread");
+		le.setMessage("message " + i + PADDING);
+		return le;
+	}
+	
+	/** Old segments are removed while appending, remaining events can still be read. */
+	@Test
+	public void rollSegments() throws Exception {
+		
+		LogArchive archive = new LogArchive(dir, "test", 8192, 2, false);
+		for (int i = 1; i <= 2000; i++) archive.append(event(i));
+		assertEquals(2000L, archive.getLastSeq());
+		long firstSeq = archive.getFirstSeq();
+		assertTrue(firstSeq > 1L);
+		assertEquals(4, dir.listFiles().length);
+		LogBufferPage page = new LogBufferPage(10);
+		assertEquals(10, archive.fillLogPage(Long.MAX_VALUE, 0, page));
+		assertEquals("message 2000" + PADDING, page.events[0].getMessage());
+		LoggingEvent[] events = new LoggingEvent[5];
+		assertEquals(5, archive.read(firstSeq, events));
+		assertEquals("message " + firstSeq + PADDING, events[0].getMessage());
+		assertEquals(0, archive.read(1L, events));
+		assertEquals(firstSeq + 10, archive.findLogSeqAfter(1000L + firstSeq + 9));
+		archive.close();
+	}
+
+	/** A removed segment keeps its mappings until the last reader is done. */
+	@Test
+	public void retireWithReader() throws Exception {
+		
+		LogArchive archive = new LogArchive(dir, "test", 8192, 2, false);
+		archive.append(event(1));
+		archive.close();
+		File f = dir.listFiles()[0];
+		if (!f.getName().endsWith(LogArchive.DATA_EXT)) f = LogArchive.indexFile(f);
+		LogArchive.Segment s = LogArchive.Segment.open(f, true);
+		assertTrue(s.acquire());
+		s.retire();
+		assertFalse("No new readers after retire", s.acquire());
+		assertEquals("message 1" + PADDING, s.decode(16).getMessage());
+		s.release();
+	}
+	
+	@Test
+	public void wrapOutputAppendersSkipsLogBuffers() {
+		
+		LoggerContext lc = new LoggerContext();
+		Logger logger = lc.getLogger("test");
+		LogArchiveAppender archiveAppender = new LogArchiveAppender();
+		archiveAppender.setContext(lc);
+		archiveAppender.setName("ARCHIVE");
+		archiveAppender.setDir(dir.getPath());
+		archiveAppender.start();
+		logger.addAppender(archiveAppender);
+		ConsoleAppender<ILoggingEvent> console = new ConsoleAppender<ILoggingEvent>();
+		console.setContext(lc);
+		console.setName("CONSOLE");
+		logger.addAppender(console);
+		AsyncLogAppender async = LogbackUtil.wrapOutputAppenders(logger);
+		assertNotNull(async);
+		assertSame(archiveAppender, logger.getAppender("ARCHIVE"));
+		assertNull(logger.getAppender("CONSOLE"));
+		assertSame(console, async.getAppender("CONSOLE"));
+		async.stop();
+		archiveAppender.stop();
+	}
+}
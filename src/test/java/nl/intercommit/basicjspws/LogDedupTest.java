@@ -0,0 +1,78 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class LogDedupTest {
+
+	private static LogDedup create(final long intervalMs, final int maxKeys) {
+		return new LogDedup(LoggerFactory.getLogger(LogDedupTest.class), intervalMs, maxKeys);
+	}
+	
+	@Test
+	public void suppressWithinInterval() throws Exception {
+		
+		LogDedup dedup = create(100L, 10);
+		assertEquals(0L, dedup.tryLog("failed", "a"));
+		assertEquals(-1L, dedup.tryLog("failed", "a"));
+		assertEquals(-1L, dedup.tryLog("failed", "a"));
+		assertEquals("Other key", 0L, dedup.tryLog("failed", "b"));
+		assertEquals("Other template", 0L, dedup.tryLog("barfed", "a"));
+		Thread.sleep(150L);
+		assertEquals(2L, dedup.tryLog("failed", "a"));
+		assertEquals(2L, dedup.getSuppressedCount());
+	}
+
+	/** A flood of keys for one template must not suppress the first occurrence of another template. */
+	@Test
+	public void budgetPerTemplate() {
+		
+		LogDedup dedup = create(60000L, 4);
+		for (int i = 0; i < 4; i++) assertEquals(0L, dedup.tryLog("404", "url" + i));
+		assertEquals("First overflow key is logged", 0L, dedup.tryLog("404", "url4"));
+		assertEquals("Overflow keys share one entry", -1L, dedup.tryLog("404", "url5"));
+		assertEquals(0L, dedup.tryLog("500", "url0 java.lang.NullPointerException"));
+		assertEquals(6, dedup.getKeyCount());
+	}
+	
+	@Test
+	public void flushReportsAndExpires() throws Exception {
+		
+		LogDedup dedup = create(100L, 4);
+		assertEquals(0L, dedup.tryLog("404", "a"));
+		assertEquals(-1L, dedup.tryLog("404", "a"));
+		assertEquals(0L, dedup.tryLog("404", "b"));
+		assertEquals("Within interval", 0, dedup.flush());
+		Thread.sleep(150L);
+		// "a" has a suppressed statement that is logged, "b" is idle and removed.
+		assertEquals(1, dedup.flush());
+		assertEquals(1, dedup.getKeyCount());
+		assertEquals("Suppressed count was reported by flush", -1L, dedup.tryLog("404", "a"));
+		Thread.sleep(150L);
+		assertEquals(1L, dedup.tryLog("404", "a"));
+		Thread.sleep(150L);
+		assertEquals(1, dedup.flush());
+		assertEquals(0, dedup.getKeyCount());
+		for (int i = 0; i < 4; i++) assertEquals("Budget is free again", 0L, dedup.tryLog("404", "url" + i));
+	}
+}
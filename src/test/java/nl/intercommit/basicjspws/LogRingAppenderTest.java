@@ -0,0 +1,130 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class LogRingAppenderTest {
+
+	private static LogRingAppender start(final int slotSize) {
+		
+		LogRingAppender ring = new LogRingAppender();
+		ring.setContext(new LoggerContext());
+		ring.setName("TEST");
+		ring.setSizeMb(1);
+		ring.setSlotSize(slotSize);
+		ring.start();
+		assertTrue(ring.isStarted());
+		return ring;
+	}
+	
+	private static LoggingEvent event(final long timeStamp, final String msg) {
+		
+		LoggingEvent le = new LoggingEvent();
+		le.setTimeStamp(timeStamp);
+		le.setLevel(Level.WARN);
+		le.setLoggerName("test.logger");
+		le.setThreadName("test-thread");
+		le.setMessage(msg);
+		return le;
+	}
+	
+	@Test
+	public void appendAndRead() {
+		
+		LogRingAppender ring = start(64);
+		int maxEvents = ring.getMaxEvents();
+		assertEquals(16384, maxEvents);
+		for (int i = 1; i <= maxEvents + 10; i++) {
+			ring.doAppend(event(1000L + i, "msg " + i + " €"));
+		}
+		LogBufferPage page = new LogBufferPage(5);
+		assertEquals(5, ring.fillLogPage(Long.MAX_VALUE, 0, page));
+		assertEquals(maxEvents + 10L, page.lastSeq);
+		assertEquals("Oldest events are overwritten", 11L, page.firstSeq);
+		ILoggingEvent le = page.events[0];
+		assertEquals("msg " + (maxEvents + 10) + " €", le.getMessage());
+		assertEquals(Level.WARN, le.getLevel());
+		assertEquals("test.logger", le.getLoggerName());
+		assertEquals("test-thread", le.getThreadName());
+		assertEquals(1000L + maxEvents + 10, le.getTimeStamp());
+		assertEquals(maxEvents + 6L, page.seqs[4]);
+		assertEquals(101L, ring.findLogSeqAfter(1100L));
+		assertEquals(0L, ring.getDroppedCount());
+		// Message is truncated to the slot size.
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) sb.append('x');
+		ring.doAppend(event(1L, sb.toString()));
+		ring.fillLogPage(Long.MAX_VALUE, 0, page);
+		assertEquals(sb.substring(0, 64 - 21), page.events[0].getMessage());
+	}
+	
+	/** Readers must only see complete events while writers overwrite the ring. */
+	@Test
+	public void concurrentReadWrite() throws Exception {
+		
+		final LogRingAppender ring = start(256);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<String> error = new AtomicReference<String>();
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final char c = (char) ('a' + t);
+			writers[t] = new Thread() {
+				@Override public void run() {
+					int i = 0;
+					while (!stop.get()) {
+						int length = 10 + (i++ % 200);
+						StringBuilder sb = new StringBuilder();
+						for (int j = 0; j < length; j++) sb.append(c);
+						ring.doAppend(event(i, sb.toString()));
+					}
+				}
+			};
+			writers[t].start();
+		}
+		LogBufferPage page = new LogBufferPage(100);
+		long reads = 0L;
+		long end = System.currentTimeMillis() + 500L;
+		while (System.currentTimeMillis() < end && error.get() == null) {
+			ring.fillLogPage(Long.MAX_VALUE, 0, page);
+			for (int i = 0; i < page.size; i++) {
+				String msg = page.events[i].getMessage();
+				reads++;
+				for (int j = 1; j < msg.length(); j++) {
+					if (msg.charAt(j) != msg.charAt(0)) error.set("Torn event: " + msg);
+				}
+				if (msg.length() - 10 != (page.events[i].getTimeStamp() - 1) % 200) error.set("Wrong length " + msg.length() + " for time stamp " + page.events[i].getTimeStamp() + ": " + msg);
+			}
+		}
+		stop.set(true);
+		for (Thread w : writers) w.join();
+		assertNull(error.get(), error.get());
+		assertTrue(reads > 0L);
+	}
+}
@@ -0,0 +1,62 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+public class RequestContextTest {
+
+	private static HttpServletRequest request(final String uri) {
+		
+		return (HttpServletRequest) Proxy.newProxyInstance(RequestContextTest.class.getClassLoader(), 
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			@Override public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return ("getRequestURI".equals(method.getName()) ? uri : null);
+			}
+		});
+	}
+	
+	@Test
+	public void nestedRequest() {
+		
+		assertNull(RequestContext.current());
+		RequestContext outer = RequestContext.acquire(request("/app/pages/outer"), new TestResponse(), System.nanoTime());
+		assertSame(outer, RequestContext.current());
+		RequestContext nested = RequestContext.acquire(request("/app/pages/nested"), new TestResponse(), System.nanoTime());
+		assertNotSame(outer, nested);
+		assertSame("Nested context is current", nested, RequestContext.current());
+		assertEquals("/app/pages/nested", RequestContext.current().getRequestedUrl());
+		nested.release();
+		assertSame("Outer context is current again", outer, RequestContext.current());
+		assertEquals("/app/pages/outer", RequestContext.current().getRequestedUrl());
+		outer.release();
+		assertNull(RequestContext.current());
+		RequestContext next = RequestContext.acquire(request("/app/pages/next"), new TestResponse(), System.nanoTime());
+		assertSame("Outer context is recycled", outer, next);
+		next.release();
+	}
+}
@@ -0,0 +1,323 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Writes values with the binary encoders and decodes the result with the (minimal) decoders below. 
+ */
+public class ResponseEncoderTest {
+
+	private static final Object BREAK = new Object();
+	
+	@After
+	public void endRequest() {
+		ManagedThreadLocal.endRequest();
+	}
+	
+	@Test
+	public void cbor() throws IOException {
+		
+		for (boolean sizes : new boolean[] { true, false }) {
+			Object value = testValue();
+			TestResponse r = new TestResponse();
+			write(CborWriter.get(r), value, sizes).send();
+			assertEquals(CborWriter.CONTENT_TYPE, r.contentType);
+			byte[] body = r.getBody();
+			assertEquals(expected(value), new Cbor(body).read());
+			// Larger than the buffer, content length is not known in advance.
+			assertEquals(-1, r.contentLength);
+		}
+	}
+
+	@Test
+	public void messagePack() throws IOException {
+		
+		for (boolean sizes : new boolean[] { true, false }) {
+			Object value = testValue();
+			TestResponse r = new TestResponse();
+			write(MessagePackWriter.get(r), value, sizes).send();
+			assertEquals(MessagePackWriter.CONTENT_TYPE, r.contentType);
+			byte[] body = r.getBody();
+			assertEquals(expected(value), new MessagePack(body).read());
+			if (sizes) {
+				assertEquals(-1, r.contentLength);
+			} else {
+				// Kept in the buffer until the root array ended.
+				assertEquals(body.length, r.contentLength);
+			}
+		}
+	}
+	
+	@Test
+	public void smallValueHasContentLength() throws IOException {
+		
+		TestResponse r = new TestResponse();
+		CborWriter.get(r).beginArray(2).value(1).value("a").endArray().send();
+		assertArrayEquals(new byte[] { (byte) 0x82, 0x01, 0x61, 'a' }, r.getBody());
+		assertEquals(4, r.contentLength);
+		r = new TestResponse();
+		MessagePackWriter.get(r).beginObject(1).name("a").value(-1).endObject().send();
+		assertArrayEquals(new byte[] { (byte) 0x81, (byte) 0xA1, 'a', (byte) 0xFF }, r.getBody());
+		assertEquals(4, r.contentLength);
+	}
+	
+	@Test
+	public void messagePackHoldSizeLimit() throws IOException {
+		
+		char[] chars = new char[1000];
+		Arrays.fill(chars, 'x');
+		String s = new String(chars);
+		TestResponse r = new TestResponse();
+		MessagePackWriter writer = MessagePackWriter.get(r);
+		writer.beginArray();
+		try {
+			for (int i = 0; i < ResponseEncoder.MAX_HOLD_SIZE / 1000; i++) writer.value(s);
+			fail("Expected an exception for an array of unknown size larger than the maximum hold size.");
+		} catch (IllegalStateException expected) {
+			// Nothing was sent.
+			assertEquals(0, r.getBody().length);
+		}
+		// With a known size, the value is written while encoding.
+		r = new TestResponse();
+		int size = ResponseEncoder.MAX_HOLD_SIZE / 1000 + 10;
+		writer = MessagePackWriter.get(r);
+		writer.beginArray(size);
+		for (int i = 0; i < size; i++) writer.value(s);
+		writer.endArray().send();
+		assertEquals(size, ((List<?>) new MessagePack(r.getBody()).read()).size());
+	}
+	
+	/** A value with all types and the size boundaries of the binary formats. */
+	private static Object testValue() {
+		
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		List<Object> ints = new ArrayList<Object>();
+		for (long v : new long[] { 0L, 1L, 23L, 24L, 31L, 32L, 127L, 128L, 255L, 256L, 65535L, 65536L, 0xFFFFFFFFL, 0x100000000L, Long.MAX_VALUE, 
+				-1L, -24L, -25L, -32L, -33L, -128L, -129L, -256L, -257L, -32768L, -32769L, -65536L, -65537L, 
+				Integer.MIN_VALUE, Integer.MIN_VALUE - 1L, Long.MIN_VALUE }) {
+			ints.add(v);
+		}
+		m.put("ints", ints);
+		m.put("doubles", Arrays.<Object>asList(1.5, 0.1, -2.0, 1e300, 1e15, Double.MAX_VALUE, Double.MIN_VALUE));
+		m.put("booleans", Arrays.<Object>asList(true, false, null));
+		m.put("strings", Arrays.<Object>asList("", "a", "\u00e9\u0800\uffff", "\ud83d\ude00", "x\ud800y", "\udc00", repeat('a', 31), repeat('a', 32), 
+				repeat('\u00e9', 128), repeat('b', 255), repeat('b', 256), repeat('\u20ac', 30000), repeat('c', 70000)));
+		List<Object> nested = new ArrayList<Object>();
+		for (int i = 0; i < 20; i++) {
+			Map<String, Object> item = new LinkedHashMap<String, Object>();
+			for (int j = 0; j < i; j++) item.put("k" + j, j % 2 == 0 ? (Object) ("v" + j) : (Object) Long.valueOf(j));
+			nested.add(item);
+		}
+		m.put("nested", nested);
+		List<Object> root = new ArrayList<Object>();
+		root.add(m);
+		root.add(new ArrayList<Object>());
+		root.add(new LinkedHashMap<String, Object>());
+		return root;
+	}
+	
+	private static String repeat(final char c, final int count) {
+		
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static ResponseEncoder write(final ResponseEncoder encoder, final Object value, final boolean sizes) {
+		
+		if (value instanceof Map) {
+			Map<String, Object> m = (Map<String, Object>) value;
+			encoder.beginObject(sizes ? m.size() : -1);
+			for (Map.Entry<String, Object> e : m.entrySet()) {
+				encoder.name(e.getKey());
+				write(encoder, e.getValue(), sizes);
+			}
+			encoder.endObject();
+		} else if (value instanceof List) {
+			List<Object> l = (List<Object>) value;
+			encoder.beginArray(sizes ? l.size() : -1);
+			for (Object o : l) write(encoder, o, sizes);
+			encoder.endArray();
+		} else if (value instanceof String) {
+			encoder.value((String) value);
+		} else if (value instanceof Long) {
+			encoder.value(((Long) value).longValue());
+		} else if (value instanceof Double) {
+			encoder.value(((Double) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			encoder.value(((Boolean) value).booleanValue());
+		} else {
+			encoder.nullValue();
+		}
+		return encoder;
+	}
+
+	/** The decoded value: unpaired surrogates are '?', integral doubles are longs. */
+	@SuppressWarnings("unchecked")
+	private static Object expected(final Object value) {
+		
+		if (value instanceof Map) {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+				m.put((String) expected(e.getKey()), expected(e.getValue()));
+			}
+			return m;
+		} else if (value instanceof List) {
+			List<Object> l = new ArrayList<Object>();
+			for (Object o : (List<Object>) value) l.add(expected(o));
+			return l;
+		} else if (value instanceof String) {
+			return new String(StringUtils.getBytes((String) value, StringUtils.UTF_8), StringUtils.UTF_8);
+		} else if (value instanceof Double) {
+			double d = ((Double) value).doubleValue();
+			return (ResponseEncoder.isIntegral(d) ? (Object) Long.valueOf((long) d) : value);
+		}
+		return value;
+	}
+	
+	/** Decodes CBOR as written by {@link CborWriter}. */
+	static class Cbor {
+		
+		final DataInputStream in;
+		
+		Cbor(final byte[] b) { in = new DataInputStream(new ByteArrayInputStream(b)); }
+		
+		Object read() throws IOException {
+			
+			int b = in.readUnsignedByte();
+			int major = b >> 5;
+			int info = b & 31;
+			if (major == 7) {
+				switch (info) {
+				case 20: return Boolean.FALSE;
+				case 21: return Boolean.TRUE;
+				case 22: return null;
+				case 26: return Double.valueOf(in.readFloat());
+				case 27: return Double.valueOf(in.readDouble());
+				case 31: return BREAK;
+				default: throw new IOException("Unexpected simple value " + info);
+				}
+			}
+			long n = (info < 24 ? info : info == 24 ? in.readUnsignedByte() : info == 25 ? in.readUnsignedShort() 
+					: info == 26 ? in.readInt() & 0xFFFFFFFFL : info == 27 ? in.readLong() : -1L);
+			switch (major) {
+			case 0: return Long.valueOf(n);
+			case 1: return Long.valueOf(-1L - n);
+			case 3: 
+				byte[] text = new byte[(int) n];
+				in.readFully(text);
+				return new String(text, StringUtils.UTF_8);
+			case 4:
+				List<Object> l = new ArrayList<Object>();
+				for (long i = 0; n < 0 || i < n; i++) {
+					Object o = read();
+					if (o == BREAK) break;
+					l.add(o);
+				}
+				return l;
+			case 5:
+				Map<String, Object> m = new LinkedHashMap<String, Object>();
+				for (long i = 0; n < 0 || i < n; i++) {
+					Object k = read();
+					if (k == BREAK) break;
+					m.put((String) k, read());
+				}
+				return m;
+			default: throw new IOException("Unexpected major type " + major);
+			}
+		}
+	}
+	
+	/** Decodes MessagePack as written by {@link MessagePackWriter}. */
+	static class MessagePack {
+		
+		final DataInputStream in;
+		
+		MessagePack(final byte[] b) { in = new DataInputStream(new ByteArrayInputStream(b)); }
+
+		Object read() throws IOException {
+			
+			int b = in.readUnsignedByte();
+			if (b < 0x80) return Long.valueOf(b);
+			if (b < 0x90) return readMap(b & 0x0F);
+			if (b < 0xA0) return readArray(b & 0x0F);
+			if (b < 0xC0) return readStr(b & 0x1F);
+			if (b >= 0xE0) return Long.valueOf((byte) b);
+			switch (b) {
+			case 0xC0: return null;
+			case 0xC2: return Boolean.FALSE;
+			case 0xC3: return Boolean.TRUE;
+			case 0xCA: return Double.valueOf(in.readFloat());
+			case 0xCB: return Double.valueOf(in.readDouble());
+			case 0xCC: return Long.valueOf(in.readUnsignedByte());
+			case 0xCD: return Long.valueOf(in.readUnsignedShort());
+			case 0xCE: return Long.valueOf(in.readInt() & 0xFFFFFFFFL);
+			case 0xCF: return Long.valueOf(in.readLong());
+			case 0xD0: return Long.valueOf(in.readByte());
+			case 0xD1: return Long.valueOf(in.readShort());
+			case 0xD2: return Long.valueOf(in.readInt());
+			case 0xD3: return Long.valueOf(in.readLong());
+			case 0xD9: return readStr(in.readUnsignedByte());
+			case 0xDA: return readStr(in.readUnsignedShort());
+			case 0xDB: return readStr(in.readInt());
+			case 0xDC: return readArray(in.readUnsignedShort());
+			case 0xDD: return readArray(in.readInt());
+			case 0xDE: return readMap(in.readUnsignedShort());
+			case 0xDF: return readMap(in.readInt());
+			default: throw new IOException("Unexpected type " + Integer.toHexString(b));
+			}
+		}
+		
+		String readStr(final int size) throws IOException {
+			
+			byte[] b = new byte[size];
+			in.readFully(b);
+			return new String(b, StringUtils.UTF_8);
+		}
+		
+		List<Object> readArray(final int size) throws IOException {
+			
+			List<Object> l = new ArrayList<Object>();
+			for (int i = 0; i < size; i++) l.add(read());
+			return l;
+		}
+
+		Map<String, Object> readMap(final int size) throws IOException {
+			
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < size; i++) m.put((String) read(), read());
+			return m;
+		}
+	}
+}
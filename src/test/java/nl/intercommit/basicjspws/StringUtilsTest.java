@@ -0,0 +1,205 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the fast paths of {@link StringUtils} with the results of the JDK's encoders and decoders.
+ */
+public class StringUtilsTest {
+
+	private static final Charset[] CHARSETS = { StringUtils.US_ASCII, StringUtils.ISO_8859_1, StringUtils.UTF_8, 
+		Charset.forName("UTF-16"), Charset.forName("windows-1252") };
+	
+	/** Characters around the encoding boundaries (including unpaired surrogates). */
+	private static final char[] SPECIAL = { 0, 0x7F, 0x80, 0xFF, 0x100, 0x7FF, 0x800, 0xFFFD, 0xFFFF, 
+		0xD800, 0xDBFF, 0xDC00, 0xDFFF };
+	
+	private static String randomString(final Random r, final int length) {
+		
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			int kind = r.nextInt(10);
+			if (kind < 4) {
+				chars[i] = (char) r.nextInt(0x80);
+			} else if (kind < 6) {
+				chars[i] = (char) r.nextInt(0x100);
+			} else if (kind < 7) {
+				chars[i] = SPECIAL[r.nextInt(SPECIAL.length)];
+			} else if (kind < 8 && i + 1 < length) {
+				int cp = 0x10000 + r.nextInt(0x100000);
+				chars[i++] = Character.highSurrogate(cp);
+				chars[i] = Character.lowSurrogate(cp);
+			} else {
+				chars[i] = (char) r.nextInt(0x10000);
+			}
+		}
+		return new String(chars);
+	}
+	
+	private static byte[] jdkEncode(final String s, final Charset cs) {
+		
+		ByteBuffer bb = cs.encode(s);
+		return Arrays.copyOf(bb.array(), bb.limit());
+	}
+	
+	@Test
+	public void encodeRandomStrings() {
+		
+		Random r = new Random(41L);
+		for (int n = 0; n < 2000; n++) {
+			String s = randomString(r, r.nextInt(n % 10 == 0 ? 1000 : 20));
+			for (Charset cs : CHARSETS) {
+				byte[] expected = jdkEncode(s, cs);
+				assertArrayEquals(cs + ": " + s, expected, StringUtils.getBytes(s, cs));
+				byte[] dest = new byte[StringUtils.maxEncodedLength(s, cs) + 3];
+				assertEquals(expected.length, StringUtils.encode(s, cs, dest, 3));
+				assertArrayEquals(expected, Arrays.copyOfRange(dest, 3, 3 + expected.length));
+				if (cs == StringUtils.UTF_8) {
+					assertEquals(expected.length, StringUtils.utf8Length(s));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void decodeRandomStrings() {
+		
+		Random r = new Random(42L);
+		for (int n = 0; n < 2000; n++) {
+			String s = randomString(r, r.nextInt(n % 10 == 0 ? 1000 : 20));
+			for (Charset cs : CHARSETS) {
+				byte[] b = jdkEncode(s, cs);
+				assertEquals(cs + ": " + s, cs.decode(ByteBuffer.wrap(b)).toString(), StringUtils.toString(b, 0, b.length, cs));
+			}
+		}
+	}
+	
+	/** Random bytes are mostly malformed UTF-8 and contain non-ASCII bytes. */
+	@Test
+	public void decodeMalformed() {
+		
+		Random r = new Random(43L);
+		for (int n = 0; n < 5000; n++) {
+			byte[] b = new byte[r.nextInt(40)];
+			r.nextBytes(b);
+			if (n % 2 == 0) {
+				// Mostly valid lead and continuation bytes.
+				for (int i = 0; i < b.length; i++) b[i] = (byte) (0x80 | (b[i] & 0x7F));
+				if (b.length > 0) b[0] = (byte) (0xC0 | r.nextInt(0x40));
+			}
+			for (Charset cs : CHARSETS) {
+				String expected = cs.decode(ByteBuffer.wrap(b)).toString();
+				assertEquals(cs + ": " + Arrays.toString(b), expected, StringUtils.toString(b, 0, b.length, cs));
+			}
+		}
+		// Overlong, surrogate, out of range and truncated sequences.
+		byte[][] malformed = { { (byte) 0xC0, (byte) 0x80 }, { (byte) 0xE0, (byte) 0x80, (byte) 0x80 }, 
+				{ (byte) 0xED, (byte) 0xA0, (byte) 0x80 }, { (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80 },
+				{ (byte) 0xF0, (byte) 0x80, (byte) 0x80, (byte) 0x80 }, { (byte) 0xF5, (byte) 0x80 }, 
+				{ 'a', (byte) 0xE2, (byte) 0x82 }, { (byte) 0xF0, (byte) 0x9F, (byte) 0x98 }, { (byte) 0xFF } };
+		for (byte[] b : malformed) {
+			assertEquals(Arrays.toString(b), StringUtils.UTF_8.decode(ByteBuffer.wrap(b)).toString(), 
+					StringUtils.toString(b, 0, b.length, StringUtils.UTF_8));
+		}
+	}
+	
+	@Test
+	public void decodeWithOffset() {
+		
+		byte[] b = "xxé€😀yy".getBytes(StringUtils.UTF_8);
+		assertEquals("é€😀", StringUtils.toString(b, 2, b.length - 4, StringUtils.UTF_8));
+		assertEquals("é", StringUtils.toString(b, 2, 2, StringUtils.UTF_8));
+		b = "xxabcyy".getBytes(StringUtils.US_ASCII);
+		assertEquals("abc", StringUtils.toString(b, 2, 3, StringUtils.US_ASCII));
+		assertEquals("abc", StringUtils.toString(b, 2, 3, StringUtils.ISO_8859_1));
+	}
+	
+	/** Encoding into a buffer that is too small returns -1. */
+	@Test
+	public void encodeBoundaries() {
+		
+		String[] values = { "abc", "éé", "€", "😀", "a\ud800" };
+		for (String s : values) {
+			for (Charset cs : CHARSETS) {
+				int size = jdkEncode(s, cs).length;
+				assertEquals(cs + ": " + s, size, StringUtils.encode(s, cs, new byte[size + 1], 1));
+				assertEquals(cs + ": " + s, size, StringUtils.encode(s, cs, new byte[size], 0));
+				assertEquals(cs + ": " + s, -1, StringUtils.encode(s, cs, new byte[size - 1], 0));
+			}
+		}
+		// Truncation never writes a partial character.
+		byte[] b = new byte[8];
+		assertEquals(3, StringUtils.putUtf8("aé", b, 0, 3));
+		assertEquals(1, StringUtils.putUtf8("aé", b, 0, 2));
+		assertEquals(0, StringUtils.putUtf8("😀", b, 0, 3));
+		assertEquals(4, StringUtils.putUtf8("😀", b, 0, 4));
+		assertEquals(1, StringUtils.putUtf8("\ud800", b, 0, 1));
+		assertEquals('?', b[0]);
+	}
+	
+	@Test
+	public void decodeBoundaries() {
+		
+		byte[] b = "é€😀".getBytes(StringUtils.UTF_8);
+		assertEquals(4, StringUtils.decode(b, 0, b.length, StringUtils.UTF_8, new char[4], 0));
+		assertEquals(-1, StringUtils.decode(b, 0, b.length, StringUtils.UTF_8, new char[3], 0));
+		assertEquals(-1, StringUtils.decode(b, 0, b.length, StringUtils.UTF_8, new char[4], 1));
+		assertEquals(-1, StringUtils.decode(b, 0, 3, StringUtils.ISO_8859_1, new char[2], 0));
+		char[] dest = new char[5];
+		assertEquals(3, StringUtils.decode(new byte[] { 'a', (byte) 0x80, 'b' }, 0, 3, StringUtils.US_ASCII, dest, 2));
+		assertEquals("a�b", new String(dest, 2, 3));
+	}
+	
+	@Test
+	public void charsetAliases() throws Exception {
+		
+		assertSame(StringUtils.findCharset("utf8"), StringUtils.findCharset("utf8"));
+		assertEquals(StringUtils.UTF_8, StringUtils.findCharset("utf8"));
+		byte[] b = "é".getBytes(StringUtils.UTF_8);
+		assertEquals("é", StringUtils.toString(b, "utf8"));
+		assertArrayEquals(b, StringUtils.getBytes("é", "UTF8"));
+	}
+	
+	/** Characters encoded one at a time match the complete string. */
+	@Test
+	public void utf8CharLength() {
+		
+		Random r = new Random(44L);
+		String s = randomString(r, 10000);
+		byte[] b = new byte[s.length() * 3];
+		int pos = 0;
+		for (int i = 0; i < s.length(); i++) {
+			int size = StringUtils.utf8CharLength(s, i);
+			int end = StringUtils.putUtf8Char(s, i, b, pos);
+			assertEquals(size, end - pos);
+			if (size == 4) i++;
+			pos = end;
+		}
+		assertArrayEquals(jdkEncode(s, StringUtils.UTF_8), Arrays.copyOf(b, pos));
+	}
+}
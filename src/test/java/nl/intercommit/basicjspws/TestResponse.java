@@ -0,0 +1,110 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A response for unit tests that keeps the response body in memory (see {@link #getBody()}). 
+ * @author FWiers
+ *
+ */
+public class TestResponse implements HttpServletResponse {
+
+	public int status = SC_OK;
+	public String contentType;
+	public String characterEncoding = "ISO-8859-1";
+	public int contentLength = -1;
+	public boolean committed;
+	public final Map<String, String> headers = new HashMap<String, String>();
+	/** The amount of write calls on the output stream. */
+	public int writes;
+	
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private final ServletOutputStream out = new ServletOutputStream() {
+		@Override public void write(final int b) { writes++; body.write(b); }
+		@Override public void write(final byte[] b, final int off, final int len) { writes++; body.write(b, off, len); }
+		@Override public void flush() { committed = true; }
+	};
+	private PrintWriter writer;
+	
+	/** The response body (includes the bytes buffered in the writer). */
+	public byte[] getBody() { 
+		
+		if (writer != null) writer.flush();
+		return body.toByteArray(); 
+	}
+
+	/** The response body as UTF-8 text. */
+	public String getText() {
+		return new String(getBody(), StringUtils.UTF_8);
+	}
+
+	// HttpServletResponse
+
+	@Override public void addCookie(final Cookie cookie) {}
+	@Override public boolean containsHeader(final String name) { return headers.containsKey(name); }
+	@Override public String encodeURL(final String url) { return url; }
+	@Override public String encodeRedirectURL(final String url) { return url; }
+	@Override @Deprecated public String encodeUrl(final String url) { return url; }
+	@Override @Deprecated public String encodeRedirectUrl(final String url) { return url; }
+	@Override public void sendError(final int sc, final String msg) { status = sc; committed = true; }
+	@Override public void sendError(final int sc) { status = sc; committed = true; }
+	@Override public void sendRedirect(final String location) { status = SC_FOUND; committed = true; }
+	@Override public void setDateHeader(final String name, final long date) { headers.put(name, Long.toString(date)); }
+	@Override public void addDateHeader(final String name, final long date) { headers.put(name, Long.toString(date)); }
+	@Override public void setHeader(final String name, final String value) { headers.put(name, value); }
+	@Override public void addHeader(final String name, final String value) { headers.put(name, value); }
+	@Override public void setIntHeader(final String name, final int value) { headers.put(name, Integer.toString(value)); }
+	@Override public void addIntHeader(final String name, final int value) { headers.put(name, Integer.toString(value)); }
+	@Override public void setStatus(final int sc) { status = sc; }
+	@Override @Deprecated public void setStatus(final int sc, final String sm) { status = sc; }
+
+	// ServletResponse
+	
+	@Override public String getCharacterEncoding() { return characterEncoding; }
+	@Override public String getContentType() { return contentType; }
+	@Override public ServletOutputStream getOutputStream() { return out; }
+	@Override public PrintWriter getWriter() throws UnsupportedEncodingException { 
+		
+		if (writer == null) writer = new PrintWriter(new OutputStreamWriter(out, characterEncoding));
+		return writer; 
+	}
+	@Override public void setCharacterEncoding(final String charset) { characterEncoding = charset; }
+	@Override public void setContentLength(final int len) { contentLength = len; }
+	@Override public void setContentType(final String type) { contentType = type; }
+	@Override public void setBufferSize(final int size) {}
+	@Override public int getBufferSize() { return 8192; }
+	@Override public void flushBuffer() { committed = true; }
+	@Override public void resetBuffer() { body.reset(); }
+	@Override public boolean isCommitted() { return committed; }
+	@Override public void reset() { body.reset(); headers.clear(); status = SC_OK; }
+	@Override public void setLocale(final Locale loc) {}
+	@Override public Locale getLocale() { return Locale.ENGLISH; }
+}
@@ -0,0 +1,81 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.controllers;
+
+import static org.junit.Assert.*;
+
+import nl.intercommit.basicjspws.LogBufferPage;
+import nl.intercommit.basicjspws.LogRingAppender;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class LogTailTest {
+
+	private static LogRingAppender ring(final int events) {
+		
+		LogRingAppender ring = new LogRingAppender();
+		ring.setContext(new LoggerContext());
+		ring.setName("TEST");
+		ring.setSizeMb(1);
+		ring.start();
+		for (int i = 1; i <= events; i++) {
+			LoggingEvent le = new LoggingEvent();
+			le.setTimeStamp(1000L + i);
+			le.setLevel(Level.INFO);
+			le.setLoggerName("test.logger");
+			le.setThreadName("test-thread");
+			le.setMessage("msg " + i);
+			ring.doAppend(le);
+		}
+		return ring;
+	}
+	
+	@Test
+	public void readAfter() {
+		
+		LogRingAppender ring = ring(10);
+		LogBufferPage page = new LogBufferPage(5);
+		assertFalse(LogTail.readAfter(ring, 3L, page));
+		assertEquals(5, page.size);
+		assertEquals(8L, page.seqs[0]);
+		assertEquals(4L, page.seqs[4]);
+		page.clear();
+		assertFalse(LogTail.readAfter(ring, 10L, page));
+		assertEquals(0, page.size);
+	}
+	
+	/** A client with a sequence number from before a restart gets the events from the start. */
+	@Test
+	public void readAfterRestart() {
+		
+		LogRingAppender ring = ring(10);
+		LogBufferPage page = new LogBufferPage(5);
+		assertTrue(LogTail.readAfter(ring, 500L, page));
+		assertEquals(5, page.size);
+		assertEquals(5L, page.seqs[0]);
+		assertEquals(1L, page.seqs[4]);
+		page.clear();
+		assertTrue(LogTail.readAfter(ring(0), 500L, page));
+		assertEquals(0, page.size);
+	}
+}
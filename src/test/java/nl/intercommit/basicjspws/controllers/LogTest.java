@@ -0,0 +1,165 @@
+/*  Copyright 2012 InterCommIT b.v.
+*
+*  This file is part of the "BasicJspWs" project hosted on https://github.com/intercommit/basicjspws
+*
+*  BasicJspWs is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  BasicJspWs is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with BasicJspWs. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.basicjspws.controllers;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.http.HttpServletRequest;
+
+import nl.intercommit.basicjspws.AppInit;
+import nl.intercommit.basicjspws.LogBufferAppender;
+import nl.intercommit.basicjspws.LogEventFilter;
+import nl.intercommit.basicjspws.TestResponse;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class LogTest {
+
+	/** Log uses the default encoding of the application. */
+	@BeforeClass
+	public static void setAppInstance() {
+		
+		AppInit.appInstance = new AppInit() {
+			@Override protected String getAppName() { return "Test"; }
+			@Override protected String getBaseName() { return "test"; }
+			@Override protected String getAppVersion() { return "0"; }
+			@Override protected String getAppEnv() { return "test"; }
+			@Override protected Properties getAppProps(final ServletContextEvent sce) { return new Properties(); }
+			@Override protected void initApp(final ServletContextEvent sce) {}
+		};
+		AppInit.appInstance.defaultEncoding = "UTF-8";
+	}
+	
+	@AfterClass
+	public static void clearAppInstance() {
+		AppInit.appInstance = null;
+	}
+
+	private static HttpServletRequest request(final String... params) {
+		
+		final Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < params.length; i += 2) values.put(params[i], params[i + 1]);
+		return (HttpServletRequest) Proxy.newProxyInstance(LogTest.class.getClassLoader(), 
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			@Override public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return ("getParameter".equals(method.getName()) ? values.get(args[0]) : null);
+			}
+		});
+	}
+	
+	private static void append(final LogBufferAppender buffer, final long timeStamp, final String msg) {
+		
+		LoggingEvent le = new LoggingEvent();
+		le.setTimeStamp(timeStamp);
+		le.setLevel(Level.INFO);
+		le.setLoggerName("test.logger");
+		le.setThreadName("test-thread");
+		le.setMessage(msg);
+		buffer.doAppend(le);
+	}
+	
+	/** Events 1 to 100 with timestamps 1000 + i and message "even i" or "odd i". */
+	private static LogBufferAppender buffer() {
+		
+		LogBufferAppender buffer = new LogBufferAppender();
+		buffer.setContext(new LoggerContext());
+		buffer.setName("TEST");
+		buffer.setMaxSize(1000);
+		buffer.start();
+		for (int i = 1; i <= 100; i++) {
+			append(buffer, 1000L + i, (i % 2 == 0 ? "even " : "odd ") + i);
+		}
+		return buffer;
+	}
+	
+	/** Shows the events written to the response as message numbers, last event first. */
+	private static String written(final TestResponse response) {
+		
+		StringBuilder sb = new StringBuilder();
+		for (String line : response.getText().split("\n")) {
+			if (line.startsWith("even ") || line.startsWith("odd ")) sb.append(line.substring(line.indexOf(' ') + 1)).append(',');
+		}
+		return sb.toString();
+	}
+	
+	@Test
+	public void offsetCountsMatchingEvents() {
+		
+		LogEventFilter filter = new LogEventFilter();
+		filter.messagePattern = Pattern.compile("even");
+		TestResponse response = new TestResponse();
+		assertEquals(3, Log.writeLogEvents(request("offset", "2", "limit", "3"), response, buffer(), "%msg%n", "test", filter));
+		assertEquals("96,94,92,", written(response));
+		// Without a filter the offset counts all events.
+		response = new TestResponse();
+		assertEquals(3, Log.writeLogEvents(request("offset", "2", "limit", "3"), response, buffer(), "%msg%n", "test", null));
+		assertEquals("98,97,96,", written(response));
+	}
+	
+	/** Events appended out of timestamp order (within the margin) are still found. */
+	@Test
+	public void timeRangeOutOfOrder() {
+		
+		LogBufferAppender buffer = buffer();
+		// Appended late, with timestamps within and before the time range.
+		append(buffer, 1010L, "odd late");
+		append(buffer, 1005L, "odd early");
+		append(buffer, 500000L, "odd later");
+		LogEventFilter filter = new LogEventFilter();
+		filter.fromTime = 1008L;
+		filter.toTime = 1011L;
+		TestResponse response = new TestResponse();
+		assertEquals(5, Log.writeLogEvents(request(), response, buffer, "%msg%n", "test", filter));
+		assertEquals("late,11,10,9,8,", written(response));
+	}
+	
+	/** Request parameter "time" limits one query, the (shared) filter is not changed. */
+	@Test
+	public void filterNotChanged() {
+		
+		LogBufferAppender buffer = buffer();
+		LogEventFilter filter = new LogEventFilter();
+		filter.fromTime = 1008L;
+		filter.toTime = 1011L;
+		TestResponse response = new TestResponse();
+		assertEquals(2, Log.writeLogEvents(request("time", "1009"), response, buffer, "%msg%n", "test", filter));
+		assertEquals("9,8,", written(response));
+		assertEquals(1011L, filter.toTime);
+		response = new TestResponse();
+		assertEquals(4, Log.writeLogEvents(request(), response, buffer, "%msg%n", "test", filter));
+		assertEquals("11,10,9,8,", written(response));
+		assertEquals(1008L, filter.fromTime);
+		assertEquals(1011L, filter.toTime);
+	}
+}